@@ -0,0 +1,135 @@
+package bench;
+
+import ast.CompiledExpr;
+import ast.Differentiator;
+import ast.Expr;
+import ast.ExprCompiler;
+import ast.Simplifier;
+import ast.StackCompiler;
+import ast.StackProgram;
+import ast.Sym;
+import ast.VariableContext;
+import ast.VariableLayout;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import parse.Parser;
+
+/**
+ * 木の評価（Expr.eval / Expr.evalBatch）・ExprCompilerでコンパイルしたクラス・StackProgramの比較
+ * 1つの式をxを変えながら何度も評価する（プロット・掃引を想定）
+ * 値と微分係数を両方求める場合は、前進型の自動微分（evalDual）と記号微分した導関数の評価を比べる
+ * 実行: mvn -Pjmh package && java -jar target/benchmarks.jar EvalBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EvalBenchmark {
+
+    @Param({"sin(x)*x^2+cos(x)/(x+2)", "sqrt(abs(x))-exp(-x*x)/(1+x^4)+ln(x*x+1)",
+            "2*e*x^2-sqrt(4)*x/2+(3-1)*x^1", "sin(x)/(1+cos(x))+sqrt(x^2+1)*sin(x)-cos(x)/sqrt(x^2+1)"})
+    public String expr;
+
+    // Simplifierで簡約してから評価するか
+    @Param({"false", "true"})
+    public boolean simplify;
+
+    @Param({"1000"})
+    public int points;
+
+    private Expr tree;
+    private VariableContext context;
+    private CompiledExpr compiled;
+    private StackProgram program;
+    private double[] vars;
+    private double[] stack;
+    private StackProgram derivative;
+    private double[] derivativeStack;
+    private double[] dStack;
+    private double[] dual;
+    private int xSlot;
+    private double[] xs;
+    private double[] out;
+
+    @Setup
+    public void setup() {
+        context = new VariableContext();
+        Sym.setGlobalContext(context);
+        tree = Parser.parse(expr);
+        if (simplify) tree = Simplifier.simplify(tree);
+        compiled = ExprCompiler.compile(tree);
+        program = StackCompiler.compile(tree);
+        vars = new double[program.variables().size()];
+        stack = program.newStack();
+        derivative = StackCompiler.compile(Differentiator.derivative(tree, "x"), VariableLayout.of(program.variables()));
+        derivativeStack = derivative.newStack();
+        dStack = program.newStack();
+        dual = new double[2];
+        xSlot = program.slotOf("x");
+        xs = new double[points];
+        // 格子点を半分ずらして x = -2 などの特異点を避ける
+        for (int i = 0; i < points; i++) xs[i] = -5.0 + 10.0 * (i + 0.5) / points;
+        out = new double[points];
+    }
+
+    // Expr.evalはxをグローバルコンテキストから読むので、点ごとにコンテキストのxを書き換える
+    @Benchmark
+    public double treeWalk() {
+        double s = 0;
+        for (double x : xs) {
+            context.setVariable("x", x);
+            s += tree.eval(x);
+        }
+        return s;
+    }
+
+    @Benchmark
+    public double treeBatch() {
+        tree.evalBatch(xs, out);
+        double s = 0;
+        for (double v : out) s += v;
+        return s;
+    }
+
+    @Benchmark
+    public double compiled() {
+        double s = 0;
+        for (double x : xs) s += compiled.applyAsDouble(x);
+        return s;
+    }
+
+    @Benchmark
+    public double stackMachine() {
+        double s = 0;
+        for (double x : xs) {
+            vars[xSlot] = x;
+            s += program.eval(vars, stack);
+        }
+        return s;
+    }
+
+    @Benchmark
+    public double dualNumber() {
+        double s = 0;
+        for (double x : xs) {
+            vars[xSlot] = x;
+            program.evalDual(vars, xSlot, stack, dStack, dual);
+            s += dual[0] + dual[1];
+        }
+        return s;
+    }
+
+    // 値と、Differentiatorで作った導関数をそれぞれ評価する
+    @Benchmark
+    public double symbolicDerivative() {
+        double s = 0;
+        for (double x : xs) {
+            vars[xSlot] = x;
+            s += program.eval(vars, stack);
+            s += derivative.eval(vars, derivativeStack);
+        }
+        return s;
+    }
+}
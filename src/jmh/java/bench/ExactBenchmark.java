@@ -0,0 +1,62 @@
+package bench;
+
+import ast.ExactEvaluator;
+import ast.Expr;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import parse.Parser;
+
+/**
+ * 整数の四則演算だけの式について、doubleでの木の評価とExactEvaluator（分数で正確に計算）の比較
+ * 1つの式だけを繰り返すとJITが木ごと展開して実際より速くなるので、生成した式の列を順に評価する。
+ * 実行: mvn -Pjmh package && java -jar target/benchmarks.jar ExactBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExactBenchmark {
+
+    @Param({"1000"})
+    public int corpusSize;
+
+    @Param({"2"})
+    public int maxDepth;
+
+    // 割り算を含めるか（含めなければ答えはすべて整数）
+    @Param({"false", "true"})
+    public boolean division;
+
+    private Expr[] corpus;
+
+    @Setup
+    public void setup() {
+        corpus = new ExprCorpus(42, maxDepth).generateArithmetic(corpusSize, division).stream()
+                .map(Parser::parse).toArray(Expr[]::new);
+    }
+
+    @Benchmark
+    public void treeWalk(Blackhole bh) {
+        for (Expr e : corpus) {
+            try {
+                bh.consume(e.eval(0.0));
+            } catch (ArithmeticException ex) {
+                bh.consume(ex);
+            }
+        }
+    }
+
+    @Benchmark
+    public void exact(Blackhole bh) {
+        for (Expr e : corpus) {
+            try {
+                bh.consume(ExactEvaluator.evaluate(e));
+            } catch (ArithmeticException ex) {
+                bh.consume(ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package bench;
+
+import java.util.*;
+
+/**
+ * ベンチマーク用の式文字列を乱数で生成する（シード固定で毎回同じ列になる）
+ */
+public class ExprCorpus {
+
+    private static final String[] FUNCS = {"sin", "cos", "exp", "sqrt", "abs", "ln"};
+    private static final String[] OPS = {"+", "-", "*", "/", "^"};
+
+    private final Random random;
+    private final int maxDepth;
+
+    public ExprCorpus(long seed, int maxDepth) {
+        this.random = new Random(seed);
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * 式をn個生成する
+     * 以前のパーサが誤解釈する形（"--" の連続）は含めない
+     */
+    public List<String> generate(int n) {
+        List<String> out = new ArrayList<>(n);
+        while (out.size() < n) {
+            String s = expr(maxDepth);
+            if (!s.contains("--")) out.add(s);
+        }
+        return out;
+    }
+
+    /**
+     * 変数も関数も含まない整数の四則演算の式をn個生成する（withDivisionがfalseなら割り算を含めない）
+     */
+    public List<String> generateArithmetic(int n, boolean withDivision) {
+        List<String> out = new ArrayList<>(n);
+        while (out.size() < n) out.add(arithmetic(maxDepth, withDivision));
+        return out;
+    }
+
+    private String arithmetic(int depth, boolean withDivision) {
+        StringBuilder sb = new StringBuilder(arithmeticTerm(depth, withDivision));
+        int n = 1 + random.nextInt(3);
+        for (int i = 0; i < n; i++) {
+            int op = random.nextInt(withDivision ? 4 : 3);
+            sb.append("+-*/".charAt(op)).append(arithmeticTerm(depth, withDivision));
+        }
+        return sb.toString();
+    }
+
+    private String arithmeticTerm(int depth, boolean withDivision) {
+        switch (depth <= 0 ? 0 : random.nextInt(4)) {
+            case 0:
+            case 1:
+                return Integer.toString(1 + random.nextInt(99));
+            case 2:
+                return "(" + arithmetic(depth - 1, withDivision) + ")";
+            default:
+                return (1 + random.nextInt(99)) + "^" + (1 + random.nextInt(3));
+        }
+    }
+
+    private String expr(int depth) {
+        StringBuilder sb = new StringBuilder(term(depth));
+        int n = random.nextInt(4);
+        for (int i = 0; i < n; i++) {
+            sb.append(OPS[random.nextInt(OPS.length)]).append(term(depth));
+        }
+        return sb.toString();
+    }
+
+    private String term(int depth) {
+        switch (depth <= 0 ? random.nextInt(2) : random.nextInt(5)) {
+            case 0:
+                return random.nextBoolean()
+                        ? Integer.toString(random.nextInt(100))
+                        : random.nextInt(100) + "." + random.nextInt(100);
+            case 1:
+                return random.nextInt(4) == 0 ? "π" : "x";
+            case 2:
+                return "-" + term(depth - 1);
+            case 3:
+                return "(" + expr(depth - 1) + ")";
+            default:
+                // 関数の引数には括弧を入れない（以前のパーサは入れ子の括弧で関数の適用位置を誤る）
+                return FUNCS[random.nextInt(FUNCS.length)] + "(" + expr(0) + ")";
+        }
+    }
+}
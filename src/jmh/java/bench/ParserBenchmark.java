@@ -0,0 +1,50 @@
+package bench;
+
+import ast.Expr;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import parse.Parser;
+
+/**
+ * Pratt版Parserと以前のShuntingYardParserの比較
+ * 実行: mvn -Pjmh package && java -jar target/benchmarks.jar ParserBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParserBenchmark {
+
+    @Param({"1000"})
+    public int corpusSize;
+
+    @Param({"3"})
+    public int maxDepth;
+
+    private String[] corpus;
+
+    @Setup
+    public void setup() {
+        corpus = new ExprCorpus(42, maxDepth).generate(corpusSize).toArray(new String[0]);
+    }
+
+    @Benchmark
+    public void pratt(Blackhole bh) {
+        for (String s : corpus) {
+            Expr e = Parser.parse(s);
+            bh.consume(e);
+        }
+    }
+
+    @Benchmark
+    public void shuntingYard(Blackhole bh) {
+        for (String s : corpus) {
+            Expr e = ShuntingYardParser.parse(s);
+            bh.consume(e);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package bench;
+
+import ast.AdaptiveSampler;
+import ast.Expr;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import parse.Parser;
+
+/**
+ * AdaptiveSamplerでプロット用の点列を作る速さ（1ミリ秒あたりの点数）
+ * 結果の "points" 行が点数/ms、"evaluations" 行が式の評価回数/ms
+ * 実行: mvn -Pjmh package && java -jar target/benchmarks.jar SamplerBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SamplerBenchmark {
+
+    // なめらかな式・極のある式・定義域の端がある式・激しく振動する式・範囲の半分がゼロ除算になる式
+    @Param({"sin(x)*x^2+cos(x)/(x+2)", "tan(x)", "sqrt(x)+ln(x)", "sin(1/x)", "1/(abs(x)-x)"})
+    public String expr;
+
+    // 並列に使うスレッド数（1なら逐次と同じ）
+    @Param({"1", "4"})
+    public int threads;
+
+    private Expr tree;
+    private ForkJoinPool pool;
+    private AdaptiveSampler sampler;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long points;
+        public long evaluations;
+    }
+
+    @Setup
+    public void setup() {
+        tree = Parser.parse(expr);
+        pool = new ForkJoinPool(threads);
+        sampler = new AdaptiveSampler(256, 8, 1e-3, 20000, pool);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public AdaptiveSampler.Curve sample(Counters counters) {
+        AdaptiveSampler.Curve c = sampler.sample(tree, -10.0, 10.0);
+        counters.points += c.size();
+        counters.evaluations += c.evaluations;
+        return c;
+    }
+}
@@ -0,0 +1,232 @@
+package bench;
+
+import ast.*;
+import parse.TokenStream;
+import parse.Tokenizer;
+
+import java.util.*;
+
+/**
+ * 以前の演算子優先順位（shunting-yard）パーサ
+ * ParserBenchmarkでParserと比べるためだけに残している（本体のソースには含めない）。
+ */
+public class ShuntingYardParser {
+
+    private static int prec(String op) {
+        switch (op) {
+            case "^": return 4;
+            case "*":
+            case "/": return 3;
+            case "+":
+            case "-": return 2;
+            case "→": return 1; // 矢印は低優先度
+            default: throw new IllegalArgumentException("Unknown op: " + op);
+        }
+    }
+
+    private static boolean rightAssoc(String op) {
+        return op.equals("^");
+    }
+
+    // スレッドごとに使い回すトークン列（parseは再入しないので1つで足りる）
+    private static final ThreadLocal<TokenStream> STREAM = ThreadLocal.withInitial(TokenStream::new);
+
+    public static Expr parse(String input) {
+        TokenStream toks = STREAM.get();
+        Tokenizer.tokenize(input, toks);
+        try {
+            return parse(toks);
+        } finally {
+            toks.reset(null); // 入力文字列を保持し続けない
+        }
+    }
+
+    /**
+     * Tokenizerが書き込んだトークン列をパースする
+     */
+    public static Expr parse(TokenStream toks) {
+        Deque<String> opStack = new ArrayDeque<>();
+        Deque<String> funcStack = new ArrayDeque<>();
+        Deque<Expr> valStack = new ArrayDeque<>();
+
+        // 単項マイナス判定用：直前が「値」かどうか
+        boolean prevWasValue = false;
+
+        for (int i = 0; i < toks.size(); i++) {
+            switch (toks.kind(i)) {
+                case TokenStream.NUM:
+                    valStack.push(new Num(toks.number(i)));
+                    prevWasValue = true;
+                    break;
+
+                case TokenStream.SYM:
+                    valStack.push(new Sym(toks.text(i)));
+                    prevWasValue = true;
+                    break;
+
+                case TokenStream.FUNC:
+                    funcStack.push(toks.text(i)); // 関数名を積む
+                    prevWasValue = false;  // 次は "(" を期待
+                    break;
+
+                case TokenStream.LPAREN:
+                    opStack.push("(");
+                    prevWasValue = false;
+                    break;
+
+                case TokenStream.COMMA:
+                    // カンマはlimit関数の引数区切りとして処理
+                    // カンマの前の式を引数として収集するため、演算子スタックを処理
+                    while (!opStack.isEmpty() && !opStack.peek().equals("(")) {
+                        String op = opStack.pop();
+                        if (op.equals("u-")) {
+                            applyUnaryNeg(valStack);
+                        } else {
+                            applyOp(op, valStack);
+                        }
+                    }
+                    // カンマの前の式はvalStackに積まれているので、そのまま続ける
+                    prevWasValue = false;
+                    break;
+
+                case TokenStream.RPAREN:
+                    while (!opStack.isEmpty() && !opStack.peek().equals("(")) {
+                        String op = opStack.pop();
+                        if (op.equals("u-")) {
+                            // 単項マイナスを適用
+                            applyUnaryNeg(valStack);
+                        } else {
+                            // 二項演算子を適用
+                            applyOp(op, valStack);
+                        }
+                    }
+                    if (opStack.isEmpty() || !opStack.peek().equals("(")) {
+                        throw new IllegalArgumentException("Mismatched ')'");
+                    }
+                    opStack.pop(); // pop "("
+
+                    // 直前に関数が積まれていれば適用
+                    if (!funcStack.isEmpty()) {
+                        String f = funcStack.pop();
+                        // limit関数は複数引数をサポート
+                        if (f.equals("limit")) {
+                            // limit関数はカンマ区切りの引数を処理
+                            // 引数は右から左に積まれているので、逆順に取得
+                            List<Expr> args = new ArrayList<>();
+                            // 括弧内の引数を取得（カンマで区切られている）
+                            // limit関数は通常2つの引数（limitValue, expression）を持つ
+                            // ただし、3つの引数（variable, limitValue, expression）の場合もある
+                            // ここでは、valStackから引数を取得（最大3つまで）
+                            int argCount = 0;
+                            while (!valStack.isEmpty() && argCount < 3) {
+                                args.add(valStack.pop());
+                                argCount++;
+                            }
+                            if (args.isEmpty()) {
+                                throw new IllegalArgumentException("limit関数に引数がありません");
+                            }
+                            Collections.reverse(args); // 正しい順序に
+                            valStack.push(new Func(f, args));
+                        } else {
+                            // その他の関数は1引数
+                            if (valStack.isEmpty()) {
+                                throw new IllegalArgumentException("関数 " + f + " に引数がありません");
+                            }
+                            Expr arg = valStack.pop();
+                            valStack.push(new Func(f, List.of(arg)));
+                        }
+                        prevWasValue = true;
+                    } else {
+                        prevWasValue = true;
+                    }
+                    break;
+
+                case TokenStream.OP: {
+                    String op = toks.text(i);
+
+                    // 単項マイナス: 先頭 or 直前が値でない場合
+                    if (op.equals("-") && !prevWasValue) {
+                        // neg(...) として扱う：次の値を neg するために "u-" を積む
+                        op = "u-";
+                    }
+
+                    while (!opStack.isEmpty() && !opStack.peek().equals("(")) {
+                        String top = opStack.peek();
+                        if (top.equals("u-")) {
+                            // u- は最優先で先に適用
+                            opStack.pop();
+                            applyUnaryNeg(valStack);
+                            continue;
+                        }
+
+                        int pTop = prec(top);
+                        int pCur = op.equals("u-") ? 5 : prec(op);
+
+                        if (pTop > pCur || (pTop == pCur && !rightAssoc(op))) {
+                            applyOp(opStack.pop(), valStack);
+                        } else break;
+                    }
+
+                    opStack.push(op);
+                    prevWasValue = false;
+                    break;
+                }
+
+                default:
+                    throw new IllegalArgumentException("Unsupported token: " + toks.toToken(i));
+            }
+        }
+
+        while (!opStack.isEmpty()) {
+            String op = opStack.pop();
+            if (op.equals("(")) throw new IllegalArgumentException("Mismatched '('");
+            if (op.equals("u-")) applyUnaryNeg(valStack);
+            else applyOp(op, valStack);
+        }
+
+        if (valStack.size() != 1) {
+            throw new IllegalArgumentException("Bad expression, remaining stack=" + valStack.size());
+        }
+        return valStack.pop();
+    }
+
+    private static void applyUnaryNeg(Deque<Expr> valStack) {
+        Expr a = valStack.pop();
+        valStack.push(new Func("neg", List.of(a)));
+    }
+
+    private static void applyOp(String op, Deque<Expr> valStack) {
+        if (valStack.size() < 2) {
+            throw new IllegalArgumentException("演算子 " + op + " に必要な値がスタックにありません (スタックサイズ: " + valStack.size() + ")");
+        }
+        Expr b = valStack.pop();
+        Expr a = valStack.pop();
+
+        switch (op) {
+            case "+":
+                valStack.push(new Add(List.of(a, b)));
+                return;
+            case "-":
+                // 二項引き算は Func("sub") に寄せる方針
+                valStack.push(new Func("sub", List.of(a, b)));
+                return;
+            case "*":
+                valStack.push(new Mul(List.of(a, b)));
+                return;
+            case "/":
+                valStack.push(new Div(List.of(a, b)));
+                return;
+            case "^":
+                valStack.push(new Pow(List.of(a, b)));
+                return;
+            case "→":
+                // 矢印はlimの処理で使われるだけで、実際の計算では使われない
+                // 左側の値をそのまま返す（簡易実装）
+                valStack.push(a);
+                return;
+            default:
+                throw new IllegalArgumentException("Unknown op: " + op);
+        }
+    }
+}
+
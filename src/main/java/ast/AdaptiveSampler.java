@@ -0,0 +1,275 @@
+package ast;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * 1変数の式をプロット用に標本化する
+ *
+ * 1. [lo, hi] を等間隔の格子に分け、BATCH_CHUNK点ずつの塊を並列にBoundExpr.evalBatchで評価する
+ * 2. 格子の区間ごとに（区間もまとめて並列に）、中点が直線から外れる所や値が途切れる所だけを再帰的に細かくする
+ *    区間演算（BoundExpr.evalInterval。動かす変数だけが区間、ほかは与えた値）も使い、値の幅が許容誤差より小さいと分かる区間は
+ *    中点を評価せずに飛ばし、格子点の間に隠れた極があれば細かくする
+ * 3. 細かくしきっても値が跳ぶ所（極・ゼロ除算など）には、yがNaNの点を入れて線を切る
+ *
+ * 許容誤差は、格子点の値の広がり（外れ値を除いた5%〜95%の幅）に対する割合で指定する。
+ * 評価は例外を出さないモードで行い、例外になるはずの点（ゼロ除算など）はNaNとして扱う。
+ * 作成後は変更しないので、1つのインスタンスを複数スレッドで共有してよい。
+ */
+public final class AdaptiveSampler {
+
+    /**
+     * 標本化した点列（xの昇順。yが有限でない点で線を切る）
+     */
+    public static final class Curve {
+        public final double[] xs;
+        public final double[] ys;
+        // 式を評価した回数（格子点を含む）
+        public final int evaluations;
+
+        Curve(double[] xs, double[] ys, int evaluations) {
+            this.xs = xs;
+            this.ys = ys;
+            this.evaluations = evaluations;
+        }
+
+        public int size() {
+            return xs.length;
+        }
+    }
+
+    public static final AdaptiveSampler DEFAULT = new AdaptiveSampler(256, 8, 1e-3, 20000);
+
+    // 区間の細分化を1タスクにまとめる格子区間の数
+    private static final int CELLS_PER_TASK = 32;
+
+    private final int gridCells;
+    private final int maxDepth;
+    private final double tolerance;
+    private final int maxEvaluations;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param gridCells 最初の格子の区間数
+     * @param maxDepth 格子の区間を2分割する深さの上限
+     * @param tolerance 直線で近似してよい誤差（値の広がりに対する割合）
+     * @param maxEvaluations 評価回数の上限の目安（格子点を含む）
+     */
+    public AdaptiveSampler(int gridCells, int maxDepth, double tolerance, int maxEvaluations) {
+        this(gridCells, maxDepth, tolerance, maxEvaluations, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param pool 並列処理に使うForkJoinプール（呼び出し側が寿命を管理する）
+     */
+    public AdaptiveSampler(int gridCells, int maxDepth, double tolerance, int maxEvaluations, ForkJoinPool pool) {
+        if (gridCells < 1) throw new IllegalArgumentException("gridCells must be >= 1");
+        if (maxDepth < 0) throw new IllegalArgumentException("maxDepth must be >= 0");
+        if (!(tolerance > 0.0)) throw new IllegalArgumentException("tolerance must be > 0");
+        if (pool == null) throw new IllegalArgumentException("pool must not be null");
+        this.gridCells = gridCells;
+        this.maxDepth = maxDepth;
+        this.tolerance = tolerance;
+        this.maxEvaluations = Math.max(maxEvaluations, gridCells + 1);
+        this.pool = pool;
+    }
+
+    /**
+     * xについて標本化する（ほかの変数はSymのグローバルコンテキストの値）
+     */
+    public Curve sample(Expr expr, double lo, double hi) {
+        return sample(expr, "x", Sym.globalContext(), lo, hi);
+    }
+
+    /**
+     * varについて標本化する（ほかの変数はcontextの値）
+     */
+    public Curve sample(Expr expr, String var, VariableContext context, double lo, double hi) {
+        BoundExpr f = BoundExpr.bind(expr, LimitEvaluator.layoutWith(expr, var));
+        return sample(f, f.layout().assignment(context), f.layout().slotOf(var), lo, hi);
+    }
+
+    /**
+     * 束縛済みの式を、slotの変数について標本化する
+     * @param vars ほかの変数の値（書き換えない）
+     */
+    public Curve sample(BoundExpr f, double[] vars, int slot, double lo, double hi) {
+        if (!(lo < hi) || Double.isInfinite(lo) || Double.isInfinite(hi)) {
+            throw new IllegalArgumentException("Invalid range: [" + lo + ", " + hi + "]");
+        }
+        if (slot < 0 || slot >= f.layout().size()) throw new IllegalArgumentException("Invalid slot: " + slot);
+
+        double[] gx = new double[gridCells + 1];
+        for (int i = 0; i <= gridCells; i++) gx[i] = lo + (hi - lo) * i / gridCells;
+        gx[gridCells] = hi;
+        double[] gy = new double[gridCells + 1];
+        int chunks = (gx.length + Expr.BATCH_CHUNK - 1) / Expr.BATCH_CHUNK;
+        runInPool(() -> {
+            IntStream.range(0, chunks).parallel().forEach(c -> evalGrid(f, vars, slot, gx, gy, c * Expr.BATCH_CHUNK));
+            return null;
+        });
+
+        double tol = tolerance * spread(gy);
+        int tasks = (gridCells + CELLS_PER_TASK - 1) / CELLS_PER_TASK;
+        int budget = Math.max(0, (maxEvaluations - gx.length) / tasks);
+        List<Refiner> parts = runInPool(() -> IntStream.range(0, tasks).parallel()
+                .mapToObj(t -> {
+                    Refiner r = new Refiner(f, vars, slot, tol, budget);
+                    int end = Math.min(gridCells, (t + 1) * CELLS_PER_TASK);
+                    for (int i = t * CELLS_PER_TASK; i < end; i++) {
+                        r.add(gx[i], gy[i]);
+                        r.cell(gx[i], gy[i], gx[i + 1], gy[i + 1], 0);
+                    }
+                    return r;
+                })
+                .collect(Collectors.toList()));
+
+        int size = 1;
+        int evaluations = gx.length;
+        for (Refiner r : parts) {
+            size += r.size;
+            evaluations += r.evaluations;
+        }
+        double[] xs = new double[size];
+        double[] ys = new double[size];
+        int k = 0;
+        for (Refiner r : parts) {
+            System.arraycopy(r.xs, 0, xs, k, r.size);
+            System.arraycopy(r.ys, 0, ys, k, r.size);
+            k += r.size;
+        }
+        xs[k] = gx[gridCells];
+        ys[k] = gy[gridCells];
+        return new Curve(xs, ys, evaluations);
+    }
+
+    static void evalGrid(BoundExpr f, double[] vars, int slot, double[] gx, double[] gy, int from) {
+        int len = Math.min(Expr.BATCH_CHUNK, gx.length - from);
+        double[] xs = Arrays.copyOfRange(gx, from, from + len);
+        double[] out = new double[len];
+        int[] errors = new int[len];
+        f.evalBatch(vars.clone(), slot, xs, out, errors);
+        for (int i = 0; i < len; i++) {
+            if ((errors[i] & EvalStatus.THROWING) != 0) out[i] = Double.NaN;
+        }
+        System.arraycopy(out, 0, gy, from, len);
+    }
+
+    /**
+     * xでの値（例外を出す評価なら例外になる点はNaN）
+     */
+    static double evalOrNaN(BoundExpr f, double[] v, int slot, double x, double[] stack, EvalStatus status) {
+        v[slot] = x;
+        double y = f.eval(v, stack, status);
+        return (status.flags() & EvalStatus.THROWING) != 0 ? Double.NaN : y;
+    }
+
+    /**
+     * 格子点の値の広がり（極の近くの大きな値に引きずられないよう、5%〜95%の幅をとる）
+     */
+    private static double spread(double[] ys) {
+        double[] finite = Arrays.stream(ys).filter(Double::isFinite).sorted().toArray();
+        if (finite.length < 2) return 1.0;
+        double s = finite[(int) (finite.length * 0.95)] - finite[(int) (finite.length * 0.05)];
+        return s > 0.0 ? s : Math.max(1.0, Math.abs(finite[finite.length / 2]));
+    }
+
+    private <T> T runInPool(Supplier<T> task) {
+        if (pool == ForkJoinPool.commonPool()) return task.get();
+        return pool.submit(task::get).join();
+    }
+
+    /**
+     * 格子区間の細分化（1タスク分。点は左端から順に追加する）
+     */
+    private final class Refiner {
+        private final BoundExpr f;
+        private final double[] v;
+        private final int slot;
+        private final double[] stack;
+        private final EvalStatus status = new EvalStatus();
+        private final double tol;
+        private int budget;
+        int evaluations;
+        double[] xs = new double[CELLS_PER_TASK * 2];
+        double[] ys = new double[CELLS_PER_TASK * 2];
+        int size;
+
+        Refiner(BoundExpr f, double[] vars, int slot, double tol, int budget) {
+            this.f = f;
+            this.v = vars.clone();
+            this.slot = slot;
+            this.stack = f.newStack();
+            this.tol = tol;
+            this.budget = budget;
+        }
+
+        /**
+         * (x0, x1) の内側の点を追加する（x0は追加済み、x1は呼び出し側が追加する）
+         */
+        void cell(double x0, double y0, double x1, double y1, int depth) {
+            Interval range = interval(x0, x1);
+            if (range != null && range.continuous && range.width() <= tol) return; // 直線で描いても誤差はtol以下
+            boolean hiddenJump = range != null && !range.continuous && range.width() > tol;
+            if (depth >= maxDepth || budget <= 0) {
+                // 区間演算が使えるときは連続と分かった区間では線を切らない
+                boolean jump = range != null ? hiddenJump : isJump(x0, y0, x1, y1);
+                if (jump && !Double.isNaN(ys[size - 1])) add(0.5 * (x0 + x1), Double.NaN);
+                return;
+            }
+            if (range != null && range.isEmpty()) return; // 値のある点がない
+
+            double xm = 0.5 * (x0 + x1);
+            double ym = evalOrNaN(f, v, slot, xm, stack, status);
+            evaluations++;
+            budget--;
+            boolean f0 = Double.isFinite(y0);
+            boolean fm = Double.isFinite(ym);
+            boolean f1 = Double.isFinite(y1);
+            boolean refine;
+            if (f0 && fm && f1) {
+                refine = Math.abs(ym - 0.5 * (y0 + y1)) > tol || hiddenJump;
+            } else {
+                // 定義域の端や極: 有限な点とそうでない点の境目を詰める
+                refine = f0 || fm || f1;
+            }
+            if (!refine) return;
+            cell(x0, y0, xm, ym, depth + 1);
+            add(xm, ym);
+            cell(xm, ym, x1, y1, depth + 1);
+        }
+
+        private Interval interval(double x0, double x1) {
+            try {
+                return f.evalInterval(v, slot, x0, x1);
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+
+        /**
+         * 細かくしきった区間で値が跳んでいるか
+         * 広がりの半分を超える差があり、中点の値が両端の値の間に入らなければ跳びとみなす
+         * （急でも連続な所では中点の値は両端の間に入る）
+         */
+        private boolean isJump(double x0, double y0, double x1, double y1) {
+            if (!Double.isFinite(y0) || !Double.isFinite(y1) || Math.abs(y1 - y0) <= 0.5 * tol / tolerance) return false;
+            double ym = evalOrNaN(f, v, slot, 0.5 * (x0 + x1), stack, status);
+            evaluations++;
+            return !(Math.min(y0, y1) < ym && ym < Math.max(y0, y1));
+        }
+
+        void add(double x, double y) {
+            if (size == xs.length) {
+                xs = Arrays.copyOf(xs, size * 2);
+                ys = Arrays.copyOf(ys, size * 2);
+            }
+            xs[size] = x;
+            ys[size] = y;
+            size++;
+        }
+    }
+}
@@ -2,12 +2,35 @@ package ast;
 
 import java.util.List;
 
-public class Add implements Expr {
+public final class Add implements Expr {
     public final List<Expr> args;
-    public Add(List<Expr> args) { this.args = args; }
+    private final ExprInfo info;
+    public Add(List<Expr> args) {
+        this.args = List.copyOf(args);
+        this.info = ExprInfo.of(ExprInfo.ADD, 0, this.args);
+    }
     @Override public double eval(double x) {
         double s = 0;
         for (Expr e : args) s += e.eval(x);
         return s;
     }
+    @Override public Interval evalInterval(VariableLayout layout, Interval[] ranges) {
+        Interval s = Interval.point(0.0);
+        for (Expr e : args) s = s.add(e.evalInterval(layout, ranges));
+        return s;
+    }
+    @Override public void evalBatch(double[] xs, int xOff, double[] out, int outOff, int len) {
+        java.util.Arrays.fill(out, outOff, outOff + len, 0.0);
+        double[] t = BatchScratch.acquire();
+        try {
+            for (Expr e : args) {
+                e.evalBatch(xs, xOff, t, 0, len);
+                for (int i = 0; i < len; i++) out[outOff + i] += t[i];
+            }
+        } finally {
+            BatchScratch.release(t);
+        }
+    }
+    @Override public ExprInfo info() { return info; }
+    @Override public <R> R accept(ExprVisitor<R> visitor) { return visitor.visitAdd(this); }
 }
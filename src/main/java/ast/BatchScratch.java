@@ -0,0 +1,22 @@
+package ast;
+
+import java.util.ArrayDeque;
+
+/**
+ * evalBatch用の一時配列（長さBATCH_CHUNK）をスレッドごとに使い回す
+ */
+final class BatchScratch {
+
+    private static final ThreadLocal<ArrayDeque<double[]>> FREE = ThreadLocal.withInitial(ArrayDeque::new);
+
+    private BatchScratch() {}
+
+    static double[] acquire() {
+        double[] a = FREE.get().poll();
+        return a != null ? a : new double[Expr.BATCH_CHUNK];
+    }
+
+    static void release(double[] a) {
+        FREE.get().push(a);
+    }
+}
@@ -0,0 +1,217 @@
+package ast;
+
+/**
+ * 変数をスロットに束縛した式
+ *
+ * Symの値をグローバルなVariableContextから読む代わりに、eval(double[])に渡した配列から読む。
+ * 変数の値は呼び出しごとに渡すので、同じBoundExprを複数スレッドで別々の値で評価してよい。
+ * 内部ではStackProgramに変換して評価する（木の評価と結果はビット単位で一致する）。
+ * EvalStatusかint[] errorsを受け取る評価は例外を出さない（ゼロ除算などは±∞・NaNにしてエラーを記録する）。
+ * 特異点の多い範囲を評価し続けるループでは、例外の生成と捕捉のほうが評価より重くなるのでこちらを使う。
+ *
+ * 例:
+ *   BoundExpr f = BoundExpr.bind(Parser.parse("x^2+y"), VariableLayout.of("x", "y"));
+ *   double v = f.eval(new double[] {3.0, 1.0});
+ */
+public final class BoundExpr {
+
+    private final Expr expr;
+    private final VariableLayout layout;
+    private final StackProgram program;
+
+    private BoundExpr(Expr expr, VariableLayout layout, StackProgram program) {
+        this.expr = expr;
+        this.layout = layout;
+        this.program = program;
+    }
+
+    /**
+     * 式に現れる変数を、現れた順にスロットへ割り当てる
+     */
+    public static BoundExpr bind(Expr expr) {
+        StackProgram p = StackCompiler.compile(expr);
+        return new BoundExpr(expr, VariableLayout.of(p.variables()), p);
+    }
+
+    /**
+     * layoutの並びで束縛する（式がlayoutにない変数を含めばIllegalArgumentException）
+     */
+    public static BoundExpr bind(Expr expr, VariableLayout layout) {
+        return new BoundExpr(expr, layout, StackCompiler.compile(expr, layout));
+    }
+
+    public Expr expr() { return expr; }
+    public VariableLayout layout() { return layout; }
+
+    /**
+     * 評価する
+     * @param vars 変数の値（layout()の順）
+     */
+    public double eval(double[] vars) {
+        checkLength(vars);
+        return program.eval(vars);
+    }
+
+    /**
+     * 呼び出し側が用意したスタックで評価する（メモリ確保なし）
+     * @param stack newStack()で作った作業領域
+     */
+    public double eval(double[] vars, double[] stack) {
+        checkLength(vars);
+        return program.eval(vars, stack);
+    }
+
+    /**
+     * 例外を出さずに評価する（エラーはstatusに記録する）
+     */
+    public double eval(double[] vars, double[] stack, EvalStatus status) {
+        checkLength(vars);
+        return program.eval(vars, stack, status);
+    }
+
+    /**
+     * 1つの変数だけを動かしてまとめて評価する（out[i] = slotの変数がxs[i]のときの値）
+     * 評価後のvars[slot]は最後の点の値になる
+     */
+    public void evalBatch(double[] vars, int slot, double[] xs, double[] out) {
+        checkLength(vars);
+        if (out.length < xs.length) throw new IllegalArgumentException("out is shorter than xs");
+        double[] stack = program.newStack();
+        for (int i = 0; i < xs.length; i++) {
+            vars[slot] = xs[i];
+            out[i] = program.eval(vars, stack);
+        }
+    }
+
+    /**
+     * 例外を出さずにまとめて評価する（errors[i]にxs[i]での評価のエラーのビットを書く。EvalStatusの定数）
+     * 例外を出す評価なら例外になる点は、(errors[i] & EvalStatus.THROWING) != 0 で見分けられる。
+     */
+    public void evalBatch(double[] vars, int slot, double[] xs, double[] out, int[] errors) {
+        checkLength(vars);
+        if (out.length < xs.length || errors.length < xs.length) {
+            throw new IllegalArgumentException("out/errors are shorter than xs");
+        }
+        double[] stack = program.newStack();
+        EvalStatus status = new EvalStatus();
+        for (int i = 0; i < xs.length; i++) {
+            vars[slot] = xs[i];
+            out[i] = program.eval(vars, stack, status);
+            errors[i] = status.flags;
+        }
+    }
+
+    /**
+     * 値とslotの変数についての微分係数を1回の評価で求める（前進型の自動微分）
+     * 導関数の木を作らないので、Differentiatorで微分してから評価するより軽い（普通の評価の2倍程度）。
+     * @param out out[0]に値、out[1]に微分係数を書く
+     */
+    public void evalDual(double[] vars, int slot, double[] out) {
+        evalDual(vars, slot, program.newStack(), program.newStack(), out);
+    }
+
+    /**
+     * 呼び出し側が用意したスタックで値と微分係数を求める（メモリ確保なし）
+     * @param stack newStack()で作った作業領域（値用）
+     * @param dStack newStack()で作った作業領域（微分係数用）
+     */
+    public void evalDual(double[] vars, int slot, double[] stack, double[] dStack, double[] out) {
+        checkLength(vars);
+        checkSlot(slot);
+        if (out.length < 2) throw new IllegalArgumentException("out needs 2 elements");
+        program.evalDual(vars, slot, stack, dStack, out);
+    }
+
+    /**
+     * 例外を出さずに値と微分係数を求める（エラーはstatusに記録する）
+     */
+    public void evalDual(double[] vars, int slot, double[] stack, double[] dStack, double[] out, EvalStatus status) {
+        checkLength(vars);
+        checkSlot(slot);
+        if (out.length < 2) throw new IllegalArgumentException("out needs 2 elements");
+        program.evalDual(vars, slot, stack, dStack, out, status);
+    }
+
+    /**
+     * slotの変数だけを動かして値と微分係数をまとめて求める
+     * （values[i], derivatives[i] = slotの変数がxs[i]のときの値と微分係数）
+     * 評価後のvars[slot]は最後の点の値になる
+     */
+    public void evalDualBatch(double[] vars, int slot, double[] xs, double[] values, double[] derivatives) {
+        checkLength(vars);
+        checkSlot(slot);
+        if (values.length < xs.length || derivatives.length < xs.length) {
+            throw new IllegalArgumentException("values/derivatives are shorter than xs");
+        }
+        double[] stack = program.newStack();
+        double[] dStack = program.newStack();
+        double[] out = new double[2];
+        for (int i = 0; i < xs.length; i++) {
+            vars[slot] = xs[i];
+            program.evalDual(vars, slot, stack, dStack, out);
+            values[i] = out[0];
+            derivatives[i] = out[1];
+        }
+    }
+
+    /**
+     * 例外を出さずに値と微分係数をまとめて求める（errors[i]にxs[i]での評価のエラーのビットを書く）
+     */
+    public void evalDualBatch(double[] vars, int slot, double[] xs, double[] values, double[] derivatives,
+                              int[] errors) {
+        checkLength(vars);
+        checkSlot(slot);
+        if (values.length < xs.length || derivatives.length < xs.length || errors.length < xs.length) {
+            throw new IllegalArgumentException("values/derivatives/errors are shorter than xs");
+        }
+        double[] stack = program.newStack();
+        double[] dStack = program.newStack();
+        double[] out = new double[2];
+        EvalStatus status = new EvalStatus();
+        for (int i = 0; i < xs.length; i++) {
+            vars[slot] = xs[i];
+            program.evalDual(vars, slot, stack, dStack, out, status);
+            values[i] = out[0];
+            derivatives[i] = out[1];
+            errors[i] = status.flags;
+        }
+    }
+
+    /**
+     * 区間演算で値の範囲を求める（Expr.evalInterval(layout(), ranges)）
+     * @param ranges 変数ごとの範囲（layout()の順）
+     */
+    public Interval evalInterval(Interval[] ranges) {
+        if (ranges.length < layout.size()) {
+            throw new IllegalArgumentException("ranges needs " + layout.size() + " values: " + layout);
+        }
+        return expr.evalInterval(layout, ranges);
+    }
+
+    /**
+     * slotの変数が[lo, hi]を動き、ほかの変数はvarsの値のときの値の範囲（vars[slot]は使わない）
+     */
+    public Interval evalInterval(double[] vars, int slot, double lo, double hi) {
+        checkLength(vars);
+        checkSlot(slot);
+        Interval[] ranges = new Interval[layout.size()];
+        for (int i = 0; i < ranges.length; i++) ranges[i] = i == slot ? Interval.of(lo, hi) : Interval.point(vars[i]);
+        return expr.evalInterval(layout, ranges);
+    }
+
+    public double[] newStack() {
+        return program.newStack();
+    }
+
+    private void checkLength(double[] vars) {
+        if (vars.length < layout.size()) {
+            throw new IllegalArgumentException("vars needs " + layout.size() + " values: " + layout);
+        }
+    }
+
+    private void checkSlot(int slot) {
+        if (slot < 0 || slot >= layout.size()) {
+            throw new IllegalArgumentException("Invalid slot " + slot + ": " + layout);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package ast;
+
+import java.util.*;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * ExprCompilerがASTから生成したクラスの基底
+ *
+ * 変数は「スロット」に割り当てられ、eval(double[])では vars[スロット] の値を使う。
+ * スロットの順番は variables() の順（式中に最初に現れた順）。
+ * Expr.evalと違い、変数の値はSymのグローバルコンテキストを経由しない。
+ * limitの式もLimitEvaluatorで同じ値から評価する（StackProgramと同じ）。
+ */
+public abstract class CompiledExpr implements DoubleUnaryOperator {
+
+    final String[] variables;
+    // コンパイルできなかった部分木（木のまま評価する）
+    final Expr[] fallback;
+    // limitの式（生成コードは収束値だけを計算し、ここで極限を評価する）
+    final LimitEvaluator.Site[] limits;
+
+    protected CompiledExpr(String[] variables, Expr[] fallback, LimitEvaluator.Site[] limits) {
+        this.variables = variables;
+        this.fallback = fallback;
+        this.limits = limits;
+    }
+
+    /**
+     * 変数名（添字がスロット番号）
+     */
+    public List<String> variables() {
+        return Collections.unmodifiableList(Arrays.asList(variables));
+    }
+
+    /**
+     * 変数のスロット番号（その変数を含まなければ-1）
+     */
+    public int slotOf(String name) {
+        if (name.equals("theta")) name = "θ";
+        for (int i = 0; i < variables.length; i++) {
+            if (variables[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * すべての変数の値を与えて評価する
+     * @param vars 長さが variables().size() 以上の配列
+     */
+    public abstract double eval(double[] vars);
+
+    /**
+     * 変数xに引数の値を入れて評価する（プロットや掃引用）
+     * x以外の変数はExpr.evalと同じくSymのグローバルコンテキストから読む
+     */
+    @Override
+    public abstract double applyAsDouble(double x);
+
+    // ===== 生成コードから呼ぶ補助メソッド =====
+
+    /**
+     * eval(double[])の中のlimit（式の変数は同じ配列から読む）
+     */
+    final double limit(int index, double target, double[] vars) {
+        return limits[index].eval(vars, target);
+    }
+
+    /**
+     * applyAsDouble(x)の中のlimit（xは引数、ほかの変数はSymのグローバルコンテキストから読む）
+     */
+    final double limitAt(int index, double target, double x) {
+        double[] vars = new double[variables.length];
+        VariableContext ctx = Sym.globalContext();
+        for (int i = 0; i < vars.length; i++) {
+            vars[i] = variables[i].equals("x") ? x : ctx.getVariable(variables[i]);
+        }
+        return limits[index].eval(vars, target);
+    }
+}
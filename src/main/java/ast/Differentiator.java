@@ -0,0 +1,243 @@
+package ast;
+
+import java.util.*;
+
+/**
+ * 記号微分
+ *
+ * すべてのノードの種類について導関数の木を作り、Simplifierで小さくしてから返す。
+ * 結果は(式, 変数)ごとにキャッシュするので、ニュートン法や導関数のプロットのように
+ * 同じ式を何度も微分しても木は1回しか作らない（キャッシュはASTが不要になれば一緒に捨てられる）。
+ *
+ * 規則は通常の微分公式どおり。定義域の端（ln(u)のu=0など）では導関数の評価がゼロ除算の例外になることがある。
+ * π・e・未知の記号は定数として扱う。
+ * diff(v, f) は f を v で微分した式として扱う（高階微分もそのまま書ける）。
+ * lim_{t→a} f（limit(a, f) の t はLimitEvaluator.variableOfで決まる）は、t で微分すると f の項は0、
+ * それ以外の変数では f の導関数の極限にする。収束値 a がその変数によるときは a' · lim_{t→a} ∂f/∂t を足す。
+ */
+public final class Differentiator {
+
+    // 式 → (変数 → 導関数)
+    private static final Map<Expr, Map<String, Expr>> CACHE = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private Differentiator() {}
+
+    /**
+     * exprをvarで微分した式（同じ式・変数に対しては前回の結果を返す）
+     */
+    public static Expr derivative(Expr expr, String var) {
+        String v = canonical(var);
+        Map<String, Expr> byVar = CACHE.computeIfAbsent(expr, k -> new HashMap<>());
+        synchronized (byVar) {
+            Expr d = byVar.get(v);
+            if (d == null) {
+                // 導関数の木はexpr自身を含まない（子は含みうる）ので、キャッシュの値がキーを生かし続けることはない
+                d = Simplifier.simplify(new Walker(v).d(expr));
+                byVar.put(v, d);
+            }
+            return d;
+        }
+    }
+
+    /**
+     * 元の式と導関数をまとめてコンパイルする（ニュートン法などで両方を評価するとき用）
+     * 戻り値の[0]が元の式、[1]が導関数
+     */
+    public static CompiledExpr[] compileWithDerivative(Expr expr, String var) {
+        return new CompiledExpr[] {ExprCompiler.compile(expr), ExprCompiler.compile(derivative(expr, var))};
+    }
+
+    /**
+     * 元の式と導関数を同じ変数の並びで束縛する（戻り値の[0]が元の式、[1]が導関数）
+     * 導関数だけに現れる変数はないので、layoutは元の式の変数を含んでいればよい
+     */
+    public static BoundExpr[] bindWithDerivative(Expr expr, String var, VariableLayout layout) {
+        return new BoundExpr[] {BoundExpr.bind(expr, layout), BoundExpr.bind(derivative(expr, var), layout)};
+    }
+
+    private static String canonical(String var) {
+        return var.equals("theta") ? "θ" : var;
+    }
+
+    /**
+     * 1回の微分（共有された部分木は1回だけ微分する）
+     */
+    private static final class Walker {
+        private final String var;
+        private final Map<Expr, Expr> done = new IdentityHashMap<>();
+
+        Walker(String var) {
+            this.var = var;
+        }
+
+        Expr d(Expr e) {
+            Expr r = done.get(e);
+            if (r == null) {
+                r = dNode(e);
+                done.put(e, r);
+            }
+            return r;
+        }
+
+        private Expr dNode(Expr e) {
+            if (e instanceof Num) return zero();
+            if (e instanceof Sym) {
+                String name = ((Sym) e).name;
+                return name != null && canonical(name).equals(var) ? one() : zero();
+            }
+            if (e instanceof Add) {
+                List<Expr> terms = new ArrayList<>();
+                for (Expr a : ((Add) e).args) terms.add(d(a));
+                return new Add(terms);
+            }
+            if (e instanceof Mul) {
+                // 積の微分: Σ a1..(ai)'..an
+                List<Expr> args = ((Mul) e).args;
+                List<Expr> terms = new ArrayList<>();
+                for (int i = 0; i < args.size(); i++) {
+                    Expr di = d(args.get(i));
+                    if (isZero(di)) continue;
+                    List<Expr> factors = new ArrayList<>(args);
+                    factors.set(i, di);
+                    terms.add(new Mul(factors));
+                }
+                return terms.isEmpty() ? zero() : new Add(terms);
+            }
+            if (e instanceof Div) {
+                Div q = (Div) e;
+                Expr a = q.getLeft();
+                Expr b = q.getRight();
+                Expr da = d(a);
+                Expr db = d(b);
+                if (isZero(db)) return div(da, b);
+                // (a'b - ab') / b^2
+                return div(sub(mul(da, b), mul(a, db)), mul(b, b));
+            }
+            if (e instanceof Pow) {
+                Pow p = (Pow) e;
+                Expr u = p.getBase();
+                Expr v = p.getExp();
+                Expr du = d(u);
+                Expr dv = d(v);
+                if (isZero(dv)) {
+                    // (u^v)' = v u^(v-1) u'
+                    return new Mul(List.of(v, new Pow(List.of(u, sub(v, one()))), du));
+                }
+                Expr pow = new Pow(List.of(u, v));
+                if (isZero(du)) {
+                    // (c^v)' = c^v ln(c) v'
+                    return new Mul(List.of(pow, func("ln", u), dv));
+                }
+                // (u^v)' = u^v (v' ln(u) + v u'/u)
+                return mul(pow, new Add(List.of(mul(dv, func("ln", u)), div(mul(v, du), u))));
+            }
+            if (e instanceof Func) {
+                return dFunc((Func) e);
+            }
+            if (e instanceof Equation) {
+                // 等式は残差 left - right として微分する
+                Equation q = (Equation) e;
+                return sub(d(q.getLeft()), d(q.getRight()));
+            }
+            throw new IllegalArgumentException("Cannot differentiate: " + e.getClass().getName());
+        }
+
+        /**
+         * lim_{t→a} g の微分（tはLimitEvaluator.variableOfで決まる動かす変数。limit(a, g) でも同じ）
+         * varについて: lim_{t→a} ∂g/∂var + a' · lim_{t→a} ∂g/∂t
+         * （第1項はtがvarなら0、第2項は収束値aがvarによらなければ0）
+         * 結果は変数を明示した limit(t, a, …) で作る（導関数の変数から動かす変数を推し量り直さないように）。
+         */
+        private Expr dLimit(Func f) {
+            String t = LimitEvaluator.variableOf(f);
+            Expr point = f.getLimitPoint();
+            Expr body = f.getLimitBody();
+            if (t == null) {
+                // 動かす変数がなければ値は式そのもの
+                return d(body);
+            }
+            Expr bodyTerm = t.equals(var) ? zero() : d(body);
+            Expr result = isZero(bodyTerm) ? null : limit(t, point, bodyTerm);
+            Expr da = d(point);
+            if (!isZero(da)) {
+                Expr pointTerm = mul(da, limit(t, point, derivative(body, t)));
+                result = result == null ? pointTerm : new Add(List.of(result, pointTerm));
+            }
+            return result == null ? zero() : result;
+        }
+
+        private static Expr limit(String t, Expr point, Expr body) {
+            return new Func("limit", List.of(new Sym(t), point, body));
+        }
+
+        private Expr dFunc(Func f) {
+            List<Expr> args = f.getArgs();
+            switch (f.getKind()) {
+                case SUB:
+                    return sub(d(args.get(0)), d(args.get(1)));
+                case NEG:
+                    return func("neg", d(args.get(0)));
+                case DIFF:
+                    // 引数1つのdiffは0を返す定数
+                    return args.size() == 2 ? d(f.derivative()) : zero();
+                case LIMIT:
+                    return dLimit(f);
+                default:
+                    break;
+            }
+            // 単引数の関数: f(u)' = f'(u) u'
+            Expr u = args.get(0);
+            Expr du = d(u);
+            if (isZero(du)) return zero();
+            Expr outer;
+            switch (f.getKind()) {
+                case SQRT:
+                    outer = div(one(), mul(num(2.0), func("sqrt", u)));
+                    break;
+                case SIN:
+                    outer = func("cos", u);
+                    break;
+                case COS:
+                    outer = func("neg", func("sin", u));
+                    break;
+                case TAN:
+                    outer = new Pow(List.of(func("sec", u), num(2.0)));
+                    break;
+                case SEC:
+                    outer = mul(func("sec", u), func("tan", u));
+                    break;
+                case CSC:
+                    outer = func("neg", mul(func("csc", u), func("cot", u)));
+                    break;
+                case COT:
+                    outer = func("neg", new Pow(List.of(func("csc", u), num(2.0))));
+                    break;
+                case LN:
+                case LOG:
+                    return div(du, u);
+                case EXP:
+                    outer = func("exp", u);
+                    break;
+                case ABS:
+                    // |u|' = |u|/u u'（u=0では定義されない）
+                    outer = div(func("abs", u), u);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Cannot differentiate: " + f.getName());
+            }
+            return mul(outer, du);
+        }
+
+        private static Expr zero() { return new Num(0.0); }
+        private static Expr one() { return new Num(1.0); }
+        private static Expr num(double v) { return new Num(v); }
+        private static Expr mul(Expr a, Expr b) { return new Mul(List.of(a, b)); }
+        private static Expr div(Expr a, Expr b) { return new Div(List.of(a, b)); }
+        private static Expr sub(Expr a, Expr b) { return new Func("sub", List.of(a, b)); }
+        private static Expr func(String name, Expr a) { return new Func(name, List.of(a)); }
+
+        private static boolean isZero(Expr e) {
+            return e instanceof Num && ((Num) e).value == 0.0;
+        }
+    }
+}
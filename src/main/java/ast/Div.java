@@ -2,9 +2,10 @@ package ast;
 
 import java.util.List;
 
-public class Div implements Expr {
+public final class Div implements Expr {
     private final Expr left;
     private final Expr right;
+    private final ExprInfo info;
 
     public Div(List<Expr> args) {
         if (args.size() != 2) {
@@ -12,6 +13,7 @@ public class Div implements Expr {
         }
         this.left = args.get(0);
         this.right = args.get(1);
+        this.info = ExprInfo.of(ExprInfo.DIV, 0, List.of(left, right));
     }
 
     @Override
@@ -24,7 +26,39 @@ public class Div implements Expr {
         return a / b;
     }
 
+    @Override
+    public Interval evalInterval(VariableLayout layout, Interval[] ranges) {
+        return left.evalInterval(layout, ranges).div(right.evalInterval(layout, ranges));
+    }
+
+    @Override
+    public void evalBatch(double[] xs, int xOff, double[] out, int outOff, int len) {
+        double[] b = BatchScratch.acquire();
+        try {
+            left.evalBatch(xs, xOff, out, outOff, len);
+            right.evalBatch(xs, xOff, b, 0, len);
+            for (int i = 0; i < len; i++) {
+                if (b[i] == 0.0) {
+                    throw new ArithmeticException("division by zero");
+                }
+            }
+            for (int i = 0; i < len; i++) out[outOff + i] /= b[i];
+        } finally {
+            BatchScratch.release(b);
+        }
+    }
+
     // JSON変換用のgetter
     public Expr getLeft() { return left; }
     public Expr getRight() { return right; }
+
+    @Override
+    public ExprInfo info() {
+        return info;
+    }
+
+    @Override
+    public <R> R accept(ExprVisitor<R> visitor) {
+        return visitor.visitDiv(this);
+    }
 }
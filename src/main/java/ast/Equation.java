@@ -0,0 +1,61 @@
+package ast;
+
+import java.util.List;
+
+/**
+ * 等式 left = right
+ *
+ * 値は残差 left - right（解では0になる）。評価・微分・コンパイルでは sub(left, right) と同じに扱い、
+ * 解はEquationSolverで求める。
+ * Parserは等号を式の一番外側でしか受け付けないので、等式が別のノードの子になることはない。
+ */
+public final class Equation implements Expr {
+    private final Expr left;
+    private final Expr right;
+    private final ExprInfo info;
+
+    public Equation(List<Expr> args) {
+        if (args.size() != 2) {
+            throw new IllegalArgumentException("Equation needs 2 args");
+        }
+        this.left = args.get(0);
+        this.right = args.get(1);
+        this.info = ExprInfo.of(ExprInfo.EQUATION, 0, List.of(left, right));
+    }
+
+    @Override
+    public double eval(double x) {
+        return left.eval(x) - right.eval(x);
+    }
+
+    @Override
+    public Interval evalInterval(VariableLayout layout, Interval[] ranges) {
+        return left.evalInterval(layout, ranges).sub(right.evalInterval(layout, ranges));
+    }
+
+    @Override
+    public void evalBatch(double[] xs, int xOff, double[] out, int outOff, int len) {
+        double[] b = BatchScratch.acquire();
+        try {
+            left.evalBatch(xs, xOff, out, outOff, len);
+            right.evalBatch(xs, xOff, b, 0, len);
+            for (int i = 0; i < len; i++) out[outOff + i] -= b[i];
+        } finally {
+            BatchScratch.release(b);
+        }
+    }
+
+    // JSON変換用のgetter
+    public Expr getLeft() { return left; }
+    public Expr getRight() { return right; }
+
+    @Override
+    public ExprInfo info() {
+        return info;
+    }
+
+    @Override
+    public <R> R accept(ExprVisitor<R> visitor) {
+        return visitor.visitEquation(this);
+    }
+}
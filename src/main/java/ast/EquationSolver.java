@@ -0,0 +1,418 @@
+package ast;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * 等式（またはf = 0とみなした式）の実数解を範囲内ですべて求める
+ *
+ * 1. [lo, hi] を等間隔の格子に分け、式の値と微分係数（BoundExpr.evalDualの前進型自動微分で同時に求める）を
+ *    BATCH_CHUNK点ずつ並列に求める
+ * 2. 格子の区間ごとに（区間もまとめて並列に）解を囲い込む
+ *    - 両端で符号が変われば、その区間に解がある
+ *    - 符号が変わらず導関数の符号が変われば、極値を探し、そこで0に接していれば重解、
+ *      0をまたいでいれば左右に1つずつ解がある
+ *    - 区間演算（解く変数だけが区間、ほかは与えた値）も使い、0を含みうる区間だけを細かく分けて調べ直す（含まなければ解はない）
+ * 3. 囲い込んだ解を、はみ出したら二分法に戻すニュートン法で詰める
+ *
+ * 符号の変化が極（tan(x) = 0 の π/2 など）によるものなら、詰めた点で|f|が小さくならないので解から除く。
+ * 値が0の格子点が続く所は、点ごとの解ではなく成り立つ範囲（Result.segments）としてまとめる。
+ * 範囲全体で恒等的に0なら（x = x など。丸め誤差は接する解と同じ許容誤差まで認める）、解を並べずに恒等式として返す（Result.identity）。
+ * 評価は例外を出さないモードで行い、例外になるはずの点はNaNとして扱う。
+ * 時間の上限は格子の評価のあとから測る（初回のクラスの読み込みやJITを含めないため）。上限を超えたら、
+ * 格子の区間での区間演算・極値探しと符号の変わる区間の解だけを求め、区間の分け直しを打ち切る（Result.complete）。
+ * 作成後は変更しないので、1つのインスタンスを複数スレッドで共有してよい。
+ */
+public final class EquationSolver {
+
+    /**
+     * 解の一覧
+     */
+    public static final class Result {
+        // 昇順・重複なし（segmentsの範囲内の点は含めない）
+        public final double[] roots;
+        // 値が0の格子点が続く範囲 [segments[i][0], segments[i][1]]（範囲内のすべての値で成り立つとみなす。昇順）
+        public final double[][] segments;
+        // 範囲全体で恒等的に0（値のある点ではすべて成り立つ）ならtrue。そのときrootsとsegmentsは空
+        public final boolean identity;
+        // 時間の上限で分け直しを打ち切ったらfalse（重解や格子の間の解を見落としうる）
+        public final boolean complete;
+        // 式と導関数を評価した回数
+        public final int evaluations;
+
+        Result(double[] roots, double[][] segments, boolean identity, boolean complete, int evaluations) {
+            this.roots = roots;
+            this.segments = segments;
+            this.identity = identity;
+            this.complete = complete;
+            this.evaluations = evaluations;
+        }
+    }
+
+    // GUIで待たせない程度（50ms）で打ち切る設定
+    public static final EquationSolver DEFAULT = new EquationSolver(1024, 1e-10, 50);
+
+    // 1タスクにまとめる格子区間の数
+    private static final int CELLS_PER_TASK = 64;
+    // 区間演算で0を含みうる区間を分け直す深さの上限
+    private static final int MAX_SPLIT_DEPTH = 6;
+    private static final int MAX_ITERATIONS = 100;
+
+    private final int gridCells;
+    private final double residualTolerance;
+    private final long budgetNanos;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param gridCells 最初の格子の区間数
+     * @param residualTolerance 接する解（重解）とみなす|f|の上限（格子点の|f|の中央値に対する割合）
+     * @param budgetMillis 時間の上限（ミリ秒）
+     */
+    public EquationSolver(int gridCells, double residualTolerance, long budgetMillis) {
+        this(gridCells, residualTolerance, budgetMillis, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param pool 並列処理に使うForkJoinプール（呼び出し側が寿命を管理する）
+     */
+    public EquationSolver(int gridCells, double residualTolerance, long budgetMillis, ForkJoinPool pool) {
+        if (gridCells < 1) throw new IllegalArgumentException("gridCells must be >= 1");
+        if (!(residualTolerance >= 0.0)) throw new IllegalArgumentException("residualTolerance must be >= 0");
+        if (budgetMillis <= 0) throw new IllegalArgumentException("budgetMillis must be > 0");
+        if (pool == null) throw new IllegalArgumentException("pool must not be null");
+        this.gridCells = gridCells;
+        this.residualTolerance = residualTolerance;
+        this.budgetNanos = budgetMillis * 1_000_000L;
+        this.pool = pool;
+    }
+
+    /**
+     * xについて解く（ほかの変数はSymのグローバルコンテキストの値）
+     */
+    public Result solve(Expr equation, double lo, double hi) {
+        return solve(equation, "x", Sym.globalContext(), lo, hi);
+    }
+
+    /**
+     * varについて解く（ほかの変数はcontextの値）
+     * @param equation Equationならleft = right、それ以外の式ならequation = 0を解く
+     * @throws IllegalArgumentException 式がvarを含まない場合
+     */
+    public Result solve(Expr equation, String var, VariableContext context, double lo, double hi) {
+        if (!(lo < hi) || Double.isInfinite(lo) || Double.isInfinite(hi)) {
+            throw new IllegalArgumentException("Invalid range: [" + lo + ", " + hi + "]");
+        }
+        if (!equation.info().uses(var)) {
+            throw new IllegalArgumentException("式に変数 " + var + " がありません");
+        }
+        VariableLayout layout = LimitEvaluator.layoutWith(equation, var);
+        BoundExpr f = BoundExpr.bind(equation, layout);
+        double[] vars = layout.assignment(context);
+        int slot = layout.slotOf(var);
+
+        double[] gx = new double[gridCells + 1];
+        for (int i = 0; i <= gridCells; i++) gx[i] = lo + (hi - lo) * i / gridCells;
+        gx[gridCells] = hi;
+        double[] gy = new double[gridCells + 1];
+        double[] gd = new double[gridCells + 1];
+        int chunks = (gx.length + Expr.BATCH_CHUNK - 1) / Expr.BATCH_CHUNK;
+        runInPool(() -> {
+            IntStream.range(0, chunks).parallel().forEach(c -> evalGrid(f, vars, slot, gx, gy, gd, c * Expr.BATCH_CHUNK));
+            return null;
+        });
+
+        double tol = residualTolerance * Math.max(1.0, medianAbs(gy));
+        int checked = identityCheck(f, vars, slot, gx, gy, lo, hi, tol);
+        if (checked >= 0) return new Result(new double[0], new double[0][], true, true, gx.length + checked);
+
+        // 両端の値が0の格子区間（続く所は成り立つ範囲にまとめ、中は調べない）
+        boolean[] flat = new boolean[gridCells];
+        List<double[]> segments = new ArrayList<>();
+        for (int i = 0; i < gridCells; i++) {
+            if (gy[i] != 0.0 || gy[i + 1] != 0.0) continue;
+            int j = i;
+            while (j < gridCells && gy[j] == 0.0 && gy[j + 1] == 0.0) flat[j++] = true;
+            segments.add(new double[] {gx[i], gx[j]});
+            i = j;
+        }
+
+        long deadline = System.nanoTime() + budgetNanos;
+        int tasks = (gridCells + CELLS_PER_TASK - 1) / CELLS_PER_TASK;
+        List<Bracketer> parts = runInPool(() -> IntStream.range(0, tasks).parallel()
+                .mapToObj(t -> {
+                    Bracketer b = new Bracketer(f, vars, slot, tol, deadline);
+                    int end = Math.min(gridCells, (t + 1) * CELLS_PER_TASK);
+                    for (int i = t * CELLS_PER_TASK; i < end; i++) {
+                        if (gy[i] == 0.0 && !onSegment(flat, i)) b.roots.add(gx[i]);
+                        if (!flat[i]) b.cell(gx[i], gy[i], gd[i], gx[i + 1], gy[i + 1], gd[i + 1], 0);
+                    }
+                    return b;
+                })
+                .collect(Collectors.toList()));
+
+        List<Double> found = new ArrayList<>();
+        boolean complete = true;
+        int evaluations = gx.length;
+        for (Bracketer b : parts) {
+            found.addAll(b.roots);
+            complete &= b.complete;
+            evaluations += b.evaluations;
+        }
+        if (gy[gridCells] == 0.0 && !onSegment(flat, gridCells)) found.add(gx[gridCells]);
+        return new Result(distinct(found), segments.toArray(new double[0][]), false, complete, evaluations);
+    }
+
+    /**
+     * 範囲全体で恒等的に0かを調べる
+     * 区間演算で[0, 0]と分かるか、格子点と各格子区間の中点の有限な値がすべて|f| <= tol（接する解と同じ許容誤差。
+     * sin(x)^2 + cos(x)^2 = 1 の丸め誤差を吸収する）で、有限な値が1つ以上あれば恒等的とみなす
+     * @return 恒等的なら追加で評価した回数、そうでなければ-1
+     */
+    private int identityCheck(BoundExpr f, double[] vars, int slot, double[] gx, double[] gy, double lo, double hi,
+                              double tol) {
+        try {
+            Interval range = f.evalInterval(vars, slot, lo, hi);
+            if (range.lo == 0.0 && range.hi == 0.0) return 0;
+            if (range.isEmpty() || !range.containsZero()) return -1;
+        } catch (RuntimeException e) {
+            // 区間演算できない式は格子の値だけで判断する
+        }
+        if (!allWithin(gy, tol)) return -1;
+        double[] xm = new double[gridCells];
+        for (int i = 0; i < gridCells; i++) xm[i] = 0.5 * (gx[i] + gx[i + 1]);
+        double[] ym = new double[gridCells];
+        int[] errors = new int[gridCells];
+        f.evalBatch(vars.clone(), slot, xm, ym, errors);
+        for (int i = 0; i < gridCells; i++) {
+            if ((errors[i] & EvalStatus.THROWING) != 0) ym[i] = Double.NaN;
+        }
+        return allWithin(ym, tol) ? gridCells : -1;
+    }
+
+    /**
+     * 有限な値が1つ以上あり、有限な値がすべて|y| <= tolか
+     */
+    private static boolean allWithin(double[] ys, double tol) {
+        boolean any = false;
+        for (double y : ys) {
+            if (!Double.isFinite(y)) continue;
+            if (Math.abs(y) > tol) return false;
+            any = true;
+        }
+        return any;
+    }
+
+    /**
+     * 格子点iが成り立つ範囲（両端が0の格子区間）の端か内側にあるか
+     */
+    private static boolean onSegment(boolean[] flat, int i) {
+        return (i > 0 && flat[i - 1]) || (i < flat.length && flat[i]);
+    }
+
+    private static void evalGrid(BoundExpr f, double[] vars, int slot, double[] gx, double[] gy, double[] gd, int from) {
+        int len = Math.min(Expr.BATCH_CHUNK, gx.length - from);
+        double[] xs = Arrays.copyOfRange(gx, from, from + len);
+        double[] ys = new double[len];
+        double[] ds = new double[len];
+        int[] errors = new int[len];
+        f.evalDualBatch(vars.clone(), slot, xs, ys, ds, errors);
+        for (int i = 0; i < len; i++) {
+            if ((errors[i] & EvalStatus.THROWING) != 0) {
+                ys[i] = Double.NaN;
+                ds[i] = Double.NaN;
+            }
+        }
+        System.arraycopy(ys, 0, gy, from, len);
+        System.arraycopy(ds, 0, gd, from, len);
+    }
+
+    /**
+     * xでの値と微分係数（例外を出す評価なら例外になる点は両方NaN）
+     */
+    private static void evalDualOrNaN(BoundExpr f, double[] v, int slot, double x, double[] stack, double[] dStack,
+                                      double[] out, EvalStatus status) {
+        v[slot] = x;
+        f.evalDual(v, slot, stack, dStack, out, status);
+        if ((status.flags() & EvalStatus.THROWING) != 0) {
+            out[0] = Double.NaN;
+            out[1] = Double.NaN;
+        }
+    }
+
+    private static double medianAbs(double[] ys) {
+        double[] a = Arrays.stream(ys).filter(Double::isFinite).map(Math::abs).sorted().toArray();
+        return a.length == 0 ? 1.0 : a[a.length / 2];
+    }
+
+    /**
+     * 昇順に並べ、数値誤差の範囲で同じ解を1つにまとめる
+     */
+    private static double[] distinct(List<Double> roots) {
+        double[] a = roots.stream().mapToDouble(Double::doubleValue).sorted().toArray();
+        int n = 0;
+        for (double r : a) {
+            if (n > 0 && r - a[n - 1] <= 1e-9 * Math.max(1.0, Math.abs(r))) continue;
+            a[n++] = r;
+        }
+        return Arrays.copyOf(a, n);
+    }
+
+    private <T> T runInPool(Supplier<T> task) {
+        if (pool == ForkJoinPool.commonPool()) return task.get();
+        return pool.submit(task::get).join();
+    }
+
+    private static boolean opposite(double a, double b) {
+        return (a < 0.0 && b > 0.0) || (a > 0.0 && b < 0.0);
+    }
+
+    /**
+     * 格子区間の解の囲い込みと詰め（1タスク分）
+     */
+    private static final class Bracketer {
+        private final BoundExpr f;
+        private final double[] v;
+        private final int slot;
+        private final double[] stack;
+        private final double[] dStack;
+        private final double[] out = new double[2];
+        private final EvalStatus status = new EvalStatus();
+        private final double tol;
+        private final long deadline;
+        final List<Double> roots = new ArrayList<>();
+        boolean complete = true;
+        int evaluations;
+
+        Bracketer(BoundExpr f, double[] vars, int slot, double tol, long deadline) {
+            this.f = f;
+            this.v = vars.clone();
+            this.slot = slot;
+            this.stack = f.newStack();
+            this.dStack = f.newStack();
+            this.tol = tol;
+            this.deadline = deadline;
+        }
+
+        /**
+         * 開区間 (a, b) の解を探す（端点の解は呼び出し側が追加する）
+         */
+        void cell(double a, double fa, double da, double b, double fb, double db, int depth) {
+            if (opposite(fa, fb)) {
+                refineBracket(a, fa, b, fb);
+                return;
+            }
+            // 囲い込めた解は詰め切り、時間の上限では分け直しだけを打ち切る
+            // （格子の区間の区間演算・極値探しは区間ごとに回数の上限があるので、時間によらず行う）
+            if (depth > 0 && System.nanoTime() > deadline) {
+                complete = false;
+                return;
+            }
+            Interval range = interval(a, b);
+            if (range != null && (range.isEmpty() || !range.containsZero())) return; // 0にならない
+            if (Double.isFinite(fa) && Double.isFinite(fb) && fa != 0.0 && fb != 0.0 && opposite(da, db)) {
+                extremum(a, fa, da, b, fb, db);
+                return;
+            }
+            if (range != null && depth < MAX_SPLIT_DEPTH) {
+                if (System.nanoTime() > deadline) {
+                    complete = false;
+                    return;
+                }
+                double m = 0.5 * (a + b);
+                double fm = eval(m);
+                double dm = out[1];
+                cell(a, fa, da, m, fm, dm, depth + 1);
+                if (fm == 0.0) roots.add(m);
+                cell(m, fm, dm, b, fb, db, depth + 1);
+            }
+        }
+
+        /**
+         * 符号の変わる区間 [a, b] の解を詰める（はみ出すか縮みが遅ければ二分法にするニュートン法）
+         * 詰め終えた囲いの端の|f|が最初の両端より小さくならなければ、解ではなく極とみなす
+         */
+        private void refineBracket(double a, double fa, double b, double fb) {
+            double limit = Math.max(Math.abs(fa), Math.abs(fb));
+            double x = 0.5 * (a + b);
+            double prev = Double.POSITIVE_INFINITY;
+            for (int it = 0; it < MAX_ITERATIONS; it++) {
+                double fx = eval(x);
+                if (!Double.isFinite(fx)) {
+                    // 囲いの中に値のない点（極・ゼロ除算）: aの側へ寄せて測り直す
+                    x = 0.5 * (a + x);
+                    if (x <= a) return;
+                    continue;
+                }
+                if (fx == 0.0) {
+                    roots.add(x);
+                    return;
+                }
+                if (opposite(fx, fa)) {
+                    b = x;
+                    fb = fx;
+                } else {
+                    a = x;
+                    fa = fx;
+                }
+                double next = x - fx / out[1];
+                if (!(next > a && next < b) || Math.abs(fx) > 0.5 * prev) next = 0.5 * (a + b);
+                prev = Math.abs(fx);
+                if (next <= a || next >= b || next == x) break; // これ以上詰められない
+                x = next;
+            }
+            double r = Math.abs(fa) <= Math.abs(fb) ? a : b;
+            if (Math.min(Math.abs(fa), Math.abs(fb)) < limit) roots.add(r);
+        }
+
+        /**
+         * 導関数の符号が変わる区間で極値を探し、そこで0に接するか0をまたぐかを調べる
+         */
+        private void extremum(double a, double fa, double da, double b, double fb, double db) {
+            double lo = a;
+            double hi = b;
+            double dLo = da;
+            for (int it = 0; it < MAX_ITERATIONS; it++) {
+                double m = 0.5 * (lo + hi);
+                if (m <= lo || m >= hi) break;
+                eval(m);
+                double dm = out[1];
+                if (!Double.isFinite(dm)) return;
+                if (opposite(dm, dLo)) {
+                    hi = m;
+                } else {
+                    lo = m;
+                    dLo = dm;
+                }
+            }
+            double c = 0.5 * (lo + hi);
+            double fc = eval(c);
+            if (!Double.isFinite(fc)) return;
+            if (Math.abs(fc) <= tol) {
+                roots.add(c); // 接する解（重解）
+            } else if (opposite(fc, fa)) {
+                refineBracket(a, fa, c, fc);
+                refineBracket(c, fc, b, fb);
+            }
+        }
+
+        private Interval interval(double a, double b) {
+            try {
+                return f.evalInterval(v, slot, a, b);
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+
+        /**
+         * 値を返し、微分係数をout[1]に残す（1回の評価で両方を求める）
+         */
+        private double eval(double x) {
+            evaluations++;
+            evalDualOrNaN(f, v, slot, x, stack, dStack, out, status);
+            return out[0];
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package ast;
+
+import java.util.*;
+
+/**
+ * 例外を出さない評価で起きたエラーのビット集合（評価1回ごとに書き直す）
+ *
+ * StackProgram/BoundExprのEvalStatusを受け取る評価は、例外の代わりにNaN・±∞を返してここにビットを立てる。
+ * ゼロ除算はIEEE 754どおり±∞（0/0はNaN）、未知の記号はNaN。
+ * 求まらなかった極限は、どちらの評価でもNaNを返す（ここではビットで理由がわかる）。
+ * 受け取らない評価は従来どおり例外を出す（エラーケースのテストはこちらの挙動を前提にしている）。
+ *
+ * 呼び出し側で使い回してよいが、複数スレッドで共有しないこと。
+ */
+public final class EvalStatus {
+
+    /** ゼロ除算（例外を出す評価ではArithmeticException） */
+    public static final int DIVISION_BY_ZERO = 1;
+    /** 負の数の対数（値はNaN。例外を出す評価でもNaNを返す） */
+    public static final int LOG_OF_NEGATIVE = 1 << 1;
+    /** 未知の記号（例外を出す評価ではIllegalArgumentException） */
+    public static final int UNKNOWN_SYMBOL = 1 << 2;
+    /** limitの収束を確認できなかった・左右の極限が違う（値はNaN。例外を出す評価でもNaNを返す） */
+    public static final int LIMIT_NOT_CONVERGED = 1 << 3;
+
+    /** 例外を出す評価なら例外になっていたエラー */
+    public static final int THROWING = DIVISION_BY_ZERO | UNKNOWN_SYMBOL;
+
+    int flags;
+
+    /** 直前の評価で起きたエラー */
+    public int flags() { return flags; }
+
+    /** 直前の評価がエラーなしで終わったか */
+    public boolean ok() { return flags == 0; }
+
+    public boolean has(int flag) { return (flags & flag) != 0; }
+
+    /**
+     * エラーの名前（例外のメッセージと同じ言い方。エラーがなければ空文字列）
+     */
+    public static String describe(int flags) {
+        List<String> names = new ArrayList<>(4);
+        if ((flags & DIVISION_BY_ZERO) != 0) names.add("division by zero");
+        if ((flags & LOG_OF_NEGATIVE) != 0) names.add("log of a negative number");
+        if ((flags & UNKNOWN_SYMBOL) != 0) names.add("unknown symbol");
+        if ((flags & LIMIT_NOT_CONVERGED) != 0) names.add("limit did not converge");
+        return String.join(", ", names);
+    }
+
+    @Override
+    public String toString() {
+        return flags == 0 ? "ok" : describe(flags);
+    }
+}
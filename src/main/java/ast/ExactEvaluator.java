@@ -0,0 +1,268 @@
+package ast;
+
+import java.util.List;
+
+/**
+ * 変数も関数も含まない四則演算の式を、丸めずに分数で計算する
+ *
+ * 12+3*4/6 のような式はdoubleで評価すると割り算で丸めが入るが、ここでは 14 のように正確な値を返す。
+ * まず約分しないlongの分子・分母だけで計算する（桁あふれはMath.multiplyHighで検出し、約分はあふれそうになったときだけ）。
+ * オブジェクトを作らず例外も使わないので、整数だけの式ならdoubleでの木の評価とほぼ同じ速さになる。
+ * 割り算を含む式は分数の掛け算・足し算が重い分だけ遅い（ExactBenchmarkでdoubleの1.1〜1.2倍程度）。
+ * あふれたり整数でない数値の葉があったりしたときだけ、Rational（BigIntegerにも切り替わる）で計算し直す。
+ * 数値の葉は書かれた10進表記どおりの値として扱う（0.1は1/10）。
+ *
+ * 変数・π・e・関数（negとsubを除く）・整数でない指数・等式があれば、正確な値はないとしてnullを返す
+ * （そのときはExpr.evalで評価すればよい）。ゼロ除算はExpr.evalと同じくArithmeticException。
+ */
+public final class ExactEvaluator {
+
+    private ExactEvaluator() {}
+
+    // べき乗の結果の分子・分母をこのビット数までに抑える（それより大きければdoubleに任せる）
+    private static final long MAX_POW_BITS = 1 << 16;
+
+    /**
+     * 正確な値（変数や関数を含むなどで計算できなければnull）
+     * @throws ArithmeticException 0で割った場合
+     */
+    public static Rational evaluate(Expr e) {
+        LongFraction fast = new LongFraction();
+        if (fast.eval(e)) return fast.d == 1 ? Rational.of(fast.n) : Rational.of(fast.n, fast.d);
+        // longに収まらない・整数でない数値の葉がある・計算できない・ゼロ除算のどれか
+        return exact(e);
+    }
+
+    private static Rational exact(Expr e) {
+        if (e instanceof Num) {
+            double v = ((Num) e).value;
+            return Double.isFinite(v) ? Rational.of(v) : null;
+        }
+        if (e instanceof Add) {
+            return sum(((Add) e).args);
+        }
+        if (e instanceof Mul) {
+            return product(((Mul) e).args);
+        }
+        if (e instanceof Div) {
+            Div d = (Div) e;
+            Rational a = exact(d.getLeft());
+            if (a == null) return null;
+            Rational b = exact(d.getRight());
+            if (b == null) return null;
+            return a.divide(b);
+        }
+        if (e instanceof Pow) {
+            Pow p = (Pow) e;
+            Rational base = exact(p.getBase());
+            if (base == null) return null;
+            Rational exp = exact(p.getExp());
+            if (exp == null) return null;
+            return pow(base, exp);
+        }
+        if (e instanceof Func) {
+            Func f = (Func) e;
+            List<Expr> args = f.getArgs();
+            if (f.getKind() == FuncKind.NEG) {
+                Rational a = exact(args.get(0));
+                return a != null ? a.negate() : null;
+            }
+            if (f.getKind() == FuncKind.SUB) {
+                Rational a = exact(args.get(0));
+                if (a == null) return null;
+                Rational b = exact(args.get(1));
+                return b != null ? a.subtract(b) : null;
+            }
+        }
+        // 変数・定数記号・関数・等式
+        return null;
+    }
+
+    private static Rational sum(List<Expr> args) {
+        Rational s = Rational.ZERO;
+        for (Expr a : args) {
+            Rational v = exact(a);
+            if (v == null) return null;
+            s = s.add(v);
+        }
+        return s;
+    }
+
+    private static Rational product(List<Expr> args) {
+        Rational p = Rational.ONE;
+        for (Expr a : args) {
+            Rational v = exact(a);
+            if (v == null) return null;
+            p = p.multiply(v);
+        }
+        return p;
+    }
+
+    private static Rational pow(Rational base, Rational exp) {
+        if (!exp.isInteger() || exp.bitLength() > 31) return null;
+        int n = exp.numerator().intValue();
+        if (n < 0 && base.signum() == 0) return null; // Math.powと同じく無限大なので、正確な値はない
+        if (base.bitLength() > 1 && (long) base.bitLength() * Math.abs((long) n) > MAX_POW_BITS) return null;
+        return base.pow(n);
+    }
+
+    /**
+     * 約分しないlongの分数での計算（d > 0）
+     * 途中では約分せず、あふれそうになったときだけ約分して計算し直す（gcdは遅いので、最後の1回で済むことが多い）。
+     * 計算できない式・ゼロ除算・整数でない数値の葉・約分してもあふれる場合はfalseを返し、Rationalでの計算に任せる。
+     */
+    private static final class LongFraction {
+        private static final long OVERFLOW = Rational.OVERFLOW;
+
+        long n;
+        long d;
+
+        boolean eval(Expr e) {
+            if (e instanceof Num) return num(((Num) e).value);
+            if (e instanceof Add) return sum(((Add) e).args);
+            if (e instanceof Mul) return product(((Mul) e).args);
+            if (e instanceof Div) {
+                Div q = (Div) e;
+                return quotient(q.getLeft(), q.getRight());
+            }
+            if (e instanceof Pow) {
+                Pow p = (Pow) e;
+                return power(p.getBase(), p.getExp());
+            }
+            if (e instanceof Func) {
+                Func f = (Func) e;
+                if (f.getKind() == FuncKind.NEG) {
+                    if (!eval(f.getArgs().get(0))) return false;
+                    n = -n; // OVERFLOWでない値の符号反転はあふれない
+                    return true;
+                }
+                if (f.getKind() == FuncKind.SUB) {
+                    if (!eval(f.getArgs().get(0))) return false;
+                    long an = n, ad = d;
+                    if (!eval(f.getArgs().get(1))) return false;
+                    return addTo(an, ad, -n, d);
+                }
+            }
+            return false;
+        }
+
+        private boolean num(double v) {
+            long l = (long) v;
+            if (l != v || l >= (1L << 53) || l <= -(1L << 53)) return false;
+            n = l;
+            d = 1;
+            return true;
+        }
+
+        private boolean sum(List<Expr> args) {
+            // 最初の項から始める（0 + 最初の項 の計算を省く）
+            if (args.isEmpty()) {
+                n = 0;
+                d = 1;
+                return true;
+            }
+            if (!eval(args.get(0))) return false;
+            long sn = n, sd = d;
+            for (int i = 1; i < args.size(); i++) {
+                if (!eval(args.get(i)) || !addTo(sn, sd, n, d)) return false;
+                sn = n;
+                sd = d;
+            }
+            return true;
+        }
+
+        private boolean product(List<Expr> args) {
+            if (args.isEmpty()) {
+                n = 1;
+                d = 1;
+                return true;
+            }
+            if (!eval(args.get(0))) return false;
+            long pn = n, pd = d;
+            for (int i = 1; i < args.size(); i++) {
+                if (!eval(args.get(i)) || !multiplyTo(pn, pd, n, d)) return false;
+                pn = n;
+                pd = d;
+            }
+            return true;
+        }
+
+        private boolean quotient(Expr left, Expr right) {
+            if (!eval(left)) return false;
+            long an = n, ad = d;
+            if (!eval(right)) return false;
+            if (n == 0) return false; // 例外はRationalでの計算で出す
+            return n > 0 ? multiplyTo(an, ad, d, n) : multiplyTo(-an, ad, d, -n);
+        }
+
+        private boolean power(Expr base, Expr exp) {
+            if (!eval(base)) return false;
+            long bn = n, bd = d;
+            if (!eval(exp)) return false;
+            // 0以上64以下の整数乗だけ（負の指数・大きな指数はRationalに任せる）
+            if (d != 1 || n < 0 || n > 64) return false;
+            long k = n;
+            n = 1;
+            d = 1;
+            for (long i = 0; i < k; i++) {
+                if (!multiplyTo(n, d, bn, bd)) return false;
+            }
+            return true;
+        }
+
+        /**
+         * an/ad + bn/bd を n/d にする
+         */
+        private boolean addTo(long an, long ad, long bn, long bd) {
+            if (ad == bd) {
+                if (set(Rational.add(an, bn), ad)) return true;
+            } else if (bd == 1) {
+                long y = Rational.multiply(bn, ad);
+                if (y != OVERFLOW && set(Rational.add(an, y), ad)) return true;
+            } else {
+                long x = Rational.multiply(an, bd);
+                long y = Rational.multiply(bn, ad);
+                if (x != OVERFLOW && y != OVERFLOW && set(Rational.add(x, y), Rational.multiply(ad, bd))) return true;
+            }
+            // あふれたので、約分して分母の最小公倍数で計算し直す
+            long ga = Rational.gcd(Math.abs(an), ad);
+            long gb = Rational.gcd(Math.abs(bn), bd);
+            an /= ga;
+            ad /= ga;
+            bn /= gb;
+            bd /= gb;
+            long g = Rational.gcd(ad, bd);
+            long x = Rational.multiply(an, bd / g);
+            long y = Rational.multiply(bn, ad / g);
+            if (x == OVERFLOW || y == OVERFLOW) return false;
+            return set(Rational.add(x, y), Rational.multiply(ad / g, bd));
+        }
+
+        /**
+         * an/ad * bn/bd を n/d にする
+         */
+        private boolean multiplyTo(long an, long ad, long bn, long bd) {
+            if (set(Rational.multiply(an, bn), Rational.multiply(ad, bd))) return true;
+            // あふれたので、約分して（交差の約分も）計算し直す
+            long ga = Rational.gcd(Math.abs(an), ad);
+            long gb = Rational.gcd(Math.abs(bn), bd);
+            an /= ga;
+            ad /= ga;
+            bn /= gb;
+            bd /= gb;
+            long g1 = Rational.gcd(Math.abs(an), bd);
+            long g2 = Rational.gcd(Math.abs(bn), ad);
+            return set(Rational.multiply(an / g1, bn / g2), Rational.multiply(ad / g2, bd / g1));
+        }
+
+        /**
+         * n/d を設定する（あふれていればfalse）
+         */
+        private boolean set(long rn, long rd) {
+            if (rn == OVERFLOW || rd == OVERFLOW) return false;
+            n = rn;
+            d = rd;
+            return true;
+        }
+    }
+}
@@ -1,5 +1,70 @@
 package ast;
 
-public interface Expr {
+/**
+ * 式の木のノード
+ *
+ * ノードの種類はpermitsにあるものだけ（種類ごとの処理はExprVisitorで書ける）。
+ * 各ノードは構築時に構造の情報（ExprInfo）を子から計算して持つ。
+ */
+public sealed interface Expr permits Num, Sym, Add, Mul, Div, Pow, Func, Equation {
     double eval(double x);
+
+    /**
+     * 構造の情報（自由変数・深さ・ノード数・構造ハッシュ。木をたどらずO(1)で返す）
+     */
+    ExprInfo info();
+
+    /**
+     * ノードの種類に対応するvisitorのメソッドを呼ぶ
+     */
+    <R> R accept(ExprVisitor<R> visitor);
+
+    /**
+     * 各変数がrangesの範囲を動くときの値の範囲
+     * 変数の値を layout の順の配列にしたBoundExpr（StackProgram）の評価で、各変数が ranges[スロット] の
+     * どの値をとっても、返しうる値をすべて含む区間を返す（実際の範囲より広いことはある）。
+     * ゼロ除算で例外になる点は範囲から除き、その場合は結果のcontinuousがfalseになる。
+     * limitの値は数値的な推定なので、limitを含む式では保証付きの包含にならない（Func参照）。
+     * @param layout 変数の並び（式の自由変数をすべて含むこと。なければIllegalArgumentException）
+     * @param ranges 変数ごとの範囲（layoutの順。1点の区間なら値が決まった変数）
+     */
+    Interval evalInterval(VariableLayout layout, Interval[] ranges);
+
+    /**
+     * 変数xが[lo, hi]を動き、ほかの変数はSymのグローバルコンテキストの値のときの値の範囲
+     * （コンテキストの値の配列のxのスロットだけを[lo, hi]で動かしたときの evalInterval(layout, ranges) と同じ）
+     */
+    default Interval evalInterval(double lo, double hi) {
+        VariableLayout layout = VariableLayout.of(info().variableNames());
+        VariableContext ctx = Sym.globalContext();
+        Interval[] ranges = new Interval[layout.size()];
+        for (int i = 0; i < ranges.length; i++) {
+            String name = layout.names().get(i);
+            ranges[i] = name.equals("x") ? Interval.of(lo, hi) : Interval.point(ctx.getVariable(name));
+        }
+        return evalInterval(layout, ranges);
+    }
+
+    // evalBatchで1度に処理する点数（一時配列がキャッシュに収まる大きさ）
+    int BATCH_CHUNK = 256;
+
+    /**
+     * 変数xにxs[i]を入れた値をまとめて求める（ほかの変数はグローバルコンテキストの値。evalIntervalと同じ）
+     * コンテキストのxをxs[i]にしてevalを呼んだ結果と同じ値を out[i] に書く（コンテキストは書き換えない）。
+     * ノードごとに点の塊を1度に処理するので、点ごとの仮想呼び出しがなくなる。
+     * 例外が起きる場合、どの点の例外が先に出るかは1点ずつの評価と異なることがある。
+     */
+    default void evalBatch(double[] xs, double[] out) {
+        if (out.length < xs.length) throw new IllegalArgumentException("out is shorter than xs");
+        for (int from = 0; from < xs.length; from += BATCH_CHUNK) {
+            evalBatch(xs, from, out, from, Math.min(BATCH_CHUNK, xs.length - from));
+        }
+    }
+
+    /**
+     * xs[xOff, xOff+len) を評価して out[outOff, outOff+len) に書く
+     * 各ノードはこれを上書きして、子の結果を一時配列に受けて要素ごとのループで合成する。
+     * lenはBATCH_CHUNK以下であること（evalBatch(double[], double[])が分割して呼ぶ）。
+     */
+    void evalBatch(double[] xs, int xOff, double[] out, int outOff, int len);
 }
@@ -0,0 +1,527 @@
+package ast;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.*;
+
+/**
+ * ASTをJVMのクラスにコンパイルする
+ *
+ * CompiledExprを継承したhidden classのバイトコードを直接組み立てて定義する。
+ * 生成するメソッドは分岐のない直線的なコードだけなので、StackMapTableは不要。
+ * ゼロ除算のチェックなど分岐が必要な処理は、このクラスのstaticメソッドを呼ぶ
+ * （JITでインライン化される）。
+ *
+ * 数値・演算の順番は木の評価（Expr.eval）と同じにしてある。一致するのは次の場合:
+ * <ul>
+ *   <li>eval(double[]) は、Symのグローバルコンテキストに同じ値（xも含む）を入れたときのExpr.evalとビット単位で一致する</li>
+ *   <li>applyAsDouble(x) は、xを引数の値、ほかの変数をグローバルコンテキストの値にした配列でのeval(double[])と同じ</li>
+ * </ul>
+ * limitは収束値だけをコードにし、式はStackCompilerと同じくLimitEvaluator.Siteで
+ * 評価する（式の変数は呼び出し側と同じスロットから読む）。
+ * 未知の記号などコンパイルしない部分木は、木のまま保持してExpr.evalで評価する（評価すると例外になる）。
+ *
+ * コンパイル結果はASTのインスタンスごとにキャッシュする（ASTが不要になれば一緒に捨てられる）。
+ */
+public final class ExprCompiler {
+
+    // 生成するクラスのバージョン（Java 17）
+    private static final int CLASS_VERSION = 61;
+    // 1メソッドのバイトコード長の上限（65535）より少し手前で打ち切る
+    private static final int MAX_CODE_LENGTH = 65000;
+
+    private static final String BASE = "ast/CompiledExpr";
+    private static final String SELF = "ast/ExprCompiler";
+    private static final String EXPR = "ast/Expr";
+    private static final String INIT_DESC = "([Ljava/lang/String;[Last/Expr;[Last/LimitEvaluator$Site;)V";
+
+    private static final Map<Expr, CompiledExpr> CACHE = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private ExprCompiler() {}
+
+    /**
+     * ASTをコンパイルする（同じASTインスタンスに対しては前回の結果を返す）
+     * @throws IllegalArgumentException 式が大きすぎて1メソッドに収まらない場合
+     */
+    public static CompiledExpr compile(Expr expr) {
+        CompiledExpr c = CACHE.get(expr);
+        if (c != null) return c;
+        c = compileUncached(expr);
+        // ルート自体を木のまま保持している場合は、値からキーへの強参照でキャッシュが解放されなくなるので入れない
+        boolean rootIsFallback = false;
+        for (Expr f : c.fallback) {
+            if (f == expr) rootIsFallback = true;
+        }
+        if (!rootIsFallback) CACHE.put(expr, c);
+        return c;
+    }
+
+    private static CompiledExpr compileUncached(Expr expr) {
+        Map<String, Integer> slots = new LinkedHashMap<>();
+        Map<Expr, Integer> fallbackIndex = new IdentityHashMap<>();
+        List<Expr> fallback = new ArrayList<>();
+        Map<Func, Integer> limitIndex = new IdentityHashMap<>();
+        List<Func> limits = new ArrayList<>();
+        ConstantPool cp = new ConstantPool();
+
+        CodeEmitter evalCode = new CodeEmitter(cp, slots, fallbackIndex, fallback, limitIndex, limits, false);
+        evalCode.emit(expr);
+        CodeEmitter applyCode = new CodeEmitter(cp, slots, fallbackIndex, fallback, limitIndex, limits, true);
+        applyCode.emit(expr);
+        if (evalCode.length() > MAX_CODE_LENGTH || applyCode.length() > MAX_CODE_LENGTH) {
+            throw new IllegalArgumentException("式が大きすぎてコンパイルできません");
+        }
+
+        String[] variables = slots.keySet().toArray(new String[0]);
+        // limitの式は呼び出し側のスロットの並びで束縛する（スロットが全部決まってから作る）
+        List<String> names = Arrays.asList(variables);
+        LimitEvaluator.Site[] sites = new LimitEvaluator.Site[limits.size()];
+        for (int i = 0; i < sites.length; i++) {
+            Func f = limits.get(i);
+            sites[i] = new LimitEvaluator.Site(f.getLimitBody(), LimitEvaluator.variableOf(f), names);
+        }
+        byte[] bytes = writeClass(cp, evalCode, applyCode);
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            return (CompiledExpr) lookup.findConstructor(lookup.lookupClass(),
+                            MethodType.methodType(void.class, String[].class, Expr[].class,
+                                    LimitEvaluator.Site[].class))
+                    .invoke(variables, fallback.toArray(new Expr[0]), sites);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException("生成したクラスの定義に失敗しました", t);
+        }
+    }
+
+    // ===== 生成コードから呼ぶ補助メソッド =====
+
+    static double div(double a, double b) {
+        if (b == 0.0) {
+            throw new ArithmeticException("division by zero");
+        }
+        return a / b;
+    }
+
+    static double contextValue(String name) {
+        return Sym.globalContext().getVariable(name);
+    }
+
+    // ===== クラスファイルの組み立て =====
+
+    private static byte[] writeClass(ConstantPool cp, CodeEmitter evalCode, CodeEmitter applyCode) {
+        int thisClass = cp.classRef("ast/CompiledExpr$Generated");
+        int superClass = cp.classRef(BASE);
+        int code = cp.utf8("Code");
+        int init = cp.utf8("<init>");
+        int initDesc = cp.utf8(INIT_DESC);
+        int superInit = cp.methodRef(BASE, "<init>", INIT_DESC);
+        int evalName = cp.utf8("eval");
+        int evalDesc = cp.utf8("([D)D");
+        int applyName = cp.utf8("applyAsDouble");
+        int applyDesc = cp.utf8("(D)D");
+
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(CLASS_VERSION);
+            cp.write(out);
+            out.writeShort(0x0001 | 0x0010 | 0x0020); // public final super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+            out.writeShort(3); // methods
+
+            // コンストラクタ: super(variables, fallback, limits)
+            byte[] ctor = {
+                    0x2a,                  // aload_0
+                    0x2b,                  // aload_1
+                    0x2c,                  // aload_2
+                    0x2d,                  // aload_3
+                    (byte) 0xb7, (byte) (superInit >> 8), (byte) superInit, // invokespecial
+                    (byte) 0xb1            // return
+            };
+            writeMethod(out, init, initDesc, code, ctor, 4, 4);
+            // eval(double[]): this, vars
+            writeMethod(out, evalName, evalDesc, code, evalCode.finish(), evalCode.maxStack(), 2);
+            // applyAsDouble(double): this, x（2スロット）
+            writeMethod(out, applyName, applyDesc, code, applyCode.finish(), applyCode.maxStack(), 3);
+
+            out.writeShort(0); // class attributes
+            out.flush();
+            return bos.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeMethod(DataOutputStream out, int name, int desc, int codeAttr,
+                                    byte[] code, int maxStack, int maxLocals) throws IOException {
+        out.writeShort(0x0001); // public
+        out.writeShort(name);
+        out.writeShort(desc);
+        out.writeShort(1);      // attributes: Code
+        out.writeShort(codeAttr);
+        out.writeInt(2 + 2 + 4 + code.length + 2 + 2);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0);      // exception table
+        out.writeShort(0);      // code attributes
+    }
+
+    /**
+     * 定数プール（同じ定数は1つにまとめる）
+     */
+    private static final class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> index = new HashMap<>();
+        private int next = 1;
+
+        int utf8(String s) {
+            return intern("U" + s, 1, () -> out.writeUTF(s));
+        }
+
+        int classRef(String internalName) {
+            int name = utf8(internalName);
+            return intern("C" + internalName, 1, () -> { out.writeByte(7); out.writeShort(name); });
+        }
+
+        int string(String s) {
+            int u = utf8(s);
+            return intern("S" + s, 1, () -> { out.writeByte(8); out.writeShort(u); });
+        }
+
+        int integer(int v) {
+            return intern("I" + v, 1, () -> { out.writeByte(3); out.writeInt(v); });
+        }
+
+        int dbl(double v) {
+            long bits = Double.doubleToRawLongBits(v);
+            return intern("D" + bits, 2, () -> { out.writeByte(6); out.writeLong(bits); });
+        }
+
+        int methodRef(String owner, String name, String desc) {
+            return memberRef(10, owner, name, desc);
+        }
+
+        int interfaceMethodRef(String owner, String name, String desc) {
+            return memberRef(11, owner, name, desc);
+        }
+
+        int fieldRef(String owner, String name, String desc) {
+            return memberRef(9, owner, name, desc);
+        }
+
+        private int memberRef(int tag, String owner, String name, String desc) {
+            int c = classRef(owner);
+            int n = utf8(name);
+            int d = utf8(desc);
+            int nt = intern("N" + name + ":" + desc, 1, () -> { out.writeByte(12); out.writeShort(n); out.writeShort(d); });
+            return intern("M" + tag + owner + "." + name + desc, 1, () -> { out.writeByte(tag); out.writeShort(c); out.writeShort(nt); });
+        }
+
+        private interface Writer {
+            void write() throws IOException;
+        }
+
+        private int intern(String key, int slots, Writer w) {
+            Integer i = index.get(key);
+            if (i != null) return i;
+            // utf8のタグは1（writeUTFが長さを書く）
+            try {
+                if (key.charAt(0) == 'U') out.writeByte(1);
+                w.write();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            int idx = next;
+            next += slots;
+            if (next > 0xFFFF) throw new IllegalArgumentException("式が大きすぎてコンパイルできません");
+            index.put(key, idx);
+            return idx;
+        }
+
+        void write(DataOutputStream dst) throws IOException {
+            out.flush();
+            dst.writeShort(next);
+            bytes.writeTo(dst);
+        }
+    }
+
+    /**
+     * 1メソッド分のバイトコード生成（オペランドスタックの深さも数える）
+     */
+    private static final class CodeEmitter {
+        private final ConstantPool cp;
+        private final Map<String, Integer> slots;
+        private final Map<Expr, Integer> fallbackIndex;
+        private final List<Expr> fallback;
+        private final Map<Func, Integer> limitIndex;
+        private final List<Func> limits;
+        private final boolean xFromArgument; // true: applyAsDouble(x), false: eval(double[])
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private int stack;
+        private int maxStack;
+
+        CodeEmitter(ConstantPool cp, Map<String, Integer> slots, Map<Expr, Integer> fallbackIndex,
+                    List<Expr> fallback, Map<Func, Integer> limitIndex, List<Func> limits,
+                    boolean xFromArgument) {
+            this.cp = cp;
+            this.slots = slots;
+            this.fallbackIndex = fallbackIndex;
+            this.fallback = fallback;
+            this.limitIndex = limitIndex;
+            this.limits = limits;
+            this.xFromArgument = xFromArgument;
+        }
+
+        int length() { return code.size(); }
+        int maxStack() { return maxStack; }
+
+        byte[] finish() {
+            op(0xaf); // dreturn
+            return code.toByteArray();
+        }
+
+        /**
+         * eの値（double）をスタックに積むコードを出す
+         */
+        void emit(Expr e) {
+            if (code.size() > MAX_CODE_LENGTH) return; // 呼び出し側で打ち切る
+            if (e instanceof Num) {
+                pushDouble(((Num) e).value);
+            } else if (e instanceof Sym) {
+                emitSym((Sym) e);
+            } else if (e instanceof Add) {
+                op(0x0e); push(2); // dconst_0
+                for (Expr a : ((Add) e).args) {
+                    emit(a);
+                    op(0x63); pop(2); // dadd
+                }
+            } else if (e instanceof Mul) {
+                op(0x0f); push(2); // dconst_1
+                for (Expr a : ((Mul) e).args) {
+                    emit(a);
+                    op(0x6b); pop(2); // dmul
+                }
+            } else if (e instanceof Div) {
+                Div d = (Div) e;
+                emit(d.getLeft());
+                emit(d.getRight());
+                invokeStatic(SELF, "div", "(DD)D", 4, 2);
+            } else if (e instanceof Pow) {
+                Pow p = (Pow) e;
+                emit(p.getBase());
+                emit(p.getExp());
+                invokeStatic("java/lang/Math", "pow", "(DD)D", 4, 2);
+            } else if (e instanceof Func) {
+                emitFunc((Func) e);
+            } else if (e instanceof Equation) {
+                // 等式は残差 left - right
+                Equation q = (Equation) e;
+                emit(q.getLeft());
+                emit(q.getRight());
+                op(0x67); pop(2); // dsub
+            } else {
+                emitFallback(e);
+            }
+        }
+
+        private void emitSym(Sym s) {
+            String name = s.name;
+            if (name == null) {
+                emitFallback(s);
+            } else if (name.equals("π")) {
+                pushDouble(Math.PI);
+            } else if (name.equals("e")) {
+                pushDouble(Math.E);
+            } else if (name.length() == 1 && name.charAt(0) >= 'a' && name.charAt(0) <= 'z') {
+                emitVariable(name);
+            } else if (name.equals("θ") || name.equals("theta")) {
+                emitVariable("θ");
+            } else {
+                emitFallback(s); // Unknown symbol（評価時に例外）
+            }
+        }
+
+        private void emitVariable(String name) {
+            int slot = slotOf(name);
+            if (!xFromArgument) {
+                op(0x2b); push(1);        // aload_1 (vars)
+                pushInt(slot);
+                op(0x31); pop(2); push(2); // daload
+            } else if (name.equals("x")) {
+                op(0x27); push(2);        // dload_1 (x)
+            } else {
+                ldc(cp.string(name)); push(1);
+                invokeStatic(SELF, "contextValue", "(Ljava/lang/String;)D", 1, 2);
+            }
+        }
+
+        private int slotOf(String name) {
+            Integer slot = slots.get(name);
+            if (slot == null) {
+                slot = slots.size();
+                slots.put(name, slot);
+            }
+            return slot;
+        }
+
+        private void emitFunc(Func f) {
+            List<Expr> args = f.getArgs();
+            switch (f.getKind()) {
+                case SQRT: case SIN: case COS: case TAN: case EXP:
+                    emit(args.get(0));
+                    invokeStatic("java/lang/Math", f.getName(), "(D)D", 2, 2);
+                    return;
+                case LN: case LOG:
+                    emit(args.get(0));
+                    invokeStatic("java/lang/Math", "log", "(D)D", 2, 2);
+                    return;
+                case ABS:
+                    emit(args.get(0));
+                    invokeStatic("java/lang/Math", "abs", "(D)D", 2, 2);
+                    return;
+                case SEC: case CSC: case COT:
+                    op(0x0f); push(2); // dconst_1
+                    emit(args.get(0));
+                    String m = f.getKind() == FuncKind.SEC ? "cos" : f.getKind() == FuncKind.CSC ? "sin" : "tan";
+                    invokeStatic("java/lang/Math", m, "(D)D", 2, 2);
+                    op(0x6f); pop(2); // ddiv
+                    return;
+                case NEG:
+                    emit(args.get(0));
+                    op(0x77); // dneg
+                    return;
+                case SUB:
+                    emit(args.get(0));
+                    emit(args.get(1));
+                    op(0x67); pop(2); // dsub
+                    return;
+                case DIFF:
+                    if (args.size() == 2) {
+                        // diff(v, f) は導関数をその場に展開する
+                        emit(f.derivative());
+                        return;
+                    }
+                    // 引数1つなら木の評価と同じく0を返す
+                    op(0x0e); push(2); // dconst_0
+                    return;
+                case LIMIT:
+                    emitLimit(f);
+                    return;
+                default:
+                    break;
+            }
+            emitFallback(f);
+        }
+
+        /**
+         * limit: 収束値を計算して、CompiledExpr.limit（applyAsDoubleではlimitAt）に渡す
+         */
+        private void emitLimit(Func f) {
+            Integer idx = limitIndex.get(f);
+            if (idx == null) {
+                // 式の変数（動かす変数以外）は呼び出し側と同じスロットから読むので、ここで割り当てておく
+                String var = LimitEvaluator.variableOf(f);
+                for (String name : VariableLayout.of(f.getLimitBody()).names()) {
+                    if (!name.equals(var)) slotOf(name);
+                }
+                idx = limits.size();
+                limits.add(f);
+                limitIndex.put(f, idx);
+            }
+            op(0x2a); push(1); // aload_0
+            pushInt(idx);
+            emit(f.getLimitPoint());
+            if (xFromArgument) {
+                op(0x27); push(2); // dload_1
+                op(0xb6); u2(cp.methodRef(BASE, "limitAt", "(IDD)D")); // invokevirtual
+                pop(6); push(2);
+            } else {
+                op(0x2b); push(1); // aload_1
+                op(0xb6); u2(cp.methodRef(BASE, "limit", "(ID[D)D")); // invokevirtual
+                pop(5); push(2);
+            }
+        }
+
+        private void emitFallback(Expr e) {
+            Integer idx = fallbackIndex.get(e);
+            if (idx == null) {
+                idx = fallback.size();
+                fallback.add(e);
+                fallbackIndex.put(e, idx);
+            }
+            op(0x2a); push(1); // aload_0
+            int field = cp.fieldRef(BASE, "fallback", "[Last/Expr;");
+            op(0xb4); u2(field); // getfield
+            pushInt(idx);
+            op(0x32); pop(2); push(1); // aaload
+            if (xFromArgument) {
+                op(0x27); // dload_1
+            } else {
+                op(0x0e); // dconst_0
+            }
+            push(2);
+            int m = cp.interfaceMethodRef(EXPR, "eval", "(D)D");
+            op(0xb9); u2(m); code.write(3); code.write(0); // invokeinterface
+            pop(3); push(2);
+        }
+
+        private void pushDouble(double v) {
+            long bits = Double.doubleToRawLongBits(v);
+            if (bits == 0L) {
+                op(0x0e); // dconst_0
+            } else if (v == 1.0) {
+                op(0x0f); // dconst_1
+            } else {
+                op(0x14); u2(cp.dbl(v)); // ldc2_w
+            }
+            push(2);
+        }
+
+        private void pushInt(int v) {
+            if (v <= 5) {
+                op(0x03 + v); // iconst_<v>
+            } else if (v <= 127) {
+                op(0x10); code.write(v); // bipush
+            } else if (v <= 32767) {
+                op(0x11); u2(v); // sipush
+            } else {
+                ldc(cp.integer(v));
+            }
+            push(1);
+        }
+
+        private void ldc(int index) {
+            op(0x13); u2(index); // ldc_w
+        }
+
+        private void invokeStatic(String owner, String name, String desc, int argSlots, int retSlots) {
+            op(0xb8); u2(cp.methodRef(owner, name, desc));
+            pop(argSlots);
+            push(retSlots);
+        }
+
+        private void op(int opcode) { code.write(opcode); }
+
+        private void u2(int v) {
+            code.write(v >> 8);
+            code.write(v);
+        }
+
+        private void push(int n) {
+            stack += n;
+            if (stack > maxStack) maxStack = stack;
+        }
+
+        private void pop(int n) { stack -= n; }
+    }
+}
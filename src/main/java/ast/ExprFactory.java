@@ -0,0 +1,33 @@
+package ast;
+
+import java.util.List;
+
+/**
+ * ASTノードの生成方法
+ * ParserやAstJsonはこれを通してノードを作るので、差し替えるとノードの共有などができる
+ */
+public interface ExprFactory {
+
+    Expr num(double value);
+    Expr sym(String name);
+    Expr add(List<Expr> args);
+    Expr mul(List<Expr> args);
+    Expr div(List<Expr> args);
+    Expr pow(List<Expr> args);
+    Expr func(String name, List<Expr> args);
+    Expr equation(List<Expr> args);
+
+    /**
+     * 毎回新しいノードを作る（通常の動作）
+     */
+    ExprFactory PLAIN = new ExprFactory() {
+        @Override public Expr num(double value) { return new Num(value); }
+        @Override public Expr sym(String name) { return new Sym(name); }
+        @Override public Expr add(List<Expr> args) { return new Add(args); }
+        @Override public Expr mul(List<Expr> args) { return new Mul(args); }
+        @Override public Expr div(List<Expr> args) { return new Div(args); }
+        @Override public Expr pow(List<Expr> args) { return new Pow(args); }
+        @Override public Expr func(String name, List<Expr> args) { return new Func(name, args); }
+        @Override public Expr equation(List<Expr> args) { return new Equation(args); }
+    };
+}
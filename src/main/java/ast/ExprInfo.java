@@ -0,0 +1,113 @@
+package ast;
+
+import java.util.*;
+
+/**
+ * ノードの構造から決まる情報（各ノードが構築時に子の情報から1度だけ計算して持つ）
+ *
+ * 木をたどらずにO(1)で読めるので、変数の有無・大きさによる打ち切り・キャッシュのキーなどに使う。
+ * 共有された部分木も出現ごとに数える（nodesは木としての大きさ）。
+ */
+public final class ExprInfo {
+
+    // 変数のビット: a〜zが0〜25（eは定数なので使わない）、θが26
+    private static final int THETA_BIT = 26;
+
+    // 構造ハッシュの種類タグ
+    static final int NUM = 1, SYM = 2, ADD = 3, MUL = 4, DIV = 5, POW = 6, FUNC = 7, EQUATION = 8;
+
+    /** 自由変数のビット集合（limitの動かす変数・diffの変数名の引数は含めない） */
+    public final int variables;
+    /** 深さ（葉は1） */
+    public final int depth;
+    /** 木としてのノード数（Long.MAX_VALUEで頭打ち） */
+    public final long nodes;
+    /** 構造ハッシュ（構造が同じ木は同じ値） */
+    public final int hash;
+
+    private ExprInfo(int variables, int depth, long nodes, int hash) {
+        this.variables = variables;
+        this.depth = depth;
+        this.nodes = nodes;
+        this.hash = hash;
+    }
+
+    /**
+     * 変数を含まないか（値が変数の値によらない）
+     */
+    public boolean isConstant() {
+        return variables == 0;
+    }
+
+    /**
+     * 変数を含むか（"theta"は"θ"と同じ）
+     */
+    public boolean uses(String name) {
+        int bit = variableBit(name);
+        return bit >= 0 && (variables & (1 << bit)) != 0;
+    }
+
+    /**
+     * 自由変数の名前（a〜z、θの順）
+     */
+    public List<String> variableNames() {
+        List<String> names = new ArrayList<>(Integer.bitCount(variables));
+        for (int bits = variables; bits != 0; bits &= bits - 1) {
+            int bit = Integer.numberOfTrailingZeros(bits);
+            names.add(bit == THETA_BIT ? "θ" : String.valueOf((char) ('a' + bit)));
+        }
+        return names;
+    }
+
+    /**
+     * 変数名のビット番号（変数でない名前なら-1。Sym.evalがコンテキストから読む名前だけが変数）
+     */
+    static int variableBit(String name) {
+        if (name == null) return -1;
+        if (name.length() == 1) {
+            char c = name.charAt(0);
+            if (c >= 'a' && c <= 'z' && c != 'e') return c - 'a';
+        }
+        if (name.equals("θ") || name.equals("theta")) return THETA_BIT;
+        return -1;
+    }
+
+    static ExprInfo num(double value) {
+        return new ExprInfo(0, 1, 1, NUM * 31 + Long.hashCode(Double.doubleToRawLongBits(value)));
+    }
+
+    static ExprInfo sym(String name) {
+        int bit = variableBit(name);
+        return new ExprInfo(bit >= 0 ? 1 << bit : 0, 1, 1, SYM * 31 + Objects.hashCode(name));
+    }
+
+    /**
+     * 子から作る（自由変数は子の和）
+     */
+    static ExprInfo of(int tag, int seed, List<Expr> children) {
+        int vars = 0;
+        for (Expr c : children) vars |= c.info().variables;
+        return of(tag, seed, children, vars);
+    }
+
+    /**
+     * 子から作る（自由変数を呼び出し側で決める場合）
+     */
+    static ExprInfo of(int tag, int seed, List<Expr> children, int variables) {
+        int depth = 0;
+        long nodes = 1;
+        int h = tag * 31 + seed;
+        for (Expr c : children) {
+            ExprInfo ci = c.info();
+            depth = Math.max(depth, ci.depth);
+            nodes = nodes + ci.nodes < 0 ? Long.MAX_VALUE : nodes + ci.nodes;
+            h = h * 31 + ci.hash;
+        }
+        return new ExprInfo(variables, depth + 1, nodes, h);
+    }
+
+    @Override
+    public String toString() {
+        return "variables=" + variableNames() + " depth=" + depth + " nodes=" + nodes + " hash=" + hash;
+    }
+}
@@ -0,0 +1,21 @@
+package ast;
+
+/**
+ * Exprのノードの種類ごとの処理（Expr.acceptで呼び分ける）
+ *
+ * Exprはsealedなので、ノードの種類はここにあるものですべて。
+ * instanceofを順に試す代わりに仮想呼び出し1回で分岐するので、種類が増えても分岐の数は増えない。
+ *
+ * 例:
+ *   int leaves = expr.accept(new ExprVisitor<Integer>() { ... });
+ */
+public interface ExprVisitor<R> {
+    R visitNum(Num n);
+    R visitSym(Sym s);
+    R visitAdd(Add a);
+    R visitMul(Mul m);
+    R visitDiv(Div d);
+    R visitPow(Pow p);
+    R visitFunc(Func f);
+    R visitEquation(Equation q);
+}
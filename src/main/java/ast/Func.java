@@ -2,134 +2,224 @@ package ast;
 
 import java.util.List;
 
-public class Func implements Expr {
+/**
+ * 関数呼び出し
+ *
+ * 関数名は構築時にFuncKindへ解決し、引数の数もそこで確かめる。
+ * 未知の関数・引数の数が合わない呼び出しはパース（JSONの読み込み）の時点で例外になる。
+ */
+public final class Func implements Expr {
     private final String name;
+    private final FuncKind kind;
     private final List<Expr> args;
+    // よく使う引数はフィールドに持ってList.getを省く
+    private final Expr arg0;
+    private final Expr arg1;
+    // limitの収束値と式（構築時に引数の形から決める）
+    private final Expr limitPoint;
+    private final Expr limitBody;
+    private final ExprInfo info;
+    // limitの評価に使う束縛（初めて評価するときに作る）
+    private volatile LimitEvaluator.Site limitSite;
+    // diff(v, f) の導関数（初めて評価するときに作る）
+    private volatile Expr derivative;
 
     public Func(String name, List<Expr> args) {
+        FuncKind k = FuncKind.of(name);
+        if (k == null) {
+            throw new IllegalArgumentException("Unknown func: " + name);
+        }
+        k.checkArity(args.size());
+        if (k == FuncKind.DIFF && args.size() == 2 && !(args.get(0) instanceof Sym)) {
+            throw new IllegalArgumentException("Func diff needs a variable name as the first arg");
+        }
         this.name = name;
+        this.kind = k;
         this.args = List.copyOf(args);
+        this.arg0 = this.args.get(0);
+        this.arg1 = this.args.size() > 1 ? this.args.get(1) : null;
+        if (k == FuncKind.LIMIT) {
+            // limit(limitValue, expression) は最初の引数を収束値として扱う
+            // limit(variable, limitValue, expression)
+            boolean withVariable = this.args.size() == 3;
+            this.limitPoint = withVariable ? this.args.get(1) : arg0;
+            this.limitBody = withVariable ? this.args.get(2) : arg1;
+        } else {
+            this.limitPoint = null;
+            this.limitBody = null;
+        }
+        this.info = ExprInfo.of(ExprInfo.FUNC, name.hashCode(), this.args, freeVariables());
+    }
+
+    /**
+     * 自由変数のビット集合（limitの動かす変数とdiffの変数名は束縛されているので含めない）
+     */
+    private int freeVariables() {
+        switch (kind) {
+            case LIMIT:
+                int bound = ExprInfo.variableBit(LimitEvaluator.variableOf(this));
+                int body = limitBody.info().variables;
+                if (bound >= 0) body &= ~(1 << bound);
+                return limitPoint.info().variables | body;
+            case DIFF:
+                return arg1 == null ? 0 : arg1.info().variables;
+            default:
+                int vars = 0;
+                for (Expr a : args) vars |= a.info().variables;
+                return vars;
+        }
     }
 
     @Override
     public double eval(double x) {
-        switch (name) {
-            // 単引数関数
-            case "sqrt":
-            case "sin":
-            case "cos":
-            case "tan":
-            case "sec":
-            case "csc":
-            case "cot":
-            case "ln":
-            case "log":
-            case "exp":
-            case "abs":
-            case "neg":
-                if (args.size() != 1) {
-                    throw new IllegalArgumentException("Func needs 1 arg: " + name);
-                }
-                double v = args.get(0).eval(x);
-                switch (name) {
-                    case "sqrt":
-                        return Math.sqrt(v);
-                    case "sin":
-                        return Math.sin(v);
-                    case "cos":
-                        return Math.cos(v);
-                    case "tan":
-                        return Math.tan(v);
-                    case "sec":
-                        return 1.0 / Math.cos(v);
-                    case "csc":
-                        return 1.0 / Math.sin(v);
-                    case "cot":
-                        return 1.0 / Math.tan(v);
-                    case "ln":
-                    case "log":
-                        return Math.log(v); // natural log
-                    case "exp":
-                        return Math.exp(v);
-                    case "abs":
-                        return Math.abs(v);
-                    case "neg":
-                        return -v;
-                    default:
-                        throw new IllegalArgumentException("Unknown func: " + name);
-                }
-            
+        switch (kind) {
             // 二引数関数
-            case "sub":
-                if (args.size() != 2) {
-                    throw new IllegalArgumentException("Func needs 2 args: " + name);
-                }
-                return args.get(0).eval(x) - args.get(1).eval(x);
-            
-            // 微分（簡易実装：数値微分）
-            case "diff":
-                if (args.size() != 1) {
-                    throw new IllegalArgumentException("Func diff needs 1 arg (variable name)");
-                }
-                // 簡易実装：微分は後で拡張（現時点では0を返す）
-                // TODO: シンボリック微分を実装
-                return 0.0;
-            
+            case SUB:
+                return arg0.eval(x) - arg1.eval(x);
+
+            // 微分: diff(v, f) は f を v で記号微分した式を評価する
+            case DIFF:
+                // 引数1つ（d/dx だけ）の場合は0を返す
+                return arg1 == null ? 0.0 : derivative().eval(x);
+
             // 極限（lim_{variable→limitValue} expression）
-            case "limit":
-                if (args.size() < 2 || args.size() > 3) {
-                    throw new IllegalArgumentException("Func limit needs 2 or 3 args: [variable], limitValue, [expression]");
-                }
-                
-                // 引数の処理
-                // args[0]: 変数名（オプション、文字列として扱う必要があるが、Exprなので簡易的に無視）
-                // args[1]: 収束値（またはargs[0]が収束値の場合）
-                // args[2]: 式（オプション）
-                
-                double limitValue;
-                Expr expression;
-                
-                if (args.size() == 2) {
-                    // limit(limitValue, expression) または limit(variable, limitValue)
-                    // 簡易実装：最初の引数を収束値として扱う
-                    limitValue = args.get(0).eval(x);
-                    expression = args.get(1);
-                } else {
-                    // limit(variable, limitValue, expression)
-                    limitValue = args.get(1).eval(x);
-                    expression = args.get(2);
+            case LIMIT:
+                return evalLimit(x);
+
+            // 単引数関数
+            default:
+                return kind.apply(arg0.eval(x));
+        }
+    }
+
+    @Override
+    public Interval evalInterval(VariableLayout layout, Interval[] ranges) {
+        switch (kind) {
+            case SUB:
+                return arg0.evalInterval(layout, ranges).sub(arg1.evalInterval(layout, ranges));
+            case DIFF:
+                return arg1 == null ? Interval.point(0.0) : derivative().evalInterval(layout, ranges);
+            case LIMIT:
+                return limitInterval(layout, ranges);
+            default:
+                return kind.applyInterval(arg0.evalInterval(layout, ranges));
+        }
+    }
+
+    /**
+     * 極限の値は数値的な推定なので、保証付きの包含にはならない。
+     * 値が1つに決まる場合（式の自由変数の範囲がすべて1点で、収束値が1点か式が極限の変数によらない）だけ
+     * 1点の区間を返し、それ以外は全体を返す。
+     */
+    private Interval limitInterval(VariableLayout layout, Interval[] ranges) {
+        Interval target = limitPoint.evalInterval(layout, ranges);
+        if (target.isEmpty()) return Interval.EMPTY;
+        LimitEvaluator.Site site = limitSite();
+        if (!target.isPoint() && site.slot >= 0) return Interval.ENTIRE;
+        List<String> names = site.body.layout().names();
+        double[] vars = new double[names.size()];
+        for (int i = 0; i < vars.length; i++) {
+            if (names.get(i).equals(site.var)) continue;
+            Interval r = ranges[Sym.slotIn(layout, names.get(i))];
+            if (!r.isPoint()) return Interval.ENTIRE;
+            vars[i] = r.lo;
+        }
+        return Interval.point(site.eval(vars, target.lo));
+    }
+
+    /**
+     * 極限はLimitEvaluatorで数値的に求める（ほかの変数はSymのグローバルコンテキストの値）
+     * 収束を確認できなかった場合や左右で異なる場合はNaNを返す（EvalStatusを渡す評価ではLIMIT_NOT_CONVERGEDも立つ）
+     */
+    private double evalLimit(double x) {
+        double target = limitPoint.eval(x);
+        LimitEvaluator.Site site = limitSite();
+        return site.eval(site.body.layout().assignment(Sym.globalContext()), target);
+    }
+
+    /**
+     * 収束値はまとめて求め、極限は1点ずつ評価する（式のxは点ごとの値、ほかの変数はグローバルコンテキストの値）
+     */
+    private void limitBatch(double[] xs, int xOff, double[] out, int outOff, int len) {
+        limitPoint.evalBatch(xs, xOff, out, outOff, len);
+        LimitEvaluator.Site site = limitSite();
+        double[] vars = site.body.layout().assignment(Sym.globalContext());
+        int xSlot = site.body.layout().slotOf("x");
+        boolean bodyUsesX = xSlot >= 0 && xSlot != site.slot;
+        for (int i = 0; i < len; i++) {
+            if (bodyUsesX) vars[xSlot] = xs[xOff + i];
+            out[outOff + i] = site.eval(vars, out[outOff + i]);
+        }
+    }
+
+    private LimitEvaluator.Site limitSite() {
+        LimitEvaluator.Site s = limitSite;
+        if (s == null) {
+            s = new LimitEvaluator.Site(limitBody, LimitEvaluator.variableOf(this),
+                    VariableLayout.of(limitBody).names());
+            limitSite = s;
+        }
+        return s;
+    }
+
+    /**
+     * diff(v, f) の導関数（Differentiatorでの結果をこのノードに保持する）
+     */
+    Expr derivative() {
+        Expr d = derivative;
+        if (d == null) {
+            d = Differentiator.derivative(arg1, ((Sym) arg0).name);
+            derivative = d;
+        }
+        return d;
+    }
+
+    @Override
+    public void evalBatch(double[] xs, int xOff, double[] out, int outOff, int len) {
+        // 関数の種類による分岐は点ごとではなく塊ごとに1回だけ行う
+        switch (kind) {
+            case SUB: {
+                double[] t = BatchScratch.acquire();
+                try {
+                    arg0.evalBatch(xs, xOff, out, outOff, len);
+                    arg1.evalBatch(xs, xOff, t, 0, len);
+                    for (int i = 0; i < len; i++) out[outOff + i] -= t[i];
+                } finally {
+                    BatchScratch.release(t);
                 }
-                
-                // 無限大への収束をチェック
-                boolean isInfinity = Double.isInfinite(limitValue);
-                boolean isZero = !isInfinity && Math.abs(limitValue) < 1e-10;
-                
-                // 式を評価
-                if (expression != null) {
-                    // 式がある場合、変数を収束値に近づけて評価
-                    if (isInfinity) {
-                        // 無限大への収束：大きな値で評価
-                        double largeValue = limitValue > 0 ? 1e10 : -1e10;
-                        return expression.eval(largeValue);
-                    } else if (isZero) {
-                        // 0への収束：小さな値で評価
-                        double smallValue = limitValue >= 0 ? 1e-10 : -1e-10;
-                        return expression.eval(smallValue);
-                    } else {
-                        // 通常の収束値：直接代入
-                        return expression.eval(limitValue);
-                    }
+                return;
+            }
+            case DIFF:
+                if (arg1 != null) {
+                    derivative().evalBatch(xs, xOff, out, outOff, len);
                 } else {
-                    // 式がない場合、収束値をそのまま返す
-                    return limitValue;
+                    java.util.Arrays.fill(out, outOff, outOff + len, 0.0);
                 }
-            
+                return;
+            case LIMIT:
+                limitBatch(xs, xOff, out, outOff, len);
+                return;
             default:
-                throw new IllegalArgumentException("Unknown func: " + name);
+                arg0.evalBatch(xs, xOff, out, outOff, len);
+                kind.applyBatch(out, outOff, len);
         }
     }
 
     // JSON変換用のgetter
     public String getName() { return name; }
     public List<Expr> getArgs() { return args; }
+    public FuncKind getKind() { return kind; }
+    // limitの収束値と式（limit以外はnull）
+    public Expr getLimitPoint() { return limitPoint; }
+    public Expr getLimitBody() { return limitBody; }
+
+    @Override
+    public ExprInfo info() {
+        return info;
+    }
+
+    @Override
+    public <R> R accept(ExprVisitor<R> visitor) {
+        return visitor.visitFunc(this);
+    }
 }
@@ -0,0 +1,137 @@
+package ast;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Funcの関数の種類（名前から1度だけ引く）
+ *
+ * Funcの構築時に名前をこのenumに解決し、引数の数もそこで確かめる。
+ * 評価時は文字列の比較をせず、ordinalによるswitchだけで分岐する。
+ */
+public enum FuncKind {
+    SQRT("sqrt", 1),
+    SIN("sin", 1),
+    COS("cos", 1),
+    TAN("tan", 1),
+    SEC("sec", 1),
+    CSC("csc", 1),
+    COT("cot", 1),
+    LN("ln", 1),
+    LOG("log", 1),
+    EXP("exp", 1),
+    ABS("abs", 1),
+    NEG("neg", 1),
+    SUB("sub", 2),
+    DIFF("diff", 1, 2),
+    LIMIT("limit", 2, 3);
+
+    private static final Map<String, FuncKind> BY_NAME = new HashMap<>();
+    static {
+        for (FuncKind k : values()) BY_NAME.put(k.funcName, k);
+    }
+
+    public final String funcName;
+    public final int minArgs;
+    public final int maxArgs;
+
+    FuncKind(String funcName, int arity) {
+        this(funcName, arity, arity);
+    }
+
+    FuncKind(String funcName, int minArgs, int maxArgs) {
+        this.funcName = funcName;
+        this.minArgs = minArgs;
+        this.maxArgs = maxArgs;
+    }
+
+    /**
+     * 名前に対応する種類（未知の名前ならnull）
+     */
+    public static FuncKind of(String name) {
+        return BY_NAME.get(name);
+    }
+
+    /**
+     * 引数の数を確かめる（以前の評価時と同じメッセージで例外）
+     */
+    void checkArity(int n) {
+        if (n >= minArgs && n <= maxArgs) return;
+        switch (this) {
+            case SUB:
+                throw new IllegalArgumentException("Func needs 2 args: " + funcName);
+            case DIFF:
+                throw new IllegalArgumentException("Func diff needs 1 or 2 args: variable, [expression]");
+            case LIMIT:
+                throw new IllegalArgumentException("Func limit needs 2 or 3 args: [variable], limitValue, [expression]");
+            default:
+                throw new IllegalArgumentException("Func needs 1 arg: " + funcName);
+        }
+    }
+
+    /**
+     * 単引数の関数を値に適用する（neg・各数学関数）
+     */
+    double apply(double v) {
+        switch (this) {
+            case SQRT: return Math.sqrt(v);
+            case SIN: return Math.sin(v);
+            case COS: return Math.cos(v);
+            case TAN: return Math.tan(v);
+            case SEC: return 1.0 / Math.cos(v);
+            case CSC: return 1.0 / Math.sin(v);
+            case COT: return 1.0 / Math.tan(v);
+            case LN:
+            case LOG: return Math.log(v); // natural log
+            case EXP: return Math.exp(v);
+            case ABS: return Math.abs(v);
+            case NEG: return -v;
+            default: throw new IllegalStateException("not a unary function: " + funcName);
+        }
+    }
+
+    /**
+     * 単引数の関数を a[off, off+len) の各要素に適用する（apply(double)の一括版）
+     * 種類による分岐は呼び出しごとに1回だけで、各ループは分岐のない要素ごとの計算になる。
+     * 関数を足すときはapply・applyInterval・ここの3つをそろえること。
+     */
+    void applyBatch(double[] a, int off, int len) {
+        int end = off + len;
+        switch (this) {
+            case SQRT: for (int i = off; i < end; i++) a[i] = Math.sqrt(a[i]); return;
+            case SIN: for (int i = off; i < end; i++) a[i] = Math.sin(a[i]); return;
+            case COS: for (int i = off; i < end; i++) a[i] = Math.cos(a[i]); return;
+            case TAN: for (int i = off; i < end; i++) a[i] = Math.tan(a[i]); return;
+            case SEC: for (int i = off; i < end; i++) a[i] = 1.0 / Math.cos(a[i]); return;
+            case CSC: for (int i = off; i < end; i++) a[i] = 1.0 / Math.sin(a[i]); return;
+            case COT: for (int i = off; i < end; i++) a[i] = 1.0 / Math.tan(a[i]); return;
+            case LN:
+            case LOG: for (int i = off; i < end; i++) a[i] = Math.log(a[i]); return;
+            case EXP: for (int i = off; i < end; i++) a[i] = Math.exp(a[i]); return;
+            case ABS: for (int i = off; i < end; i++) a[i] = Math.abs(a[i]); return;
+            case NEG: for (int i = off; i < end; i++) a[i] = -a[i]; return;
+            default: throw new IllegalStateException("not a unary function: " + funcName);
+        }
+    }
+
+    /**
+     * 単引数の関数を区間に適用する（apply(double)の区間版）
+     */
+    Interval applyInterval(Interval a) {
+        switch (this) {
+            case SQRT: return a.sqrt();
+            case SIN: return a.sin();
+            case COS: return a.cos();
+            case TAN: return a.tan();
+            case SEC: return a.cos().reciprocal();
+            case CSC: return a.sin().reciprocal();
+            case COT: return a.tan().reciprocal();
+            case LN:
+            case LOG: return a.log();
+            case EXP: return a.exp();
+            case ABS: return a.abs();
+            case NEG: return a.neg();
+            default: throw new IllegalStateException("not a unary function: " + funcName);
+        }
+    }
+}
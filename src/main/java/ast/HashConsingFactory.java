@@ -0,0 +1,202 @@
+package ast;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * 構造が同じ部分木を1つのインスタンスにまとめる（hash-consing）ExprFactory
+ *
+ * 子はすでに正規化済み（このファクトリが返したもの）なので、キーの比較は
+ * 種類・値・子の参照の一致だけで済み、木の深さによらずO(1)。
+ * 同じファクトリから得たノードどうしは「構造が等しい ⇔ ==」が成り立つ。
+ * 構造ハッシュは各ノードが生成時に計算して持っている（Expr.info）ので、子のハッシュはそこから読む。
+ *
+ * 表はファクトリが生きている間ノードを保持し続ける。コーパス単位などで作って使い捨てること。
+ * メソッドは同期しているので複数スレッドから使ってよい。
+ */
+public class HashConsingFactory implements ExprFactory {
+
+    private static final int NUM = 0, SYM = 1, ADD = 2, MUL = 3, DIV = 4, POW = 5, FUNC = 6, EQUATION = 7;
+    private static final Expr[] NO_CHILDREN = new Expr[0];
+
+    /**
+     * 正規化表のキー（子は参照で比較する）
+     */
+    private static final class Key {
+        final int kind;
+        final long bits;       // Num: doubleToLongBits
+        final String name;     // Sym / Func の名前
+        final Expr[] children; // 正規化済みの子
+        final int hash;
+
+        Key(int kind, long bits, String name, Expr[] children) {
+            this.kind = kind;
+            this.bits = bits;
+            this.name = name;
+            this.children = children;
+            int h = kind * 31 + Long.hashCode(bits);
+            h = h * 31 + (name != null ? name.hashCode() : 0);
+            for (Expr c : children) h = h * 31 + c.info().hash;
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            if (hash != k.hash || kind != k.kind || bits != k.bits || !Objects.equals(name, k.name)) return false;
+            if (children.length != k.children.length) return false;
+            for (int i = 0; i < children.length; i++) {
+                if (children[i] != k.children[i]) return false;
+            }
+            return true;
+        }
+    }
+
+    private final Map<Key, Expr> table = new HashMap<>();
+    // 正規化済みノード（参照で比べる）
+    private final Set<Expr> canonical = Collections.newSetFromMap(new IdentityHashMap<>());
+    private long requests;
+
+    @Override
+    public synchronized Expr num(double value) {
+        // -0.0と0.0、NaNのビット表現の違いも区別する（評価結果が変わりうるため）
+        return lookup(NUM, Double.doubleToRawLongBits(value), null, NO_CHILDREN, () -> new Num(value));
+    }
+
+    @Override
+    public synchronized Expr sym(String name) {
+        return lookup(SYM, 0, name, NO_CHILDREN, () -> new Sym(name));
+    }
+
+    @Override
+    public synchronized Expr add(List<Expr> args) {
+        Expr[] c = canonicalChildren(args);
+        return lookup(ADD, 0, null, c, () -> new Add(Arrays.asList(c)));
+    }
+
+    @Override
+    public synchronized Expr mul(List<Expr> args) {
+        Expr[] c = canonicalChildren(args);
+        return lookup(MUL, 0, null, c, () -> new Mul(Arrays.asList(c)));
+    }
+
+    @Override
+    public synchronized Expr div(List<Expr> args) {
+        Expr[] c = canonicalChildren(args);
+        return lookup(DIV, 0, null, c, () -> new Div(Arrays.asList(c)));
+    }
+
+    @Override
+    public synchronized Expr pow(List<Expr> args) {
+        Expr[] c = canonicalChildren(args);
+        return lookup(POW, 0, null, c, () -> new Pow(Arrays.asList(c)));
+    }
+
+    @Override
+    public synchronized Expr func(String name, List<Expr> args) {
+        Expr[] c = canonicalChildren(args);
+        return lookup(FUNC, 0, name, c, () -> new Func(name, Arrays.asList(c)));
+    }
+
+    @Override
+    public synchronized Expr equation(List<Expr> args) {
+        Expr[] c = canonicalChildren(args);
+        return lookup(EQUATION, 0, null, c, () -> new Equation(Arrays.asList(c)));
+    }
+
+    /**
+     * 任意のASTを正規化する（このファクトリ以外で作った木を取り込むとき用）
+     */
+    public synchronized Expr intern(Expr e) {
+        if (canonical.contains(e)) return e;
+        return e.accept(interner);
+    }
+
+    private final ExprVisitor<Expr> interner = new ExprVisitor<Expr>() {
+        @Override
+        public Expr visitNum(Num n) {
+            return num(n.value);
+        }
+
+        @Override
+        public Expr visitSym(Sym s) {
+            return sym(s.name);
+        }
+
+        @Override
+        public Expr visitAdd(Add a) {
+            return add(a.args);
+        }
+
+        @Override
+        public Expr visitMul(Mul m) {
+            return mul(m.args);
+        }
+
+        @Override
+        public Expr visitDiv(Div d) {
+            return div(List.of(d.getLeft(), d.getRight()));
+        }
+
+        @Override
+        public Expr visitPow(Pow p) {
+            return pow(List.of(p.getBase(), p.getExp()));
+        }
+
+        @Override
+        public Expr visitFunc(Func f) {
+            return func(f.getName(), f.getArgs());
+        }
+
+        @Override
+        public Expr visitEquation(Equation q) {
+            return equation(List.of(q.getLeft(), q.getRight()));
+        }
+    };
+
+    /**
+     * 正規化済みノードの構造ハッシュ
+     */
+    public synchronized int structuralHash(Expr node) {
+        if (!canonical.contains(node)) throw new IllegalArgumentException("このファクトリで作られたノードではありません");
+        return node.info().hash;
+    }
+
+    /**
+     * 表に登録されている異なる部分木の数
+     */
+    public synchronized int size() {
+        return table.size();
+    }
+
+    /**
+     * ノードの要求回数（そのうちsize()個だけが実際に作られた）
+     */
+    public synchronized long requests() {
+        return requests;
+    }
+
+    private Expr[] canonicalChildren(List<Expr> args) {
+        Expr[] c = new Expr[args.size()];
+        for (int i = 0; i < c.length; i++) c[i] = intern(args.get(i));
+        return c;
+    }
+
+    private Expr lookup(int kind, long bits, String name, Expr[] children, Supplier<Expr> create) {
+        requests++;
+        Key key = new Key(kind, bits, name, children);
+        Expr e = table.get(key);
+        if (e == null) {
+            e = create.get();
+            table.put(key, e);
+            canonical.add(e);
+        }
+        return e;
+    }
+}
@@ -0,0 +1,314 @@
+package ast;
+
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * 閉区間 [lo, hi]（Expr.evalIntervalの結果）
+ *
+ * 区間は、変数が範囲内のどの値をとってもBoundExpr（StackProgram）の評価が返しうる値（NaN以外）をすべて含む。
+ * 浮動小数点の丸めは単調で、Math.sinなどの関数も半単調（semi-monotonic）なので、
+ * 端点での計算値をそのまま使えば外側への丸めなしで保証付きの包含になる。
+ * 範囲内に値が1つもない場合（定義域の外など）は空区間（lo, hiともにNaN）。
+ *
+ * continuousがtrueなら、範囲内のすべての点で評価は例外を出さずに有限の値を返し、値は連続に変化する。
+ * falseの場合は、ゼロ除算・定義域の外・極（tanなど）・オーバーフローのどれかがありうる。
+ */
+public final class Interval {
+
+    public static final Interval EMPTY = new Interval(Double.NaN, Double.NaN, false);
+    public static final Interval ENTIRE = new Interval(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, false);
+
+    private static final double TWO_PI = 2.0 * Math.PI;
+
+    public final double lo;
+    public final double hi;
+    public final boolean continuous;
+
+    private Interval(double lo, double hi, boolean continuous) {
+        this.lo = lo;
+        this.hi = hi;
+        this.continuous = continuous;
+    }
+
+    /**
+     * [lo, hi]（両端が有限なら連続として扱う）
+     */
+    public static Interval of(double lo, double hi) {
+        return of(lo, hi, true);
+    }
+
+    /**
+     * [lo, hi]（端が無限大なら、continuousの指定によらず不連続として扱う）
+     */
+    public static Interval of(double lo, double hi, boolean continuous) {
+        if (Double.isNaN(lo) || Double.isNaN(hi) || lo > hi) {
+            throw new IllegalArgumentException("Invalid interval: [" + lo + ", " + hi + "]");
+        }
+        return new Interval(lo, hi, continuous && !Double.isInfinite(lo) && !Double.isInfinite(hi));
+    }
+
+    public static Interval point(double v) {
+        return Double.isNaN(v) ? EMPTY : of(v, v);
+    }
+
+    public boolean isEmpty() {
+        return Double.isNaN(lo);
+    }
+
+    public boolean isPoint() {
+        return lo == hi;
+    }
+
+    public boolean contains(double v) {
+        return lo <= v && v <= hi;
+    }
+
+    public boolean containsZero() {
+        return lo <= 0.0 && 0.0 <= hi;
+    }
+
+    public double width() {
+        return isEmpty() ? 0.0 : hi - lo;
+    }
+
+    /**
+     * 両方を含む最小の区間
+     */
+    public Interval hull(Interval o) {
+        if (isEmpty()) return o;
+        if (o.isEmpty()) return this;
+        return of(Math.min(lo, o.lo), Math.max(hi, o.hi), continuous && o.continuous);
+    }
+
+    @Override
+    public String toString() {
+        if (isEmpty()) return "[]";
+        return "[" + lo + ", " + hi + "]" + (continuous ? "" : "?");
+    }
+
+    // ===== 四則演算 =====
+
+    public Interval add(Interval o) {
+        if (isEmpty() || o.isEmpty()) return EMPTY;
+        double l = lo + o.lo;
+        double h = hi + o.hi;
+        // -∞ + ∞ はNaNなので、その端は広げておく
+        return of(Double.isNaN(l) ? Double.NEGATIVE_INFINITY : l,
+                Double.isNaN(h) ? Double.POSITIVE_INFINITY : h, continuous && o.continuous);
+    }
+
+    public Interval sub(Interval o) {
+        return add(o.neg());
+    }
+
+    public Interval neg() {
+        if (isEmpty()) return EMPTY;
+        return new Interval(-hi, -lo, continuous);
+    }
+
+    public Interval mul(Interval o) {
+        if (isEmpty() || o.isEmpty()) return EMPTY;
+        return corners(lo * o.lo, lo * o.hi, hi * o.lo, hi * o.hi, continuous && o.continuous);
+    }
+
+    /**
+     * Divノードの割り算（0で割る点は例外になるので、値の範囲からは除く）
+     */
+    public Interval div(Interval o) {
+        if (isEmpty() || o.isEmpty()) return EMPTY;
+        if (o.lo == 0.0 && o.hi == 0.0) return EMPTY; // すべての点で例外
+        if (!o.containsZero()) {
+            return corners(lo / o.lo, lo / o.hi, hi / o.lo, hi / o.hi, continuous && o.continuous);
+        }
+        // 0を除いた残りは、0にいちばん近い正負のdoubleで割った値で押さえられる
+        Interval r = EMPTY;
+        if (o.lo < 0.0) r = r.hull(divNonzero(o.lo, -Double.MIN_VALUE));
+        if (o.hi > 0.0) r = r.hull(divNonzero(Double.MIN_VALUE, o.hi));
+        return new Interval(r.lo, r.hi, false);
+    }
+
+    private Interval divNonzero(double dl, double dh) {
+        return corners(lo / dl, lo / dh, hi / dl, hi / dh, false);
+    }
+
+    /**
+     * 1/x（sec・csc・cotが使う。0では例外ではなく±∞になる）
+     */
+    Interval reciprocal() {
+        if (isEmpty()) return EMPTY;
+        if (containsZero()) return ENTIRE;
+        return of(1.0 / hi, 1.0 / lo, continuous);
+    }
+
+    // ===== べき乗 =====
+
+    public Interval pow(Interval e) {
+        if (e.isEmpty()) return EMPTY;
+        Interval r = isEmpty() ? EMPTY : powNonEmpty(e);
+        // 底がNaNになる点でも、指数が0ならMath.powは1を返す
+        if (!continuous && e.containsZero() && !r.contains(1.0)) r = r.hull(of(1.0, 1.0, false));
+        return r;
+    }
+
+    private Interval powNonEmpty(Interval e) {
+        boolean cont = continuous && e.continuous;
+        if (e.isPoint() && isInteger(e.lo)) return powInt(e.lo, cont);
+        if (e.isPoint() && !Double.isInfinite(e.lo)) {
+            // 整数でない指数: 負の底はNaNなので、0以上の部分だけを見る（-∞だけは例外で値をもつ）
+            Interval r = EMPTY;
+            if (hi >= 0.0) {
+                double a = Math.pow(Math.max(lo, 0.0), e.lo);
+                double b = Math.pow(hi, e.lo);
+                r = of(Math.min(a, b), Math.max(a, b), cont && lo >= 0.0);
+            }
+            if (lo == Double.NEGATIVE_INFINITY) {
+                double v = Math.pow(lo, e.lo);
+                r = r.hull(of(v, v, false));
+            }
+            return r;
+        }
+        if (lo >= 0.0) {
+            // 底が0以上なら、底についても指数についても単調なので四隅で押さえられる
+            double l = lo + 0.0; // -0.0を+0.0にそろえる
+            double h = hi + 0.0;
+            Interval r = powCorners(Math.pow(l, e.lo), Math.pow(l, e.hi), Math.pow(h, e.lo), Math.pow(h, e.hi), cont);
+            // 底が-0.0で指数が負の奇数なら-∞になる（区間では0の符号を区別しない）
+            if (lo == 0.0 && e.lo < 0.0) r = of(Double.NEGATIVE_INFINITY, r.hi, false);
+            return r;
+        }
+        // 負の底は指数が整数の点でだけ値をもつ（符号は指数の偶奇による）ので、|底|^指数の範囲を正負に広げる
+        double m = Math.max(-lo, Math.max(hi, 0.0));
+        Interval abs = powCorners(Math.pow(0.0, e.lo), Math.pow(0.0, e.hi), Math.pow(m, e.lo), Math.pow(m, e.hi), false);
+        return of(Math.min(-abs.hi, abs.lo), abs.hi, false);
+    }
+
+    private Interval powInt(double n, boolean cont) {
+        if (n == 0.0) return of(1.0, 1.0, cont); // Math.pow(x, 0) は常に1
+        double pl = Math.pow(lo, n);
+        double ph = Math.pow(hi, n);
+        boolean even = isEven(n);
+        if (n > 0.0) {
+            if (!even || lo >= 0.0) return of(pl, ph, cont);
+            if (hi <= 0.0) return of(ph, pl, cont);
+            return of(0.0, Math.max(pl, ph), cont);
+        }
+        // 負の指数
+        if (lo > 0.0 || hi < 0.0) {
+            return of(Math.min(pl, ph), Math.max(pl, ph), cont);
+        }
+        // 0を含む: 0で±∞になる（-0.0もありうるので奇数乗は両側に広がる）
+        if (!even) return ENTIRE;
+        double finite = lo == 0.0 ? ph : hi == 0.0 ? pl : Math.min(pl, ph);
+        return of(finite, Double.POSITIVE_INFINITY, false);
+    }
+
+    // ===== 関数 =====
+
+    public Interval sqrt() {
+        if (isEmpty() || hi < 0.0) return EMPTY;
+        return of(Math.sqrt(Math.max(lo, 0.0)), Math.sqrt(hi), continuous && lo >= 0.0);
+    }
+
+    public Interval log() {
+        if (isEmpty() || hi < 0.0) return EMPTY;
+        return of(Math.log(Math.max(lo, 0.0)), Math.log(hi), continuous && lo > 0.0);
+    }
+
+    public Interval exp() {
+        if (isEmpty()) return EMPTY;
+        return of(Math.exp(lo), Math.exp(hi), continuous);
+    }
+
+    public Interval abs() {
+        if (isEmpty()) return EMPTY;
+        if (lo >= 0.0) return this;
+        if (hi <= 0.0) return neg();
+        return of(0.0, Math.max(-lo, hi), continuous);
+    }
+
+    public Interval sin() {
+        // 最大は π/2 + 2kπ、最小は -π/2 + 2kπ
+        return periodic(Math::sin, 0.5 * Math.PI, -0.5 * Math.PI);
+    }
+
+    public Interval cos() {
+        // 最大は 2kπ、最小は π + 2kπ
+        return periodic(Math::cos, 0.0, Math.PI);
+    }
+
+    public Interval tan() {
+        if (isEmpty()) return EMPTY;
+        if (!finite() || hi - lo >= Math.PI || containsPhase(0.5 * Math.PI, Math.PI)) return ENTIRE;
+        // 極と極の間では単調増加
+        return of(Math.tan(lo), Math.tan(hi), continuous);
+    }
+
+    private Interval periodic(DoubleUnaryOperator f, double maxAt, double minAt) {
+        if (isEmpty()) return EMPTY;
+        if (!finite()) return of(-1.0, 1.0, false); // sin(±∞) はNaN
+        if (hi - lo >= TWO_PI) return of(-1.0, 1.0, continuous);
+        double a = f.applyAsDouble(lo);
+        double b = f.applyAsDouble(hi);
+        double l = Math.min(a, b);
+        double h = Math.max(a, b);
+        // 極値の点を含まなければ単調なので、端点の値で押さえられる
+        if (containsPhase(maxAt, TWO_PI)) h = 1.0;
+        if (containsPhase(minAt, TWO_PI)) l = -1.0;
+        return of(l, h, continuous);
+    }
+
+    /**
+     * phase + k * period（kは整数）の形の点を含むかもしれないか
+     * πの丸め誤差（|x|の2^-52倍程度）より十分広い余裕をとって、含む側に倒す
+     */
+    private boolean containsPhase(double phase, double period) {
+        double margin = 1e-12 * Math.max(1.0, Math.max(Math.abs(lo), Math.abs(hi)));
+        double k = Math.ceil((lo - margin - phase) / period);
+        return phase + k * period <= hi + margin;
+    }
+
+    // ===== 補助 =====
+
+    private boolean finite() {
+        return !Double.isInfinite(lo) && !Double.isInfinite(hi);
+    }
+
+    /**
+     * 4つの候補を含む区間（積・商）
+     * 0×∞ や ∞/∞ のNaNは、その近くの有限の点では0（有限×0、有限/∞）になりうるので0に置き換える。
+     */
+    private static Interval corners(double a, double b, double c, double d, boolean continuous) {
+        return corners(a, b, c, d, continuous, 0.0);
+    }
+
+    /**
+     * べき乗の4つの候補を含む区間
+     * 1^±∞ のNaNは、その近くの有限の指数では1になるので1に置き換える。
+     */
+    private static Interval powCorners(double a, double b, double c, double d, boolean continuous) {
+        return corners(a, b, c, d, continuous, 1.0);
+    }
+
+    private static Interval corners(double a, double b, double c, double d, boolean continuous, double nanValue) {
+        double l = Double.POSITIVE_INFINITY;
+        double h = Double.NEGATIVE_INFINITY;
+        for (double v : new double[] {a, b, c, d}) {
+            if (Double.isNaN(v)) {
+                v = nanValue;
+                continuous = false;
+            }
+            if (v < l) l = v;
+            if (v > h) h = v;
+        }
+        return of(l, h, continuous);
+    }
+
+    private static boolean isInteger(double v) {
+        return !Double.isInfinite(v) && v == Math.rint(v);
+    }
+
+    private static boolean isEven(double v) {
+        // 2^53以上のdoubleはすべて偶数
+        return Math.abs(v) >= 0x1p53 || ((long) v & 1L) == 0;
+    }
+}
@@ -0,0 +1,415 @@
+package ast;
+
+import java.util.*;
+
+/**
+ * 数値的な極限の計算
+ *
+ * 収束先aに近づく点列（有限のaなら a±h/2^k、無限大なら ±2^k）で式を評価し、
+ * Richardson補外とWynnのε算法のうち誤差の見積もりが小さいほうで極限を推定する。
+ * 有限のaでは左右から別々に推定し、一致しなければSIDES_DIFFERとしてNaNを返す。
+ *
+ * 式の評価回数はmaxEvaluationsで打ち切る（既定200回）。
+ * 点列はBoundExpr.evalBatchでまとめて評価し、極限の変数だけをスロット上で動かす
+ * （Symのグローバルコンテキストを書き換えることはない）。
+ * 途中の点で例外が出た場合（ゼロ除算など）、その点は値なし（NaN）として扱う。
+ * limitの中にlimitがある場合、内側は外側の点ごとに評価するので回数は掛け算になる。
+ */
+public final class LimitEvaluator {
+
+    /**
+     * 推定の結果の種類
+     */
+    public enum Status {
+        CONVERGED,      // 有限の値に収束した
+        DIVERGES,       // ±∞に発散する（valueは±Infinity）
+        SIDES_DIFFER,   // 左右の極限が一致しない（valueはNaN）
+        NOT_CONVERGED,  // 評価回数の上限までに収束を確認できなかった（valueは最良の推定値）
+        UNDEFINED       // 近づく点で値が得られなかった（valueはNaN）
+    }
+
+    public static final class Result {
+        public final double value;
+        public final Status status;
+        public final double errorEstimate;
+        public final int evaluations;
+
+        Result(double value, Status status, double errorEstimate, int evaluations) {
+            this.value = value;
+            this.status = status;
+            this.errorEstimate = errorEstimate;
+            this.evaluations = evaluations;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s value=%s err=%.3g evals=%d", status, value, errorEstimate, evaluations);
+        }
+    }
+
+    public static final LimitEvaluator DEFAULT = new LimitEvaluator(200, 1e-8);
+
+    // 片側の点の数の上限（これ以上小さいhでは桁落ちが目立つ）
+    private static final int MAX_POINTS_PER_SIDE = 24;
+    // Richardson補外で消去する項の数の上限（大きくすると丸め誤差が増幅される）
+    private static final int MAX_ORDER = 8;
+
+    private final int maxEvaluations;
+    private final double tolerance;
+
+    /**
+     * @param maxEvaluations 式を評価する回数の上限（左右の合計）
+     * @param tolerance 収束と判定する相対誤差
+     */
+    public LimitEvaluator(int maxEvaluations, double tolerance) {
+        if (maxEvaluations < 8) throw new IllegalArgumentException("maxEvaluations must be >= 8");
+        this.maxEvaluations = maxEvaluations;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * bodyのvarをtargetに近づけたときの極限（ほかの変数はSymのグローバルコンテキストの値）
+     */
+    public Result evaluate(Expr body, String var, double target) {
+        if (var == null) throw new IllegalArgumentException("limit variable is required");
+        VariableLayout layout = layoutWith(body, var);
+        BoundExpr f = BoundExpr.bind(body, layout);
+        return evaluate(f, layout.assignment(Sym.globalContext()), layout.slotOf(var), target);
+    }
+
+    /**
+     * 束縛済みの式の極限
+     * @param vars 変数の値（slotの要素は評価中に書き換える）
+     * @param slot 極限をとる変数のスロット
+     */
+    public Result evaluate(BoundExpr f, double[] vars, int slot, double target) {
+        if (Double.isNaN(target)) return new Result(Double.NaN, Status.UNDEFINED, Double.NaN, 0);
+        if (Double.isInfinite(target)) {
+            int n = Math.min(MAX_POINTS_PER_SIDE, maxEvaluations);
+            double[] xs = new double[n];
+            double sign = Math.signum(target);
+            for (int k = 0; k < n; k++) xs[k] = sign * Math.scalb(1.0, k);
+            double[] s = sample(f, vars, slot, xs);
+            return side(s).toResult(n);
+        }
+
+        int n = Math.min(MAX_POINTS_PER_SIDE, maxEvaluations / 2);
+        // 刻みはtargetの大きさに合わせた2のべき乗から始める（a±hが丸めで潰れないように）
+        double h0 = Math.scalb(1.0, Math.getExponent(Math.max(1.0, Math.abs(target))) - 3);
+        double[] right = new double[n];
+        double[] left = new double[n];
+        for (int k = 0; k < n; k++) {
+            double h = Math.scalb(h0, -k);
+            right[k] = target + h;
+            left[k] = target - h;
+        }
+        Side r = side(sample(f, vars, slot, right));
+        Side l = side(sample(f, vars, slot, left));
+        int evals = 2 * n;
+
+        // 片側でしか値が得られない（sqrt(x) の x→0 など）なら、その側の結果を使う
+        if (l.status == Status.UNDEFINED) return r.toResult(evals);
+        if (r.status == Status.UNDEFINED) return l.toResult(evals);
+
+        if (l.status == Status.DIVERGES || r.status == Status.DIVERGES) {
+            if (l.status == r.status && l.value == r.value) return r.toResult(evals);
+            return new Result(Double.NaN, Status.SIDES_DIFFER, Double.NaN, evals);
+        }
+        double err = Math.max(l.error, r.error);
+        if (Math.abs(l.value - r.value) > Math.max(err, tolerance) * 10 * Math.max(1.0, Math.abs(r.value))) {
+            Status st = l.status == Status.CONVERGED && r.status == Status.CONVERGED
+                    ? Status.SIDES_DIFFER : Status.NOT_CONVERGED;
+            return new Result(st == Status.SIDES_DIFFER ? Double.NaN : r.value, st, err, evals);
+        }
+        Side best = l.error < r.error ? l : r;
+        Status st = l.status == Status.CONVERGED && r.status == Status.CONVERGED
+                ? Status.CONVERGED : Status.NOT_CONVERGED;
+        return new Result(best.value, st, err, evals);
+    }
+
+    /**
+     * 点列をまとめて評価する（例外を出さないモードで評価し、例外になるはずの点はNaNにする）
+     * 収束値の近くでは0/0になりやすいので、例外を投げて捕まえるより軽い。
+     */
+    private static double[] sample(BoundExpr f, double[] vars, int slot, double[] xs) {
+        double[] out = new double[xs.length];
+        int[] errors = new int[xs.length];
+        f.evalBatch(vars, slot, xs, out, errors);
+        for (int k = 0; k < xs.length; k++) {
+            if ((errors[k] & EvalStatus.THROWING) != 0) out[k] = Double.NaN;
+        }
+        return out;
+    }
+
+    /**
+     * 片側の推定結果
+     */
+    private static final class Side {
+        final double value;
+        final Status status;
+        final double error;
+
+        Side(double value, Status status, double error) {
+            this.value = value;
+            this.status = status;
+            this.error = error;
+        }
+
+        Result toResult(int evals) {
+            return new Result(value, status, error, evals);
+        }
+    }
+
+    /**
+     * 点列 s_k（刻みが1/2ずつ小さくなる）から極限を推定する
+     */
+    private Side side(double[] s) {
+        // 末尾から続く有限の値だけを使う（途中で定義域に入る場合など）
+        int end = s.length;
+        while (end > 0 && Double.isNaN(s[end - 1])) end--;
+        if (end == 0) return new Side(Double.NaN, Status.UNDEFINED, Double.NaN);
+        double last = s[end - 1];
+        if (Double.isInfinite(last)) return new Side(last, Status.DIVERGES, 0.0);
+        int start = end - 1;
+        while (start > 0 && Double.isFinite(s[start - 1])) start--;
+        double[] seq = Arrays.copyOfRange(s, start, end);
+        if (seq.length < 3) return new Side(last, Status.NOT_CONVERGED, Double.NaN);
+
+        // 発散を先に調べる（ε算法は 2^k のような等比数列に対して「反極限」の0を返してしまう）
+        double dir = divergence(seq);
+        if (dir != 0) return new Side(dir, Status.DIVERGES, 0.0);
+
+        double[] rich = richardson(seq);
+        double[] wynn = wynn(seq);
+        double[] best = wynn[1] < rich[1] ? wynn : rich;
+        double scale = Math.max(1.0, Math.abs(best[0]));
+        if (best[1] <= tolerance * scale) {
+            return new Side(best[0], Status.CONVERGED, best[1]);
+        }
+        return new Side(best[0], Status.NOT_CONVERGED, best[1]);
+    }
+
+    /**
+     * Richardson補外（誤差が h, h^2, ... の級数と仮定。hは1/2ずつ小さくなる）
+     * @return {推定値, 誤差の見積もり}
+     */
+    private static double[] richardson(double[] s) {
+        int n = s.length;
+        double[] prev = s.clone();
+        double bestValue = s[n - 1];
+        double bestErr = Math.abs(s[n - 1] - s[n - 2]);
+        double factor = 1.0;
+        for (int j = 1; j <= MAX_ORDER && j < n; j++) {
+            factor *= 2.0;
+            double[] cur = new double[n];
+            for (int k = j; k < n; k++) {
+                cur[k] = prev[k] + (prev[k] - prev[k - 1]) / (factor - 1.0);
+            }
+            // この次数の最後の2つの差を誤差とみなす
+            for (int k = j + 1; k < n; k++) {
+                double err = Math.max(Math.abs(cur[k] - cur[k - 1]), Math.abs(cur[k] - prev[k]));
+                if (err < bestErr) {
+                    bestErr = err;
+                    bestValue = cur[k];
+                }
+            }
+            prev = cur;
+        }
+        return new double[] {bestValue, bestErr};
+    }
+
+    /**
+     * Wynnのε算法（収束の速さの次数が分からない列にも効く）
+     * @return {推定値, 誤差の見積もり}
+     */
+    private static double[] wynn(double[] s) {
+        int n = s.length;
+        double[] prevPrev = new double[n + 1]; // ε_{-1} = 0
+        double[] prev = s.clone();             // ε_0 = s
+        double bestValue = s[n - 1];
+        double bestErr = Math.abs(s[n - 1] - s[n - 2]);
+        for (int j = 1; j < n; j++) {
+            double[] cur = new double[n - j];
+            for (int k = 0; k < n - j; k++) {
+                double diff = prev[k + 1] - prev[k];
+                if (diff == 0.0) {
+                    // 列がすでに一定（偶数列ならそれが極限。奇数列ならこれ以上は求まらない）
+                    return (j - 1) % 2 == 0 ? new double[] {prev[k + 1], 0.0} : new double[] {bestValue, bestErr};
+                }
+                cur[k] = prevPrev[k + 1] + 1.0 / diff;
+            }
+            // 偶数列が極限の推定値
+            if (j % 2 == 0 && cur.length >= 2) {
+                double v = cur[cur.length - 1];
+                double err = Math.abs(v - cur[cur.length - 2]);
+                if (Double.isFinite(v) && err < bestErr) {
+                    bestErr = err;
+                    bestValue = v;
+                }
+            }
+            prevPrev = prev;
+            prev = cur;
+        }
+        return new double[] {bestValue, bestErr};
+    }
+
+    /**
+     * 列が一方向に増え続けているなら±∞、そうでなければ0
+     * （末尾の4点が同じ向きに動き、変化が小さくなっていない場合）
+     */
+    private static double divergence(double[] s) {
+        int n = s.length;
+        if (n < 5) return 0;
+        double d1 = s[n - 3] - s[n - 4];
+        double d2 = s[n - 2] - s[n - 3];
+        double d3 = s[n - 1] - s[n - 2];
+        if (d1 == 0 || Math.signum(d1) != Math.signum(d2) || Math.signum(d2) != Math.signum(d3)) return 0;
+        if (Math.abs(d2) < 0.9 * Math.abs(d1) || Math.abs(d3) < 0.9 * Math.abs(d2)) return 0;
+        return d3 > 0 ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY;
+    }
+
+    // ===== limitノードから使う =====
+
+    /**
+     * 1つのlimitノードの評価に必要なもの（式の束縛と動かす変数のスロット）
+     */
+    static final class Site {
+        final BoundExpr body;
+        final int slot; // 動かす変数がなければ-1
+        final String var; // 動かす変数（なければnull）
+        private final List<String> outer;
+        // 呼び出し側の変数名 → その変数についての導関数のSite（StackProgram.evalDualが使う）
+        private final Map<String, Optional<Site>> derivatives = new java.util.concurrent.ConcurrentHashMap<>();
+        // 直前の入力と結果（外側のlimitの点列や、xによらない式の一括評価では同じ入力で何度も呼ばれる）
+        private volatile Memo last;
+        // 動かす変数についての導関数のSite（収束値が動くときにStackProgram.evalDualが使う）
+        private volatile Site pointDerivative;
+
+        /**
+         * @param outer 呼び出し側の変数の並び（bodyの変数はすべて含むこと。varはなくてよい）
+         */
+        Site(Expr body, String var, List<String> outer) {
+            VariableLayout layout = layoutWith(outer, var);
+            this.body = BoundExpr.bind(body, layout);
+            this.var = var;
+            this.outer = outer;
+            // varがbodyに現れなければ値は変わらないので、1回だけ評価する
+            boolean moves = var != null && body.info().uses(var);
+            this.slot = moves ? layout.slotOf(var) : -1;
+        }
+
+        /**
+         * @param vars 呼び出し側の変数の値（outerの順。書き換えない）
+         */
+        double eval(double[] vars, double target) {
+            return eval(vars, target, null);
+        }
+
+        /**
+         * 収束を確認できなかった・左右の極限が違うときはNaN
+         * @param status nullでなければ、そのときにLIMIT_NOT_CONVERGEDを立てる（前の内容は消さない）
+         */
+        double eval(double[] vars, double target, EvalStatus status) {
+            double[] v = Arrays.copyOf(vars, body.layout().size());
+            if (slot >= 0) v[slot] = 0.0; // 評価中に上書きするので、入力の比較には含めない
+            Memo m = last;
+            if (m == null || Double.compare(m.target, target) != 0 || !Arrays.equals(m.vars, v)) {
+                double[] key = v.clone();
+                m = evalUncached(key, v, target);
+                last = m;
+            }
+            if (status != null) status.flags |= m.flags;
+            return m.value;
+        }
+
+        /**
+         * 呼び出し側の変数nameで微分したlimitのSite（Differentiatorと同じく式の導関数の極限）
+         * nameが極限をとる変数なら、微分係数は0なのでnull
+         */
+        Site derivative(String name) {
+            if (name.equals(var)) return null;
+            return derivatives.computeIfAbsent(name,
+                    n -> Optional.of(new Site(Differentiator.derivative(body.expr(), n), var, outer))).orElse(null);
+        }
+
+        /**
+         * 式を動かす変数で微分したlimitのSite（収束値を動かしたときの変化率。Differentiatorと同じ）
+         * 式が動かす変数によらなければnull
+         */
+        Site pointDerivative() {
+            if (slot < 0) return null;
+            Site s = pointDerivative;
+            if (s == null) {
+                s = new Site(Differentiator.derivative(body.expr(), var), var, outer);
+                pointDerivative = s;
+            }
+            return s;
+        }
+
+        private Memo evalUncached(double[] key, double[] v, double target) {
+            if (slot < 0) {
+                // 定数の極限も、点列で評価したときと同じ規則にそろえる（簡約で変数が消えても値が変わらないように）
+                if (Double.isNaN(target)) return new Memo(key, target, Double.NaN, 0);
+                EvalStatus status = new EvalStatus();
+                double value = body.eval(v, body.newStack(), status);
+                return new Memo(key, target, (status.flags() & EvalStatus.THROWING) != 0 ? Double.NaN : value, 0);
+            }
+            Result r = DEFAULT.evaluate(body, v, slot, target);
+            // 最良の推定値は振動する式（sin(1/x) の x→0 など）でもそれらしい値になるので、値としては使わない
+            if (r.status == Status.NOT_CONVERGED || r.status == Status.SIDES_DIFFER) {
+                return new Memo(key, target, Double.NaN, EvalStatus.LIMIT_NOT_CONVERGED);
+            }
+            return new Memo(key, target, r.value, 0);
+        }
+    }
+
+    private static final class Memo {
+        final double[] vars;
+        final double target;
+        final double value;
+        final int flags; // EvalStatusのビット
+
+        Memo(double[] vars, double target, double value, int flags) {
+            this.vars = vars;
+            this.target = target;
+            this.value = value;
+            this.flags = flags;
+        }
+    }
+
+    /**
+     * limitで動かす変数（limit(v, a, f) なら v。limit(a, f) なら f に x があれば x、変数が1つならそれ）
+     * 動かす変数がなければnull
+     */
+    static String variableOf(Func limit) {
+        List<Expr> args = limit.getArgs();
+        if (args.size() == 3 && args.get(0) instanceof Sym && ((Sym) args.get(0)).name != null) {
+            String name = ((Sym) args.get(0)).name;
+            return name.equals("theta") ? "θ" : name;
+        }
+        return implicitVariableOf(limit.getLimitBody());
+    }
+
+    /**
+     * 2引数の形で動かす変数（xがあればx、変数が1つだけならそれ、それ以外はnull）
+     */
+    static String implicitVariableOf(Expr body) {
+        List<String> vars = body.info().variableNames();
+        if (vars.contains("x")) return "x";
+        return vars.size() == 1 ? vars.get(0) : null;
+    }
+
+    /**
+     * bodyの変数にvarを加えた並び（varがなければ末尾に足す）
+     */
+    static VariableLayout layoutWith(Expr body, String var) {
+        return layoutWith(VariableLayout.of(body).names(), var);
+    }
+
+    static VariableLayout layoutWith(List<String> names, String var) {
+        if (var == null || names.contains(var)) return VariableLayout.of(names);
+        List<String> all = new ArrayList<>(names);
+        all.add(var);
+        return VariableLayout.of(all);
+    }
+}
@@ -2,12 +2,35 @@ package ast;
 
 import java.util.List;
 
-public class Mul implements Expr {
+public final class Mul implements Expr {
     public final List<Expr> args;
-    public Mul(List<Expr> args) { this.args = args; }
+    private final ExprInfo info;
+    public Mul(List<Expr> args) {
+        this.args = List.copyOf(args);
+        this.info = ExprInfo.of(ExprInfo.MUL, 0, this.args);
+    }
     @Override public double eval(double x) {
         double p = 1;
         for (Expr e : args) p *= e.eval(x);
         return p;
     }
+    @Override public Interval evalInterval(VariableLayout layout, Interval[] ranges) {
+        Interval p = Interval.point(1.0);
+        for (Expr e : args) p = p.mul(e.evalInterval(layout, ranges));
+        return p;
+    }
+    @Override public void evalBatch(double[] xs, int xOff, double[] out, int outOff, int len) {
+        java.util.Arrays.fill(out, outOff, outOff + len, 1.0);
+        double[] t = BatchScratch.acquire();
+        try {
+            for (Expr e : args) {
+                e.evalBatch(xs, xOff, t, 0, len);
+                for (int i = 0; i < len; i++) out[outOff + i] *= t[i];
+            }
+        } finally {
+            BatchScratch.release(t);
+        }
+    }
+    @Override public ExprInfo info() { return info; }
+    @Override public <R> R accept(ExprVisitor<R> visitor) { return visitor.visitMul(this); }
 }
@@ -1,7 +1,17 @@
 package ast;
 
-public class Num implements Expr {
+public final class Num implements Expr {
     public final double value;
-    public Num(double value) { this.value = value; }
+    private final ExprInfo info;
+    public Num(double value) {
+        this.value = value;
+        this.info = ExprInfo.num(value);
+    }
     @Override public double eval(double x) { return value; }
+    @Override public Interval evalInterval(VariableLayout layout, Interval[] ranges) { return Interval.point(value); }
+    @Override public void evalBatch(double[] xs, int xOff, double[] out, int outOff, int len) {
+        java.util.Arrays.fill(out, outOff, outOff + len, value);
+    }
+    @Override public ExprInfo info() { return info; }
+    @Override public <R> R accept(ExprVisitor<R> visitor) { return visitor.visitNum(this); }
 }
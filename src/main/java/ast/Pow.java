@@ -2,9 +2,10 @@ package ast;
 
 import java.util.List;
 
-public class Pow implements Expr {
+public final class Pow implements Expr {
     private final Expr base;
     private final Expr exp;
+    private final ExprInfo info;
 
     public Pow(List<Expr> args) {
         if (args.size() != 2) {
@@ -12,6 +13,7 @@ public class Pow implements Expr {
         }
         this.base = args.get(0);
         this.exp = args.get(1);
+        this.info = ExprInfo.of(ExprInfo.POW, 0, List.of(base, exp));
     }
 
     @Override
@@ -19,7 +21,34 @@ public class Pow implements Expr {
         return Math.pow(base.eval(x), exp.eval(x));
     }
 
+    @Override
+    public Interval evalInterval(VariableLayout layout, Interval[] ranges) {
+        return base.evalInterval(layout, ranges).pow(exp.evalInterval(layout, ranges));
+    }
+
+    @Override
+    public void evalBatch(double[] xs, int xOff, double[] out, int outOff, int len) {
+        double[] e = BatchScratch.acquire();
+        try {
+            base.evalBatch(xs, xOff, out, outOff, len);
+            exp.evalBatch(xs, xOff, e, 0, len);
+            for (int i = 0; i < len; i++) out[outOff + i] = Math.pow(out[outOff + i], e[i]);
+        } finally {
+            BatchScratch.release(e);
+        }
+    }
+
     // JSON変換用のgetter
     public Expr getBase() { return base; }
     public Expr getExp() { return exp; }
+
+    @Override
+    public ExprInfo info() {
+        return info;
+    }
+
+    @Override
+    public <R> R accept(ExprVisitor<R> visitor) {
+        return visitor.visitPow(this);
+    }
 }
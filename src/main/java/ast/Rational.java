@@ -0,0 +1,256 @@
+package ast;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * 既約分数（分母は正）
+ *
+ * 分子・分母がlongに収まる間はlongで計算し、あふれたときだけBigIntegerに切り替える。値は不変。
+ * 桁あふれは例外ではなく戻り値（OVERFLOW）で検出する（Math.multiplyExactの例外は、
+ * 何度も起きるとJITの最適化解除が繰り返されて非常に遅くなるため）。
+ */
+public final class Rational {
+
+    public static final Rational ZERO = new Rational(0, 1);
+    public static final Rational ONE = new Rational(1, 1);
+
+    // multiply/addの桁あふれ（Long.MIN_VALUEは正しい値としては使わない）
+    static final long OVERFLOW = Long.MIN_VALUE;
+
+    // bigNum == null なら num/den、そうでなければ bigNum/bigDen が値
+    private final long num;
+    private final long den;
+    private final BigInteger bigNum;
+    private final BigInteger bigDen;
+
+    private Rational(long num, long den) {
+        this.num = num;
+        this.den = den;
+        this.bigNum = null;
+        this.bigDen = null;
+    }
+
+    private Rational(BigInteger num, BigInteger den) {
+        this.num = 0;
+        this.den = 0;
+        this.bigNum = num;
+        this.bigDen = den;
+    }
+
+    public static Rational of(long n) {
+        if (n == Long.MIN_VALUE) return of(BigInteger.valueOf(n), BigInteger.ONE);
+        return new Rational(n, 1);
+    }
+
+    /**
+     * n / d（約分する。d = 0ならArithmeticException）
+     */
+    public static Rational of(long n, long d) {
+        if (d == 0) throw new ArithmeticException("division by zero");
+        if (d == Long.MIN_VALUE || n == Long.MIN_VALUE) {
+            return of(BigInteger.valueOf(n), BigInteger.valueOf(d));
+        }
+        if (d < 0) {
+            n = -n;
+            d = -d;
+        }
+        long g = gcd(Math.abs(n), d);
+        return new Rational(n / g, d / g);
+    }
+
+    public static Rational of(BigInteger n, BigInteger d) {
+        if (d.signum() == 0) throw new ArithmeticException("division by zero");
+        if (d.signum() < 0) {
+            n = n.negate();
+            d = d.negate();
+        }
+        BigInteger g = n.gcd(d);
+        if (!g.equals(BigInteger.ONE) && g.signum() != 0) {
+            n = n.divide(g);
+            d = d.divide(g);
+        }
+        // longに収まるならlongに戻す（以降の計算を速くするため）
+        if (n.bitLength() < 64 && d.bitLength() < 64 && n.longValue() != Long.MIN_VALUE) {
+            return new Rational(n.longValue(), d.longValue());
+        }
+        return new Rational(n, d);
+    }
+
+    /**
+     * 有限のdoubleを分数にする（書かれた10進表記どおりの値: 0.1は1/10）
+     * @throws ArithmeticException 無限大・NaNの場合
+     */
+    public static Rational of(double v) {
+        if (!Double.isFinite(v)) throw new ArithmeticException("not a finite number: " + v);
+        if (v == Math.rint(v) && Math.abs(v) < 0x1p53) return new Rational((long) v, 1);
+        BigDecimal d = new BigDecimal(Double.toString(v));
+        if (d.scale() <= 0) return of(d.toBigIntegerExact(), BigInteger.ONE);
+        return of(d.unscaledValue(), BigInteger.TEN.pow(d.scale()));
+    }
+
+    public boolean isBig() { return bigNum != null; }
+
+    public BigInteger numerator() { return bigNum != null ? bigNum : BigInteger.valueOf(num); }
+    public BigInteger denominator() { return bigDen != null ? bigDen : BigInteger.valueOf(den); }
+
+    public int signum() { return bigNum != null ? bigNum.signum() : Long.signum(num); }
+
+    public boolean isInteger() { return bigNum != null ? bigDen.equals(BigInteger.ONE) : den == 1; }
+
+    public Rational add(Rational o) {
+        if (bigNum == null && o.bigNum == null) {
+            long g = gcd(den, o.den);
+            long a = multiply(num, o.den / g);
+            long b = multiply(o.num, den / g);
+            long d = multiply(den / g, o.den);
+            if (a != OVERFLOW && b != OVERFLOW && d != OVERFLOW) {
+                long n = add(a, b);
+                if (n != OVERFLOW) return of(n, d);
+            }
+            // あふれたのでBigIntegerで計算し直す
+        }
+        return of(numerator().multiply(o.denominator()).add(o.numerator().multiply(denominator())),
+                denominator().multiply(o.denominator()));
+    }
+
+    public Rational subtract(Rational o) {
+        return add(o.negate());
+    }
+
+    public Rational multiply(Rational o) {
+        if (bigNum == null && o.bigNum == null) {
+            // 先に交差で約分しておくと、結果がすでに既約になりあふれにくい
+            long g1 = gcd(Math.abs(num), o.den);
+            long g2 = gcd(Math.abs(o.num), den);
+            long n = multiply(num / g1, o.num / g2);
+            long d = multiply(den / g2, o.den / g1);
+            if (n != OVERFLOW && d != OVERFLOW) return new Rational(n, d);
+            // あふれたのでBigIntegerで計算し直す
+        }
+        return of(numerator().multiply(o.numerator()), denominator().multiply(o.denominator()));
+    }
+
+    /**
+     * this / o（o = 0ならArithmeticException）
+     */
+    public Rational divide(Rational o) {
+        if (o.signum() == 0) throw new ArithmeticException("division by zero");
+        return multiply(o.reciprocal());
+    }
+
+    public Rational negate() {
+        if (bigNum == null && num != Long.MIN_VALUE) return new Rational(-num, den);
+        return of(numerator().negate(), denominator());
+    }
+
+    private Rational reciprocal() {
+        if (bigNum == null) return of(den, num);
+        return of(bigDen, bigNum);
+    }
+
+    /**
+     * 整数乗（0の負の整数乗はArithmeticException）
+     */
+    public Rational pow(int n) {
+        if (n < 0) {
+            if (signum() == 0) throw new ArithmeticException("division by zero");
+            return reciprocal().pow(-n);
+        }
+        Rational result = ONE;
+        Rational base = this;
+        while (n > 0) {
+            if ((n & 1) != 0) result = result.multiply(base);
+            n >>= 1;
+            if (n > 0) base = base.multiply(base);
+        }
+        return result;
+    }
+
+    /**
+     * 分子・分母のビット数の大きいほう（べき乗の結果が大きくなりすぎないか見積もる用）
+     */
+    public int bitLength() {
+        if (bigNum == null) return 64 - Long.numberOfLeadingZeros(Math.max(Math.abs(num), den));
+        return Math.max(bigNum.bitLength(), bigDen.bitLength());
+    }
+
+    /**
+     * 最も近いdouble
+     */
+    public double doubleValue() {
+        if (bigNum == null) {
+            // 2^53以下なら変換は正確で、割り算1回の丸めだけになる
+            if (Math.abs(num) <= (1L << 53) && den <= (1L << 53)) return (double) num / den;
+        }
+        if (signum() == 0) return 0.0;
+        // 商を66ビット以上にし、余りを最下位ビットに残してから1回だけ丸める
+        BigInteger n = numerator().abs();
+        BigInteger d = denominator();
+        int shift = 65 - (n.bitLength() - d.bitLength());
+        BigInteger[] qr = shift >= 0 ? n.shiftLeft(shift).divideAndRemainder(d) : n.divideAndRemainder(d.shiftLeft(-shift));
+        BigInteger q = qr[0].shiftLeft(1);
+        if (qr[1].signum() != 0) q = q.setBit(0);
+        double v = Math.scalb(q.doubleValue(), -shift - 1);
+        return signum() < 0 ? -v : v;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Rational)) return false;
+        Rational r = (Rational) o;
+        if (bigNum == null && r.bigNum == null) return num == r.num && den == r.den;
+        return numerator().equals(r.numerator()) && denominator().equals(r.denominator());
+    }
+
+    @Override
+    public int hashCode() {
+        return numerator().hashCode() * 31 + denominator().hashCode();
+    }
+
+    /**
+     * "n" または "n/d"
+     */
+    @Override
+    public String toString() {
+        if (bigNum == null) return den == 1 ? Long.toString(num) : num + "/" + den;
+        return bigDen.equals(BigInteger.ONE) ? bigNum.toString() : bigNum + "/" + bigDen;
+    }
+
+    /**
+     * a * b（あふれればOVERFLOW。a, bはOVERFLOWでないこと）
+     */
+    static long multiply(long a, long b) {
+        long lo = a * b;
+        return Math.multiplyHigh(a, b) == (lo >> 63) ? lo : OVERFLOW;
+    }
+
+    /**
+     * a + b（あふれればOVERFLOW。a, bはOVERFLOWでないこと）
+     */
+    static long add(long a, long b) {
+        long r = a + b;
+        return ((a ^ r) & (b ^ r)) < 0 ? OVERFLOW : r;
+    }
+
+    /**
+     * 最大公約数（a, b >= 0。両方0なら1を返して割り算で困らないようにする）
+     * 割り算の代わりにシフトと引き算を使う二進GCD（longの%は遅いため）
+     */
+    static long gcd(long a, long b) {
+        if (a == 0) return b == 0 ? 1 : b;
+        if (b == 0) return a;
+        int shift = Long.numberOfTrailingZeros(a | b);
+        a >>>= Long.numberOfTrailingZeros(a);
+        while (b != 0) {
+            b >>>= Long.numberOfTrailingZeros(b);
+            if (a > b) {
+                long t = a;
+                a = b;
+                b = t;
+            }
+            b -= a;
+        }
+        return a << shift;
+    }
+}
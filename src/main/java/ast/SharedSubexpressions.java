@@ -0,0 +1,215 @@
+package ast;
+
+import java.util.*;
+
+/**
+ * 木の中で構造が等しい部分木を見つける（StackCompilerの共通部分式の除去用）
+ *
+ * 各ノードに構造で決まる番号を振る（同じ種類・値・子の番号なら同じ番号）。
+ * HashConsingFactory.internと同じ考え方だが、ノードは作らず番号だけを数え、再帰も使わない。
+ * limitは収束値だけ、diffは子をたどらない（コードになる部分だけを見る）ので、この2つは参照ごとに別の番号にする。
+ *
+ * 2か所以上から使われる番号（葉を除く）は1度だけ計算して使い回す。
+ * 同じ引数のsinとcosが両方あれば組にして、引数を1度だけ計算する。
+ */
+final class SharedSubexpressions {
+
+    private static final int NUM = 0, SYM = 1, ADD = 2, MUL = 3, DIV = 4, POW = 5, FUNC = 6, EQUATION = 7;
+
+    /**
+     * 番号を振るためのキー（子は番号で比べる）
+     */
+    private static final class Key {
+        final int kind;
+        final long bits;
+        final String name;
+        final int[] children;
+        final int hash;
+
+        Key(int kind, long bits, String name, int[] children) {
+            this.kind = kind;
+            this.bits = bits;
+            this.name = name;
+            this.children = children;
+            int h = kind * 31 + Long.hashCode(bits);
+            h = h * 31 + (name != null ? name.hashCode() : 0);
+            this.hash = h * 31 + Arrays.hashCode(children);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return hash == k.hash && kind == k.kind && bits == k.bits && Objects.equals(name, k.name)
+                    && Arrays.equals(children, k.children);
+        }
+    }
+
+    private final Map<Expr, Integer> ids = new IdentityHashMap<>();
+    private final List<int[]> children = new ArrayList<>();
+    private final List<Boolean> leaves = new ArrayList<>();
+    private final int[] uses;
+    private final int[] partner;
+    private final long treeNodes;
+    private final int uniqueNodes;
+
+    private SharedSubexpressions(Expr root) {
+        Map<Key, Integer> table = new HashMap<>();
+        List<Expr> first = new ArrayList<>();
+        List<Integer> sinOf = new ArrayList<>();
+        List<Integer> cosOf = new ArrayList<>();
+
+        // 後順にたどって、子の番号が決まってから親の番号を決める
+        Deque<Expr> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Expr e = stack.peek();
+            if (ids.containsKey(e)) {
+                stack.pop();
+                continue;
+            }
+            List<Expr> cs = compiledChildren(e);
+            boolean ready = true;
+            for (Expr c : cs) {
+                if (!ids.containsKey(c)) {
+                    stack.push(c);
+                    ready = false;
+                }
+            }
+            if (!ready) continue;
+            stack.pop();
+
+            int[] childIds = new int[cs.size()];
+            for (int i = 0; i < childIds.length; i++) childIds[i] = ids.get(cs.get(i));
+            Key key = keyOf(e, childIds);
+            Integer id = key != null ? table.get(key) : null;
+            if (id == null) {
+                id = first.size();
+                first.add(e);
+                children.add(childIds);
+                leaves.add(e instanceof Num || e instanceof Sym);
+                sinOf.add(-1);
+                cosOf.add(-1);
+                if (key != null) table.put(key, id);
+                if (e instanceof Func && childIds.length == 1) {
+                    FuncKind k = ((Func) e).getKind();
+                    if (k == FuncKind.SIN && sinOf.get(childIds[0]) < 0) sinOf.set(childIds[0], id);
+                    if (k == FuncKind.COS && cosOf.get(childIds[0]) < 0) cosOf.set(childIds[0], id);
+                }
+            }
+            ids.put(e, id);
+        }
+
+        int n = first.size();
+        uniqueNodes = n;
+        uses = new int[n];
+        partner = new int[n];
+        Arrays.fill(partner, -1);
+        // 木としてのノード数（同じ部分木は出現するたびに数える）
+        long[] size = new long[n];
+        for (int id = 0; id < n; id++) {
+            size[id] = 1;
+            for (int c : children.get(id)) {
+                uses[c]++;
+                size[id] += size[c];
+            }
+        }
+        treeNodes = size[ids.get(root)];
+
+        // sin(a)とcos(a)の組: 片方を計算するときにもう片方も求めるので、aを使うのは1回になる
+        for (int a = 0; a < n; a++) {
+            int s = sinOf.get(a), c = cosOf.get(a);
+            if (s >= 0 && c >= 0) {
+                partner[s] = c;
+                partner[c] = s;
+                uses[a]--;
+            }
+        }
+    }
+
+    static SharedSubexpressions of(Expr root) {
+        return new SharedSubexpressions(root);
+    }
+
+    /**
+     * ノードの番号（たどっていないノードなら-1）
+     */
+    int id(Expr e) {
+        Integer id = ids.get(e);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * 1度計算して使い回すか（2か所以上から使われる葉でない部分木）
+     */
+    boolean shared(int id) {
+        return uses[id] >= 2 && !leaves.get(id);
+    }
+
+    /**
+     * 組になるsin/cosの番号（なければ-1）
+     */
+    int partner(int id) {
+        return partner[id];
+    }
+
+    /** 木としてのノード数 */
+    long treeNodes() { return treeNodes; }
+
+    /** 構造の異なる部分木の数 */
+    int uniqueNodes() { return uniqueNodes; }
+
+    /**
+     * StackCompilerがコードにする子（limitは収束値だけ。diffは導関数を展開するので子なし）
+     */
+    private static List<Expr> compiledChildren(Expr e) {
+        if (e instanceof Add) return ((Add) e).args;
+        if (e instanceof Mul) return ((Mul) e).args;
+        if (e instanceof Div) {
+            Div d = (Div) e;
+            return List.of(d.getLeft(), d.getRight());
+        }
+        if (e instanceof Pow) {
+            Pow p = (Pow) e;
+            return List.of(p.getBase(), p.getExp());
+        }
+        if (e instanceof Equation) {
+            Equation q = (Equation) e;
+            return List.of(q.getLeft(), q.getRight());
+        }
+        if (e instanceof Func) {
+            Func f = (Func) e;
+            if (f.getKind() == FuncKind.LIMIT) return List.of(f.getLimitPoint());
+            if (f.getKind() == FuncKind.DIFF || f.getKind() == null) return List.of(); // 未知の関数は木のまま評価する
+            return f.getArgs();
+        }
+        return List.of();
+    }
+
+    /**
+     * 構造のキー（参照ごとに別の番号にするノードならnull）
+     */
+    private static Key keyOf(Expr e, int[] childIds) {
+        if (e instanceof Num) {
+            // -0.0と0.0も区別する（評価結果が変わりうるため）
+            return new Key(NUM, Double.doubleToRawLongBits(((Num) e).value), null, childIds);
+        }
+        if (e instanceof Sym) return new Key(SYM, 0, ((Sym) e).name, childIds);
+        if (e instanceof Add) return new Key(ADD, 0, null, childIds);
+        if (e instanceof Mul) return new Key(MUL, 0, null, childIds);
+        if (e instanceof Div) return new Key(DIV, 0, null, childIds);
+        if (e instanceof Pow) return new Key(POW, 0, null, childIds);
+        if (e instanceof Equation) return new Key(EQUATION, 0, null, childIds);
+        if (e instanceof Func) {
+            Func f = (Func) e;
+            if (f.getKind() == FuncKind.LIMIT || f.getKind() == FuncKind.DIFF) return null;
+            return new Key(FUNC, 0, f.getName(), childIds);
+        }
+        return null;
+    }
+}
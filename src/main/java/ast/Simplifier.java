@@ -0,0 +1,395 @@
+package ast;
+
+import java.util.*;
+
+/**
+ * 定数畳み込みと代数的な簡約
+ *
+ * 既定（exact）では、簡約前と評価結果がビット単位で一致する書き換えだけを行う。
+ * 浮動小数点の加算・乗算は結合則が成り立たないので、次のように制限している。
+ *   - Add/Mulの平坦化は先頭の子だけ（a+b+c は Add(Add(a,b),c) なのでこれで平坦になる）
+ *   - 定数の畳み込みは、先頭から続く定数の並びと、すべての子が定数のノードだけ
+ *   - 0の足し算・1の掛け算は取り除く（x+0 や x*1 は x と一致する）
+ *   - Mul/Divの中の符号（-1倍・neg）は外に出して1つのnegにまとめる（丸めが符号について対称なため）
+ *   - 2のべき乗での割り算は逆数の掛け算にする（逆数が正確に表せるため）
+ *   - x^0 → 1、x^1 → x、変数の2乗 → x*x（Math.pow(x, 2.0) は x*x と一致する）
+ *   - sub(a, 定数) → Add(a, -定数)、neg(neg(a)) → a
+ * ゼロ除算のように評価時に例外になる部分木は、畳み込まずにそのまま残す。
+ * 例外が起きうる部分木を捨てる書き換え（x^0 など）も、その部分木が例外を出さない場合だけ行う。
+ *
+ * relaxedを指定すると、丸めや0の符号が変わりうる書き換えも行う
+ * （定数をすべてまとめる、x^0.5 → sqrt(x)、x*0 → 0 など）。
+ *
+ * 共有された部分木は1回だけ簡約する（結果も共有される）。
+ */
+public final class Simplifier {
+
+    private final boolean relaxed;
+    private final ExprFactory f;
+    private final Map<Expr, Expr> done = new IdentityHashMap<>();
+
+    /**
+     * @param relaxed 評価結果がわずかに変わりうる書き換えも行うか
+     * @param factory ノードの生成に使うファクトリ
+     */
+    public Simplifier(boolean relaxed, ExprFactory factory) {
+        this.relaxed = relaxed;
+        this.f = factory;
+    }
+
+    /**
+     * 評価結果を変えない簡約
+     */
+    public static Expr simplify(Expr e) {
+        return new Simplifier(false, ExprFactory.PLAIN).apply(e);
+    }
+
+    /**
+     * 丸めの違いを許す簡約
+     */
+    public static Expr simplifyRelaxed(Expr e) {
+        return new Simplifier(true, ExprFactory.PLAIN).apply(e);
+    }
+
+    public Expr apply(Expr e) {
+        Expr r = done.get(e);
+        if (r == null) {
+            r = simplifyNode(e);
+            done.put(e, r);
+        }
+        return r;
+    }
+
+    private Expr simplifyNode(Expr e) {
+        if (e instanceof Num) return e;
+        if (e instanceof Sym) {
+            String name = ((Sym) e).name;
+            if ("π".equals(name)) return f.num(Math.PI);
+            if ("e".equals(name)) return f.num(Math.E);
+            return e;
+        }
+        if (e instanceof Add) return simplifyAdd((Add) e);
+        if (e instanceof Mul) return simplifyMul((Mul) e);
+        if (e instanceof Div) return simplifyDiv((Div) e);
+        if (e instanceof Pow) return simplifyPow((Pow) e);
+        if (e instanceof Func) return simplifyFunc((Func) e);
+        if (e instanceof Equation) {
+            // 両辺を別々に簡約する（移項はしない）
+            Equation q = (Equation) e;
+            return f.equation(List.of(apply(q.getLeft()), apply(q.getRight())));
+        }
+        return e;
+    }
+
+    private Expr simplifyAdd(Add add) {
+        List<Expr> args = new ArrayList<>(add.args.size());
+        for (Expr a : add.args) args.add(apply(a));
+        return makeAdd(args);
+    }
+
+    /**
+     * 簡約済みの子からAddを作る
+     */
+    private Expr makeAdd(List<Expr> args) {
+        // 先頭の子がAddなら展開する: 0+(0+a+b)+c = 0+a+b+c
+        // （Addの値は-0.0にならないので、外側の「0+」は値を変えない）
+        while (!args.isEmpty() && args.get(0) instanceof Add) {
+            List<Expr> flat = new ArrayList<>(((Add) args.get(0)).args);
+            flat.addAll(args.subList(1, args.size()));
+            args = flat;
+        }
+        // 0の足し算を取り除く（部分和は-0.0にならないので、+0.0・-0.0どちらも値を変えない）
+        args.removeIf(a -> a instanceof Num && ((Num) a).value == 0.0);
+
+        if (relaxed) {
+            // 定数をすべてまとめて末尾に置く
+            double c = 0.0;
+            boolean any = false;
+            List<Expr> rest = new ArrayList<>(args.size());
+            for (Expr a : args) {
+                if (a instanceof Num) {
+                    c += ((Num) a).value;
+                    any = true;
+                } else {
+                    rest.add(a);
+                }
+            }
+            if (any && c != 0.0) rest.add(f.num(c));
+            if (rest.isEmpty()) return f.num(0.0);
+            if (rest.size() == 1) return rest.get(0);
+            return f.add(rest);
+        }
+
+        // 先頭から続く定数を1つにまとめる
+        int k = 0;
+        double s = 0.0;
+        while (k < args.size() && args.get(k) instanceof Num) {
+            s += ((Num) args.get(k)).value;
+            k++;
+        }
+        if (k == args.size()) return f.num(s);
+        if (k > 1) {
+            List<Expr> folded = new ArrayList<>(args.size() - k + 1);
+            folded.add(f.num(s));
+            folded.addAll(args.subList(k, args.size()));
+            args = folded;
+        }
+        // 1項だけのAddは残す（0+a は a が-0.0のとき+0.0になる）
+        return f.add(args);
+    }
+
+    private Expr simplifyMul(Mul mul) {
+        List<Expr> args = new ArrayList<>(mul.args.size());
+        for (Expr a : mul.args) args.add(apply(a));
+        return makeMul(args);
+    }
+
+    /**
+     * 簡約済みの子からMulを作る（符号は外に出す）
+     */
+    private Expr makeMul(List<Expr> args) {
+        // 先頭の子がMulなら展開する: 1*(1*a*b)*c = 1*a*b*c
+        while (!args.isEmpty() && args.get(0) instanceof Mul) {
+            List<Expr> flat = new ArrayList<>(((Mul) args.get(0)).args);
+            flat.addAll(args.subList(1, args.size()));
+            args = flat;
+        }
+        // 符号を外に出す: 丸めは符号について対称なので (-a)*b = -(a*b)
+        boolean negate = false;
+        for (int i = 0; i < args.size(); i++) {
+            Expr a = args.get(i);
+            if (a instanceof Num && !Double.isNaN(((Num) a).value) && isNegative(((Num) a).value)) {
+                args.set(i, f.num(-((Num) a).value));
+                negate = !negate;
+            } else if (isNeg(a)) {
+                args.set(i, ((Func) a).getArgs().get(0));
+                negate = !negate;
+            }
+        }
+        // 1の掛け算を取り除く
+        args.removeIf(a -> a instanceof Num && ((Num) a).value == 1.0);
+
+        Expr r;
+        if (relaxed) {
+            double c = 1.0;
+            List<Expr> rest = new ArrayList<>(args.size());
+            for (Expr a : args) {
+                if (a instanceof Num) c *= ((Num) a).value;
+                else rest.add(a);
+            }
+            if (c == 0.0 && !anyMayThrow(rest)) {
+                r = f.num(0.0);
+            } else {
+                if (c != 1.0) rest.add(0, f.num(c));
+                r = rest.isEmpty() ? f.num(1.0) : rest.size() == 1 ? rest.get(0) : f.mul(rest);
+            }
+        } else {
+            int k = 0;
+            double p = 1.0;
+            while (k < args.size() && args.get(k) instanceof Num) {
+                p *= ((Num) args.get(k)).value;
+                k++;
+            }
+            if (k == args.size()) {
+                r = f.num(p);
+            } else {
+                if (k > 1) {
+                    List<Expr> folded = new ArrayList<>(args.size() - k + 1);
+                    folded.add(f.num(p));
+                    folded.addAll(args.subList(k, args.size()));
+                    args = folded;
+                }
+                // 1*a は a と一致する
+                r = args.size() == 1 ? args.get(0) : f.mul(args);
+            }
+        }
+        return negate ? negate(r) : r;
+    }
+
+    private Expr simplifyDiv(Div div) {
+        Expr a = apply(div.getLeft());
+        Expr b = apply(div.getRight());
+        // 符号を外に出す（-bが0になるのはbが0のときだけなので、ゼロ除算の判定も変わらない）
+        boolean negate = false;
+        if (isNeg(a)) {
+            a = ((Func) a).getArgs().get(0);
+            negate = true;
+        }
+        if (isNeg(b)) {
+            b = ((Func) b).getArgs().get(0);
+            negate = !negate;
+        }
+        Expr r;
+        if (b instanceof Num && ((Num) b).value != 0.0 && (relaxed || hasExactReciprocal(((Num) b).value))) {
+            // 割り算を逆数の掛け算にする
+            r = makeMul(new ArrayList<>(List.of(a, f.num(1.0 / ((Num) b).value))));
+        } else {
+            // 分母が0の定数なら評価時の例外を残すため畳み込まない
+            r = fold(f.div(List.of(a, b)), a, b);
+        }
+        return negate ? negate(r) : r;
+    }
+
+    private Expr simplifyPow(Pow pow) {
+        Expr base = apply(pow.getBase());
+        Expr exp = apply(pow.getExp());
+        if (exp instanceof Num) {
+            double n = ((Num) exp).value;
+            // Math.pow(x, 0.0) は x が NaN でも 1.0
+            if (n == 0.0 && !mayThrow(base)) return f.num(1.0);
+            // Math.pow(x, 1.0) は x そのもの
+            if (n == 1.0) return base;
+            if (n == 2.0 && isVariable(base)) return f.mul(List.of(base, base));
+            if (relaxed) {
+                if (n == 0.5) return f.func("sqrt", List.of(base));
+                if ((n == 3.0 || n == 4.0) && isVariable(base)) {
+                    return f.mul(Collections.nCopies((int) n, base));
+                }
+            }
+        }
+        return fold(f.pow(List.of(base, exp)), base, exp);
+    }
+
+    private Expr simplifyFunc(Func func) {
+        FuncKind kind = func.getKind();
+        if (kind == FuncKind.DIFF) {
+            // diff(v, f) は導関数（簡約済み）に置き換え、引数1つなら0
+            return func.getArgs().size() == 2 ? func.derivative() : f.num(0.0);
+        }
+        List<Expr> args = new ArrayList<>(func.getArgs().size());
+        for (Expr a : func.getArgs()) args.add(apply(a));
+
+        if (kind == FuncKind.NEG) {
+            return negate(args.get(0));
+        }
+        if (kind == FuncKind.SUB) {
+            Expr a = args.get(0);
+            Expr b = args.get(1);
+            if (b instanceof Num && ((Num) b).value != 0.0) {
+                // a-c = a+(-c)。aが-0.0でも c≠0 なら結果は同じ
+                List<Expr> terms = new ArrayList<>(List.of(a, f.num(-((Num) b).value)));
+                return makeAdd(terms);
+            }
+            if (b instanceof Num && Double.doubleToRawLongBits(((Num) b).value) == 0L) {
+                // a-(+0.0) = a
+                return a;
+            }
+            if (a instanceof Add || relaxed) {
+                // Addの値は-0.0にならないので、a-b = 0+a+(-b)
+                return makeAdd(new ArrayList<>(List.of(a, negate(b))));
+            }
+            return fold(f.func("sub", args), args.toArray(new Expr[0]));
+        }
+        if (kind == FuncKind.LIMIT) {
+            // 収束値と式だけ簡約する（変数名の引数はそのまま）
+            if (args.size() == 3) args.set(0, func.getArgs().get(0));
+            if (args.size() == 2) {
+                // 2引数の形は動かす変数を式から決めるので、簡約で式の変数が減る（x^0 → 1 など）と動かす変数が変わる。
+                // そのときは元の変数を3引数の形で明示する（元の式で変数が決まらないなら式は簡約しない）
+                String var = LimitEvaluator.variableOf(func);
+                if (!Objects.equals(var, LimitEvaluator.implicitVariableOf(args.get(1)))) {
+                    if (var == null) {
+                        args.set(1, func.getLimitBody());
+                    } else {
+                        return f.func(func.getName(), List.of(f.sym(var), args.get(0), args.get(1)));
+                    }
+                }
+            }
+            return same(args, func.getArgs()) ? func : f.func(func.getName(), args);
+        }
+        Expr r = same(args, func.getArgs()) ? func : f.func(func.getName(), args);
+        return fold(r, args.toArray(new Expr[0]));
+    }
+
+    /**
+     * 符号を反転した式（neg(neg(a)) → a、定数はそのまま反転）
+     */
+    private Expr negate(Expr e) {
+        if (e instanceof Num) return f.num(-((Num) e).value);
+        if (isNeg(e)) return ((Func) e).getArgs().get(0);
+        return f.func("neg", List.of(e));
+    }
+
+    /**
+     * 子がすべて定数なら評価して定数にする（評価時に例外が出るならそのまま）
+     */
+    private Expr fold(Expr e, Expr... children) {
+        for (Expr c : children) {
+            if (!(c instanceof Num)) return e;
+        }
+        try {
+            return f.num(e.eval(0.0));
+        } catch (ArithmeticException | IllegalArgumentException ex) {
+            return e;
+        }
+    }
+
+    /**
+     * 評価時に例外を出しうるか（ゼロ除算・未知の記号）
+     */
+    static boolean mayThrow(Expr e) {
+        if (e instanceof Num) return false;
+        if (e instanceof Sym) return !isKnownSymbol(((Sym) e).name);
+        if (e instanceof Add) return anyMayThrow(((Add) e).args);
+        if (e instanceof Mul) return anyMayThrow(((Mul) e).args);
+        if (e instanceof Div) {
+            Div d = (Div) e;
+            boolean safeDenominator = d.getRight() instanceof Num && ((Num) d.getRight()).value != 0.0;
+            return !safeDenominator || mayThrow(d.getLeft());
+        }
+        if (e instanceof Pow) return mayThrow(((Pow) e).getBase()) || mayThrow(((Pow) e).getExp());
+        if (e instanceof Func) {
+            Func fn = (Func) e;
+            switch (fn.getKind()) {
+                case DIFF: return fn.getArgs().size() == 2 && mayThrow(fn.derivative());
+                case LIMIT: return mayThrow(fn.getLimitPoint()) || mayThrow(fn.getLimitBody());
+                default: return anyMayThrow(fn.getArgs());
+            }
+        }
+        if (e instanceof Equation) return mayThrow(((Equation) e).getLeft()) || mayThrow(((Equation) e).getRight());
+        return true;
+    }
+
+    private static boolean anyMayThrow(List<Expr> es) {
+        for (Expr e : es) {
+            if (mayThrow(e)) return true;
+        }
+        return false;
+    }
+
+    // Sym.evalが例外を出さない名前
+    private static boolean isKnownSymbol(String name) {
+        if (name == null) return false;
+        if (name.length() == 1 && name.charAt(0) >= 'a' && name.charAt(0) <= 'z') return true;
+        return name.equals("π") || name.equals("θ") || name.equals("theta");
+    }
+
+    private static boolean isVariable(Expr e) {
+        return e instanceof Sym && isKnownSymbol(((Sym) e).name);
+    }
+
+    private static boolean isNeg(Expr e) {
+        return e instanceof Func && ((Func) e).getKind() == FuncKind.NEG;
+    }
+
+    private static boolean isNegative(double v) {
+        return Double.doubleToRawLongBits(v) < 0;
+    }
+
+    /**
+     * 1/v が正確に表せるか（vが2のべき乗で、逆数が非正規化数にならない）
+     */
+    private static boolean hasExactReciprocal(double v) {
+        if (Double.isNaN(v) || Double.isInfinite(v) || v == 0.0) return false;
+        if ((Double.doubleToRawLongBits(v) & 0x000fffffffffffffL) != 0) return false;
+        int exp = Math.getExponent(v);
+        return exp > Double.MIN_EXPONENT && -exp <= Double.MAX_EXPONENT && -exp >= Double.MIN_EXPONENT;
+    }
+
+    private static boolean same(List<Expr> a, List<Expr> b) {
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i) != b.get(i)) return false;
+        }
+        return true;
+    }
+}
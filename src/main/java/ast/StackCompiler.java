@@ -0,0 +1,364 @@
+package ast;
+
+import java.util.*;
+
+/**
+ * ASTをStackProgram（後置記法のint[]コード + double[]定数プール）に変換する
+ *
+ * 実行時にクラスを生成しないので、ExprCompilerが使えない環境でも動く。
+ * 変換は明示的なスタックで木をたどるので、深く入れ子になった式でもStackOverflowErrorにならない。
+ * 演算の順番はExpr.evalと同じ（Addは0に順に足す、Mulは1に順に掛ける）なので結果は一致する。
+ * 未知の記号は、部分木をそのまま保持して木として評価する（評価時に例外）。
+ *
+ * limitは収束値だけをコードにし、式はLimitEvaluatorで評価する（式の変数は同じ配列から読む）。
+ *
+ * VariableLayoutを渡すと、変数のスロット番号をその並びに合わせる（BoundExprが使う）。
+ *
+ * 構造の等しい部分木（例: 分子と分母の sin(x)、2か所の sqrt(x^2+1)）は1度だけ計算し、
+ * 結果をレジスタ（スタックの後ろの領域）に保存して2回目からは読み出す（SharedSubexpressions）。
+ * 同じ引数のsinとcosはSINCOS命令で一緒に求める。どの順に計算しても同じ値なので、結果はExpr.evalと一致する。
+ */
+public final class StackCompiler {
+
+    private StackCompiler() {}
+
+    // ノードの種類（exit時に出すコードを決める）
+    private static final int LEAF = 0;
+    private static final int ADD = 1;
+    private static final int MUL = 2;
+    private static final int BINARY = 3;   // 子をすべて積んだあとにopを出す
+    private static final int UNARY = 4;    // 同上（子1つ）
+    private static final int RECIPROCAL = 5; // 1 / f(子)
+    private static final int LIMIT = 6;    // 子（収束値）を積んだあとにLIMITを出す
+
+    /**
+     * たどっている途中のノード
+     */
+    private static final class Frame {
+        final int kind;
+        final List<Expr> children;
+        final int op;     // exitで出すオペコード
+        final int operand; // CALLの関数番号（なければ-1）
+        int next;
+        int id = -1;      // SharedSubexpressionsの番号（共有しないなら-1）
+
+        Frame(int kind, List<Expr> children, int op, int operand) {
+            this.kind = kind;
+            this.children = children;
+            this.op = op;
+            this.operand = operand;
+        }
+    }
+
+    public static StackProgram compile(Expr expr) {
+        return compile(expr, null);
+    }
+
+    /**
+     * 変数のスロットをlayoutの並びに固定してコンパイルする
+     * @throws IllegalArgumentException layoutにない変数を式が含む場合
+     */
+    public static StackProgram compile(Expr expr, VariableLayout layout) {
+        Builder b = new Builder(layout, SharedSubexpressions.of(expr));
+        Deque<Frame> stack = new ArrayDeque<>();
+        stack.push(b.enter(expr));
+        while (!stack.isEmpty()) {
+            Frame f = stack.peek();
+            if (f.next < f.children.size()) {
+                stack.push(b.enter(f.children.get(f.next++)));
+            } else {
+                stack.pop();
+                b.exit(f);
+                if (!stack.isEmpty()) b.afterChild(stack.peek());
+            }
+        }
+        return b.build();
+    }
+
+    private static final class Builder {
+        private int[] code = new int[32];
+        private int length;
+        private final List<Double> constants = new ArrayList<>();
+        private final Map<Long, Integer> constantIndex = new HashMap<>();
+        private final List<Expr> fallback = new ArrayList<>();
+        private final Map<Expr, Integer> fallbackIndex = new IdentityHashMap<>();
+        private final Map<String, Integer> slots = new LinkedHashMap<>();
+        private final VariableLayout layout;
+        private final List<Func> limits = new ArrayList<>();
+        private final List<String> limitVariables = new ArrayList<>();
+        private int depth;
+        private int maxDepth;
+        private final SharedSubexpressions shared;
+        // 番号 → 値を保存したレジスタ（まだ計算していなければない）
+        private final Map<Integer, Integer> computed = new HashMap<>();
+        private final Map<Integer, Integer> registers = new HashMap<>();
+        private long executedNodes;
+
+        Builder(VariableLayout layout, SharedSubexpressions shared) {
+            this.layout = layout;
+            this.shared = shared;
+            if (layout != null) {
+                for (String name : layout.names()) slots.put(name, slots.size());
+            }
+        }
+
+        /**
+         * ノードに入るときのコード（計算済みの共通部分式ならレジスタから読んで完結する）
+         */
+        Frame enter(Expr e) {
+            int id = shared.id(e);
+            if (id >= 0) {
+                Integer r = computed.get(id);
+                if (r != null) {
+                    emit(StackProgram.LOAD);
+                    emit(r);
+                    push();
+                    return leaf();
+                }
+                executedNodes++;
+            }
+            Frame f = enterNode(e);
+            if (id >= 0 && (shared.shared(id) || shared.partner(id) >= 0)) f.id = id;
+            return f;
+        }
+
+        /**
+         * ノードに入るときのコード（定数・変数ならここで完結する）
+         */
+        private Frame enterNode(Expr e) {
+            if (e instanceof Num) {
+                pushConst(((Num) e).value);
+                return leaf();
+            }
+            if (e instanceof Sym) {
+                return enterSym((Sym) e);
+            }
+            if (e instanceof Add) {
+                pushConst(0.0);
+                return new Frame(ADD, ((Add) e).args, StackProgram.ADD, -1);
+            }
+            if (e instanceof Mul) {
+                pushConst(1.0);
+                return new Frame(MUL, ((Mul) e).args, StackProgram.MUL, -1);
+            }
+            if (e instanceof Div) {
+                Div d = (Div) e;
+                return new Frame(BINARY, List.of(d.getLeft(), d.getRight()), StackProgram.DIV, -1);
+            }
+            if (e instanceof Pow) {
+                Pow p = (Pow) e;
+                return new Frame(BINARY, List.of(p.getBase(), p.getExp()), StackProgram.POW, -1);
+            }
+            if (e instanceof Func) {
+                Frame f = enterFunc((Func) e);
+                if (f != null) return f;
+            }
+            if (e instanceof Equation) {
+                // 等式は残差 left - right
+                Equation q = (Equation) e;
+                return new Frame(BINARY, List.of(q.getLeft(), q.getRight()), StackProgram.SUB, -1);
+            }
+            // それ以外（未知の関数など）
+            pushFallback(e);
+            return leaf();
+        }
+
+        private Frame enterSym(Sym s) {
+            String name = s.name;
+            if (name != null) {
+                if (name.equals("π")) {
+                    pushConst(Math.PI);
+                    return leaf();
+                }
+                if (name.equals("e")) {
+                    pushConst(Math.E);
+                    return leaf();
+                }
+                if (name.length() == 1 && name.charAt(0) >= 'a' && name.charAt(0) <= 'z') {
+                    pushVar(name);
+                    return leaf();
+                }
+                if (name.equals("θ") || name.equals("theta")) {
+                    pushVar("θ");
+                    return leaf();
+                }
+            }
+            pushFallback(s); // Unknown symbol（評価時に例外）
+            return leaf();
+        }
+
+        private Frame enterFunc(Func f) {
+            List<Expr> args = f.getArgs();
+            switch (f.getKind()) {
+                case SUB: return new Frame(BINARY, args, StackProgram.SUB, -1);
+                case SQRT: return call(args, StackProgram.F_SQRT);
+                case SIN: return call(args, StackProgram.F_SIN);
+                case COS: return call(args, StackProgram.F_COS);
+                case TAN: return call(args, StackProgram.F_TAN);
+                case EXP: return call(args, StackProgram.F_EXP);
+                case LN:
+                case LOG: return call(args, StackProgram.F_LOG);
+                case ABS: return call(args, StackProgram.F_ABS);
+                case SEC: return reciprocal(args, StackProgram.F_COS);
+                case CSC: return reciprocal(args, StackProgram.F_SIN);
+                case COT: return reciprocal(args, StackProgram.F_TAN);
+                case NEG: return new Frame(UNARY, args, StackProgram.NEG, -1);
+                case LIMIT:
+                    return enterLimit(f);
+                case DIFF:
+                    // diff(v, f) は導関数をその場に展開する
+                    if (args.size() == 2) return enter(f.derivative());
+                    // 引数1つなら木の評価と同じく0
+                    pushConst(0.0);
+                    return leaf();
+                default:
+                    return null;
+            }
+        }
+
+        private Frame enterLimit(Func f) {
+            String var = LimitEvaluator.variableOf(f);
+            // 式の変数（動かす変数以外）は呼び出し側と同じスロットから読むので、ここで割り当てておく
+            for (String name : VariableLayout.of(f.getLimitBody()).names()) {
+                if (!name.equals(var)) slotOf(name);
+            }
+            limits.add(f);
+            limitVariables.add(var);
+            return new Frame(LIMIT, List.of(f.getLimitPoint()), StackProgram.LIMIT, limits.size() - 1);
+        }
+
+        private Frame call(List<Expr> args, int fn) {
+            return new Frame(UNARY, args, StackProgram.CALL, fn);
+        }
+
+        private Frame reciprocal(List<Expr> args, int fn) {
+            pushConst(1.0);
+            return new Frame(RECIPROCAL, args, StackProgram.CALL, fn);
+        }
+
+        /**
+         * 子を1つ積み終えたとき（Add/Mulは子ごとに足し込む）
+         */
+        void afterChild(Frame parent) {
+            if (parent.kind == ADD || parent.kind == MUL) {
+                emit(parent.op);
+                depth--;
+            }
+        }
+
+        /**
+         * 子をすべて積み終えたとき
+         */
+        void exit(Frame f) {
+            switch (f.kind) {
+                case BINARY:
+                    emit(f.op);
+                    depth--;
+                    break;
+                case UNARY:
+                case LIMIT: {
+                    int pair = f.id >= 0 ? shared.partner(f.id) : -1;
+                    if (pair >= 0 && !computed.containsKey(pair)) {
+                        // sin(a)とcos(a)を一緒に求め、組の相手はレジスタに入れておく
+                        int r = register(pair);
+                        emit(StackProgram.SINCOS);
+                        emit(f.operand);
+                        emit(r);
+                        computed.put(pair, r);
+                        break;
+                    }
+                    emit(f.op);
+                    if (f.operand >= 0) emit(f.operand);
+                    break;
+                }
+                case RECIPROCAL:
+                    emit(StackProgram.CALL);
+                    emit(f.operand);
+                    emit(StackProgram.DIV_UNCHECKED);
+                    depth--;
+                    break;
+                default:
+                    break;
+            }
+            if (f.id >= 0 && shared.shared(f.id)) {
+                int r = register(f.id);
+                emit(StackProgram.STORE);
+                emit(r);
+                computed.put(f.id, r);
+            }
+        }
+
+        private int register(int id) {
+            return registers.computeIfAbsent(id, k -> registers.size());
+        }
+
+        private Frame leaf() {
+            return new Frame(LEAF, List.of(), -1, -1);
+        }
+
+        private void pushConst(double v) {
+            long bits = Double.doubleToRawLongBits(v);
+            Integer idx = constantIndex.get(bits);
+            if (idx == null) {
+                idx = constants.size();
+                constants.add(v);
+                constantIndex.put(bits, idx);
+            }
+            emit(StackProgram.CONST);
+            emit(idx);
+            push();
+        }
+
+        private void pushVar(String name) {
+            emit(StackProgram.VAR);
+            emit(slotOf(name));
+            push();
+        }
+
+        private int slotOf(String name) {
+            Integer slot = slots.get(name);
+            if (slot == null && layout != null) {
+                throw new IllegalArgumentException("Unbound variable: " + name);
+            }
+            if (slot == null) {
+                slot = slots.size();
+                slots.put(name, slot);
+            }
+            return slot;
+        }
+
+        private void pushFallback(Expr e) {
+            Integer idx = fallbackIndex.get(e);
+            if (idx == null) {
+                idx = fallback.size();
+                fallback.add(e);
+                fallbackIndex.put(e, idx);
+            }
+            emit(StackProgram.FALLBACK);
+            emit(idx);
+            push();
+        }
+
+        private void push() {
+            depth++;
+            if (depth > maxDepth) maxDepth = depth;
+        }
+
+        private void emit(int v) {
+            if (length == code.length) code = Arrays.copyOf(code, length * 2);
+            code[length++] = v;
+        }
+
+        StackProgram build() {
+            double[] pool = new double[constants.size()];
+            for (int i = 0; i < pool.length; i++) pool[i] = constants.get(i);
+            List<String> names = new ArrayList<>(slots.keySet());
+            LimitEvaluator.Site[] sites = new LimitEvaluator.Site[limits.size()];
+            for (int i = 0; i < sites.length; i++) {
+                sites[i] = new LimitEvaluator.Site(limits.get(i).getLimitBody(), limitVariables.get(i), names);
+            }
+            return new StackProgram(Arrays.copyOf(code, length), pool, fallback.toArray(new Expr[0]), sites,
+                    names.toArray(new String[0]), maxDepth, registers.size(), shared.treeNodes() - executedNodes);
+        }
+    }
+}
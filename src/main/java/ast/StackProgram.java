@@ -0,0 +1,426 @@
+package ast;
+
+import java.util.*;
+
+/**
+ * 後置記法のスタックマシン用プログラム（StackCompilerが生成する）
+ *
+ * codeはオペコードとオペランドを並べたint配列、constantsは定数プール。
+ * 評価は再帰を使わず、事前に確保したdouble[]スタックの上で行う。
+ * evalDualは同じコードを値と微分係数の2本のスタックで実行する（前進型の自動微分）。
+ * 共通部分式の値はスタック配列の後ろ（maxDepth以降）のレジスタに保存する（評価ごとに使い捨て）。
+ * EvalStatusを渡す評価は例外を出さず、ゼロ除算・未知の記号でも±∞・NaNを返してエラーのビットを立てる。
+ * 求まらなかった極限（NaN）もビットを立てる。
+ * プログラム自体は変更しないので、スタックを呼び出しごとに分ければ複数スレッドで共有してよい。
+ */
+public final class StackProgram {
+
+    // オペコード（オペランドを持つものは直後の1要素がオペランド）
+    static final int CONST = 0;       // オペランド: 定数プールの添字
+    static final int VAR = 1;         // オペランド: 変数スロット
+    static final int ADD = 2;
+    static final int SUB = 3;
+    static final int MUL = 4;
+    static final int DIV = 5;         // ゼロ除算で例外（Divノード。EvalStatusを渡す評価では±∞）
+    static final int DIV_UNCHECKED = 6; // 1/cos(x) など（sec/csc/cot）
+    static final int POW = 7;
+    static final int NEG = 8;
+    static final int CALL = 9;        // オペランド: 関数番号（F_*）
+    static final int FALLBACK = 10;   // オペランド: fallbackの添字（木のまま評価）
+    static final int LIMIT = 11;      // オペランド: limitsの添字（収束値をポップして極限を積む）
+    static final int STORE = 12;      // オペランド: レジスタ番号（先頭の値をポップせずに保存する）
+    static final int LOAD = 13;       // オペランド: レジスタ番号
+    static final int SINCOS = 14;     // オペランド: 関数番号（F_SINかF_COS）、レジスタ番号（もう片方を保存する）
+
+    // CALLの関数番号
+    static final int F_SQRT = 0;
+    static final int F_SIN = 1;
+    static final int F_COS = 2;
+    static final int F_TAN = 3;
+    static final int F_EXP = 4;
+    static final int F_LOG = 5;
+    static final int F_ABS = 6;
+
+    private static final ThreadLocal<double[]> STACK = ThreadLocal.withInitial(() -> new double[64]);
+
+    final int[] code;
+    final double[] constants;
+    final Expr[] fallback;
+    final LimitEvaluator.Site[] limits;
+    final String[] variables;
+    final int maxDepth;   // スタックの深さ（レジスタはこの後ろ）
+    final int maxStack;   // maxDepth + レジスタ数
+    final long eliminatedNodes;
+
+    StackProgram(int[] code, double[] constants, Expr[] fallback, LimitEvaluator.Site[] limits,
+                 String[] variables, int maxDepth, int registers, long eliminatedNodes) {
+        this.code = code;
+        this.constants = constants;
+        this.fallback = fallback;
+        this.limits = limits;
+        this.variables = variables;
+        this.maxDepth = maxDepth;
+        this.maxStack = maxDepth + registers;
+        this.eliminatedNodes = eliminatedNodes;
+    }
+
+    /**
+     * 変数名（添字がスロット番号）
+     */
+    public List<String> variables() {
+        return Collections.unmodifiableList(Arrays.asList(variables));
+    }
+
+    /**
+     * 変数のスロット番号（その変数を含まなければ-1）
+     */
+    public int slotOf(String name) {
+        if (name.equals("theta")) name = "θ";
+        for (int i = 0; i < variables.length; i++) {
+            if (variables[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    /** 評価に必要なスタックの長さ（共通部分式を保存するレジスタを含む） */
+    public int maxStack() { return maxStack; }
+
+    /** 共通部分式の除去で、評価1回あたりに計算しなくて済むようになったノードの数 */
+    public long eliminatedNodes() { return eliminatedNodes; }
+
+    /** codeの長さ（オペランドを含む） */
+    public int codeLength() { return code.length; }
+
+    /**
+     * このプログラム用のスタックを確保する
+     */
+    public double[] newStack() {
+        return new double[Math.max(1, maxStack)];
+    }
+
+    /**
+     * 評価する（スタックはスレッドごとに使い回す）
+     */
+    public double eval(double[] vars) {
+        double[] stack = STACK.get();
+        if (stack.length < maxStack) {
+            stack = new double[Math.max(maxStack, stack.length * 2)];
+            STACK.set(stack);
+        }
+        return eval(vars, stack);
+    }
+
+    /**
+     * 呼び出し側が用意したスタックで評価する（メモリ確保なし）
+     * @param vars 変数の値（variables()の順）
+     * @param stack 長さmaxStack()以上の作業領域
+     */
+    public double eval(double[] vars, double[] stack) {
+        return run(vars, stack, null);
+    }
+
+    /**
+     * 例外を出さずに評価する（エラーはstatusに記録し、値はNaN・±∞になる）
+     * @param stack 長さmaxStack()以上の作業領域
+     * @param status この評価で起きたエラーを書く（前の内容は消す）
+     */
+    public double eval(double[] vars, double[] stack, EvalStatus status) {
+        status.flags = 0;
+        return run(vars, stack, status);
+    }
+
+    // statusがnullなら例外を出す
+    private double run(double[] vars, double[] stack, EvalStatus status) {
+        final int[] code = this.code;
+        int sp = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            switch (code[pc++]) {
+                case CONST:
+                    stack[sp++] = constants[code[pc++]];
+                    break;
+                case VAR:
+                    stack[sp++] = vars[code[pc++]];
+                    break;
+                case ADD:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] + stack[sp];
+                    break;
+                case SUB:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] - stack[sp];
+                    break;
+                case MUL:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] * stack[sp];
+                    break;
+                case DIV:
+                    sp--;
+                    if (stack[sp] == 0.0) divisionByZero(status);
+                    stack[sp - 1] = stack[sp - 1] / stack[sp];
+                    break;
+                case DIV_UNCHECKED:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] / stack[sp];
+                    break;
+                case POW:
+                    sp--;
+                    stack[sp - 1] = Math.pow(stack[sp - 1], stack[sp]);
+                    break;
+                case NEG:
+                    stack[sp - 1] = -stack[sp - 1];
+                    break;
+                case CALL: {
+                    int f = code[pc++];
+                    double a = stack[sp - 1];
+                    double v = call(f, a);
+                    if (v != v && status != null) checkDomain(f, a, status);
+                    stack[sp - 1] = v;
+                    break;
+                }
+                case FALLBACK:
+                    stack[sp++] = fallback(code[pc++], status);
+                    break;
+                case LIMIT:
+                    stack[sp - 1] = limits[code[pc++]].eval(vars, stack[sp - 1], status);
+                    break;
+                case STORE:
+                    stack[maxDepth + code[pc++]] = stack[sp - 1];
+                    break;
+                case LOAD:
+                    stack[sp++] = stack[maxDepth + code[pc++]];
+                    break;
+                case SINCOS: {
+                    int f = code[pc++];
+                    double a = stack[sp - 1];
+                    stack[sp - 1] = call(f, a);
+                    stack[maxDepth + code[pc++]] = call(f == F_SIN ? F_COS : F_SIN, a);
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown opcode: " + code[pc - 1]);
+            }
+        }
+        return stack[0];
+    }
+
+    /**
+     * 値とslotの変数についての微分係数を1回の実行で求める（前進型の自動微分。導関数の木は作らない）
+     * 値はevalとビット単位で一致し、例外もevalと同じ所で出る。
+     * 微分係数はDifferentiatorと同じ規則（limitは式の導関数の極限）で、微分できない点（|u|のu=0など）ではNaNになる。
+     * 木のまま評価するノード（FALLBACK）の微分係数はNaN。
+     * @param stack 値のスタック（長さmaxStack()以上）
+     * @param dStack 微分係数のスタック（長さmaxStack()以上）
+     * @param out out[0]に値、out[1]に微分係数を書く
+     */
+    public void evalDual(double[] vars, int slot, double[] stack, double[] dStack, double[] out) {
+        runDual(vars, slot, stack, dStack, out, null);
+    }
+
+    /**
+     * 例外を出さずに値と微分係数を求める（エラーはstatusに記録する。evalDualとはエラーの扱いだけが違う）
+     * @param status この評価で起きたエラーを書く（前の内容は消す）
+     */
+    public void evalDual(double[] vars, int slot, double[] stack, double[] dStack, double[] out, EvalStatus status) {
+        status.flags = 0;
+        runDual(vars, slot, stack, dStack, out, status);
+    }
+
+    // statusがnullなら例外を出す
+    private void runDual(double[] vars, int slot, double[] stack, double[] dStack, double[] out, EvalStatus status) {
+        final int[] code = this.code;
+        int sp = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            switch (code[pc++]) {
+                case CONST:
+                    dStack[sp] = 0.0;
+                    stack[sp++] = constants[code[pc++]];
+                    break;
+                case VAR: {
+                    int k = code[pc++];
+                    dStack[sp] = k == slot ? 1.0 : 0.0;
+                    stack[sp++] = vars[k];
+                    break;
+                }
+                case ADD:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] + stack[sp];
+                    dStack[sp - 1] = dStack[sp - 1] + dStack[sp];
+                    break;
+                case SUB:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] - stack[sp];
+                    dStack[sp - 1] = dStack[sp - 1] - dStack[sp];
+                    break;
+                case MUL: {
+                    sp--;
+                    double a = stack[sp - 1], b = stack[sp];
+                    stack[sp - 1] = a * b;
+                    dStack[sp - 1] = productRule(a, dStack[sp - 1], b, dStack[sp]);
+                    break;
+                }
+                case DIV:
+                    sp--;
+                    if (stack[sp] == 0.0) divisionByZero(status);
+                    quotient(stack, dStack, sp);
+                    break;
+                case DIV_UNCHECKED:
+                    sp--;
+                    quotient(stack, dStack, sp);
+                    break;
+                case POW: {
+                    sp--;
+                    double a = stack[sp - 1], b = stack[sp];
+                    double p = Math.pow(a, b);
+                    stack[sp - 1] = p;
+                    dStack[sp - 1] = powRule(a, dStack[sp - 1], b, dStack[sp], p);
+                    break;
+                }
+                case NEG:
+                    stack[sp - 1] = -stack[sp - 1];
+                    dStack[sp - 1] = -dStack[sp - 1];
+                    break;
+                case CALL: {
+                    int f = code[pc++];
+                    double a = stack[sp - 1];
+                    double v = call(f, a);
+                    if (v != v && status != null) checkDomain(f, a, status);
+                    stack[sp - 1] = v;
+                    dStack[sp - 1] = chainRule(f, a, v, dStack[sp - 1]);
+                    break;
+                }
+                case FALLBACK:
+                    dStack[sp] = Double.NaN;
+                    stack[sp++] = fallback(code[pc++], status);
+                    break;
+                case LIMIT: {
+                    LimitEvaluator.Site site = limits[code[pc++]];
+                    double target = stack[sp - 1];
+                    double dTarget = dStack[sp - 1];
+                    stack[sp - 1] = site.eval(vars, target, status);
+                    LimitEvaluator.Site d = slot >= 0 ? site.derivative(variables[slot]) : null;
+                    double dv = d == null ? 0.0 : d.eval(vars, target);
+                    // 収束値が動くなら、式を動かす変数で微分した極限との積を足す（Differentiatorと同じ）
+                    LimitEvaluator.Site dp = dTarget != 0.0 ? site.pointDerivative() : null;
+                    dStack[sp - 1] = dp == null ? dv : dv + dTarget * dp.eval(vars, target);
+                    break;
+                }
+                case STORE: {
+                    int r = maxDepth + code[pc++];
+                    stack[r] = stack[sp - 1];
+                    dStack[r] = dStack[sp - 1];
+                    break;
+                }
+                case LOAD: {
+                    int r = maxDepth + code[pc++];
+                    stack[sp] = stack[r];
+                    dStack[sp++] = dStack[r];
+                    break;
+                }
+                case SINCOS: {
+                    int f = code[pc++];
+                    int g = f == F_SIN ? F_COS : F_SIN;
+                    int r = maxDepth + code[pc++];
+                    double a = stack[sp - 1], da = dStack[sp - 1];
+                    double v = call(f, a), w = call(g, a);
+                    stack[sp - 1] = v;
+                    dStack[sp - 1] = chainRule(f, a, v, da);
+                    stack[r] = w;
+                    dStack[r] = chainRule(g, a, w, da);
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown opcode: " + code[pc - 1]);
+            }
+        }
+        out[0] = stack[0];
+        out[1] = dStack[0];
+    }
+
+    private static void divisionByZero(EvalStatus status) {
+        if (status == null) throw new ArithmeticException("division by zero");
+        status.flags |= EvalStatus.DIVISION_BY_ZERO;
+    }
+
+    // 値がNaNになったときだけ呼ぶ（ふつうの値の評価には負担をかけない）
+    private static void checkDomain(int f, double a, EvalStatus status) {
+        if (f == F_LOG && a < 0.0) status.flags |= EvalStatus.LOG_OF_NEGATIVE;
+    }
+
+    /**
+     * 木のまま評価するノード（未知の記号など）
+     */
+    private double fallback(int index, EvalStatus status) {
+        Expr e = fallback[index];
+        if (status == null) return e.eval(0.0);
+        if (e instanceof Sym) {
+            // StackCompilerが木のまま残す記号は未知の記号だけ
+            status.flags |= EvalStatus.UNKNOWN_SYMBOL;
+            return Double.NaN;
+        }
+        try {
+            return e.eval(0.0);
+        } catch (ArithmeticException ex) {
+            status.flags |= EvalStatus.DIVISION_BY_ZERO;
+        } catch (IllegalArgumentException ex) {
+            status.flags |= EvalStatus.UNKNOWN_SYMBOL;
+        }
+        return Double.NaN;
+    }
+
+    // 片方の微分係数が0ならその項を足さない（0 * ∞ でNaNにしない）
+    private static double productRule(double a, double da, double b, double db) {
+        double d = 0.0;
+        if (da != 0.0) d += da * b;
+        if (db != 0.0) d += a * db;
+        return d;
+    }
+
+    private static void quotient(double[] stack, double[] dStack, int sp) {
+        double a = stack[sp - 1], b = stack[sp];
+        double q = a / b;
+        double da = dStack[sp - 1], db = dStack[sp];
+        stack[sp - 1] = q;
+        // (a/b)' = (a' - (a/b) b') / b
+        dStack[sp - 1] = da == 0.0 && db == 0.0 ? 0.0 : (da - (db != 0.0 ? q * db : 0.0)) / b;
+    }
+
+    private static double powRule(double a, double da, double b, double db, double p) {
+        double d = 0.0;
+        // (a^b)' = b a^(b-1) a' + a^b ln(a) b'
+        if (da != 0.0) d += b * Math.pow(a, b - 1.0) * da;
+        if (db != 0.0) d += p * Math.log(a) * db;
+        return d;
+    }
+
+    private static double chainRule(int f, double a, double v, double da) {
+        if (da == 0.0) return 0.0;
+        switch (f) {
+            case F_SQRT: return da / (2.0 * v);
+            case F_SIN: return Math.cos(a) * da;
+            case F_COS: return -Math.sin(a) * da;
+            case F_TAN: {
+                double c = Math.cos(a);
+                return da / (c * c);
+            }
+            case F_EXP: return v * da;
+            case F_LOG: return da / a;
+            case F_ABS: return v / a * da; // a=0では0/0でNaN
+            default: throw new IllegalStateException("Unknown function: " + f);
+        }
+    }
+
+    private static double call(int f, double v) {
+        switch (f) {
+            case F_SQRT: return Math.sqrt(v);
+            case F_SIN: return Math.sin(v);
+            case F_COS: return Math.cos(v);
+            case F_TAN: return Math.tan(v);
+            case F_EXP: return Math.exp(v);
+            case F_LOG: return Math.log(v);
+            case F_ABS: return Math.abs(v);
+            default: throw new IllegalStateException("Unknown function: " + f);
+        }
+    }
+}
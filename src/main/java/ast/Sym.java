@@ -1,11 +1,16 @@
 package ast;
 
-public class Sym implements Expr {
+public final class Sym implements Expr {
     public final String name;
-    private static VariableContext defaultContext = new VariableContext();
+    // プロセスで1つのコンテキスト（差し替えがすぐ見えるようにvolatileにする）
+    // 値が1つしかないので、共有したASTを複数スレッドで別々の値で評価するときはBoundExprに値の配列を渡すこと
+    private static volatile VariableContext defaultContext = new VariableContext();
+    
+    private final ExprInfo info;
     
     public Sym(String name) { 
         this.name = name; 
+        this.info = ExprInfo.sym(name);
     }
     
     /**
@@ -14,6 +19,13 @@ public class Sym implements Expr {
     public static void setGlobalContext(VariableContext context) {
         defaultContext = context;
     }
+
+    /**
+     * 現在のグローバルな変数コンテキスト（ExprCompilerの生成コードから使う）
+     */
+    static VariableContext globalContext() {
+        return defaultContext;
+    }
     
     @Override 
     public double eval(double x) {
@@ -38,4 +50,40 @@ public class Sym implements Expr {
         }
         throw new IllegalArgumentException("Unknown symbol: " + name);
     }
+
+    @Override
+    public Interval evalInterval(VariableLayout layout, Interval[] ranges) {
+        // 変数はrangesの範囲、定数（πとe）は1点（未知の記号はevalと同じく例外）
+        if (ExprInfo.variableBit(name) < 0) return Interval.point(eval(0.0));
+        return ranges[slotIn(layout, name)];
+    }
+
+    /**
+     * layoutでの変数のスロット（layoutになければIllegalArgumentException）
+     */
+    static int slotIn(VariableLayout layout, String name) {
+        int slot = layout.slotOf(name);
+        if (slot < 0) throw new IllegalArgumentException("Unbound variable: " + name);
+        return slot;
+    }
+
+    @Override
+    public void evalBatch(double[] xs, int xOff, double[] out, int outOff, int len) {
+        // xは点ごとの値、ほかの記号の値は点によらないので1度だけ求める
+        if ("x".equals(name)) {
+            System.arraycopy(xs, xOff, out, outOff, len);
+        } else {
+            java.util.Arrays.fill(out, outOff, outOff + len, eval(0.0));
+        }
+    }
+
+    @Override
+    public ExprInfo info() {
+        return info;
+    }
+
+    @Override
+    public <R> R accept(ExprVisitor<R> visitor) {
+        return visitor.visitSym(this);
+    }
 }
@@ -1,17 +1,18 @@
 package ast;
 
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 変数の値を保持するコンテキスト
+ * 評価中に別スレッド（GUIの入力欄など）から値が変更されてもよいようにConcurrentHashMapを使う
  */
 public class VariableContext {
     private final Map<String, Double> variables;
     
     public VariableContext() {
-        this.variables = new HashMap<>();
+        this.variables = new ConcurrentHashMap<>();
     }
     
     /**
@@ -0,0 +1,88 @@
+package ast;
+
+import java.util.*;
+
+/**
+ * 変数名とdouble[]のスロット番号の対応（BoundExprが使う）
+ *
+ * 作成後は変更しないので、複数スレッドで共有してよい。
+ * "theta"は"θ"と同じ変数として扱う（Sym.evalと同じ）。
+ */
+public final class VariableLayout {
+
+    private final String[] names;
+    private final Map<String, Integer> index;
+
+    private VariableLayout(String[] names) {
+        this.names = names;
+        this.index = new HashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            if (index.putIfAbsent(names[i], i) != null) {
+                throw new IllegalArgumentException("Duplicate variable: " + names[i]);
+            }
+        }
+    }
+
+    /**
+     * 並びを指定して作る（添字がスロット番号）
+     */
+    public static VariableLayout of(String... names) {
+        return of(Arrays.asList(names));
+    }
+
+    public static VariableLayout of(List<String> names) {
+        String[] a = new String[names.size()];
+        for (int i = 0; i < a.length; i++) a[i] = canonical(names.get(i));
+        return new VariableLayout(a);
+    }
+
+    /**
+     * 式に現れる変数を、現れた順に並べて作る
+     */
+    public static VariableLayout of(Expr expr) {
+        return of(StackCompiler.compile(expr).variables());
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public List<String> names() {
+        return Collections.unmodifiableList(Arrays.asList(names));
+    }
+
+    /**
+     * 変数のスロット番号（含まなければ-1）
+     */
+    public int slotOf(String name) {
+        Integer i = index.get(canonical(name));
+        return i == null ? -1 : i;
+    }
+
+    /**
+     * 値の配列を作る（VariableContextと同じく、初期値はすべて1.0）
+     */
+    public double[] newAssignment() {
+        double[] vars = new double[names.length];
+        Arrays.fill(vars, 1.0);
+        return vars;
+    }
+
+    /**
+     * VariableContextの値を、この並びの配列に写す
+     */
+    public double[] assignment(VariableContext context) {
+        double[] vars = new double[names.length];
+        for (int i = 0; i < names.length; i++) vars[i] = context.getVariable(names[i]);
+        return vars;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(names);
+    }
+
+    private static String canonical(String name) {
+        return name.equals("theta") ? "θ" : name;
+    }
+}
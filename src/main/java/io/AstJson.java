@@ -7,42 +7,55 @@ import java.util.*;
 public class AstJson {
 
     public static Expr parseRoot(String jsonText) {
+        return parseRoot(jsonText, ExprFactory.PLAIN);
+    }
+
+    /**
+     * @param factory ノードの生成に使うファクトリ（HashConsingFactoryなら部分木を共有する）
+     */
+    public static Expr parseRoot(String jsonText, ExprFactory factory) {
         JSONObject root = new JSONObject(jsonText);
         int version = root.getInt("version");
         if (version != 1) throw new IllegalArgumentException("Unsupported version: " + version);
-        return parseExpr(root.getJSONObject("expr"));
+        return parseExpr(root.getJSONObject("expr"), factory);
     }
 
     public static Expr parseExpr(JSONObject obj) {
+        return parseExpr(obj, ExprFactory.PLAIN);
+    }
+
+    public static Expr parseExpr(JSONObject obj, ExprFactory f) {
         String type = obj.getString("type");
         switch (type) {
             case "Num":
-                return new Num(obj.getDouble("value"));
+                return f.num(obj.getDouble("value"));
             case "Sym":
-                return new Sym(obj.getString("name"));
+                return f.sym(obj.getString("name"));
             case "Add":
-                return new Add(parseArgs(obj.getJSONArray("args")));
+                return f.add(parseArgs(obj.getJSONArray("args"), f));
             case "Mul":
-                return new Mul(parseArgs(obj.getJSONArray("args")));
+                return f.mul(parseArgs(obj.getJSONArray("args"), f));
             case "Div":
-                return new Div(parseArgs(obj.getJSONArray("args")));
+                return f.div(parseArgs(obj.getJSONArray("args"), f));
             case "Pow":
-                return new Pow(parseArgs(obj.getJSONArray("args"))); // argsは2要素想定
+                return f.pow(parseArgs(obj.getJSONArray("args"), f)); // argsは2要素想定
             case "Func": {
                 String name = obj.getString("name");
-                List<Expr> args = parseArgs(obj.getJSONArray("args"));
-                return new Func(name, args);
+                List<Expr> args = parseArgs(obj.getJSONArray("args"), f);
+                return f.func(name, args);
             }
+            case "Equation":
+                return f.equation(parseArgs(obj.getJSONArray("args"), f)); // argsは[左辺, 右辺]
             
             default:
                 throw new IllegalArgumentException("Unknown Expr type: " + type);
         }
     }
 
-    private static List<Expr> parseArgs(JSONArray arr) {
+    private static List<Expr> parseArgs(JSONArray arr, ExprFactory f) {
         List<Expr> list = new ArrayList<>();
         for (int i = 0; i < arr.length(); i++) {
-            list.add(parseExpr(arr.getJSONObject(i)));
+            list.add(parseExpr(arr.getJSONObject(i), f));
         }
         return list;
     }
@@ -63,49 +76,68 @@ public class AstJson {
      * ExprノードをJSONObjectに変換する
      */
     private static JSONObject toJsonExpr(Expr expr) {
+        return expr.accept(JSON_WRITER);
+    }
+
+    private static JSONObject node(String type, List<Expr> args) {
         JSONObject obj = new JSONObject();
+        obj.put("type", type);
+        obj.put("args", toJsonArgs(args));
+        return obj;
+    }
 
-        if (expr instanceof Num) {
-            Num n = (Num) expr;
+    /**
+     * ノードの種類ごとのJSON（Exprはsealedなので、種類の追加はコンパイルエラーで気づける）
+     */
+    private static final ExprVisitor<JSONObject> JSON_WRITER = new ExprVisitor<JSONObject>() {
+        @Override
+        public JSONObject visitNum(Num n) {
+            JSONObject obj = new JSONObject();
             obj.put("type", "Num");
             obj.put("value", n.value);
-        } else if (expr instanceof Sym) {
-            Sym s = (Sym) expr;
+            return obj;
+        }
+
+        @Override
+        public JSONObject visitSym(Sym s) {
+            JSONObject obj = new JSONObject();
             obj.put("type", "Sym");
             obj.put("name", s.name);
-        } else if (expr instanceof Add) {
-            Add a = (Add) expr;
-            obj.put("type", "Add");
-            obj.put("args", toJsonArgs(a.args));
-        } else if (expr instanceof Mul) {
-            Mul m = (Mul) expr;
-            obj.put("type", "Mul");
-            obj.put("args", toJsonArgs(m.args));
-        } else if (expr instanceof Div) {
-            Div d = (Div) expr;
-            obj.put("type", "Div");
-            JSONArray args = new JSONArray();
-            args.put(toJsonExpr(d.getLeft()));
-            args.put(toJsonExpr(d.getRight()));
-            obj.put("args", args);
-        } else if (expr instanceof Pow) {
-            Pow p = (Pow) expr;
-            obj.put("type", "Pow");
-            JSONArray args = new JSONArray();
-            args.put(toJsonExpr(p.getBase()));
-            args.put(toJsonExpr(p.getExp()));
-            obj.put("args", args);
-        } else if (expr instanceof Func) {
-            Func f = (Func) expr;
-            obj.put("type", "Func");
+            return obj;
+        }
+
+        @Override
+        public JSONObject visitAdd(Add a) {
+            return node("Add", a.args);
+        }
+
+        @Override
+        public JSONObject visitMul(Mul m) {
+            return node("Mul", m.args);
+        }
+
+        @Override
+        public JSONObject visitDiv(Div d) {
+            return node("Div", List.of(d.getLeft(), d.getRight()));
+        }
+
+        @Override
+        public JSONObject visitPow(Pow p) {
+            return node("Pow", List.of(p.getBase(), p.getExp()));
+        }
+
+        @Override
+        public JSONObject visitFunc(Func f) {
+            JSONObject obj = node("Func", f.getArgs());
             obj.put("name", f.getName());
-            obj.put("args", toJsonArgs(f.getArgs()));
-        } else {
-            throw new IllegalArgumentException("Unknown Expr type: " + expr.getClass().getName());
+            return obj;
         }
 
-        return obj;
-    }
+        @Override
+        public JSONObject visitEquation(Equation q) {
+            return node("Equation", List.of(q.getLeft(), q.getRight()));
+        }
+    };
 
     /**
      * ExprのリストをJSONArrayに変換する
@@ -0,0 +1,105 @@
+package io;
+
+import java.util.*;
+
+/**
+ * 検証用ランナー（Demo*Check）が使う式文字列を乱数で生成する（シード固定で毎回同じ列になる）
+ *
+ * ベンチマーク用のbench.ExprCorpusより形を増やしている（関数の入れ子・limit・x以外の変数・小数の桁数）。
+ * パースできない式も混ざるので、使う側で読み飛ばすこと。
+ */
+final class CheckCorpus {
+
+    /** 乱数では出にくい形（ゼロ除算・未知の名前・引数の数の誤り・符号付きゼロ・limitとdiffの各形） */
+    static final List<String> EDGE_CASES = List.of(
+            "1/0", "x*(1/0)", "(1/0)^0", "-0*1", "0+-0", "-0*x", "x*-1",
+            "foo(x)", "abc+1", "sin(1,2)", "diff(x)", "diff(1/0)", "sec(x)+csc(0)",
+            "limit(0,x)", "limit(1,x^2)+x", "limit(x,0,sin(x)/x)", "x+limit(t,0,x+t)",
+            "limit(t,x,t^2+y)*x", "limit(x,0,sin(x)/x*2*π)",
+            "2*π*x", "sqrt(4)*x", "x^0.5", "x^0", "x^1", "x^2", "(-x)/(-y)", "-x*-y", "a+b+c-d", "y*x+θ");
+
+    private static final String[] FUNCS = {"sin", "cos", "tan", "sec", "csc", "cot", "exp", "sqrt", "abs", "ln", "log"};
+    private static final String[] OPS = {"+", "-", "*", "/", "^"};
+
+    private final Random random;
+    private final String[] variables;
+
+    /**
+     * @param variables 葉に使う変数名（πとeも混ぜる）
+     */
+    CheckCorpus(long seed, String... variables) {
+        this.random = new Random(seed);
+        this.variables = variables.clone();
+    }
+
+    /**
+     * 式をn個生成し、最後にEDGE_CASESを足す
+     * 以前のパーサが誤解釈する形（"--" の連続）は含めない
+     */
+    List<String> generate(int n, int maxDepth) {
+        List<String> out = new ArrayList<>(n + EDGE_CASES.size());
+        while (out.size() < n) {
+            String s = expr(maxDepth);
+            if (!s.contains("--")) out.add(s);
+        }
+        out.addAll(EDGE_CASES);
+        return out;
+    }
+
+    private String expr(int depth) {
+        StringBuilder sb = new StringBuilder(term(depth));
+        int n = random.nextInt(3);
+        for (int i = 0; i < n; i++) {
+            sb.append(OPS[random.nextInt(OPS.length)]).append(term(depth));
+        }
+        return sb.toString();
+    }
+
+    private String term(int depth) {
+        switch (depth <= 0 ? random.nextInt(2) : random.nextInt(6)) {
+            case 0:
+                return number();
+            case 1:
+                switch (random.nextInt(8)) {
+                    case 0: return "π";
+                    case 1: return "e";
+                    default: return variables[random.nextInt(variables.length)];
+                }
+            case 2:
+                return "-" + term(depth - 1);
+            case 3:
+                return "(" + expr(depth - 1) + ")";
+            case 4:
+                return FUNCS[random.nextInt(FUNCS.length)] + "(" + expr(depth - 1) + ")";
+            default:
+                return "limit(" + term(0) + "," + expr(depth - 1) + ")";
+        }
+    }
+
+    private String number() {
+        switch (random.nextInt(6)) {
+            case 0:
+                return random.nextInt(100) + "." + random.nextInt(100);
+            case 1:
+                return "0." + random.nextInt(1000);
+            default:
+                return Integer.toString(random.nextInt(100));
+        }
+    }
+
+    /**
+     * 評価結果を比べるための文字列（NaNの符号ビットは区別しない。例外はクラス名とメッセージ）
+     */
+    static String describe(DoubleEval eval) {
+        try {
+            double v = eval.get();
+            return Double.isNaN(v) ? "NaN" : Long.toHexString(Double.doubleToRawLongBits(v));
+        } catch (RuntimeException e) {
+            return e.getClass().getSimpleName() + ": " + e.getMessage();
+        }
+    }
+
+    interface DoubleEval {
+        double get();
+    }
+}
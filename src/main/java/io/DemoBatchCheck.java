@@ -0,0 +1,91 @@
+package io;
+
+import ast.Expr;
+import ast.Sym;
+import ast.VariableContext;
+import parse.Parser;
+
+import java.util.*;
+
+/**
+ * Expr.evalBatchの結果が、コンテキストのxを点ごとに書き換えてevalした結果とビット単位で同じことを確かめる
+ *
+ * 点の数はBATCH_CHUNKの倍数にしない（端の塊も通す）。x以外の変数はコンテキストの値のまま。
+ * 1点ずつの評価で例外が出る式は、evalBatchも同じ種類の例外を出すことだけ確かめる（どの点の例外が先かは決まっていない）。
+ * evalBatchがコンテキストのxを書き換えないことも確かめる。
+ *
+ * 使い方: DemoBatchCheck [式の数]
+ */
+public class DemoBatchCheck {
+
+    private static final String[] VARIABLES = {"x", "y", "t", "θ"};
+    private static final int POINTS = 2 * Expr.BATCH_CHUNK + 88;
+
+    public static void main(String[] args) {
+        int count = args.length >= 1 ? Integer.parseInt(args[0]) : 5000;
+        List<String> corpus = new CheckCorpus(37, VARIABLES).generate(count, 3);
+
+        VariableContext ctx = new VariableContext();
+        Sym.setGlobalContext(ctx);
+        Random random = new Random(37);
+        double[] xs = new double[POINTS];
+        for (int i = 0; i < xs.length; i++) xs[i] = random.nextDouble() * 4 - 2;
+        xs[0] = 0.0;
+        xs[1] = -0.0;
+        xs[2] = 1.0;
+
+        int ok = 0, ng = 0;
+        double[] expected = new double[POINTS];
+        double[] actual = new double[POINTS];
+        for (String s : corpus) {
+            Expr e;
+            try {
+                e = Parser.parse(s);
+            } catch (RuntimeException ex) {
+                continue;
+            }
+            for (String v : VARIABLES) ctx.setVariable(v, random.nextDouble() * 4 - 2);
+            double x0 = ctx.getVariable("x");
+
+            String expectedError = null;
+            for (int i = 0; i < xs.length && expectedError == null; i++) {
+                ctx.setVariable("x", xs[i]);
+                try {
+                    expected[i] = e.eval(xs[i]);
+                } catch (RuntimeException ex) {
+                    expectedError = ex.getClass().getSimpleName();
+                }
+            }
+            ctx.setVariable("x", x0);
+
+            String why = null;
+            try {
+                e.evalBatch(xs, actual);
+                if (expectedError != null) why = "no error, expected " + expectedError;
+            } catch (RuntimeException ex) {
+                if (!ex.getClass().getSimpleName().equals(expectedError)) why = "error " + ex + " expected " + expectedError;
+            }
+            if (why == null && expectedError == null) {
+                for (int i = 0; i < xs.length; i++) {
+                    if (Double.doubleToLongBits(expected[i]) != Double.doubleToLongBits(actual[i])) {
+                        why = "x=" + xs[i] + " eval=" + expected[i] + " evalBatch=" + actual[i];
+                        break;
+                    }
+                }
+            }
+            if (why == null && Double.doubleToRawLongBits(ctx.getVariable("x")) != Double.doubleToRawLongBits(x0)) {
+                why = "evalBatch changed x in the context";
+            }
+
+            if (why == null) {
+                ok++;
+            } else {
+                ng++;
+                System.out.printf("[NG] %s : %s%n", s, why);
+            }
+        }
+
+        System.out.printf("%nRESULT: ok=%d ng=%d total=%d%n", ok, ng, ok + ng);
+        if (ng != 0) System.exit(1);
+    }
+}
@@ -1,6 +1,7 @@
 package io;
 
 import ast.Expr;
+import ast.Simplifier;
 
 import java.nio.file.*;
 import java.util.*;
@@ -16,7 +17,13 @@ public class DemoBatchEvalError {
     }
 
     public static void main(String[] args) throws Exception {
-        String csvPath = (args.length >= 1) ? args[0] : "tests/phase1_tests_error.csv";
+        // --simplify: 評価の前にSimplifierで簡約する（例外は消えないはず）
+        boolean simplify = false;
+        String csvPath = "tests/phase1_tests_error.csv";
+        for (String a : args) {
+            if (a.equals("--simplify")) simplify = true;
+            else csvPath = a;
+        }
         List<ErrorCase> cases = loadCsv(csvPath);
 
         int ok = 0, ng = 0;
@@ -24,6 +31,7 @@ public class DemoBatchEvalError {
             try {
                 String json = Files.readString(Path.of(c.file));
                 Expr expr = AstJson.parseRoot(json);
+                if (simplify) expr = Simplifier.simplify(expr);
                 double actual = expr.eval(c.x);
                 
                 // エラーが期待されているのに例外が発生しなかった
@@ -0,0 +1,135 @@
+package io;
+
+import ast.EquationSolver;
+import ast.Expr;
+import ast.Sym;
+import ast.VariableContext;
+
+import java.nio.file.*;
+import java.util.*;
+import java.io.IOException;
+
+/**
+ * 等式をEquationSolverで解き、解の一覧全体（roots・identity・segments）を期待値と比べる
+ *
+ * CSVの列: file,roots,identity,segments,tol
+ *   roots    期待する解を昇順に空白区切りで並べる（解がなければ空）
+ *   identity 恒等式ならtrue
+ *   segments 成り立つ範囲を lo:hi で空白区切りに並べる（なければ空）
+ *   tol      解と範囲の端の許容誤差
+ * 解の数・範囲の数が違う、恒等式かどうかが違う、時間の上限で探索を打ち切った（Result.complete）のどれでも失敗とする。
+ * xについて [-SOLVE_RANGE, SOLVE_RANGE] で解く（ほかの変数は既定値）。
+ *
+ * 使い方: DemoBatchSolve [CSVのパス]
+ */
+public class DemoBatchSolve {
+
+    // 等式を解く範囲 [-SOLVE_RANGE, SOLVE_RANGE]（GUIと同じ）
+    static final double SOLVE_RANGE = 100.0;
+
+    // EquationSolver.DEFAULTと同じ格子・許容誤差で、時間の上限だけ長くする（初回のJITで打ち切らないように）
+    private static final EquationSolver SOLVER = new EquationSolver(1024, 1e-10, 5000);
+
+    static class Case {
+        String file;
+        double[] roots;
+        boolean identity;
+        double[][] segments;
+        double tol;
+        int line;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String csvPath = args.length >= 1 ? args[0] : "tests/equation_tests.csv";
+        List<Case> cases = loadCsv(csvPath);
+        Sym.setGlobalContext(new VariableContext());
+
+        int ok = 0, ng = 0;
+        for (Case c : cases) {
+            try {
+                Expr expr = AstJson.parseRoot(Files.readString(Path.of(c.file)));
+                EquationSolver.Result r = SOLVER.solve(expr, -SOLVE_RANGE, SOLVE_RANGE);
+                String actual = describe(r.roots, r.identity, r.segments);
+                String why = compare(c, r);
+
+                if (why == null) {
+                    ok++;
+                    System.out.printf("[OK] line=%d file=%s actual=%s%n", c.line, c.file, actual);
+                } else {
+                    ng++;
+                    System.out.printf("[NG] line=%d file=%s actual=%s expected=%s tol=%g : %s%n",
+                            c.line, c.file, actual, describe(c.roots, c.identity, c.segments), c.tol, why);
+                }
+            } catch (Exception e) {
+                ng++;
+                System.out.printf("[ERR] line=%d file=%s : %s%n", c.line, c.file, e.toString());
+            }
+        }
+
+        System.out.printf("%nRESULT: ok=%d ng=%d total=%d%n", ok, ng, ok + ng);
+        if (ng != 0) System.exit(1);
+    }
+
+    /**
+     * 期待値と比べる（一致すればnull）
+     */
+    static String compare(Case c, EquationSolver.Result r) {
+        if (!r.complete) return "search was cut off by the time limit";
+        if (r.identity != c.identity) return "identity differs";
+        if (r.roots.length != c.roots.length) return "number of roots differs";
+        for (int i = 0; i < r.roots.length; i++) {
+            if (!(Math.abs(r.roots[i] - c.roots[i]) <= c.tol)) return "root " + i + " differs";
+        }
+        if (r.segments.length != c.segments.length) return "number of segments differs";
+        for (int i = 0; i < r.segments.length; i++) {
+            if (!(Math.abs(r.segments[i][0] - c.segments[i][0]) <= c.tol
+                    && Math.abs(r.segments[i][1] - c.segments[i][1]) <= c.tol)) return "segment " + i + " differs";
+        }
+        return null;
+    }
+
+    static String describe(double[] roots, boolean identity, double[][] segments) {
+        StringBuilder sb = new StringBuilder("roots=").append(Arrays.toString(roots));
+        if (identity) sb.append(" identity");
+        sb.append(" segments=[");
+        for (int i = 0; i < segments.length; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(segments[i][0]).append(':').append(segments[i][1]);
+        }
+        return sb.append(']').toString();
+    }
+
+    static List<Case> loadCsv(String path) throws IOException {
+        List<String> lines = Files.readAllLines(Paths.get(path));
+        List<Case> out = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            if (i == 0 && line.toLowerCase().startsWith("file,")) continue; // header
+
+            String[] parts = line.split(",", -1);
+            if (parts.length < 5) throw new IllegalArgumentException("bad csv line " + (i+1) + ": " + line);
+
+            Case c = new Case();
+            c.file = parts[0].trim();
+            c.roots = parseList(parts[1]).stream().mapToDouble(Double::parseDouble).toArray();
+            c.identity = Boolean.parseBoolean(parts[2].trim());
+            List<String> segments = parseList(parts[3]);
+            c.segments = new double[segments.size()][];
+            for (int k = 0; k < c.segments.length; k++) {
+                String[] ends = segments.get(k).split(":");
+                if (ends.length != 2) throw new IllegalArgumentException("bad segment at line " + (i+1) + ": " + segments.get(k));
+                c.segments[k] = new double[]{Double.parseDouble(ends[0]), Double.parseDouble(ends[1])};
+            }
+            c.tol = Double.parseDouble(parts[4].trim());
+            c.line = i + 1;
+            out.add(c);
+        }
+        return out;
+    }
+
+    private static List<String> parseList(String s) {
+        s = s.trim();
+        return s.isEmpty() ? List.of() : Arrays.asList(s.split("\\s+"));
+    }
+}
@@ -0,0 +1,66 @@
+package io;
+
+import ast.CompiledExpr;
+import ast.Expr;
+import ast.ExprCompiler;
+import ast.Sym;
+import ast.VariableContext;
+import parse.Parser;
+
+import java.util.*;
+
+/**
+ * ExprCompilerで作ったクラスの結果が、木の評価（Expr.eval）とビット単位で同じことを確かめる
+ *
+ * 式ごとに変数を3通りに設定し、eval・applyAsDouble(x)・eval(double[]) の3つを比べる
+ * （NaNの符号ビットは区別しない。例外はメッセージまで比べる）。
+ * limitは本体の変数をコンパイルした側の値で評価するので、x以外の変数を含むlimitも混ぜる。
+ *
+ * 使い方: DemoCompileCheck [式の数]
+ */
+public class DemoCompileCheck {
+
+    private static final String[] VARIABLES = {"x", "y", "t", "θ"};
+
+    public static void main(String[] args) {
+        int count = args.length >= 1 ? Integer.parseInt(args[0]) : 20000;
+        List<String> corpus = new CheckCorpus(35, VARIABLES).generate(count, 3);
+
+        VariableContext ctx = new VariableContext();
+        Sym.setGlobalContext(ctx);
+        Random random = new Random(35);
+
+        int ok = 0, ng = 0;
+        for (String s : corpus) {
+            Expr e;
+            try {
+                e = Parser.parse(s);
+            } catch (RuntimeException ex) {
+                continue;
+            }
+            CompiledExpr c = ExprCompiler.compile(e);
+            List<String> names = c.variables();
+
+            boolean pass = true;
+            for (int k = 0; k < 3 && pass; k++) {
+                for (String v : VARIABLES) ctx.setVariable(v, random.nextDouble() * 4 - 2);
+                double x = ctx.getVariable("x");
+                double[] vars = new double[names.size()];
+                for (int i = 0; i < vars.length; i++) vars[i] = ctx.getVariable(names.get(i));
+
+                String expected = CheckCorpus.describe(() -> e.eval(x));
+                String applied = CheckCorpus.describe(() -> c.applyAsDouble(x));
+                String slots = CheckCorpus.describe(() -> c.eval(vars));
+                if (!expected.equals(applied) || !expected.equals(slots)) {
+                    pass = false;
+                    System.out.printf("[NG] %s tree=%s applyAsDouble=%s eval=%s%n", s, expected, applied, slots);
+                }
+            }
+            if (pass) ok++;
+            else ng++;
+        }
+
+        System.out.printf("%nRESULT: ok=%d ng=%d total=%d%n", ok, ng, ok + ng);
+        if (ng != 0) System.exit(1);
+    }
+}
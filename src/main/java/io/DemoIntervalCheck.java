@@ -0,0 +1,134 @@
+package io;
+
+import ast.Add;
+import ast.BoundExpr;
+import ast.EvalStatus;
+import ast.Expr;
+import ast.Func;
+import ast.Interval;
+import ast.Mul;
+import ast.Num;
+import ast.Sym;
+import parse.Parser;
+
+import java.util.*;
+
+/**
+ * Expr.evalIntervalの区間が、範囲内の点でのBoundExprの評価値をすべて含むことを乱数で確かめる
+ *
+ * 1. CheckCorpusの式（x以外の変数も使う）に、変数ごとの範囲（幅0の点も混ぜる）を乱数で与える
+ * 2. 三角関数 f(a*x+b) の極値・極のすぐ近くの狭い範囲を与える（外側に余裕をとる判定の確認）
+ * どちらも範囲の両端と内部の点で評価し、次のどれかになれば失敗とする。
+ *   - 例外もNaNもなく評価できた値が区間の外にある
+ *   - continuousなのに、例外になる点か有限でない値がある
+ *   - evalIntervalが例外を出したのに、例外を出さずに評価できる点がある
+ *
+ * 使い方: DemoIntervalCheck [式の数]
+ */
+public class DemoIntervalCheck {
+
+    private static final String[] VARIABLES = {"x", "y", "t", "θ"};
+    private static final String[] TRIG = {"sin", "cos", "tan", "sec", "csc", "cot"};
+    private static final int SAMPLES = 30;
+
+    public static void main(String[] args) {
+        int count = args.length >= 1 ? Integer.parseInt(args[0]) : 10000;
+        Random random = new Random(43);
+
+        int ok = 0, ng = 0;
+        for (String s : new CheckCorpus(43, VARIABLES).generate(count, 3)) {
+            Expr e;
+            try {
+                e = Parser.parse(s);
+            } catch (RuntimeException ex) {
+                continue;
+            }
+            BoundExpr b = BoundExpr.bind(e);
+            int m = b.layout().size();
+            String why = null;
+            for (int k = 0; k < 3 && why == null; k++) {
+                Interval[] ranges = new Interval[m];
+                for (int i = 0; i < m; i++) {
+                    double c = random.nextDouble() * 6 - 3;
+                    double w = random.nextInt(3) == 0 ? 0 : Math.pow(10, random.nextDouble() * 4 - 3);
+                    ranges[i] = Interval.of(c - w * random.nextDouble(), c + w * random.nextDouble());
+                }
+                why = check(b, ranges, random);
+            }
+            if (why == null) {
+                ok++;
+            } else {
+                ng++;
+                System.out.printf("[NG] %s : %s%n", s, why);
+            }
+        }
+
+        // 極値・極の近くの狭い範囲
+        for (int n = 0; n < count; n++) {
+            String f = TRIG[random.nextInt(TRIG.length)];
+            double a = (random.nextBoolean() ? 1 : -1) * Math.pow(10, random.nextDouble() * 4 - 2);
+            double c = random.nextDouble() * 10 - 5;
+            Expr e = new Func(f, List.of(new Add(List.of(new Mul(List.of(new Num(a), new Sym("x"))), new Num(c)))));
+            String s = f + "(" + a + "*x+" + c + ")";
+            BoundExpr b = BoundExpr.bind(e);
+            // a*x+c が kπ/2 になるx（k は大きめの値も使う）
+            long q = random.nextInt(2001) - 1000;
+            double center = (q * Math.PI / 2 - c) / a;
+            double w = Math.abs(center) * Math.pow(10, -16 + random.nextDouble() * 12);
+            // 半分は極値・極をまたぐ範囲、残りはそのすぐ手前で止まる範囲（丸め誤差の分だけ外れた判定を見つける）
+            double lo = center - w * random.nextDouble();
+            double hi = center + w * random.nextDouble();
+            if (random.nextBoolean()) {
+                double gap = Math.ulp(center) * random.nextInt(64);
+                if (random.nextBoolean()) {
+                    hi = center - gap;
+                } else {
+                    lo = center + gap;
+                }
+            }
+            String why = check(b, new Interval[]{Interval.of(Math.min(lo, hi), Math.max(lo, hi))}, random);
+            if (why == null) {
+                ok++;
+            } else {
+                ng++;
+                System.out.printf("[NG] %s : %s%n", s, why);
+            }
+        }
+
+        System.out.printf("%nRESULT: ok=%d ng=%d total=%d%n", ok, ng, ok + ng);
+        if (ng != 0) System.exit(1);
+    }
+
+    /**
+     * 範囲の両端と内部の点で区間と評価値を比べる（問題がなければnull）
+     */
+    private static String check(BoundExpr b, Interval[] ranges, Random random) {
+        Interval enclosure;
+        try {
+            enclosure = b.evalInterval(ranges);
+        } catch (RuntimeException ex) {
+            enclosure = null;
+        }
+        int m = ranges.length;
+        double[] vars = new double[m];
+        double[] stack = b.newStack();
+        EvalStatus status = new EvalStatus();
+        for (int j = 0; j < SAMPLES; j++) {
+            for (int i = 0; i < m; i++) {
+                Interval r = ranges[i];
+                vars[i] = j == 0 ? r.lo : j == 1 ? r.hi : r.lo + (r.hi - r.lo) * random.nextDouble();
+            }
+            double y = b.eval(vars, stack, status);
+            boolean thrown = (status.flags() & EvalStatus.THROWING) != 0;
+            if (enclosure == null) {
+                if (!thrown) return Arrays.toString(ranges) + " evalInterval threw but eval gives " + y;
+            } else if (!thrown && !Double.isNaN(y) && !enclosure.contains(y)) {
+                return Arrays.toString(ranges) + " " + enclosure + " does not contain " + y + " at " + Arrays.toString(vars);
+            } else if (enclosure.continuous && (thrown || !Double.isFinite(y))) {
+                return Arrays.toString(ranges) + " " + enclosure + " is continuous but eval gives "
+                        + (thrown ? status : Double.toString(y)) + " at " + Arrays.toString(vars);
+            }
+        }
+        return null;
+    }
+}
@@ -1,6 +1,9 @@
 package io;
 
+import ast.ExactEvaluator;
 import ast.Expr;
+import ast.StackCompiler;
+import ast.StackProgram;
 import parse.Parser;
 
 public class DemoParseEval {
@@ -14,6 +17,13 @@ public class DemoParseEval {
         System.out.println("expr=" + s);
         System.out.println("x=" + x);
         System.out.println("value=" + v);
+
+        // 四則演算だけの式なら分数での正確な値
+        System.out.println("exact=" + ExactEvaluator.evaluate(e));
+
+        // 共通部分式の除去で減ったノード数
+        StackProgram p = StackCompiler.compile(e);
+        System.out.println("eliminated=" + p.eliminatedNodes() + " code=" + p.codeLength());
     }
 }
 
@@ -0,0 +1,31 @@
+package io;
+
+import ast.AdaptiveSampler;
+import ast.Expr;
+import parse.Parser;
+
+/**
+ * AdaptiveSamplerで式を標本化し、点列をCSV（x,y）で標準出力に書く（GUIなしでプレビューを作る用）
+ * 引数: 式 [lo hi]。yが空の行は線の切れ目
+ */
+public class DemoPlotSample {
+    public static void main(String[] args) {
+        String s = (args.length > 0) ? args[0] : "tan(x)";
+        double lo = (args.length > 2) ? Double.parseDouble(args[1]) : -10.0;
+        double hi = (args.length > 2) ? Double.parseDouble(args[2]) : 10.0;
+        Expr e = Parser.parse(s);
+
+        long t0 = System.nanoTime();
+        AdaptiveSampler.Curve c = AdaptiveSampler.DEFAULT.sample(e, lo, hi);
+        double ms = (System.nanoTime() - t0) / 1e6;
+
+        StringBuilder sb = new StringBuilder("x,y\n");
+        for (int i = 0; i < c.size(); i++) {
+            sb.append(c.xs[i]).append(',');
+            if (Double.isFinite(c.ys[i])) sb.append(c.ys[i]);
+            sb.append('\n');
+        }
+        System.out.print(sb);
+        System.err.printf("expr=%s points=%d evaluations=%d time=%.2fms%n", s, c.size(), c.evaluations, ms);
+    }
+}
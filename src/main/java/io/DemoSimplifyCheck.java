@@ -0,0 +1,68 @@
+package io;
+
+import ast.Expr;
+import ast.Simplifier;
+import ast.Sym;
+import ast.VariableContext;
+import parse.Parser;
+
+import java.util.*;
+
+/**
+ * Simplifier.simplifyが値を変えないことを、乱数で作った式で確かめる
+ *
+ * 式ごとに変数を6通りに設定し（半分は±0・±∞・NaN・非正規化数などの特殊な値）、
+ * 簡約前と簡約後のevalの結果をビット単位で比べる（NaNの符号ビットは区別しない。例外はメッセージまで比べる）。
+ *
+ * 使い方: DemoSimplifyCheck [式の数]
+ */
+public class DemoSimplifyCheck {
+
+    private static final String[] VARIABLES = {"a", "b", "c", "d", "x", "y", "z", "θ"};
+    private static final double[] SPECIAL = {
+            0.0, -0.0, 1.0, -1.0, 2.0, 0.5, 1e-310, 1e308,
+            Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NaN};
+
+    public static void main(String[] args) {
+        int count = args.length >= 1 ? Integer.parseInt(args[0]) : 20000;
+        List<String> corpus = new CheckCorpus(5, VARIABLES).generate(count, 3);
+
+        VariableContext ctx = new VariableContext();
+        Sym.setGlobalContext(ctx);
+        Random random = new Random(5);
+
+        int ok = 0, ng = 0;
+        long before = 0, after = 0;
+        for (String s : corpus) {
+            Expr e;
+            try {
+                e = Parser.parse(s);
+            } catch (RuntimeException ex) {
+                continue;
+            }
+            Expr q = Simplifier.simplify(e);
+            before += e.info().nodes;
+            after += q.info().nodes;
+
+            boolean pass = true;
+            for (int k = 0; k < 6 && pass; k++) {
+                for (String v : VARIABLES) {
+                    ctx.setVariable(v, k < 3 ? SPECIAL[random.nextInt(SPECIAL.length)] : random.nextDouble() * 4 - 2);
+                }
+                String expected = CheckCorpus.describe(() -> e.eval(0.0));
+                String actual = CheckCorpus.describe(() -> q.eval(0.0));
+                if (!expected.equals(actual)) {
+                    pass = false;
+                    System.out.printf("[NG] %s => %s tree=%s simplified=%s%n",
+                            s, AstJson.toJsonV1(q).getJSONObject("expr"), expected, actual);
+                }
+            }
+            if (pass) ok++;
+            else ng++;
+        }
+
+        System.out.printf("[nodes] %d -> %d%n", before, after);
+        System.out.printf("%nRESULT: ok=%d ng=%d total=%d%n", ok, ng, ok + ng);
+        if (ng != 0) System.exit(1);
+    }
+}
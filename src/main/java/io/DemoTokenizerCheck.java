@@ -0,0 +1,187 @@
+package io;
+
+import parse.Parser;
+import parse.TokenStream;
+import parse.Tokenizer;
+
+import java.util.*;
+
+/**
+ * int符号のTokenStreamに書き込むTokenizerを、部分文字列とDouble.parseDoubleで素直に区切る参照実装と比べる
+ *
+ * 確かめること:
+ *   - トークンの種類・文字列・位置が同じ（数値はparseDoubleとビット単位で同じ値。手書きの10進読み取りの確認）
+ *   - 例外になる入力では同じ例外・同じメッセージになる
+ *   - トークンの間に空白を入れてもParser.parseの結果が変わらない
+ * 入力はCheckCorpusの式と、桁数の多い数値・記号・空白を乱数で並べた列。
+ *
+ * 使い方: DemoTokenizerCheck [入力の数]
+ */
+public class DemoTokenizerCheck {
+
+    private static final Set<String> FUNCS = Set.of(
+            "sin", "cos", "tan", "sec", "csc", "cot", "ln", "log", "exp", "sqrt", "abs", "neg", "sub", "diff", "limit");
+
+    private static final String[] PIECES = {
+            "+", "-", "*", "/", "^", "=", "(", ")", ",", "|", "→", "√", "π", "θ", "∞", "e", "x", "y",
+            "sin", "limit", "sqrt", "abc", "x1", "a_b", " ", "\t", "#", "٣"};
+
+    public static void main(String[] args) {
+        int count = args.length >= 1 ? Integer.parseInt(args[0]) : 50000;
+        Random random = new Random(31);
+        List<String> inputs = new CheckCorpus(31, "x", "y", "t", "θ").generate(count / 2, 3);
+        while (inputs.size() < count) inputs.add(randomInput(random));
+
+        TokenStream ts = new TokenStream();
+        int ok = 0, ng = 0;
+        for (String s : inputs) {
+            String why = check(s, ts, random);
+            if (why == null) {
+                ok++;
+            } else {
+                ng++;
+                System.out.printf("[NG] \"%s\" : %s%n", s, why);
+            }
+        }
+
+        System.out.printf("%nRESULT: ok=%d ng=%d total=%d%n", ok, ng, ok + ng);
+        if (ng != 0) System.exit(1);
+    }
+
+    /**
+     * 1つの入力を確かめる（問題がなければnull）
+     */
+    private static String check(String s, TokenStream ts, Random random) {
+        List<String> expected = new ArrayList<>();
+        String expectedError = null;
+        try {
+            reference(s, expected);
+        } catch (RuntimeException e) {
+            expectedError = e.toString();
+        }
+
+        try {
+            Tokenizer.tokenize(s, ts);
+        } catch (RuntimeException e) {
+            return e.toString().equals(expectedError) ? null : "error " + e + " expected " + expectedError;
+        }
+        if (expectedError != null) return "no error, expected " + expectedError;
+        if (ts.size() != expected.size()) return "size " + ts.size() + " expected " + expected.size();
+        for (int i = 0; i < ts.size(); i++) {
+            String actual = describe(ts, i);
+            if (!actual.equals(expected.get(i))) return "token " + i + " " + actual + " expected " + expected.get(i);
+        }
+
+        // トークンの間の空白を入れ替えてもパース結果が同じ（空白をなくすと数値どうしがつながるので、必ず1つは入れる）
+        StringBuilder spaced = new StringBuilder();
+        for (int i = 0; i < ts.size(); i++) {
+            spaced.append(s, ts.start(i), ts.end(i));
+            spaced.append(random.nextBoolean() ? " " : "  \t");
+        }
+        String a = parsed(s);
+        String b = parsed(spaced.toString());
+        if (a.startsWith("{") ? !a.equals(b) : b.startsWith("{")) return "spaced \"" + spaced + "\" " + b + " expected " + a;
+        return null;
+    }
+
+    private static String describe(TokenStream ts, int i) {
+        int k = ts.kind(i);
+        String span = ts.start(i) + "-" + ts.end(i);
+        if (k == TokenStream.NUM) return "NUM " + Long.toHexString(Double.doubleToRawLongBits(ts.number(i))) + " " + span;
+        return k + " " + ts.text(i) + " " + span;
+    }
+
+    private static String parsed(String s) {
+        try {
+            return AstJson.toJsonV1(Parser.parse(s)).toString();
+        } catch (RuntimeException e) {
+            return e.toString();
+        }
+    }
+
+    /**
+     * 参照実装（以前のTokenizerと同じく部分文字列を切り出してparseDoubleする）
+     */
+    private static void reference(String s, List<String> out) {
+        int n = s.length();
+        int i = 0;
+        while (i < n) {
+            char c = s.charAt(i);
+            if (Character.isWhitespace(c)) { i++; continue; }
+            if (Character.isDigit(c) || c == '.') {
+                int j = i;
+                boolean dot = false;
+                while (j < n) {
+                    char d = s.charAt(j);
+                    if (Character.isDigit(d)) { j++; continue; }
+                    if (d == '.' && !dot) { dot = true; j++; continue; }
+                    break;
+                }
+                double v = Double.parseDouble(s.substring(i, j));
+                out.add("NUM " + Long.toHexString(Double.doubleToRawLongBits(v)) + " " + i + "-" + j);
+                i = j;
+                continue;
+            }
+            if (Character.isLetter(c)) {
+                int j = i;
+                while (j < n && (Character.isLetterOrDigit(s.charAt(j)) || s.charAt(j) == '_')) j++;
+                String id = s.substring(i, j);
+                out.add((FUNCS.contains(id) ? TokenStream.FUNC : TokenStream.SYM) + " " + id + " " + i + "-" + j);
+                i = j;
+                continue;
+            }
+            int kind;
+            String text = String.valueOf(c);
+            switch (c) {
+                case '∞': kind = TokenStream.SYM; break;
+                case '+': case '-': case '*': case '/': case '^': case '=': case '→': kind = TokenStream.OP; break;
+                case '√': kind = TokenStream.FUNC; text = "sqrt"; break;
+                case '(': kind = TokenStream.LPAREN; break;
+                case ')': case '|': kind = TokenStream.RPAREN; text = ")"; break;
+                case ',': kind = TokenStream.COMMA; break;
+                default: throw new IllegalArgumentException("Unexpected char: '" + c + "' at " + i);
+            }
+            out.add(kind + " " + text + " " + i + "-" + (i + 1));
+            i++;
+        }
+    }
+
+    /**
+     * 数値が多めの入力（仮数が2^53前後・小数22桁前後・先頭や末尾の点・ゼロの並び）
+     */
+    private static String randomInput(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int n = 1 + random.nextInt(8);
+        for (int i = 0; i < n; i++) {
+            if (random.nextInt(3) == 0) {
+                sb.append(PIECES[random.nextInt(PIECES.length)]);
+            } else {
+                sb.append(randomNumber(random));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String randomNumber(Random random) {
+        StringBuilder sb = new StringBuilder();
+        switch (random.nextInt(5)) {
+            case 0:
+                // 2^53の前後
+                sb.append((1L << 53) + random.nextInt(21) - 10);
+                break;
+            case 1:
+                sb.append(random.nextInt(3) == 0 ? "" : Integer.toString(random.nextInt(1000)));
+                break;
+            default:
+                int digits = 1 + random.nextInt(20);
+                for (int k = 0; k < digits; k++) sb.append((char) ('0' + random.nextInt(10)));
+        }
+        if (random.nextInt(3) != 0) {
+            sb.append('.');
+            // 小数22桁の前後も作る
+            int frac = random.nextInt(4) == 0 ? 20 + random.nextInt(5) : random.nextInt(8);
+            for (int k = 0; k < frac; k++) sb.append(random.nextInt(4) == 0 ? '0' : (char) ('0' + random.nextInt(10)));
+        }
+        return sb.length() == 0 ? "0" : sb.toString();
+    }
+}
@@ -19,12 +19,15 @@ public class MathExpressionGUI extends Frame implements ActionListener {
     
     private static final String MODEL_PATH = "assets/model_finetune2.onnx";
     private static final String OUTPUT_DIR = "samples/images";
+    // 等式を解く範囲 [-SOLVE_RANGE, SOLVE_RANGE]
+    private static final double SOLVE_RANGE = 100.0;
     
     // GUIコンポーネント
     private Button btnClear;
     private Button btnInference;
     private Button btnUndo;
     private Button btnShowDetection;
+    private Button btnPlot;
     private Checkbox checkboxEraser;
     private Panel controlPanel;
     private DrawingCanvas drawingCanvas;
@@ -34,11 +37,14 @@ public class MathExpressionGUI extends Frame implements ActionListener {
     
     // データ
     private OnnxInference inference;
+    private final SpatialToExpr spatialToExpr = new SpatialToExpr();  // スレッドセーフなので使い回す
+    private final ParseCache parseCache = new ParseCache(128);  // 同じ式の再パースを省く
     private Detection lastDetection;  // 最後の推論結果を保持
     private BufferedImage lastCanvasImage;  // 最後のキャンバス画像を保持
     private VariableContext variableContext;
     private java.util.Map<String, TextField> variableFields;
     private Expr lastParsedExpr;  // 最後にパースした式を保持
+    private String lastParsedText;  // その式の文字列（グラフの見出し用）
     
     public static void main(String[] args) {
         new MathExpressionGUI();
@@ -71,6 +77,10 @@ public class MathExpressionGUI extends Frame implements ActionListener {
         btnShowDetection.setFont(buttonFont);
         btnShowDetection.addActionListener(this);
         btnShowDetection.setEnabled(false);  // 初期状態では無効
+        btnPlot = new Button("グラフを表示");
+        btnPlot.setFont(buttonFont);
+        btnPlot.addActionListener(this);
+        btnPlot.setEnabled(false);  // 変数を含む式をパースするまで無効
         checkboxEraser = new Checkbox("消しゴムモード");
         checkboxEraser.setFont(buttonFont);
         checkboxEraser.addItemListener(e -> {
@@ -80,6 +90,7 @@ public class MathExpressionGUI extends Frame implements ActionListener {
         controlPanel.add(btnInference);
         controlPanel.add(btnUndo);
         controlPanel.add(btnShowDetection);
+        controlPanel.add(btnPlot);
         controlPanel.add(checkboxEraser);
         this.add(controlPanel, BorderLayout.NORTH);
         
@@ -147,12 +158,15 @@ public class MathExpressionGUI extends Frame implements ActionListener {
             lastDetection = null;
             lastCanvasImage = null;
             btnShowDetection.setEnabled(false);
+            btnPlot.setEnabled(false);
         } else if (e.getSource() == btnInference) {
             performInference();
         } else if (e.getSource() == btnUndo) {
             drawingCanvas.undo();
         } else if (e.getSource() == btnShowDetection) {
             showDetectionAreas();
+        } else if (e.getSource() == btnPlot) {
+            showPlot();
         }
     }
     
@@ -234,7 +248,6 @@ public class MathExpressionGUI extends Frame implements ActionListener {
             resultArea.append("\n");
             
             // 2. SpatialToExprで式文字列に変換（推論した式）
-            SpatialToExpr spatialToExpr = new SpatialToExpr();
             SpatialToExpr.Result spatialResult = spatialToExpr.buildExprString(detection);
             
             String inferredExpr = spatialResult.expr;
@@ -264,7 +277,7 @@ public class MathExpressionGUI extends Frame implements ActionListener {
                 resultArea.append("（計算できません）\n\n");
             } else {
                 try {
-                    Expr expr = Parser.parse(inferredExpr);
+                    Expr expr = parseCache.parse(inferredExpr);
                     resultArea.append("━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━\n");
                     resultArea.append("【認識した式】\n");
                     resultArea.append("━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━\n");
@@ -275,6 +288,8 @@ public class MathExpressionGUI extends Frame implements ActionListener {
                     // 式に含まれる変数を抽出
                     java.util.Set<String> variables = VariableExtractor.extractVariables(expr);
                     lastParsedExpr = expr;  // 式を保持
+                    lastParsedText = inferredExpr;
+                    btnPlot.setEnabled(!variables.isEmpty());
                     
                     // 変数入力パネルを更新
                     updateVariableInputPanel(variables);
@@ -282,11 +297,9 @@ public class MathExpressionGUI extends Frame implements ActionListener {
                     // 変数コンテキストを更新
                     updateVariableContext();
                     
-                    // 変数コンテキストをSymに設定
-                    Sym.setGlobalContext(variableContext);
-                    
-                    // 計算実行（xパラメータは使用しないが、互換性のため残す）
-                    double value = expr.eval(1.0);
+                    // 変数をスロットに束縛し、入力欄の値を配列で渡して計算する
+                    EvalStatus status = new EvalStatus();
+                    double value = evaluate(expr, status);
                     
                     resultArea.append("━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━\n");
                     resultArea.append("【計算結果】\n");
@@ -301,9 +314,10 @@ public class MathExpressionGUI extends Frame implements ActionListener {
                         resultArea.append("\n");
                     }
                     
-                    resultArea.append("答え = " + value + "\n\n");
+                    resultArea.append(answerText(expr, value, status));
                     
                 } catch (Exception parseEx) {
+                    btnPlot.setEnabled(false);
                     resultArea.append("━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━\n");
                     resultArea.append("【認識した式】\n");
                     resultArea.append("━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━━\n");
@@ -493,6 +507,48 @@ public class MathExpressionGUI extends Frame implements ActionListener {
         detectionFrame.setVisible(true);
     }
     
+    /**
+     * 最後にパースした式のグラフを表示するウィンドウを開く
+     * xを含めばxについて、含まなければ最初の変数について [-10, 10] を描く（ほかの変数は入力欄の値）
+     */
+    private void showPlot() {
+        if (lastParsedExpr == null) {
+            resultArea.append("エラー: 式がありません。先に推論を実行してください。\n");
+            return;
+        }
+        java.util.Set<String> variables = VariableExtractor.extractVariables(lastParsedExpr);
+        if (variables.isEmpty()) {
+            resultArea.append("エラー: 式に変数がないのでグラフを描けません。\n");
+            return;
+        }
+        String var = variables.contains("x") ? "x" : variables.iterator().next();
+        updateVariableContext();
+        AdaptiveSampler.Curve curve = AdaptiveSampler.DEFAULT.sample(lastParsedExpr, var, variableContext, -10.0, 10.0);
+
+        Frame plotFrame = new Frame("グラフ");
+        plotFrame.setSize(900, 700);
+        plotFrame.setLayout(new BorderLayout());
+        PlotPanel plotPanel = new PlotPanel();
+        plotPanel.setCurve(curve, "y = " + lastParsedText + "  (" + var + " ∈ [-10, 10])");
+        plotFrame.add(plotPanel, BorderLayout.CENTER);
+
+        Panel buttonPanel = new Panel();
+        buttonPanel.setLayout(new FlowLayout());
+        Button closeButton = new Button("閉じる");
+        closeButton.addActionListener(e -> plotFrame.dispose());
+        buttonPanel.add(closeButton);
+        plotFrame.add(buttonPanel, BorderLayout.SOUTH);
+
+        plotFrame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                plotFrame.dispose();
+            }
+        });
+
+        plotFrame.setVisible(true);
+    }
+    
     /**
      * 変数入力パネルを更新
      */
@@ -589,11 +645,9 @@ public class MathExpressionGUI extends Frame implements ActionListener {
         }
         
         try {
-            // 変数コンテキストをSymに設定
-            Sym.setGlobalContext(variableContext);
-            
-            // 再計算
-            double value = lastParsedExpr.eval(1.0);
+            // 再計算（変数の値は配列で渡す）
+            EvalStatus status = new EvalStatus();
+            double value = evaluate(lastParsedExpr, status);
             
             // 結果エリアの最後の計算結果部分を更新
             String currentText = resultArea.getText();
@@ -619,7 +673,7 @@ public class MathExpressionGUI extends Frame implements ActionListener {
                 resultArea.append("\n");
             }
             
-            resultArea.append("答え = " + value + "\n\n");
+            resultArea.append(answerText(lastParsedExpr, value, status));
             
             // スクロールを最下部に
             resultArea.setCaretPosition(resultArea.getText().length());
@@ -628,6 +682,85 @@ public class MathExpressionGUI extends Frame implements ActionListener {
         }
     }
     
+    /**
+     * 入力欄の値で評価する（変数はスロットに束縛して配列で渡す）
+     * 例外になるエラーはこれまでどおり例外を出し、例外にならないエラー（収束しなかったlimitなど）はstatusに書く
+     */
+    private double evaluate(Expr expr, EvalStatus status) {
+        BoundExpr bound = BoundExpr.bind(expr);
+        double[] vars = bound.layout().assignment(variableContext);
+        double value = bound.eval(vars, bound.newStack(), status);
+        if ((status.flags() & EvalStatus.THROWING) != 0) return bound.eval(vars);
+        return value;
+    }
+
+    /**
+     * 計算結果の表示（等式なら解の一覧）
+     * 等式はxを含めばxについて、含まなければ最初の変数について解く（ほかの変数は入力欄の値）
+     * @param value 入力欄の値で評価した値（等式なら 左辺 - 右辺）
+     * @param status 評価で起きた例外にならないエラー（あれば答えに添える）
+     */
+    private String answerText(Expr expr, double value, EvalStatus status) {
+        if (!(expr instanceof Equation)) {
+            String note = status.ok() ? "" : "（" + status + "）";
+            return "答え = " + value + note + "\n" + exactText(expr, value) + sensitivityText(expr) + "\n";
+        }
+        java.util.Set<String> variables = VariableExtractor.extractVariables(expr);
+        if (variables.isEmpty()) {
+            return (value == 0.0 ? "等式は成り立ちます" : "等式は成り立ちません（左辺 - 右辺 = " + value + "）") + "\n\n";
+        }
+        String var = variables.contains("x") ? "x" : variables.iterator().next();
+        EquationSolver.Result r = EquationSolver.DEFAULT.solve(expr, var, variableContext, -SOLVE_RANGE, SOLVE_RANGE);
+        StringBuilder sb = new StringBuilder();
+        sb.append(var).append(" について解きました（範囲 [").append(-SOLVE_RANGE).append(", ").append(SOLVE_RANGE).append("]）\n");
+        if (r.identity) {
+            sb.append("恒等式です（範囲内の値のある ").append(var).append(" ではすべて成り立ちます）\n");
+        } else if (r.roots.length == 0 && r.segments.length == 0) {
+            sb.append("実数解はありません\n");
+        }
+        for (double root : r.roots) {
+            sb.append("  ").append(var).append(" = ").append(root).append("\n");
+        }
+        for (double[] s : r.segments) {
+            sb.append("  ").append(s[0]).append(" ≤ ").append(var).append(" ≤ ").append(s[1])
+                    .append("（この範囲のすべての値で成り立ちます）\n");
+        }
+        if (!r.complete) {
+            sb.append("（時間の上限で探索を打ち切ったため、見つかっていない解があるかもしれません）\n");
+        }
+        return sb.append("\n").toString();
+    }
+    
+    /**
+     * 四則演算だけの式なら分数での正確な値（doubleの答えと同じ整数なら何も出さない）
+     */
+    private String exactText(Expr expr, double value) {
+        Rational exact;
+        try {
+            exact = ExactEvaluator.evaluate(expr);
+        } catch (ArithmeticException e) {
+            return ""; // doubleでは丸めで0にならなかった割る数が、正確には0だった場合
+        }
+        if (exact == null || (exact.isInteger() && exact.doubleValue() == value)) return "";
+        return "正確な値 = " + exact + "\n";
+    }
+    
+    /**
+     * 各変数についての感度（入力欄の値での偏微分係数）を前進型の自動微分で求めて並べる
+     */
+    private String sensitivityText(Expr expr) {
+        BoundExpr bound = BoundExpr.bind(expr);
+        if (bound.layout().size() == 0) return "";
+        double[] vars = bound.layout().assignment(variableContext);
+        double[] out = new double[2];
+        StringBuilder sb = new StringBuilder("感度（入力欄の値での偏微分係数）:\n");
+        for (int slot = 0; slot < bound.layout().size(); slot++) {
+            bound.evalDual(vars, slot, out);
+            sb.append("  ∂/∂").append(bound.layout().names().get(slot)).append(" = ").append(out[1]).append("\n");
+        }
+        return sb.toString();
+    }
+    
     /**
      * 描画用Canvas（DrawingApli01のMyCanvasを参考）
      */
@@ -513,7 +513,17 @@ public class OnnxInference implements AutoCloseable {
                     }
                 }
                 
-                result.add(new DetSymbol(cls, token, cand.score, cand.bbox));
+                // 2位のクラスはN-best探索（NBestRecognizer）用の候補として残す
+                // 9→pの補正をした場合は、元の9が候補になる
+                List<DetSymbol.Alternative> alternatives = new ArrayList<>();
+                if (cand.secondBestClass >= 0 && labelMap.isValidClassId(cand.secondBestClass)) {
+                    boolean corrected = !cls.equals(labelMap.getClassLabel(cand.classId));
+                    int altClass = corrected ? cand.classId : cand.secondBestClass;
+                    double altScore = corrected ? cand.score : cand.secondBestScore;
+                    String altCls = labelMap.getClassLabel(altClass);
+                    alternatives.add(new DetSymbol.Alternative(altCls, labelMap.getToken(altCls), altScore));
+                }
+                result.add(new DetSymbol(cls, token, cand.score, cand.bbox, alternatives));
             } catch (IllegalArgumentException e) {
                 System.err.println(String.format("[WARN] クラスID %d の処理に失敗: %s (スコア=%.3f)", 
                     cand.classId, e.getMessage(), cand.score));
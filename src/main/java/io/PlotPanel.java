@@ -0,0 +1,126 @@
+package io;
+
+import java.awt.*;
+import java.util.Arrays;
+
+import ast.AdaptiveSampler;
+
+/**
+ * AdaptiveSampler.Curveを折れ線で描くCanvas
+ * yが有限でない点（定義域の外や極）で線を切る。
+ * yの表示範囲は、極の近くの大きな値に引きずられないよう有限な値の2%〜98%に余白を足して決める。
+ */
+public class PlotPanel extends Canvas {
+
+    private static final int MARGIN = 40;
+
+    private AdaptiveSampler.Curve curve;
+    private String label = "";
+    private double yMin = -1.0;
+    private double yMax = 1.0;
+
+    public PlotPanel() {
+        setBackground(Color.WHITE);
+        setPreferredSize(new Dimension(800, 600));
+    }
+
+    /**
+     * 描く点列を差し替える
+     */
+    public void setCurve(AdaptiveSampler.Curve curve, String label) {
+        this.curve = curve;
+        this.label = label;
+        double[] finite = Arrays.stream(curve.ys).filter(Double::isFinite).sorted().toArray();
+        if (finite.length == 0) {
+            yMin = -1.0;
+            yMax = 1.0;
+        } else {
+            double lo = finite[(int) ((finite.length - 1) * 0.02)];
+            double hi = finite[(int) ((finite.length - 1) * 0.98)];
+            double pad = hi > lo ? (hi - lo) * 0.1 : Math.max(1.0, Math.abs(lo));
+            yMin = lo - pad;
+            yMax = hi + pad;
+        }
+        repaint();
+    }
+
+    @Override
+    public void update(Graphics g) {
+        paint(g);
+    }
+
+    @Override
+    public void paint(Graphics g) {
+        int w = getWidth();
+        int h = getHeight();
+        Image buffer = createImage(w, h);
+        if (buffer == null) return;
+        Graphics2D g2 = (Graphics2D) buffer.getGraphics();
+        g2.setColor(Color.WHITE);
+        g2.fillRect(0, 0, w, h);
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        if (curve != null && curve.size() > 0) {
+            drawAxes(g2, w, h);
+            drawCurve(g2, w, h);
+        }
+        g2.dispose();
+        g.drawImage(buffer, 0, 0, this);
+    }
+
+    private void drawAxes(Graphics2D g2, int w, int h) {
+        double xMin = curve.xs[0];
+        double xMax = curve.xs[curve.size() - 1];
+        g2.setColor(Color.LIGHT_GRAY);
+        g2.drawRect(MARGIN, MARGIN, w - 2 * MARGIN, h - 2 * MARGIN);
+        if (xMin < 0 && 0 < xMax) {
+            int px = toPixelX(0.0, xMin, xMax, w);
+            g2.drawLine(px, MARGIN, px, h - MARGIN);
+        }
+        if (yMin < 0 && 0 < yMax) {
+            int py = toPixelY(0.0, h);
+            g2.drawLine(MARGIN, py, w - MARGIN, py);
+        }
+        g2.setColor(Color.DARK_GRAY);
+        g2.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 12));
+        g2.drawString(String.format("%.3g", xMin), MARGIN, h - MARGIN / 3);
+        String right = String.format("%.3g", xMax);
+        g2.drawString(right, w - MARGIN - g2.getFontMetrics().stringWidth(right), h - MARGIN / 3);
+        g2.drawString(String.format("%.3g", yMax), 2, MARGIN);
+        g2.drawString(String.format("%.3g", yMin), 2, h - MARGIN);
+        g2.drawString(label + "  （" + curve.size() + "点）", MARGIN, MARGIN - 8);
+    }
+
+    private void drawCurve(Graphics2D g2, int w, int h) {
+        double xMin = curve.xs[0];
+        double xMax = curve.xs[curve.size() - 1];
+        g2.setColor(Color.BLUE);
+        g2.setStroke(new BasicStroke(2.0f));
+        g2.clipRect(MARGIN, MARGIN, w - 2 * MARGIN, h - 2 * MARGIN);
+        boolean penDown = false;
+        int prevX = 0;
+        int prevY = 0;
+        for (int i = 0; i < curve.size(); i++) {
+            double y = curve.ys[i];
+            if (!Double.isFinite(y)) {
+                penDown = false;
+                continue;
+            }
+            int px = toPixelX(curve.xs[i], xMin, xMax, w);
+            int py = toPixelY(y, h);
+            if (penDown) g2.drawLine(prevX, prevY, px, py);
+            prevX = px;
+            prevY = py;
+            penDown = true;
+        }
+    }
+
+    private int toPixelX(double x, double xMin, double xMax, int w) {
+        return MARGIN + (int) Math.round((x - xMin) / (xMax - xMin) * (w - 2 * MARGIN));
+    }
+
+    private int toPixelY(double y, int h) {
+        // 表示範囲から大きく外れた値は、線の向きが分かる程度に画面の外へ丸める
+        double t = Math.max(-1.0, Math.min(2.0, (y - yMin) / (yMax - yMin)));
+        return h - MARGIN - (int) Math.round(t * (h - 2 * MARGIN));
+    }
+}
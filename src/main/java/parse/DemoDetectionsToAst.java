@@ -7,17 +7,36 @@ import java.util.*;
 public class DemoDetectionsToAst {
     public static void main(String[] args) throws Exception {
         if (args.length < 1) {
-            System.out.println("Usage: DemoDetectionsToAst <detections.json>");
+            System.out.println("Usage: DemoDetectionsToAst [--page | --nbest K] <detections.json>");
+            System.out.println("       DemoDetectionsToAst --all <detections.json>...");
             System.exit(1);
         }
 
-        String path = args[0];
+        // --all: 複数ファイルをまとめて並列に変換する
+        if (args[0].equals("--all")) {
+            runAll(Arrays.asList(args).subList(1, args.length));
+            return;
+        }
+
+        // --page: 複数行のページとして行ごとに変換する
+        // --nbest K: クラス候補を使って上位K個の式候補を出す
+        boolean page = args[0].equals("--page");
+        int nbest = args[0].equals("--nbest") ? Integer.parseInt(args[1]) : 0;
+        String path = page ? args[1] : nbest > 0 ? args[2] : args[0];
 
         LabelMap labelMap = new LabelMap();
         List<String> loadWarnings = new ArrayList<>();
         Detection det = DetectionJson.load(path, labelMap, loadWarnings);
         
         SpatialToExpr conv = new SpatialToExpr();
+        if (page) {
+            printPage(conv.buildPage(det), loadWarnings);
+            return;
+        }
+        if (nbest > 0) {
+            printNBest(new NBestRecognizer(conv, 16, 0.3).recognize(det, nbest), loadWarnings);
+            return;
+        }
         SpatialToExpr.Result r = conv.buildExprString(det);
 
         // 警告を先に表示（読み込み時の警告 + 変換時の警告）
@@ -42,4 +61,51 @@ public class DemoDetectionsToAst {
         System.out.println("[ast-json]");
         System.out.println(AstJson.toJsonV1(e).toString(2));
     }
+
+    private static void printPage(List<SpatialToExpr.LineResult> lines, List<String> loadWarnings) {
+        for (String w : loadWarnings) {
+            System.out.println("[warn] " + w);
+        }
+        System.out.println("[lines] " + lines.size());
+        for (SpatialToExpr.LineResult line : lines) {
+            System.out.printf("[line %d] bbox=[%.0f,%.0f,%.0f,%.0f] expr=%s%n",
+                    line.lineIndex, line.box.x1, line.box.y1, line.box.x2, line.box.y2, line.result.expr);
+            if (line.ast != null) {
+                System.out.println("  [eval] x=1.0 => " + line.ast.eval(1.0));
+            } else {
+                System.out.println("  [error] " + line.parseError);
+            }
+        }
+    }
+
+    private static void printNBest(List<NBestRecognizer.Candidate> candidates, List<String> loadWarnings) {
+        for (String w : loadWarnings) {
+            System.out.println("[warn] " + w);
+        }
+        System.out.println("[candidates] " + candidates.size());
+        for (int i = 0; i < candidates.size(); i++) {
+            NBestRecognizer.Candidate c = candidates.get(i);
+            System.out.printf("[%d] conf=%.3f expr=%s%n", i + 1, c.confidence, c.expr);
+        }
+    }
+
+    private static void runAll(List<String> paths) throws Exception {
+        LabelMap labelMap = new LabelMap();
+        List<Detection> dets = new ArrayList<>();
+        for (String p : paths) {
+            dets.add(DetectionJson.load(p, labelMap, new ArrayList<>()));
+        }
+        List<SpatialToExpr.BatchResult> results = new SpatialToExpr(labelMap).buildAll(dets);
+        int ok = 0;
+        for (SpatialToExpr.BatchResult r : results) {
+            String expr = r.result != null ? r.result.expr : "";
+            if (r.ok()) {
+                ok++;
+                System.out.println("[ok] " + paths.get(r.index) + " expr=" + expr);
+            } else {
+                System.out.println("[ng] " + paths.get(r.index) + " expr=" + expr + " error=" + r.error);
+            }
+        }
+        System.out.println("RESULT: ok=" + ok + " ng=" + (results.size() - ok) + " total=" + results.size());
+    }
 }
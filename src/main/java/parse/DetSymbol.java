@@ -1,15 +1,38 @@
 package parse;
 
+import java.util.*;
+
 public class DetSymbol {
     public final String cls;     // raw class label (e.g., "digit_3" or "+" or "sin")
     public final String token;   // normalized token used in expression string (e.g., "3" or "+" or "sin")
     public final double score;
     public final BBox box;
+    public final List<Alternative> alternatives; // 2位以下のクラス候補（スコア降順、なければ空）
+
+    /**
+     * 同じbboxに対する別のクラス候補
+     */
+    public static class Alternative {
+        public final String cls;
+        public final String token;
+        public final double score;
+
+        public Alternative(String cls, String token, double score) {
+            this.cls = cls;
+            this.token = token;
+            this.score = score;
+        }
+    }
 
     public DetSymbol(String cls, String token, double score, BBox box) {
+        this(cls, token, score, box, List.of());
+    }
+
+    public DetSymbol(String cls, String token, double score, BBox box, List<Alternative> alternatives) {
         this.cls = cls;
         this.token = token;
         this.score = score;
         this.box = box;
+        this.alternatives = List.copyOf(alternatives);
     }
 }
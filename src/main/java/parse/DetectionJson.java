@@ -38,7 +38,7 @@ public class DetectionJson {
 
             try {
                 String token = labelMap.toToken(cls);
-                syms.add(new DetSymbol(cls, token, score, box));
+                syms.add(new DetSymbol(cls, token, score, box, loadAlternatives(d, labelMap)));
             } catch (IllegalArgumentException e) {
                 // 不明なクラス名の場合、警告を追加してスキップ
                 if (warnings != null) {
@@ -50,4 +50,24 @@ public class DetectionJson {
         }
         return new Detection(w, h, syms);
     }
+
+    /**
+     * 任意の "alternatives": [{"cls": "p", "score": 0.4}, ...] を読む（未知のクラス名は無視）
+     */
+    private static List<DetSymbol.Alternative> loadAlternatives(JSONObject d, LabelMap labelMap) {
+        JSONArray alts = d.optJSONArray("alternatives");
+        if (alts == null) return List.of();
+        List<DetSymbol.Alternative> out = new ArrayList<>();
+        for (int k = 0; k < alts.length(); k++) {
+            JSONObject a = alts.getJSONObject(k);
+            String cls = a.getString("cls");
+            try {
+                out.add(new DetSymbol.Alternative(cls, labelMap.toToken(cls), a.optDouble("score", 0.0)));
+            } catch (IllegalArgumentException e) {
+                // 不明なクラス名の候補は使わない
+            }
+        }
+        out.sort((x, y) -> Double.compare(y.score, x.score));
+        return out;
+    }
 }
@@ -0,0 +1,182 @@
+package parse;
+
+import java.util.*;
+
+/**
+ * SpatialToExprが出す警告・デバッグ情報を構造化したもの
+ *
+ * コード・関係するシンボル（トークン）の位置・数値パラメータだけを保持し、
+ * 文字列への整形はrender()が呼ばれたときに初めて行う。
+ * symbolsの位置は、コードが示す処理段階でのシンボル列（またはトークン列）の添字。
+ */
+public class Diagnostic {
+
+    public enum Code {
+        NO_SYMBOLS,
+        LOW_SCORE_DROPPED,        // params: 数字数, 演算子数, 関数数, 除外総数, 閾値
+        NOTHING_LEFT,             // params: 検出数, 最小スコア, 最大スコア, 平均スコア, 閾値
+        SORTED_SYMBOLS,           // texts: トークン, params: 各cx
+        MERGED_SYMBOLS,           // texts: トークン, params: 各cx
+        MULTIPLE_EXPONENTS,       // symbols: 指数のシンボル
+        TOKENS_INITIAL,           // texts: トークン列（以下 TOKENS_* は同様）
+        TOKENS_AFTER_POWER,
+        TOKENS_AFTER_SQRT,
+        TOKENS_AFTER_ABS,
+        TOKENS_AFTER_DIFF,
+        TOKENS_AFTER_LIMIT,
+        TOKENS_BEFORE_FRACTION,
+        TOKENS_AFTER_FRACTION,
+        TOKENS_AFTER_IMPLICIT_MUL,
+        UNBALANCED_PAREN,
+        FRACTION_SIZE_MISMATCH,
+        FRACTION_OUTSIDE_DIGIT,   // symbols: 除外した数字, texts: そのトークン, params: x, 分数線範囲の左端, 右端
+        FRACTION_PARTS,           // texts: 分子, 分母, params: 分子数, 分母数, 0, 0, 分数線y, 各cy
+        FRACTION_SPLIT,           // texts: 分子, 分母, 前, 後, params: 分子数, 分母数, 前の数, 後の数, 分数線y, 分子・分母の各cy
+        LIMIT_SIZE_MISMATCH,
+        LIMIT_CANDIDATES,         // symbols: 候補, texts: トークン, params: 各x
+        LIMIT_NO_VARIABLE,        // texts: 候補トークン
+        LIMIT_NO_ARROW,
+        LIMIT_NO_VALUE,
+        LIMIT_INCOMPLETE,         // texts: 見つかった変数（なければ空）, params: 矢印が見つかったら1
+        PAREN_OPEN_TO_CLOSE,      // symbols: 修正位置, params: bbox情報を使ったら1
+        PAREN_CLOSE_TO_OPEN       // symbols: 修正位置, params: bbox情報を使ったら1
+    }
+
+    private static final int[] NO_SYMBOLS = new int[0];
+    private static final double[] NO_PARAMS = new double[0];
+
+    public final Code code;
+    public final int[] symbols;
+    public final double[] params;
+    public final List<String> texts;
+
+    public Diagnostic(Code code, int[] symbols, double[] params, List<String> texts) {
+        this.code = code;
+        this.symbols = symbols != null ? symbols : NO_SYMBOLS;
+        this.params = params != null ? params : NO_PARAMS;
+        this.texts = texts != null ? texts : List.of();
+    }
+
+    /**
+     * 人が読む形式の文字列に整形する
+     */
+    public String render() {
+        switch (code) {
+            case NO_SYMBOLS:
+                return "検出されたシンボルがありません";
+            case LOW_SCORE_DROPPED: {
+                List<String> parts = new ArrayList<>();
+                if (params[0] > 0) parts.add(String.format("数字 %d個", (int) params[0]));
+                if (params[1] > 0) parts.add(String.format("演算子 %d個", (int) params[1]));
+                if (params[2] > 0) parts.add(String.format("関数 %d個", (int) params[2]));
+                if (parts.isEmpty()) {
+                    // その他（括弧など）のみの場合
+                    return String.format("確率の低いシンボル %d個を除外しました (閾値=%.2f)", (int) params[3], params[4]);
+                }
+                return String.format("確率の低いシンボルを除外: %s (閾値=%.2f)", String.join(", ", parts), params[4]);
+            }
+            case NOTHING_LEFT:
+                if (params.length < 5) return "フィルタリング後にシンボルが残りませんでした";
+                return String.format("フィルタリング後にシンボルが残りませんでした (検出数=%d, スコア範囲=%.3f-%.3f, 平均=%.3f, 閾値=%.2f)",
+                        (int) params[0], params[1], params[2], params[3], params[4]);
+            case SORTED_SYMBOLS:
+                return "ソート後のシンボル列: " + tokensWithCoords(0, texts.size(), 0);
+            case MERGED_SYMBOLS:
+                return "関数名マージ後のシンボル列: " + tokensWithCoords(0, texts.size(), 0);
+            case MULTIPLE_EXPONENTS:
+                return String.format("複数の指数候補が検出されました (%d個のシンボル)、すべて使用します", symbols.length);
+            case TOKENS_INITIAL:
+                return "トークン列生成直後: " + String.join(" ", texts);
+            case TOKENS_AFTER_POWER:
+                return "べき乗処理後のトークン列: " + String.join(" ", texts);
+            case TOKENS_AFTER_SQRT:
+                return "ルート処理後のトークン列: " + String.join(" ", texts);
+            case TOKENS_AFTER_ABS:
+                return "絶対値処理後のトークン列: " + String.join(" ", texts);
+            case TOKENS_AFTER_DIFF:
+                return "微分処理後のトークン列: " + String.join(" ", texts);
+            case TOKENS_AFTER_LIMIT:
+                return "極限処理後のトークン列: " + String.join(" ", texts);
+            case TOKENS_BEFORE_FRACTION:
+                return "分数処理前のトークン列: " + String.join(" ", texts);
+            case TOKENS_AFTER_FRACTION:
+                return "分数処理後のトークン列: " + String.join(" ", texts);
+            case TOKENS_AFTER_IMPLICIT_MUL:
+                return "暗黙の掛け算処理後のトークン列: " + String.join(" ", texts);
+            case UNBALANCED_PAREN:
+                return "括弧の対応が取れていません（検出ミスの可能性があります）";
+            case FRACTION_SIZE_MISMATCH:
+                return "分数処理: tokenSymbolsのサイズが一致しません";
+            case FRACTION_OUTSIDE_DIGIT:
+                return String.format("分数処理: 分数線の外側の数字 '%s' を除外 (x=%.1f, 分数線範囲=%.1f-%.1f)",
+                        texts.get(0), params[0], params[1], params[2]);
+            case FRACTION_PARTS:
+            case FRACTION_SPLIT:
+                return renderFraction();
+            case LIMIT_SIZE_MISMATCH:
+                return "極限処理: tokenSymbolsのサイズが一致しません";
+            case LIMIT_CANDIDATES:
+                return "lim処理: 候補数=" + texts.size() + " [" + tokensWithCoords(0, texts.size(), 0) + "]";
+            case LIMIT_NO_VARIABLE:
+                return "lim処理: 変数が見つかりませんでした (候補: " + String.join(", ", texts) + ")";
+            case LIMIT_NO_ARROW:
+                return "lim処理: 矢印が見つかりませんでした";
+            case LIMIT_NO_VALUE:
+                return "lim処理: 収束値が見つかりませんでした";
+            case LIMIT_INCOMPLETE: {
+                StringBuilder sb = new StringBuilder("極限処理: limの後に変数、矢印、収束値が見つかりませんでした");
+                if (!texts.isEmpty()) sb.append(" (変数=").append(texts.get(0)).append(")");
+                if (params.length > 0 && params[0] != 0) sb.append(" (矢印=→)");
+                return sb.toString();
+            }
+            case PAREN_OPEN_TO_CLOSE:
+                return String.format("括弧の対応を修正: 位置%dの(を)に変更", symbols[0]) + bboxSuffix();
+            case PAREN_CLOSE_TO_OPEN:
+                return String.format("括弧の対応を修正: 位置%dの)を(に変更", symbols[0]) + bboxSuffix();
+            default:
+                return code.name();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return render();
+    }
+
+    private String bboxSuffix() {
+        return params.length > 0 && params[0] != 0 ? " (bbox情報を使用)" : "";
+    }
+
+    /**
+     * "t(1.0) t(2.0) " 形式（texts[from, to) と params[paramOffset...] を対応させる）
+     */
+    private String tokensWithCoords(int from, int to, int paramOffset) {
+        StringBuilder sb = new StringBuilder();
+        for (int k = from; k < to; k++) {
+            sb.append(texts.get(k)).append("(").append(String.format("%.1f", params[paramOffset + k - from])).append(") ");
+        }
+        return sb.toString();
+    }
+
+    private String renderFraction() {
+        int nNum = (int) params[0];
+        int nDen = (int) params[1];
+        int nBefore = (int) params[2];
+        int nAfter = (int) params[3];
+        double fracY = params[4];
+
+        StringBuilder sb = new StringBuilder("分数処理: 分子=");
+        sb.append(nNum == 0 ? "なし" : tokensWithCoords(0, nNum, 5));
+        sb.append(", 分母=");
+        sb.append(nDen == 0 ? "なし" : tokensWithCoords(nNum, nNum + nDen, 5 + nNum));
+        if (code == Code.FRACTION_SPLIT) {
+            sb.append(", 前=");
+            sb.append(nBefore == 0 ? "なし" : String.join(" ", texts.subList(nNum + nDen, nNum + nDen + nBefore)) + " ");
+            sb.append(", 後=");
+            int a = nNum + nDen + nBefore;
+            sb.append(nAfter == 0 ? "なし" : String.join(" ", texts.subList(a, a + nAfter)) + " ");
+        }
+        sb.append(", 分数線y=").append(String.format("%.1f", fracY));
+        return sb.toString();
+    }
+}
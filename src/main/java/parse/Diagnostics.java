@@ -0,0 +1,54 @@
+package parse;
+
+import java.util.*;
+
+/**
+ * Diagnosticの収集先
+ *
+ * 無効なインスタンスは何も保持しない。呼び出し側はデバッグ用のトークン列などを
+ * 組み立てる前にenabled()を確認し、無効なら組み立て自体を省略する。
+ */
+public class Diagnostics {
+
+    private final List<Diagnostic> items;
+
+    private Diagnostics(List<Diagnostic> items) {
+        this.items = items;
+    }
+
+    /** 収集する */
+    public static Diagnostics collecting() {
+        return new Diagnostics(new ArrayList<>());
+    }
+
+    /** 何も収集しない */
+    public static Diagnostics disabled() {
+        return new Diagnostics(null);
+    }
+
+    public boolean enabled() {
+        return items != null;
+    }
+
+    public void add(Diagnostic.Code code) {
+        if (items != null) items.add(new Diagnostic(code, null, null, null));
+    }
+
+    public void add(Diagnostic.Code code, int[] symbols, double[] params, List<String> texts) {
+        if (items != null) items.add(new Diagnostic(code, symbols, params, texts));
+    }
+
+    /**
+     * トークン列のスナップショットを記録する（後で元のリストが変わっても影響しない）
+     */
+    public void addTokens(Diagnostic.Code code, List<String> tokens) {
+        if (items != null) items.add(new Diagnostic(code, null, null, List.copyOf(tokens)));
+    }
+
+    /**
+     * 収集したDiagnostic（無効なら空リスト）
+     */
+    public List<Diagnostic> list() {
+        return items != null ? Collections.unmodifiableList(items) : List.of();
+    }
+}
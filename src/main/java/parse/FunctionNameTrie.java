@@ -0,0 +1,65 @@
+package parse;
+
+import java.util.*;
+
+/**
+ * 関数名の語彙を文字単位のトライ木にしたもの
+ * 1文字ずつ検出されたシンボル列（例: 's','i','n'）から、最長一致する関数名を1パスで探す
+ *
+ * 構築後は変更しないので、複数スレッドから共有してよい
+ */
+public class FunctionNameTrie {
+
+    private static class Node {
+        final Map<Character, Node> children = new HashMap<>();
+        String word; // この位置で終わる関数名（なければnull）
+    }
+
+    private final Node root = new Node();
+
+    public FunctionNameTrie(Collection<String> names) {
+        for (String name : names) {
+            if (name == null || name.isEmpty()) continue;
+            Node n = root;
+            for (int i = 0; i < name.length(); i++) {
+                n = n.children.computeIfAbsent(name.charAt(i), c -> new Node());
+            }
+            n.word = name;
+        }
+    }
+
+    /**
+     * 一致した関数名と、それを構成するシンボル数
+     */
+    public static class Match {
+        public final String name;
+        public final int length;
+
+        Match(String name, int length) {
+            this.name = name;
+            this.length = length;
+        }
+    }
+
+    /**
+     * symbols[start] から始まる最長一致の関数名を探す
+     * @return 一致結果（一致なしならnull）
+     */
+    public Match longestMatch(List<DetSymbol> symbols, int start) {
+        Node n = root;
+        String bestName = null;
+        int bestLength = 0;
+        for (int i = start; i < symbols.size(); i++) {
+            String tok = symbols.get(i).token;
+            for (int k = 0; k < tok.length() && n != null; k++) {
+                n = n.children.get(tok.charAt(k));
+            }
+            if (n == null) break;
+            if (n.word != null) {
+                bestName = n.word;
+                bestLength = i - start + 1;
+            }
+        }
+        return bestName != null ? new Match(bestName, bestLength) : null;
+    }
+}
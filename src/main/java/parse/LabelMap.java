@@ -5,6 +5,9 @@ import java.util.*;
 public class LabelMap {
     private final Map<String, String> map = new HashMap<>();
     private final String[] idToClass;  // クラスID → クラス名のマッピング
+    // 1文字ずつ検出された文字列から組み立てる関数名（SpatialToExprの関数名マージで使用）
+    private final Set<String> functionNames = new LinkedHashSet<>(
+        List.of("sin", "cos", "tan", "sec", "csc", "cot", "ln", "log", "lim"));
 
     public LabelMap() {
         // 例：モデル側のクラス名に合わせて調整していく
@@ -71,6 +74,23 @@ public class LabelMap {
         // 合計61クラス（0-60）
     }
 
+    /**
+     * 関数名マージの対象となる関数名の一覧
+     */
+    public Set<String> getFunctionNames() {
+        return Collections.unmodifiableSet(functionNames);
+    }
+
+    /**
+     * 関数名マージの対象に関数名を追加する（例: "sinh"）
+     */
+    public void addFunctionName(String name) {
+        if (name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("Invalid function name: " + name);
+        }
+        functionNames.add(name);
+    }
+
     /**
      * クラスIDからクラス名を取得
      * 
@@ -0,0 +1,151 @@
+package parse;
+
+import java.util.*;
+
+/**
+ * ページ全体の検出結果を「式の行」に分割するユーティリティ
+ *
+ * 1) シンボルのy範囲が重なるものを同じ帯（band）にまとめる
+ * 2) 分数線（横長の / や -）の真上・真下にある帯は分数の一部として同じ行に戻す
+ *
+ * 分子・分母・分数線はy範囲が重ならないため、1) だけだと3行に割れてしまう。
+ * 2) で分数線を軸に上下の帯を結合することで分数を1行として保つ。
+ */
+public class LineSegmenter {
+
+    /**
+     * 1行分のシンボルと、その行のbbox
+     */
+    public static class Line {
+        public final List<DetSymbol> symbols;
+        public final BBox box;
+
+        Line(List<DetSymbol> symbols, BBox box) {
+            this.symbols = Collections.unmodifiableList(symbols);
+            this.box = box;
+        }
+    }
+
+    /**
+     * 帯（y方向に重なるシンボルの集まり）
+     */
+    private static class Band {
+        final List<DetSymbol> symbols = new ArrayList<>();
+        double y1 = Double.POSITIVE_INFINITY;
+        double y2 = Double.NEGATIVE_INFINITY;
+        double x1 = Double.POSITIVE_INFINITY;
+        double x2 = Double.NEGATIVE_INFINITY;
+
+        void add(DetSymbol s) {
+            symbols.add(s);
+            y1 = Math.min(y1, s.box.y1);
+            y2 = Math.max(y2, s.box.y2);
+            x1 = Math.min(x1, s.box.x1);
+            x2 = Math.max(x2, s.box.x2);
+        }
+
+        void addAll(Band other) {
+            for (DetSymbol s : other.symbols) add(s);
+        }
+    }
+
+    // 重なり判定時に各シンボルの上下を縮める割合（隣の行と接しているだけの場合に結合しないため）
+    private static final double SHRINK_RATIO = 0.15;
+
+    /**
+     * シンボル列を行に分割する（上から順に並べて返す）
+     */
+    public static List<Line> split(List<DetSymbol> symbols) {
+        if (symbols.isEmpty()) return new ArrayList<>();
+
+        double medianH = medianHeight(symbols);
+
+        // 1) cyでソートして、y範囲（縮めたもの）が重なる限り同じ帯に入れる
+        List<DetSymbol> sorted = new ArrayList<>(symbols);
+        sorted.sort(Comparator.comparingDouble(s -> s.box.cy()));
+
+        List<Band> bands = new ArrayList<>();
+        Band cur = null;
+        double curBottom = Double.NEGATIVE_INFINITY;
+        for (DetSymbol s : sorted) {
+            double shrink = s.box.h() * SHRINK_RATIO;
+            double top = s.box.y1 + shrink;
+            double bottom = s.box.y2 - shrink;
+            if (cur == null || top > curBottom) {
+                cur = new Band();
+                bands.add(cur);
+                curBottom = bottom;
+            } else {
+                curBottom = Math.max(curBottom, bottom);
+            }
+            cur.add(s);
+        }
+
+        // 2) 分数線を含む帯と、その上下の帯を結合（変化がなくなるまで）
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < bands.size() && !changed; i++) {
+                Band band = bands.get(i);
+                for (DetSymbol bar : band.symbols) {
+                    if (!isFractionBar(bar)) continue;
+                    int above = i - 1;
+                    int below = i + 1;
+                    boolean joinAbove = above >= 0 && attachesToBar(bands.get(above), bar, medianH, true);
+                    boolean joinBelow = below < bands.size() && attachesToBar(bands.get(below), bar, medianH, false);
+                    // 分子と分母のどちらか片方しかない場合も分数として扱う（分母は空なら1になる）
+                    if (joinBelow) {
+                        band.addAll(bands.remove(below));
+                        changed = true;
+                    }
+                    if (joinAbove) {
+                        bands.get(above).addAll(bands.remove(i));
+                        changed = true;
+                    }
+                    if (changed) break;
+                }
+            }
+        }
+
+        List<Line> lines = new ArrayList<>();
+        for (Band b : bands) {
+            List<DetSymbol> lineSymbols = new ArrayList<>(b.symbols);
+            lineSymbols.sort(Comparator.comparingDouble(s -> s.box.cx()));
+            lines.add(new Line(lineSymbols, new BBox(b.x1, b.y1, b.x2, b.y2)));
+        }
+        lines.sort(Comparator.comparingDouble(l -> l.box.y1));
+        return lines;
+    }
+
+    /**
+     * 分数線らしいシンボルか（横長の / または -）
+     */
+    private static boolean isFractionBar(DetSymbol s) {
+        if (!s.token.equals("/") && !s.token.equals("-")) return false;
+        return s.box.w() > s.box.h() * 2.0;
+    }
+
+    /**
+     * 帯が分数線の真上（または真下）に近接しているか
+     */
+    private static boolean attachesToBar(Band band, DetSymbol bar, double medianH, boolean above) {
+        double gap = above ? bar.box.y1 - band.y2 : band.y1 - bar.box.y2;
+        if (gap > medianH * 0.75) return false;
+
+        // 帯の中で分数線のx範囲に中心が入るシンボルが過半数なら分子/分母とみなす
+        double margin = bar.box.w() * 0.25;
+        int inside = 0;
+        for (DetSymbol s : band.symbols) {
+            double cx = s.box.cx();
+            if (cx >= bar.box.x1 - margin && cx <= bar.box.x2 + margin) inside++;
+        }
+        return inside * 2 > band.symbols.size();
+    }
+
+    private static double medianHeight(List<DetSymbol> symbols) {
+        double[] hs = new double[symbols.size()];
+        for (int i = 0; i < hs.length; i++) hs[i] = symbols.get(i).box.h();
+        Arrays.sort(hs);
+        return hs[hs.length / 2];
+    }
+}
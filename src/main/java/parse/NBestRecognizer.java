@@ -0,0 +1,264 @@
+package parse;
+
+import ast.Expr;
+import java.util.*;
+
+/**
+ * クラス候補（DetSymbol.alternatives）を使ったN-best認識
+ *
+ * x座標順に並べたシンボルごとに「1位 + 2位以下の候補」を並べたラティスを作り、
+ * ビームサーチで検出スコアの高い組み合わせを探す。
+ * 仮説は親へのポインタで前置部分を共有し、前置部分だけで構文的に破綻した時点
+ * （演算子の連続など）でその枝を捨てる（ビームの枠も使わない）。
+ * 構文チェックはレイアウト解析が別々に読むまとまり（SpatialToExpr.structureOf: 本体・分子・分母・べきの指数）ごとに行う。
+ * x座標順では分子と分母の記号が交互に並ぶため、1列として見ると正しい読みが破綻扱いになってしまう。
+ * 分数全体は本体の中で分数線の位置にある1つの値として扱う。まとまりは1位のクラスと位置で決める。
+ * 最後に上位の仮説だけをSpatialToExpr + Parserに通し、パースできた式を返す。
+ * 破綻していない仮説が1つも残らない場合だけ、破綻した仮説で続ける（検出が崩れていても候補を返すため）。
+ */
+public class NBestRecognizer {
+
+    /**
+     * 認識結果の1候補
+     */
+    public static class Candidate {
+        public final String expr;      // 式文字列
+        public final Expr ast;         // パース結果
+        public final double logScore;  // 採用したクラスのスコアの対数和
+        public final double confidence; // スコアの幾何平均（0-1）
+        public final List<String> tokens; // x座標順に採用したトークン
+
+        Candidate(String expr, Expr ast, double logScore, double confidence, List<String> tokens) {
+            this.expr = expr;
+            this.ast = ast;
+            this.logScore = logScore;
+            this.confidence = confidence;
+            this.tokens = tokens;
+        }
+    }
+
+    // 前置部分の最後のトークンの種類（構文チェック用）
+    private static final int START = 0;
+    private static final int OPERAND = 1;   // 数字・変数・定数・閉じ括弧
+    private static final int BINARY = 2;    // + * ^ = → など
+    private static final int MINUS = 3;     // - （単項にもなれる）
+    private static final int OPEN = 4;     // ( や関数名・√（後ろに値が必要）
+
+    // 構文的に破綻した仮説へのペナルティ（破綻した仮説で続けるとき、末尾が開いているだけの仮説を先に並べる）
+    private static final double BROKEN_PENALTY = -1e6;
+
+    /**
+     * ビーム中の仮説（親を共有する片方向リスト）
+     */
+    private static final class Hyp {
+        final Hyp parent;
+        final String cls;
+        final String token;
+        final double score;    // 採用したクラスのスコア
+        final double logScore;
+        final int[] last;      // まとまりごとの最後の（中立でない）トークンの種類
+        final boolean broken;  // 前置部分が構文的に破綻している
+
+        Hyp(Hyp parent, String cls, String token, double score, double logScore, int[] last, boolean broken) {
+            this.parent = parent;
+            this.cls = cls;
+            this.token = token;
+            this.score = score;
+            this.logScore = logScore;
+            this.last = last;
+            this.broken = broken;
+        }
+
+        /**
+         * どこかのまとまりが演算子で終わっているか
+         */
+        boolean endsOpen() {
+            for (int k : last) {
+                if (k == BINARY || k == MINUS) return true;
+            }
+            return false;
+        }
+
+        double rank() {
+            return broken ? logScore + BROKEN_PENALTY : logScore;
+        }
+    }
+
+    private final SpatialToExpr layout;
+    private final int beamWidth;
+    private final double minAlternativeRatio;
+
+    public NBestRecognizer() {
+        this(new SpatialToExpr(), 16, 0.3);
+    }
+
+    /**
+     * @param layout レイアウト解析に使うSpatialToExpr
+     * @param beamWidth 各位置で残す仮説数
+     * @param minAlternativeRatio 1位のスコアに対してこの比率未満の候補はラティスに入れない
+     */
+    public NBestRecognizer(SpatialToExpr layout, int beamWidth, double minAlternativeRatio) {
+        if (beamWidth < 1) throw new IllegalArgumentException("beamWidth must be >= 1");
+        this.layout = layout;
+        this.beamWidth = beamWidth;
+        this.minAlternativeRatio = minAlternativeRatio;
+    }
+
+    /**
+     * パースできる式を最大k個、スコアの高い順に返す
+     */
+    public List<Candidate> recognize(Detection det, int k) {
+        List<DetSymbol> symbols = new ArrayList<>(det.symbols);
+        symbols.sort(Comparator.comparingDouble(s -> s.box.cx()));
+        int n = symbols.size();
+        if (n == 0 || k <= 0) return new ArrayList<>();
+
+        // 構文チェックの単位（本体・分子・分母・べきの指数）
+        int[] structure = layout.structureOf(symbols);
+        int structures = 1;
+        for (int id : structure) structures = Math.max(structures, id + 1);
+        int[] start = new int[structures];
+        Arrays.fill(start, START);
+
+        // ビームサーチ（位置ごとに上位beamWidth個の仮説だけ残す）
+        List<Hyp> beam = new ArrayList<>();
+        beam.add(new Hyp(null, null, null, 1.0, 0.0, start, false));
+        for (int i = 0; i < n; i++) {
+            DetSymbol sym = symbols.get(i);
+            List<Hyp> next = expand(beam, sym, structure[i], false);
+            // 破綻していない仮説が残らなければ、破綻した仮説で続ける
+            if (next.isEmpty()) next = expand(beam, sym, structure[i], true);
+            next.sort((a, b) -> Double.compare(b.rank(), a.rank()));
+            beam = next.size() > beamWidth ? new ArrayList<>(next.subList(0, beamWidth)) : next;
+        }
+
+        // 末尾が演算子で終わる仮説も破綻扱いにする
+        List<Hyp> finals = new ArrayList<>();
+        List<Hyp> fallback = new ArrayList<>();
+        for (Hyp h : beam) {
+            boolean endsOpen = h.endsOpen();
+            if (!endsOpen && !h.broken) {
+                finals.add(h);
+            } else {
+                fallback.add(endsOpen && !h.broken
+                        ? new Hyp(h.parent, h.cls, h.token, h.score, h.logScore, h.last, true) : h);
+            }
+        }
+        List<Candidate> out = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        parseTop(finals, symbols, det, k, out, seen);
+        // 破綻していない仮説が1つもパースできなかったときだけ、破綻した仮説を試す
+        if (out.isEmpty()) {
+            fallback.sort((a, b) -> Double.compare(b.rank(), a.rank()));
+            parseTop(fallback, symbols, det, k, out, seen);
+        }
+        return out;
+    }
+
+    /**
+     * 上位から順にレイアウト解析 + パースして確認し、outに足す（同じ式は1つにまとめる）
+     */
+    private void parseTop(List<Hyp> finals, List<DetSymbol> symbols, Detection det, int k,
+                          List<Candidate> out, Set<String> seen) {
+        int n = symbols.size();
+        for (Hyp h : finals) {
+            if (out.size() >= k) break;
+            List<DetSymbol> chosen = materialize(h, symbols);
+            SpatialToExpr.Result r = layout.buildExprString(new Detection(det.imageW, det.imageH, chosen), false);
+            if (r.expr.isEmpty() || !seen.add(r.expr)) continue;
+            Expr ast;
+            try {
+                ast = Parser.parse(r.expr);
+            } catch (RuntimeException e) {
+                continue;
+            }
+            List<String> tokens = new ArrayList<>(n);
+            for (DetSymbol s : chosen) tokens.add(s.token);
+            out.add(new Candidate(r.expr, ast, h.logScore, Math.exp(h.logScore / n), tokens));
+        }
+    }
+
+    /**
+     * ビームの各仮説にsymの候補をつなげる（allowBrokenがfalseなら、構文的に破綻する枝は作らない）
+     * @param structure symが属するまとまり（SpatialToExpr.structureOf）
+     */
+    private List<Hyp> expand(List<Hyp> beam, DetSymbol sym, int structure, boolean allowBroken) {
+        List<Hyp> next = new ArrayList<>();
+        for (Hyp h : beam) {
+            extend(next, h, sym, structure, sym.cls, sym.token, sym.score, allowBroken);
+            for (DetSymbol.Alternative alt : sym.alternatives) {
+                if (alt.score < sym.score * minAlternativeRatio) continue;
+                extend(next, h, sym, structure, alt.cls, alt.token, alt.score, allowBroken);
+            }
+        }
+        return next;
+    }
+
+    private void extend(List<Hyp> next, Hyp h, DetSymbol sym, int structure, String cls, String token, double score,
+                        boolean allowBroken) {
+        // 分数線は、本体の中で分数全体を1つの値として読む位置（クラスは構文に影響しない）
+        int s = structure == SpatialToExpr.FRACTION_BAR ? 0 : structure;
+        int kind = structure == SpatialToExpr.FRACTION_BAR ? OPERAND : kindOf(token, sym.box);
+        boolean broken = h.broken || !accepts(h.last[s], kind);
+        if (broken && !allowBroken) return;
+        int[] last = h.last;
+        if (kind >= 0 && last[s] != kind) {
+            last = last.clone();
+            last[s] = kind;
+        }
+        double logScore = h.logScore + Math.log(Math.max(score, 1e-6));
+        next.add(new Hyp(h, cls, token, score, logScore, last, broken));
+    }
+
+    /**
+     * 直前のトークン種類のあとに kind が来てよいか
+     */
+    private static boolean accepts(int last, int kind) {
+        switch (kind) {
+            case BINARY:
+                return last == OPERAND;
+            case -2: // 閉じ括弧
+                return last != BINARY && last != MINUS;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * トークンの種類（-1: 構文チェックに影響しない中立トークン, -2: 閉じ括弧）
+     */
+    private static int kindOf(String token, BBox box) {
+        switch (token) {
+            case "+": case "*": case "^": case "=": case "→":
+                return BINARY;
+            case "-":
+                // 横長の - は分数線の可能性があるので中立扱い
+                return box.w() > box.h() * 2.0 ? -1 : MINUS;
+            case "/":
+                return box.w() > box.h() * 2.0 ? -1 : BINARY;
+            case "(": case "√":
+                return OPEN;
+            case ")":
+                return -2;
+            case "|": case ".": case "lim":
+                return -1;
+            default:
+                // 数字・変数・定数は値、複数文字のトークンは関数名
+                if (token.length() > 1 && Character.isLetter(token.charAt(0))) return OPEN;
+                return OPERAND;
+        }
+    }
+
+    /**
+     * 仮説の選択を反映したシンボル列を作る
+     */
+    private static List<DetSymbol> materialize(Hyp h, List<DetSymbol> symbols) {
+        DetSymbol[] chosen = new DetSymbol[symbols.size()];
+        int i = symbols.size() - 1;
+        for (Hyp p = h; p.parent != null; p = p.parent, i--) {
+            DetSymbol s = symbols.get(i);
+            chosen[i] = p.token.equals(s.token) ? s : new DetSymbol(p.cls, p.token, p.score, s.box);
+        }
+        return Arrays.asList(chosen);
+    }
+}
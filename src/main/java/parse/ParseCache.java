@@ -0,0 +1,165 @@
+package parse;
+
+import ast.Expr;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * パース結果のLRUキャッシュ（上限つき・複数スレッドから使用可）
+ *
+ * キーは空白を正規化した式文字列。内部はハッシュで分けたセグメントごとに
+ * アクセス順のLinkedHashMapを持ち、セグメント単位でロックする。
+ * パースはロックの外で行うので、同じ式を同時に初めてパースした場合は
+ * 複数回パースされることがある（結果はどれも同じ）。
+ * パースに失敗した式はキャッシュしない。
+ *
+ * キャッシュしたASTは複数スレッドで共有される。AST自体は構築後に変更しない。
+ * Expr.evalは変数の値をSymのグローバルコンテキスト（プロセスで1つ）から読むので、
+ * スレッドごとに違う値で評価するときはBoundExpr.bindして値の配列を渡すこと。
+ */
+public class ParseCache {
+
+    private static final int DEFAULT_SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity キャッシュする式の最大数（おおよそ。セグメントごとに均等に分ける）
+     */
+    public ParseCache(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be >= 1");
+        int n = Math.min(DEFAULT_SEGMENTS, capacity);
+        this.segments = new Segment[n];
+        int per = (capacity + n - 1) / n;
+        for (int k = 0; k < n; k++) segments[k] = new Segment(per);
+    }
+
+    /**
+     * 式文字列をパースする（キャッシュにあればそれを返す）
+     */
+    public Expr parse(String input) {
+        return get(normalize(input), Parser::parse);
+    }
+
+    /**
+     * keyに対応するASTを返す。なければloaderで作ってキャッシュする
+     * （keyは正規化しない。JSONなど式文字列以外をキーにするとき用）
+     */
+    public Expr get(String key, Function<String, Expr> loader) {
+        Segment seg = segmentFor(key);
+        Expr e;
+        synchronized (seg) {
+            e = seg.map.get(key);
+        }
+        if (e != null) {
+            hits.increment();
+            return e;
+        }
+        misses.increment();
+        e = loader.apply(key);
+        synchronized (seg) {
+            Expr prev = seg.map.putIfAbsent(key, e);
+            if (prev != null) e = prev;
+        }
+        return e;
+    }
+
+    public long hits() { return hits.sum(); }
+    public long misses() { return misses.sum(); }
+    public long evictions() { return evictions.sum(); }
+
+    /**
+     * ヒット率（まだ1度も引いていなければ0）
+     */
+    public double hitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    public int size() {
+        int s = 0;
+        for (Segment seg : segments) {
+            synchronized (seg) {
+                s += seg.map.size();
+            }
+        }
+        return s;
+    }
+
+    public void clear() {
+        for (Segment seg : segments) {
+            synchronized (seg) {
+                seg.map.clear();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("size=%d hits=%d misses=%d evictions=%d hitRate=%.3f",
+                size(), hits(), misses(), evictions(), hitRate());
+    }
+
+    /**
+     * 空白の正規化
+     * 記号の前後の空白は意味を持たないので取り除き、
+     * 英数字どうしの間の空白（"1 2" や "s in" のようにトークンを分けるもの）は1つの空白にまとめる。
+     * 空白を含まない文字列はそのまま返す。
+     */
+    public static String normalize(String s) {
+        int n = s.length();
+        int i = 0;
+        while (i < n && !Character.isWhitespace(s.charAt(i))) i++;
+        if (i == n) return s;
+
+        StringBuilder sb = new StringBuilder(n);
+        sb.append(s, 0, i);
+        boolean pendingSpace = false;
+        for (; i < n; i++) {
+            char c = s.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = true;
+                continue;
+            }
+            if (pendingSpace && sb.length() > 0 && isWordChar(sb.charAt(sb.length() - 1)) && isWordChar(c)) {
+                sb.append(' ');
+            }
+            pendingSpace = false;
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    // Tokenizerで数値・識別子の一部になる文字
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '.' || c == '_';
+    }
+
+    private Segment segmentFor(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    private final class Segment {
+        final LinkedHashMap<String, Expr> map;
+
+        Segment(int capacity) {
+            this.map = new LinkedHashMap<String, Expr>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Expr> eldest) {
+                    if (size() > capacity) {
+                        evictions.increment();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+    }
+}
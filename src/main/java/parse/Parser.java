@@ -3,211 +3,225 @@ package parse;
 import ast.*;
 import java.util.*;
 
+/**
+ * 式文字列のパーサ（Pratt法）
+ *
+ * TokenStreamを先頭から1回だけ読み、バックトラックはしない。
+ * 演算子はenumのOpで扱い、関数呼び出しはカンマ区切りの引数リストを正しく数える。
+ *
+ * 優先順位（以前のshunting-yard版と同じ）:
+ *   単項マイナス > ^（右結合） > * / > + - > → > =
+ * 単項マイナスは直後の項だけにかかる（-x^2 は neg(x)^2）。
+ * → は左側の値をそのまま返す（limの中でだけ使う簡易実装）。
+ * = はEquationになる。式の一番外側に1つだけ書ける（括弧や関数の引数の中、a=b=c はエラー）。
+ */
 public class Parser {
 
-    private static int prec(String op) {
-        switch (op) {
-            case "^": return 4;
-            case "*":
-            case "/": return 3;
-            case "+":
-            case "-": return 2;
-            case "→": return 1; // 矢印は低優先度
-            default: throw new IllegalArgumentException("Unknown op: " + op);
+    /**
+     * 二項演算子
+     */
+    enum Op {
+        EQUALS(1, false),
+        ARROW(2, false),
+        ADD(3, false),
+        SUB(3, false),
+        MUL(4, false),
+        DIV(4, false),
+        POW(5, true);
+
+        final int prec;
+        final boolean rightAssoc;
+
+        Op(int prec, boolean rightAssoc) {
+            this.prec = prec;
+            this.rightAssoc = rightAssoc;
         }
-    }
 
-    private static boolean rightAssoc(String op) {
-        return op.equals("^");
+        static Op of(char c) {
+            switch (c) {
+                case '+': return ADD;
+                case '-': return SUB;
+                case '*': return MUL;
+                case '/': return DIV;
+                case '^': return POW;
+                case '→': return ARROW;
+                case '=': return EQUALS;
+                default: throw new IllegalArgumentException("Unknown op: " + c);
+            }
+        }
     }
 
+    // スレッドごとに使い回すトークン列（parseは再入しないので1つで足りる）
+    private static final ThreadLocal<TokenStream> STREAM = ThreadLocal.withInitial(TokenStream::new);
+
     public static Expr parse(String input) {
-        List<Token> toks = Tokenizer.tokenize(input);
-
-        Deque<String> opStack = new ArrayDeque<>();
-        Deque<Token> funcStack = new ArrayDeque<>();
-        Deque<Expr> valStack = new ArrayDeque<>();
-
-        // 単項マイナス判定用：直前が「値」かどうか
-        boolean prevWasValue = false;
-
-        for (int i = 0; i < toks.size(); i++) {
-            Token t = toks.get(i);
-
-            switch (t.kind) {
-                case NUM:
-                    valStack.push(new Num(t.number));
-                    prevWasValue = true;
-                    break;
-
-                case SYM:
-                    valStack.push(new Sym(t.text));
-                    prevWasValue = true;
-                    break;
-
-                case FUNC:
-                    funcStack.push(t);     // 関数名を積む
-                    prevWasValue = false;  // 次は "(" を期待
-                    break;
-
-                case LPAREN:
-                    opStack.push("(");
-                    prevWasValue = false;
-                    break;
-
-                case COMMA:
-                    // カンマはlimit関数の引数区切りとして処理
-                    // カンマの前の式を引数として収集するため、演算子スタックを処理
-                    while (!opStack.isEmpty() && !opStack.peek().equals("(")) {
-                        String op = opStack.pop();
-                        if (op.equals("u-")) {
-                            applyUnaryNeg(valStack);
-                        } else {
-                            applyOp(op, valStack);
-                        }
-                    }
-                    // カンマの前の式はvalStackに積まれているので、そのまま続ける
-                    prevWasValue = false;
-                    break;
-
-                case RPAREN:
-                    while (!opStack.isEmpty() && !opStack.peek().equals("(")) {
-                        String op = opStack.pop();
-                        if (op.equals("u-")) {
-                            // 単項マイナスを適用
-                            applyUnaryNeg(valStack);
-                        } else {
-                            // 二項演算子を適用
-                            applyOp(op, valStack);
-                        }
-                    }
-                    if (opStack.isEmpty() || !opStack.peek().equals("(")) {
-                        throw new IllegalArgumentException("Mismatched ')'");
-                    }
-                    opStack.pop(); // pop "("
-
-                    // 直前に関数が積まれていれば適用
-                    if (!funcStack.isEmpty()) {
-                        Token f = funcStack.pop();
-                        // limit関数は複数引数をサポート
-                        if (f.text.equals("limit")) {
-                            // limit関数はカンマ区切りの引数を処理
-                            // 引数は右から左に積まれているので、逆順に取得
-                            List<Expr> args = new ArrayList<>();
-                            // 括弧内の引数を取得（カンマで区切られている）
-                            // limit関数は通常2つの引数（limitValue, expression）を持つ
-                            // ただし、3つの引数（variable, limitValue, expression）の場合もある
-                            // ここでは、valStackから引数を取得（最大3つまで）
-                            int argCount = 0;
-                            while (!valStack.isEmpty() && argCount < 3) {
-                                args.add(valStack.pop());
-                                argCount++;
-                            }
-                            if (args.isEmpty()) {
-                                throw new IllegalArgumentException("limit関数に引数がありません");
-                            }
-                            Collections.reverse(args); // 正しい順序に
-                            valStack.push(new Func(f.text, args));
-                        } else {
-                            // その他の関数は1引数
-                            if (valStack.isEmpty()) {
-                                throw new IllegalArgumentException("関数 " + f.text + " に引数がありません");
-                            }
-                            Expr arg = valStack.pop();
-                            valStack.push(new Func(f.text, List.of(arg)));
-                        }
-                        prevWasValue = true;
-                    } else {
-                        prevWasValue = true;
-                    }
-                    break;
-
-                case OP: {
-                    String op = t.text;
-
-                    // 単項マイナス: 先頭 or 直前が値でない場合
-                    if (op.equals("-") && !prevWasValue) {
-                        // neg(...) として扱う：次の値を neg するために "u-" を積む
-                        op = "u-";
-                    }
-
-                    while (!opStack.isEmpty() && !opStack.peek().equals("(")) {
-                        String top = opStack.peek();
-                        if (top.equals("u-")) {
-                            // u- は最優先で先に適用
-                            opStack.pop();
-                            applyUnaryNeg(valStack);
-                            continue;
-                        }
-
-                        int pTop = prec(top);
-                        int pCur = op.equals("u-") ? 5 : prec(op);
-
-                        if (pTop > pCur || (pTop == pCur && !rightAssoc(op))) {
-                            applyOp(opStack.pop(), valStack);
-                        } else break;
-                    }
-
-                    opStack.push(op);
-                    prevWasValue = false;
-                    break;
-                }
+        return parse(input, ExprFactory.PLAIN);
+    }
 
-                default:
-                    throw new IllegalArgumentException("Unsupported token: " + t);
-            }
+    /**
+     * @param factory ノードの生成に使うファクトリ（HashConsingFactoryなら部分木を共有する）
+     */
+    public static Expr parse(String input, ExprFactory factory) {
+        TokenStream toks = STREAM.get();
+        Tokenizer.tokenize(input, toks);
+        try {
+            return parse(toks, factory);
+        } finally {
+            toks.reset(null); // 入力文字列を保持し続けない
+        }
+    }
+
+    /**
+     * Tokenizerが書き込んだトークン列をパースする
+     */
+    public static Expr parse(TokenStream toks) {
+        return parse(toks, ExprFactory.PLAIN);
+    }
+
+    public static Expr parse(TokenStream toks, ExprFactory factory) {
+        if (toks.size() == 0) {
+            throw new IllegalArgumentException("Bad expression, remaining stack=0");
+        }
+        Parser p = new Parser(toks, factory);
+        Expr e = p.expression(0);
+        if (p.pos < toks.size()) {
+            if (toks.kind(p.pos) == TokenStream.RPAREN) throw new IllegalArgumentException("Mismatched ')'");
+            throw new IllegalArgumentException("Unexpected token: " + toks.toToken(p.pos) + " at " + toks.start(p.pos));
+        }
+        return e;
+    }
+
+    private final TokenStream toks;
+    private final ExprFactory f;
+    private int pos;
+    // 括弧・関数の引数の入れ子の深さ（0のときだけ等号を受け付ける）
+    private int nesting;
+
+    private Parser(TokenStream toks, ExprFactory f) {
+        this.toks = toks;
+        this.f = f;
+    }
+
+    /**
+     * 優先順位がminPrecより高い二項演算子を取り込みながら式を読む
+     */
+    private Expr expression(int minPrec) {
+        Expr left = prefix();
+        while (pos < toks.size() && toks.kind(pos) == TokenStream.OP) {
+            Op op = Op.of(toks.opChar(pos));
+            if (op.prec <= minPrec) break;
+            pos++;
+            // 右結合なら同じ優先順位の演算子も右側に取り込む
+            Expr right = expression(op.rightAssoc ? op.prec - 1 : op.prec);
+            left = binary(op, left, right);
         }
+        return left;
+    }
 
-        while (!opStack.isEmpty()) {
-            String op = opStack.pop();
-            if (op.equals("(")) throw new IllegalArgumentException("Mismatched '('");
-            if (op.equals("u-")) applyUnaryNeg(valStack);
-            else applyOp(op, valStack);
+    /**
+     * 項（数値・記号・括弧・関数呼び出し・単項マイナス）を読む
+     */
+    private Expr prefix() {
+        if (pos >= toks.size()) {
+            throw new IllegalArgumentException("式が途中で終わっています");
         }
+        int i = pos++;
+        switch (toks.kind(i)) {
+            case TokenStream.NUM:
+                return f.num(toks.number(i));
+
+            case TokenStream.SYM:
+                return f.sym(toks.text(i));
+
+            case TokenStream.OP:
+                if (toks.opChar(i) == '-') {
+                    // 単項マイナスは直後の項だけにかかる
+                    return f.func("neg", List.of(prefix()));
+                }
+                throw new IllegalArgumentException("演算子 " + toks.text(i) + " の前に値がありません");
+
+            case TokenStream.LPAREN: {
+                nesting++;
+                Expr inner = expression(0);
+                expect(TokenStream.RPAREN, "Mismatched '('");
+                nesting--;
+                return inner;
+            }
+
+            case TokenStream.FUNC:
+                return call(toks.text(i));
 
-        if (valStack.size() != 1) {
-            throw new IllegalArgumentException("Bad expression, remaining stack=" + valStack.size());
+            case TokenStream.RPAREN:
+                throw new IllegalArgumentException("Mismatched ')'");
+
+            default:
+                throw new IllegalArgumentException("Unexpected token: " + toks.toToken(i) + " at " + toks.start(i));
         }
-        return valStack.pop();
     }
 
-    private static void applyUnaryNeg(Deque<Expr> valStack) {
-        Expr a = valStack.pop();
-        valStack.push(new Func("neg", List.of(a)));
+    /**
+     * 関数呼び出し name(arg, arg, ...)
+     * 括弧がなければ直後の項1つを引数にする（例: √4 → sqrt(4)）
+     */
+    private Expr call(String name) {
+        if (pos >= toks.size() || toks.kind(pos) != TokenStream.LPAREN) {
+            if (pos >= toks.size()) throw new IllegalArgumentException("関数 " + name + " に引数がありません");
+            return f.func(name, List.of(prefix()));
+        }
+        pos++; // "("
+        nesting++;
+        if (pos < toks.size() && toks.kind(pos) == TokenStream.RPAREN) {
+            throw new IllegalArgumentException(name.equals("limit")
+                    ? "limit関数に引数がありません"
+                    : "関数 " + name + " に引数がありません");
+        }
+        Expr first = expression(0);
+        if (pos < toks.size() && toks.kind(pos) == TokenStream.RPAREN) {
+            pos++;
+            nesting--;
+            return f.func(name, List.of(first));
+        }
+        List<Expr> args = new ArrayList<>(3);
+        args.add(first);
+        while (pos < toks.size() && toks.kind(pos) == TokenStream.COMMA) {
+            pos++;
+            args.add(expression(0));
+        }
+        expect(TokenStream.RPAREN, "Mismatched '('");
+        nesting--;
+        return f.func(name, args);
     }
 
-    private static void applyOp(String op, Deque<Expr> valStack) {
-        if (valStack.size() < 2) {
-            throw new IllegalArgumentException("演算子 " + op + " に必要な値がスタックにありません (スタックサイズ: " + valStack.size() + ")");
+    private void expect(int kind, String message) {
+        if (pos >= toks.size() || toks.kind(pos) != kind) {
+            throw new IllegalArgumentException(message);
         }
-        Expr b = valStack.pop();
-        Expr a = valStack.pop();
+        pos++;
+    }
 
+    private Expr binary(Op op, Expr a, Expr b) {
         switch (op) {
-            case "+":
-                valStack.push(new Add(List.of(a, b)));
-                return;
-            case "-":
+            case ADD:
+                return f.add(List.of(a, b));
+            case SUB:
                 // 二項引き算は Func("sub") に寄せる方針
-                valStack.push(new Func("sub", List.of(a, b)));
-                return;
-            case "*":
-                valStack.push(new Mul(List.of(a, b)));
-                return;
-            case "/":
-                valStack.push(new Div(List.of(a, b)));
-                return;
-            case "^":
-                valStack.push(new Pow(List.of(a, b)));
-                return;
-            case "→":
+                return f.func("sub", List.of(a, b));
+            case MUL:
+                return f.mul(List.of(a, b));
+            case DIV:
+                return f.div(List.of(a, b));
+            case POW:
+                return f.pow(List.of(a, b));
+            case ARROW:
                 // 矢印はlimの処理で使われるだけで、実際の計算では使われない
                 // 左側の値をそのまま返す（簡易実装）
-                valStack.push(a);
-                return;
+                return a;
+            case EQUALS:
+                if (nesting > 0) throw new IllegalArgumentException("等号は括弧や関数の引数の中には書けません");
+                if (a instanceof Equation) throw new IllegalArgumentException("等号が2つ以上あります");
+                return f.equation(List.of(a, b));
             default:
                 throw new IllegalArgumentException("Unknown op: " + op);
         }
     }
 }
-
@@ -1,19 +1,102 @@
 package parse;
 
+import ast.Expr;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
+/**
+ * 検出結果（シンボルとbbox）から式文字列を組み立てるレイアウト解析
+ *
+ * フィールドは構築後に変更しない読み取り専用のものだけで、解析中の状態はすべて
+ * 呼び出しごとのローカル変数に持つ。入力のDetectionも変更しない。
+ * そのため1つのインスタンスを複数スレッドから同時に使ってよい。
+ */
 public class SpatialToExpr {
 
+    // 関数名マージ用のトライ木（構築後は読み取り専用）
+    private final FunctionNameTrie functionNames;
+    // buildPage / buildAll の並列実行に使うプール
+    private final ForkJoinPool pool;
+
+    public SpatialToExpr() {
+        this(new LabelMap());
+    }
+
+    /**
+     * @param labelMap 関数名マージの語彙をこのLabelMapから取る
+     */
+    public SpatialToExpr(LabelMap labelMap) {
+        this(labelMap, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param labelMap 関数名マージの語彙をこのLabelMapから取る
+     * @param pool 並列処理に使うForkJoinプール（呼び出し側が寿命を管理する）
+     */
+    public SpatialToExpr(LabelMap labelMap, ForkJoinPool pool) {
+        if (pool == null) throw new IllegalArgumentException("pool must not be null");
+        this.functionNames = new FunctionNameTrie(labelMap.getFunctionNames());
+        this.pool = pool;
+    }
+
     public static class Result {
         public final String expr;
+        public final List<Diagnostic> diagnostics;
+        // diagnosticsを文字列にしたビュー（要素を取り出したときに初めて整形される）
         public final List<String> warnings;
-        public Result(String expr, List<String> warnings) {
+        public Result(String expr, List<Diagnostic> diagnostics) {
             this.expr = expr;
-            this.warnings = warnings;
+            this.diagnostics = diagnostics;
+            this.warnings = new AbstractList<String>() {
+                @Override public String get(int index) { return diagnostics.get(index).render(); }
+                @Override public int size() { return diagnostics.size(); }
+            };
+        }
+    }
+    
+    /**
+     * ページ中の1行分の変換結果
+     */
+    public static class LineResult {
+        public final int lineIndex;   // 上から何行目か（0始まり）
+        public final BBox box;        // 行全体のbbox
+        public final Result result;   // 式文字列と警告
+        public final Expr ast;        // パース結果（失敗時はnull）
+        public final String parseError; // パース失敗時のメッセージ（成功時はnull）
+
+        public LineResult(int lineIndex, BBox box, Result result, Expr ast, String parseError) {
+            this.lineIndex = lineIndex;
+            this.box = box;
+            this.result = result;
+            this.ast = ast;
+            this.parseError = parseError;
         }
     }
     
+    /**
+     * buildAllの1件分の結果
+     * レイアウト解析・パースのどちらで失敗しても例外は投げず、errorに記録する
+     */
+    public static class BatchResult {
+        public final int index;       // 入力リスト中の位置
+        public final Result result;   // 式文字列と警告（レイアウト解析で失敗したらnull）
+        public final Expr ast;        // パース結果（失敗時はnull）
+        public final String error;    // 失敗時のメッセージ（成功時はnull）
+
+        public BatchResult(int index, Result result, Expr ast, String error) {
+            this.index = index;
+            this.result = result;
+            this.ast = ast;
+            this.error = error;
+        }
+
+        public boolean ok() {
+            return error == null;
+        }
+    }
+
     /**
      * 候補を保持する内部クラス
      */
@@ -37,9 +120,11 @@ public class SpatialToExpr {
         final List<DetSymbol> denominatorSymbols;    // 分母のシンボル
         final List<DetSymbol> beforeFractionSymbols;  // 分数線より前のシンボル
         final List<DetSymbol> afterFractionSymbols;   // 分数線より後のシンボル
+        final DetSymbol bar;                          // 分数線
         
         FractionInfo(List<DetSymbol> numeratorSymbols, List<DetSymbol> denominatorSymbols, 
-                    List<DetSymbol> beforeFractionSymbols, List<DetSymbol> afterFractionSymbols) {
+                    List<DetSymbol> beforeFractionSymbols, List<DetSymbol> afterFractionSymbols, DetSymbol bar) {
+            this.bar = bar;
             this.numeratorSymbols = numeratorSymbols;
             this.denominatorSymbols = denominatorSymbols;
             this.beforeFractionSymbols = beforeFractionSymbols;
@@ -49,7 +134,14 @@ public class SpatialToExpr {
     
 
     public Result buildExprString(Detection det) {
-        List<String> warnings = new ArrayList<>();
+        return buildExprString(det, true);
+    }
+
+    /**
+     * @param collectDiagnostics falseなら警告・デバッグ情報を一切組み立てない（バッチ処理向け）
+     */
+    public Result buildExprString(Detection det, boolean collectDiagnostics) {
+        Diagnostics warnings = collectDiagnostics ? Diagnostics.collecting() : Diagnostics.disabled();
 
         // 1) スコア低いのを落とす（閾値は適宜）
         // OnnxInferenceで既に0.15でフィルタリングされているため、ここではより低い閾値を使用
@@ -60,18 +152,16 @@ public class SpatialToExpr {
         
         // デバッグ情報: 検出されたシンボルとスコアを表示
         if (det.symbols.isEmpty()) {
-            warnings.add("検出されたシンボルがありません");
-            return new Result("", warnings);
+            warnings.add(Diagnostic.Code.NO_SYMBOLS);
+            return new Result("", warnings.list());
         }
         
         // 低スコアを捨てた場合の警告（種類別にカウント）
-        List<DetSymbol> dropped = det.symbols.stream()
-                .filter(x -> x.score < scoreThreshold)
-                .collect(Collectors.toList());
-        
-        if (!dropped.isEmpty()) {
+        int droppedCount = det.symbols.size() - filtered.size();
+        if (droppedCount > 0 && warnings.enabled()) {
             int digits = 0, operators = 0, funcs = 0;
-            for (DetSymbol sym : dropped) {
+            for (DetSymbol sym : det.symbols) {
+                if (sym.score >= scoreThreshold) continue;
                 String token = sym.token;
                 if (isNumberLike(token)) {
                     digits++;
@@ -81,65 +171,36 @@ public class SpatialToExpr {
                     funcs++;
                 }
             }
-            
-            List<String> parts = new ArrayList<>();
-            if (digits > 0) parts.add(String.format("数字 %d個", digits));
-            if (operators > 0) parts.add(String.format("演算子 %d個", operators));
-            if (funcs > 0) parts.add(String.format("関数 %d個", funcs));
-            
-            if (parts.isEmpty()) {
-                // その他（括弧など）のみの場合
-                warnings.add(String.format("確率の低いシンボル %d個を除外しました (閾値=%.2f)", 
-                        dropped.size(), scoreThreshold));
-            } else {
-                warnings.add(String.format("確率の低いシンボルを除外: %s (閾値=%.2f)", 
-                        String.join(", ", parts), scoreThreshold));
-            }
+            warnings.add(Diagnostic.Code.LOW_SCORE_DROPPED, null,
+                    new double[]{digits, operators, funcs, droppedCount, scoreThreshold}, null);
         }
 
         if (filtered.isEmpty()) {
             // デバッグ情報: 実際のスコアを表示
-            if (!det.symbols.isEmpty()) {
+            if (warnings.enabled()) {
                 double minScore = det.symbols.stream().mapToDouble(s -> s.score).min().orElse(0.0);
                 double maxScore = det.symbols.stream().mapToDouble(s -> s.score).max().orElse(0.0);
                 double avgScore = det.symbols.stream().mapToDouble(s -> s.score).average().orElse(0.0);
-                warnings.add(String.format("フィルタリング後にシンボルが残りませんでした (検出数=%d, スコア範囲=%.3f-%.3f, 平均=%.3f, 閾値=%.2f)", 
-                        det.symbols.size(), minScore, maxScore, avgScore, scoreThreshold));
-            } else {
-                warnings.add("フィルタリング後にシンボルが残りませんでした");
+                warnings.add(Diagnostic.Code.NOTHING_LEFT, null,
+                        new double[]{det.symbols.size(), minScore, maxScore, avgScore, scoreThreshold}, null);
             }
-            return new Result("", warnings);
+            return new Result("", warnings.list());
         }
 
         List<DetSymbol> s = filtered;
 
-        // 2) ざっくり "同一行" を仮定（Phase1は1行のみ）
-        //    将来: cyでクラスタリングして複数行対応
+        // 2) "同一行" を仮定（複数行のページはbuildPageでLineSegmenterにより行ごとに分けてから呼ばれる）
         s.sort(Comparator.comparingDouble(a -> a.box.cx()));
         
         // デバッグ情報: ソート後のシンボル列を表示
-        if (!s.isEmpty()) {
-            StringBuilder debugInfo = new StringBuilder();
-            debugInfo.append("ソート後のシンボル列: ");
-            for (int k = 0; k < Math.min(s.size(), 10); k++) {
-                debugInfo.append(s.get(k).token).append("(").append(String.format("%.1f", s.get(k).box.cx())).append(") ");
-            }
-            warnings.add(debugInfo.toString());
-        }
+        addSymbolDump(warnings, Diagnostic.Code.SORTED_SYMBOLS, s);
 
         // 3) 関数名のマージ（複数文字の関数名を1つのトークンにまとめる）
         // 例: 's','i','n' → "sin", 'l','o','g' → "log"
         List<DetSymbol> merged = mergeFunctionNames(s, warnings);
         
         // デバッグ情報: 関数名マージ後のシンボル列を表示
-        if (!merged.isEmpty()) {
-            StringBuilder debugInfo = new StringBuilder();
-            debugInfo.append("関数名マージ後のシンボル列: ");
-            for (int k = 0; k < Math.min(merged.size(), 10); k++) {
-                debugInfo.append(merged.get(k).token).append("(").append(String.format("%.1f", merged.get(k).box.cx())).append(") ");
-            }
-            warnings.add(debugInfo.toString());
-        }
+        addSymbolDump(warnings, Diagnostic.Code.MERGED_SYMBOLS, merged);
         
         // 3.5) 分数を検出して分子と分母を分離（他の処理より先に実行）
         FractionInfo fractionInfo = detectFraction(merged, warnings);
@@ -194,8 +255,8 @@ public class SpatialToExpr {
             }
             
             String expr = String.join("", resultTokens);
-            if (unbalancedParen(expr)) warnings.add("括弧の対応が取れていません（検出ミスの可能性があります）");
-            return new Result(expr, warnings);
+            if (unbalancedParen(expr)) warnings.add(Diagnostic.Code.UNBALANCED_PAREN);
+            return new Result(expr, warnings.list());
         }
         
         // 4) トークン列にしつつ、べき(右上)をまとめる
@@ -269,9 +330,10 @@ public class SpatialToExpr {
                     
                     if (!sup.isEmpty()) {
                         // 複数の exponent 候補があった場合の警告
-                        if (sup.size() > 1) {
-                            warnings.add(String.format("複数の指数候補が検出されました (%d個のシンボル)、すべて使用します", 
-                                    sup.size()));
+                        if (sup.size() > 1 && warnings.enabled()) {
+                            int[] supIndices = new int[sup.size()];
+                            for (int k = 0; k < supIndices.length; k++) supIndices[k] = i + 1 + k;
+                            warnings.add(Diagnostic.Code.MULTIPLE_EXPONENTS, supIndices, null, null);
                         }
                         
                         sup.sort(Comparator.comparingDouble(a -> a.box.cx()));
@@ -296,48 +358,48 @@ public class SpatialToExpr {
         }
         
         // デバッグ情報: トークン列生成直後を表示
-        warnings.add("トークン列生成直後: " + String.join(" ", tokens));
+        warnings.addTokens(Diagnostic.Code.TOKENS_INITIAL, tokens);
         
         // デバッグ情報: べき乗処理後のトークン列を表示
-        if (tokens.stream().anyMatch(t -> t.equals("^") || t.equals("/"))) {
-            warnings.add("べき乗処理後のトークン列: " + String.join(" ", tokens));
+        if (warnings.enabled() && tokens.stream().anyMatch(t -> t.equals("^") || t.equals("/"))) {
+            warnings.addTokens(Diagnostic.Code.TOKENS_AFTER_POWER, tokens);
         }
         
         // 5) ルート記号の処理（√記号の直後の式を括弧で囲む）
         tokens = processSqrtSymbols(tokens, tokenSymbols, warnings);
         
         // デバッグ情報: ルート処理後のトークン列を表示
-        if (tokens.stream().anyMatch(t -> t.equals("sqrt") || t.equals("√"))) {
-            warnings.add("ルート処理後のトークン列: " + String.join(" ", tokens));
+        if (warnings.enabled() && tokens.stream().anyMatch(t -> t.equals("sqrt") || t.equals("√"))) {
+            warnings.addTokens(Diagnostic.Code.TOKENS_AFTER_SQRT, tokens);
         }
         
         // 6) 絶対値の処理（|...|をabs(...)に変換）
         tokens = processAbsoluteValue(tokens, warnings);
         
         // デバッグ情報: 絶対値処理後のトークン列を表示
-        if (tokens.stream().anyMatch(t -> t.equals("abs") || t.equals("|"))) {
-            warnings.add("絶対値処理後のトークン列: " + String.join(" ", tokens));
+        if (warnings.enabled() && tokens.stream().anyMatch(t -> t.equals("abs") || t.equals("|"))) {
+            warnings.addTokens(Diagnostic.Code.TOKENS_AFTER_ABS, tokens);
         }
         
         // 7) 微分演算子の処理（d/dx構造を検出）- 分数処理の前に実行してd/dxパターンを保護
-        tokens = processDerivatives(tokens, warnings);
+        tokens = processDerivatives(tokens, tokenSymbols, warnings);
         
         // デバッグ情報: 微分処理後のトークン列を表示
-        if (tokens.stream().anyMatch(t -> t.equals("diff"))) {
-            warnings.add("微分処理後のトークン列: " + String.join(" ", tokens));
+        if (warnings.enabled() && tokens.stream().anyMatch(t -> t.equals("diff"))) {
+            warnings.addTokens(Diagnostic.Code.TOKENS_AFTER_DIFF, tokens);
         }
         
         // 8) 極限の処理（lim_{x→a}構造を検出）- 分数処理の前に実行してlimパターンを保護
         tokens = processLimits(tokens, tokenSymbols, warnings);
         
         // デバッグ情報: 極限処理後のトークン列を表示
-        if (tokens.stream().anyMatch(t -> t.equals("lim") || t.equals("limit"))) {
-            warnings.add("極限処理後のトークン列: " + String.join(" ", tokens));
+        if (warnings.enabled() && tokens.stream().anyMatch(t -> t.equals("lim") || t.equals("limit"))) {
+            warnings.addTokens(Diagnostic.Code.TOKENS_AFTER_LIMIT, tokens);
         }
         
         // デバッグ情報: 分数処理前のトークン列を表示（正しい位置）
-        if (tokens.stream().anyMatch(t -> t.equals("/"))) {
-            warnings.add("分数処理前のトークン列: " + String.join(" ", tokens));
+        if (warnings.enabled() && tokens.stream().anyMatch(t -> t.equals("/"))) {
+            warnings.addTokens(Diagnostic.Code.TOKENS_BEFORE_FRACTION, tokens);
         }
         
         // 9) 分数の処理（分数線の上下を検出して(numerator)/(denominator)に変換）
@@ -345,8 +407,8 @@ public class SpatialToExpr {
         tokens = processFractions(tokens, tokenSymbols, warnings);
         
         // デバッグ情報: 分数処理後のトークン列を表示
-        if (tokens.stream().anyMatch(t -> t.equals("/") || t.contains("("))) {
-            warnings.add("分数処理後のトークン列: " + String.join(" ", tokens));
+        if (warnings.enabled() && tokens.stream().anyMatch(t -> t.equals("/") || t.contains("("))) {
+            warnings.addTokens(Diagnostic.Code.TOKENS_AFTER_FRACTION, tokens);
         }
 
         // 10) 括弧の対応を修正（)が(に誤認識される問題に対処）
@@ -372,63 +434,137 @@ public class SpatialToExpr {
         }
         
         // デバッグ情報: 暗黙の掛け算処理後のトークン列を表示
-        if (withMul.stream().anyMatch(t -> t.equals("*") || t.contains("("))) {
-            warnings.add("暗黙の掛け算処理後のトークン列: " + String.join(" ", withMul));
+        if (warnings.enabled() && withMul.stream().anyMatch(t -> t.equals("*") || t.contains("("))) {
+            warnings.addTokens(Diagnostic.Code.TOKENS_AFTER_IMPLICIT_MUL, withMul);
         }
 
         // 12) 文字列化
         String expr = String.join("", withMul);
 
         // 13) ちょいデバッグしやすく
-        if (unbalancedParen(expr)) warnings.add("括弧の対応が取れていません（検出ミスの可能性があります）");
+        if (unbalancedParen(expr)) warnings.add(Diagnostic.Code.UNBALANCED_PAREN);
+
+        return new Result(expr, warnings.list());
+    }
+    
+    /**
+     * ページ全体（複数行）の検出結果を行ごとに式へ変換する
+     * 行分割はLineSegmenterで行い、各行のレイアウト解析とパースは並列に実行する
+     * @param det ページ全体の検出結果
+     * @return 上から順の行ごとの結果
+     */
+    public List<LineResult> buildPage(Detection det) {
+        return buildPage(det, true);
+    }
+
+    /**
+     * @param collectDiagnostics falseなら各行の警告・デバッグ情報を組み立てない
+     */
+    public List<LineResult> buildPage(Detection det, boolean collectDiagnostics) {
+        List<LineSegmenter.Line> lines = LineSegmenter.split(det.symbols);
+        List<Integer> indices = new ArrayList<>();
+        for (int k = 0; k < lines.size(); k++) indices.add(k);
+
+        // collectは入力順を保つ
+        return runInPool(() -> indices.parallelStream()
+                .map(k -> buildLine(k, lines.get(k), det, collectDiagnostics))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * 複数の検出結果をまとめて式へ変換する（1件ずつの失敗でバッチ全体は止めない）
+     * @param detections 1式ずつの検出結果
+     * @return 入力と同じ順の結果
+     */
+    public List<BatchResult> buildAll(List<Detection> detections) {
+        return buildAll(detections, false);
+    }
+
+    /**
+     * @param collectDiagnostics trueなら各件の警告・デバッグ情報も組み立てる
+     */
+    public List<BatchResult> buildAll(List<Detection> detections, boolean collectDiagnostics) {
+        List<Integer> indices = new ArrayList<>();
+        for (int k = 0; k < detections.size(); k++) indices.add(k);
+
+        return runInPool(() -> indices.parallelStream()
+                .map(k -> buildOne(k, detections.get(k), collectDiagnostics))
+                .collect(Collectors.toList()));
+    }
+
+    private BatchResult buildOne(int index, Detection det, boolean collectDiagnostics) {
+        Result r;
+        try {
+            r = buildExprString(det, collectDiagnostics);
+        } catch (RuntimeException e) {
+            return new BatchResult(index, null, null, "レイアウト解析に失敗: " + messageOf(e));
+        }
+        if (r.expr.isEmpty()) {
+            return new BatchResult(index, r, null, "式が空です");
+        }
+        try {
+            return new BatchResult(index, r, Parser.parse(r.expr), null);
+        } catch (RuntimeException e) {
+            return new BatchResult(index, r, null, messageOf(e));
+        }
+    }
 
-        return new Result(expr, warnings);
+    /**
+     * 並列ストリームを設定されたプール上で実行する
+     * （プール内のタスクから作ったparallelStreamは、そのプールのワーカーで分割実行される）
+     */
+    private <T> T runInPool(Supplier<T> task) {
+        if (pool == ForkJoinPool.commonPool()) return task.get();
+        return pool.submit(task::get).join();
+    }
+
+    private static String messageOf(RuntimeException e) {
+        return e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+    }
+
+    private LineResult buildLine(int lineIndex, LineSegmenter.Line line, Detection det, boolean collectDiagnostics) {
+        Result r = buildExprString(new Detection(det.imageW, det.imageH, line.symbols), collectDiagnostics);
+        if (r.expr.isEmpty()) {
+            return new LineResult(lineIndex, line.box, r, null, "式が空です");
+        }
+        try {
+            return new LineResult(lineIndex, line.box, r, Parser.parse(r.expr), null);
+        } catch (RuntimeException e) {
+            return new LineResult(lineIndex, line.box, r, null, messageOf(e));
+        }
     }
     
     /**
      * 関数名のマージ（複数文字の関数名を1つのトークンにまとめる）
      * 例: 's','i','n' → "sin", 'l','o','g' → "log"
+     * トライ木で各位置から最長一致を探すので、シンボル数に対して線形
      */
-    private List<DetSymbol> mergeFunctionNames(List<DetSymbol> symbols, List<String> warnings) {
-        // 認識対象の関数名リスト
-        String[] functionNames = {"sin", "cos", "tan", "sec", "csc", "cot", "ln", "log", "lim"};
-        
+    private List<DetSymbol> mergeFunctionNames(List<DetSymbol> symbols, Diagnostics warnings) {
         List<DetSymbol> result = new ArrayList<>();
         int i = 0;
         
         while (i < symbols.size()) {
-            // 関数名の候補をチェック
-            boolean matched = false;
-            for (String funcName : functionNames) {
-                if (i + funcName.length() <= symbols.size()) {
-                    // 連続する文字列が関数名と一致するかチェック
-                    StringBuilder candidate = new StringBuilder();
-                    for (int j = 0; j < funcName.length(); j++) {
-                        candidate.append(symbols.get(i + j).token);
-                    }
-                    
-                    if (candidate.toString().equals(funcName)) {
-                        // 関数名としてマージ
-                        // 最初のシンボルのbboxを使用（簡易実装）
-                        DetSymbol first = symbols.get(i);
-                        DetSymbol merged = new DetSymbol(
-                            first.cls,
-                            funcName,
-                            first.score, // 平均スコアを計算する方が良いが、簡易的に最初のスコアを使用
-                            first.box
-                        );
-                        result.add(merged);
-                        i += funcName.length();
-                        matched = true;
-                        break;
-                    }
-                }
-            }
-            
-            if (!matched) {
+            FunctionNameTrie.Match match = functionNames.longestMatch(symbols, i);
+            if (match == null) {
                 result.add(symbols.get(i));
                 i++;
+                continue;
             }
+            
+            // 関数名としてマージ：bboxは構成文字のbboxの和、スコアは平均
+            DetSymbol first = symbols.get(i);
+            double x1 = first.box.x1, y1 = first.box.y1, x2 = first.box.x2, y2 = first.box.y2;
+            double scoreSum = 0;
+            for (int j = i; j < i + match.length; j++) {
+                BBox b = symbols.get(j).box;
+                x1 = Math.min(x1, b.x1);
+                y1 = Math.min(y1, b.y1);
+                x2 = Math.max(x2, b.x2);
+                y2 = Math.max(y2, b.y2);
+                scoreSum += symbols.get(j).score;
+            }
+            result.add(new DetSymbol(first.cls, match.name, scoreSum / match.length, new BBox(x1, y1, x2, y2)));
+            i += match.length;
         }
         
         return result;
@@ -437,7 +573,7 @@ public class SpatialToExpr {
     /**
      * ルート記号の処理（√記号の直後の式を括弧で囲む）
      */
-    private List<String> processSqrtSymbols(List<String> tokens, List<DetSymbol> tokenSymbols, List<String> warnings) {
+    private List<String> processSqrtSymbols(List<String> tokens, List<DetSymbol> tokenSymbols, Diagnostics warnings) {
         List<String> result = new ArrayList<>();
         
         for (int i = 0; i < tokens.size(); i++) {
@@ -478,7 +614,7 @@ public class SpatialToExpr {
     /**
      * 絶対値の処理（|...|をabs(...)に変換）
      */
-    private List<String> processAbsoluteValue(List<String> tokens, List<String> warnings) {
+    private List<String> processAbsoluteValue(List<String> tokens, Diagnostics warnings) {
         List<String> result = new ArrayList<>();
         List<Integer> absPositions = new ArrayList<>();
         
@@ -546,10 +682,10 @@ public class SpatialToExpr {
      * 分数の処理（分数線の上下を検出して(numerator)/(denominator)に変換）
      * bbox情報を使って分数線（/）の上下にあるシンボルを分子・分母として判定
      */
-    private List<String> processFractions(List<String> tokens, List<DetSymbol> tokenSymbols, List<String> warnings) {
+    private List<String> processFractions(List<String> tokens, List<DetSymbol> tokenSymbols, Diagnostics warnings) {
         if (tokens.size() != tokenSymbols.size()) {
             // tokenSymbolsのサイズが一致しない場合は処理をスキップ
-            warnings.add("分数処理: tokenSymbolsのサイズが一致しません");
+            warnings.add(Diagnostic.Code.FRACTION_SIZE_MISMATCH);
             return tokens;
         }
         
@@ -613,8 +749,10 @@ public class SpatialToExpr {
                     // 分数線の範囲外にある数字は除外
                     if (otherCenterX < fracLeft || otherCenterX > fracRight) {
                         excludedIndices.add(j);
-                        warnings.add(String.format("分数処理: 分数線の外側の数字 '%s' を除外 (x=%.1f, 分数線範囲=%.1f-%.1f)", 
-                                otherToken, otherCenterX, fracLeft, fracRight));
+                        if (warnings.enabled()) {
+                            warnings.add(Diagnostic.Code.FRACTION_OUTSIDE_DIGIT, new int[]{j},
+                                    new double[]{otherCenterX, fracLeft, fracRight}, List.of(otherToken));
+                        }
                     }
                 }
                 
@@ -673,25 +811,23 @@ public class SpatialToExpr {
                     }));
                     
                     // デバッグ情報を追加
-                    StringBuilder debugInfo = new StringBuilder();
-                    debugInfo.append("分数処理: 分子=");
-                    if (numeratorIndices.isEmpty()) {
-                        debugInfo.append("なし");
-                    } else {
-                        for (int idx : numeratorIndices) {
-                            debugInfo.append(tokens.get(idx)).append("(").append(String.format("%.1f", tokenSymbols.get(idx).box.cy())).append(") ");
-                        }
-                    }
-                    debugInfo.append(", 分母=");
-                    if (denominatorIndices.isEmpty()) {
-                        debugInfo.append("なし");
-                    } else {
-                        for (int idx : denominatorIndices) {
-                            debugInfo.append(tokens.get(idx)).append("(").append(String.format("%.1f", tokenSymbols.get(idx).box.cy())).append(") ");
+                    if (warnings.enabled()) {
+                        List<Integer> parts = new ArrayList<>(numeratorIndices);
+                        parts.addAll(denominatorIndices);
+                        int[] partIndices = new int[parts.size()];
+                        List<String> partTokens = new ArrayList<>();
+                        double[] params = new double[5 + parts.size()];
+                        params[0] = numeratorIndices.size();
+                        params[1] = denominatorIndices.size();
+                        params[4] = fracCenterY;
+                        for (int k = 0; k < parts.size(); k++) {
+                            int idx = parts.get(k);
+                            partIndices[k] = idx;
+                            partTokens.add(tokens.get(idx));
+                            params[5 + k] = tokenSymbols.get(idx).box.cy();
                         }
+                        warnings.add(Diagnostic.Code.FRACTION_PARTS, partIndices, params, partTokens);
                     }
-                    debugInfo.append(", 分数線y=").append(String.format("%.1f", fracCenterY));
-                    warnings.add(debugInfo.toString());
                     
                     // 除外されたインデックスをusedにマーク
                     for (int excludedIdx : excludedIndices) {
@@ -754,9 +890,14 @@ public class SpatialToExpr {
     
     /**
      * 微分演算子の処理（d/dx構造を検出）
+     * 直後の項（括弧・関数呼び出し・べき乗つきの1トークン）があれば diff(x, 項) にまとめる。
+     * 項がなければ従来どおり diff(x) にする。
+     * tokenSymbolsがtokensと対応している場合は、その対応を保ったまま更新する（後段の極限・分数処理が使う）。
      */
-    private List<String> processDerivatives(List<String> tokens, List<String> warnings) {
+    private List<String> processDerivatives(List<String> tokens, List<DetSymbol> tokenSymbols, Diagnostics warnings) {
+        boolean aligned = tokenSymbols.size() == tokens.size();
         List<String> result = new ArrayList<>();
+        List<DetSymbol> resultSymbols = new ArrayList<>();
         
         for (int i = 0; i < tokens.size(); i++) {
             // d/dx パターンを検出
@@ -766,27 +907,77 @@ public class SpatialToExpr {
                 tokens.get(i + 2).equals("d") &&
                 isVariable(tokens.get(i + 3))) {
                 
+                int from = i + 4;
+                int to = derivativeOperandEnd(tokens, from);
                 result.add("diff");
+                resultSymbols.add(aligned ? tokenSymbols.get(i) : null);
                 result.add("(");
+                resultSymbols.add(null);
                 result.add(tokens.get(i + 3)); // 変数名
+                resultSymbols.add(aligned ? tokenSymbols.get(i + 3) : null);
+                if (to > from) {
+                    result.add(",");
+                    resultSymbols.add(null);
+                    for (int k = from; k < to; k++) {
+                        result.add(tokens.get(k));
+                        resultSymbols.add(aligned ? tokenSymbols.get(k) : null);
+                    }
+                }
                 result.add(")");
-                i += 3; // ループでi++されるので+3
+                resultSymbols.add(null);
+                i = to - 1; // ループでi++されるので-1
             } else {
                 result.add(tokens.get(i));
+                resultSymbols.add(aligned ? tokenSymbols.get(i) : null);
             }
         }
         
+        if (aligned) {
+            tokenSymbols.clear();
+            tokenSymbols.addAll(resultSymbols);
+        }
         return result;
     }
+
+    /**
+     * d/dx の直後の項の終わり（項がなければfromを返す）
+     */
+    private int derivativeOperandEnd(List<String> tokens, int from) {
+        if (from >= tokens.size()) return from;
+        String t = tokens.get(from);
+        if (t.equals("(")) return matchingParenEnd(tokens, from);
+        if (isFunc(t) && from + 1 < tokens.size() && tokens.get(from + 1).equals("(")) {
+            return matchingParenEnd(tokens, from + 1);
+        }
+        if (isOperator(t) || t.equals(")") || t.equals(",")) return from;
+        int end = from + 1;
+        // x^2 や x^(n+1) のようなべき乗は項に含める
+        while (end + 1 < tokens.size() && tokens.get(end).equals("^")) {
+            end = tokens.get(end + 1).equals("(") ? matchingParenEnd(tokens, end + 1) : end + 2;
+        }
+        return end;
+    }
+
+    /**
+     * openの位置の"("に対応する")"の次の位置（対応がなければ末尾）
+     */
+    private int matchingParenEnd(List<String> tokens, int open) {
+        int depth = 0;
+        for (int k = open; k < tokens.size(); k++) {
+            if (tokens.get(k).equals("(")) depth++;
+            if (tokens.get(k).equals(")") && --depth == 0) return k + 1;
+        }
+        return tokens.size();
+    }
     
     /**
      * 極限の処理（lim_{x→a}構造を検出）
      * bbox情報を使ってlimの後に続く変数、矢印、収束値をセットで取得
      */
-    private List<String> processLimits(List<String> tokens, List<DetSymbol> tokenSymbols, List<String> warnings) {
+    private List<String> processLimits(List<String> tokens, List<DetSymbol> tokenSymbols, Diagnostics warnings) {
         if (tokens.size() != tokenSymbols.size()) {
             // tokenSymbolsのサイズが一致しない場合は処理をスキップ
-            warnings.add("極限処理: tokenSymbolsのサイズが一致しません");
+            warnings.add(Diagnostic.Code.LIMIT_SIZE_MISMATCH);
             return tokens;
         }
         
@@ -852,14 +1043,16 @@ public class SpatialToExpr {
                 candidates.sort(Comparator.comparingDouble(c -> c.x));
                 
                 // デバッグ情報: 候補を警告に追加
-                if (!candidates.isEmpty()) {
-                    StringBuilder debugInfo = new StringBuilder();
-                    debugInfo.append("lim処理: 候補数=").append(candidates.size()).append(" [");
-                    for (Candidate c : candidates) {
-                        debugInfo.append(c.token).append("(").append(String.format("%.1f", c.x)).append(") ");
+                if (!candidates.isEmpty() && warnings.enabled()) {
+                    int[] candIndices = new int[candidates.size()];
+                    double[] candX = new double[candidates.size()];
+                    List<String> candTokens = new ArrayList<>();
+                    for (int k = 0; k < candidates.size(); k++) {
+                        candIndices[k] = candidates.get(k).index;
+                        candX[k] = candidates.get(k).x;
+                        candTokens.add(candidates.get(k).token);
                     }
-                    debugInfo.append("]");
-                    warnings.add(debugInfo.toString());
+                    warnings.add(Diagnostic.Code.LIMIT_CANDIDATES, candIndices, candX, candTokens);
                 }
                 
                 // 順番にチェック：変数 → 矢印 → 収束値
@@ -875,9 +1068,9 @@ public class SpatialToExpr {
                 }
                 
                 // デバッグ情報を追加
-                if (variable == null) {
-                    warnings.add("lim処理: 変数が見つかりませんでした (候補: " + 
-                        candidates.stream().map(c -> c.token).collect(Collectors.joining(", ")) + ")");
+                if (variable == null && warnings.enabled()) {
+                    warnings.add(Diagnostic.Code.LIMIT_NO_VARIABLE, null, null,
+                        candidates.stream().map(c -> c.token).collect(Collectors.toList()));
                 }
                 
                 // 変数が見つかったら、その後に矢印を探す
@@ -909,7 +1102,7 @@ public class SpatialToExpr {
                 
                 // デバッグ情報を追加
                 if (arrow == null) {
-                    warnings.add("lim処理: 矢印が見つかりませんでした");
+                    warnings.add(Diagnostic.Code.LIMIT_NO_ARROW);
                 }
                 
                 // 矢印が見つかったら、その前後で収束値を探す
@@ -959,7 +1152,7 @@ public class SpatialToExpr {
                 
                 // デバッグ情報を追加
                 if (limitValue == null) {
-                    warnings.add("lim処理: 収束値が見つかりませんでした");
+                    warnings.add(Diagnostic.Code.LIMIT_NO_VALUE);
                 }
                 
                 // limの後に続く式全体を取得（収束値の後から式の終わりまで）
@@ -1017,12 +1210,9 @@ public class SpatialToExpr {
                     result.add("x");
                 } else {
                     // 何も見つからなかった場合、警告を出してそのまま続ける
-                    StringBuilder debugInfo = new StringBuilder();
-                    debugInfo.append("極限処理: limの後に変数、矢印、収束値が見つかりませんでした");
-                    if (variable != null) debugInfo.append(" (変数=").append(variable).append(")");
-                    if (arrow != null) debugInfo.append(" (矢印=→)");
                     // limitValueはこの時点でnullなのでチェック不要
-                    warnings.add(debugInfo.toString());
+                    warnings.add(Diagnostic.Code.LIMIT_INCOMPLETE, null,
+                            new double[]{arrow != null ? 1 : 0}, variable != null ? List.of(variable) : null);
                     result.add("0");
                     result.add(",");
                     result.add("x");
@@ -1041,6 +1231,23 @@ public class SpatialToExpr {
         return result.isEmpty() ? tokens : result;
     }
 
+    /**
+     * シンボル列の先頭10個をトークンとcxで記録する
+     */
+    private void addSymbolDump(Diagnostics warnings, Diagnostic.Code code, List<DetSymbol> symbols) {
+        if (symbols.isEmpty() || !warnings.enabled()) return;
+        int n = Math.min(symbols.size(), 10);
+        int[] indices = new int[n];
+        double[] cx = new double[n];
+        List<String> tokens = new ArrayList<>(n);
+        for (int k = 0; k < n; k++) {
+            indices[k] = k;
+            cx[k] = symbols.get(k).box.cx();
+            tokens.add(symbols.get(k).token);
+        }
+        warnings.add(code, indices, cx, tokens);
+    }
+
     private boolean looksLikeSuperscript(DetSymbol base, DetSymbol cand) {
         // 右側にあって、上にある（yが小さい）＋サイズが小さい → べき
         double dx = cand.box.cx() - base.box.cx();
@@ -1174,7 +1381,7 @@ public class SpatialToExpr {
      * 閉じ括弧が余っている場合は、左端の閉じ括弧を開き括弧に修正
      * bbox情報を使って、実際の位置関係から括弧の向きを判定
      */
-    private List<String> fixParenMismatch(List<String> tokens, List<DetSymbol> tokenSymbols, List<String> warnings) {
+    private List<String> fixParenMismatch(List<String> tokens, List<DetSymbol> tokenSymbols, Diagnostics warnings) {
         List<String> result = new ArrayList<>(tokens);
         
         // tokenSymbolsが利用可能な場合、bbox情報を使って括弧の向きを判定
@@ -1217,7 +1424,7 @@ public class SpatialToExpr {
                     if (fixed >= excess) break;
                     result.set(idx, ")");
                     fixed++;
-                    warnings.add(String.format("括弧の対応を修正: 位置%dの(を)に変更 (bbox情報を使用)", idx));
+                    warnings.add(Diagnostic.Code.PAREN_OPEN_TO_CLOSE, new int[]{idx}, new double[]{1}, null);
                 }
             } else {
                 // bbox情報がない場合は従来通り
@@ -1225,7 +1432,7 @@ public class SpatialToExpr {
                     if (result.get(i).equals("(")) {
                         result.set(i, ")");
                         fixed++;
-                        warnings.add(String.format("括弧の対応を修正: 位置%dの(を)に変更", i));
+                        warnings.add(Diagnostic.Code.PAREN_OPEN_TO_CLOSE, new int[]{i}, new double[]{0}, null);
                     }
                 }
             }
@@ -1249,7 +1456,7 @@ public class SpatialToExpr {
                     if (fixed >= excess) break;
                     result.set(idx, "(");
                     fixed++;
-                    warnings.add(String.format("括弧の対応を修正: 位置%dの)を(に変更 (bbox情報を使用)", idx));
+                    warnings.add(Diagnostic.Code.PAREN_CLOSE_TO_OPEN, new int[]{idx}, new double[]{1}, null);
                 }
             } else {
                 // bbox情報がない場合は従来通り
@@ -1257,7 +1464,7 @@ public class SpatialToExpr {
                     if (result.get(i).equals(")")) {
                         result.set(i, "(");
                         fixed++;
-                        warnings.add(String.format("括弧の対応を修正: 位置%dの)を(に変更", i));
+                        warnings.add(Diagnostic.Code.PAREN_CLOSE_TO_OPEN, new int[]{i}, new double[]{0}, null);
                     }
                 }
             }
@@ -1269,10 +1476,10 @@ public class SpatialToExpr {
     /**
      * 分数を検出して分子と分母を分離
      * @param merged 関数名マージ後のシンボル列
-     * @param warnings 警告リスト
+     * @param warnings 警告の収集先
      * @return 分数情報（分数が見つからない場合はnull）
      */
-    private FractionInfo detectFraction(List<DetSymbol> merged, List<String> warnings) {
+    private FractionInfo detectFraction(List<DetSymbol> merged, Diagnostics warnings) {
         // 分数線（/）を検出
         for (int i = 0; i < merged.size(); i++) {
             DetSymbol symbol = merged.get(i);
@@ -1405,45 +1612,31 @@ public class SpatialToExpr {
                 afterFractionSymbols.sort(Comparator.comparingDouble(a -> a.box.cx()));
                 
                 // デバッグ情報を追加
-                StringBuilder debugInfo = new StringBuilder();
-                debugInfo.append("分数処理: 分子=");
-                if (numeratorSymbols.isEmpty()) {
-                    debugInfo.append("なし");
-                } else {
-                    for (DetSymbol sym : numeratorSymbols) {
-                        debugInfo.append(sym.token).append("(").append(String.format("%.1f", sym.box.cy())).append(") ");
-                    }
-                }
-                debugInfo.append(", 分母=");
-                if (denominatorSymbols.isEmpty()) {
-                    debugInfo.append("なし");
-                } else {
-                    for (DetSymbol sym : denominatorSymbols) {
-                        debugInfo.append(sym.token).append("(").append(String.format("%.1f", sym.box.cy())).append(") ");
+                if (warnings.enabled()) {
+                    List<DetSymbol> parts = new ArrayList<>(numeratorSymbols);
+                    parts.addAll(denominatorSymbols);
+                    parts.addAll(beforeFractionSymbols);
+                    parts.addAll(afterFractionSymbols);
+                    int nCoords = numeratorSymbols.size() + denominatorSymbols.size();
+                    int[] partIndices = new int[parts.size()];
+                    List<String> partTokens = new ArrayList<>();
+                    double[] params = new double[5 + nCoords];
+                    params[0] = numeratorSymbols.size();
+                    params[1] = denominatorSymbols.size();
+                    params[2] = beforeFractionSymbols.size();
+                    params[3] = afterFractionSymbols.size();
+                    params[4] = fracCenterY;
+                    for (int k = 0; k < parts.size(); k++) {
+                        partIndices[k] = merged.indexOf(parts.get(k));
+                        partTokens.add(parts.get(k).token);
+                        if (k < nCoords) params[5 + k] = parts.get(k).box.cy();
                     }
+                    warnings.add(Diagnostic.Code.FRACTION_SPLIT, partIndices, params, partTokens);
                 }
-                debugInfo.append(", 前=");
-                if (beforeFractionSymbols.isEmpty()) {
-                    debugInfo.append("なし");
-                } else {
-                    for (DetSymbol sym : beforeFractionSymbols) {
-                        debugInfo.append(sym.token).append(" ");
-                    }
-                }
-                debugInfo.append(", 後=");
-                if (afterFractionSymbols.isEmpty()) {
-                    debugInfo.append("なし");
-                } else {
-                    for (DetSymbol sym : afterFractionSymbols) {
-                        debugInfo.append(sym.token).append(" ");
-                    }
-                }
-                debugInfo.append(", 分数線y=").append(String.format("%.1f", fracCenterY));
-                warnings.add(debugInfo.toString());
                 
                 // 分子または分母が見つかった場合、分数情報を返す
                 if (!numeratorSymbols.isEmpty() || !denominatorSymbols.isEmpty()) {
-                    return new FractionInfo(numeratorSymbols, denominatorSymbols, beforeFractionSymbols, afterFractionSymbols);
+                    return new FractionInfo(numeratorSymbols, denominatorSymbols, beforeFractionSymbols, afterFractionSymbols, symbol);
                 }
             }
         }
@@ -1451,14 +1644,63 @@ public class SpatialToExpr {
         return null; // 分数が見つからない場合
     }
     
+    /** structureOfで分数線を表す番号 */
+    static final int FRACTION_BAR = -1;
+
+    /**
+     * レイアウト解析が別々のトークン列として読むまとまり（NBestRecognizerの構文チェック用）
+     * buildExprStringと同じ分数の検出とべき（右上）のまとめ方で分ける。
+     * 0は本体（分数の前後。分数全体は分数線の位置にある1つの値として読む）、分子・分母・べきの指数はそれぞれ別の番号。
+     * @param symbols cx順のシンボル列
+     * @return symbolsと同じ長さの、各シンボルが属するまとまりの番号（分数線はFRACTION_BAR）
+     */
+    int[] structureOf(List<DetSymbol> symbols) {
+        int[] ids = new int[symbols.size()];
+        Map<DetSymbol, Integer> index = new IdentityHashMap<>();
+        for (int i = 0; i < symbols.size(); i++) index.put(symbols.get(i), i);
+
+        int next = 1;
+        List<List<DetSymbol>> parts = new ArrayList<>();
+        FractionInfo fraction = detectFraction(symbols, Diagnostics.disabled());
+        if (fraction == null) {
+            parts.add(symbols);
+        } else {
+            ids[index.get(fraction.bar)] = FRACTION_BAR;
+            for (DetSymbol sym : fraction.numeratorSymbols) ids[index.get(sym)] = next;
+            parts.add(fraction.numeratorSymbols);
+            next++;
+            for (DetSymbol sym : fraction.denominatorSymbols) ids[index.get(sym)] = next;
+            parts.add(fraction.denominatorSymbols);
+            next++;
+            parts.add(fraction.beforeFractionSymbols);
+            parts.add(fraction.afterFractionSymbols);
+        }
+
+        // べきの指数（processExpressionPartと同じく、底の右上に続く小さい塊）
+        for (List<DetSymbol> part : parts) {
+            int i = 0;
+            while (i < part.size()) {
+                DetSymbol base = part.get(i);
+                int j = i + 1;
+                while (j < part.size() && looksLikeSuperscript(base, part.get(j))) j++;
+                if (j > i + 1) {
+                    for (int k = i + 1; k < j; k++) ids[index.get(part.get(k))] = next;
+                    next++;
+                }
+                i = j;
+            }
+        }
+        return ids;
+    }
+
     /**
      * 式の一部（分子または分母）を処理
      * べき乗、ルート、絶対値、微分、極限、括弧修正、暗黙の掛け算を適用
      * @param symbols 処理するシンボル列
-     * @param warnings 警告リスト
+     * @param warnings 警告の収集先
      * @return 処理後の式文字列
      */
-    private String processExpressionPart(List<DetSymbol> symbols, List<String> warnings) {
+    private String processExpressionPart(List<DetSymbol> symbols, Diagnostics warnings) {
         if (symbols.isEmpty()) {
             return "1"; // 空の場合は1とする
         }
@@ -1512,7 +1754,7 @@ public class SpatialToExpr {
         tokens = processAbsoluteValue(tokens, warnings);
         
         // 4) 微分演算子の処理
-        tokens = processDerivatives(tokens, warnings);
+        tokens = processDerivatives(tokens, tokenSymbols, warnings);
         
         // 5) 極限の処理
         tokens = processLimits(tokens, tokenSymbols, warnings);
@@ -0,0 +1,123 @@
+package parse;
+
+/**
+ * トークン列を並列配列で保持するバッファ（Tokenオブジェクトを作らない）
+ *
+ * kind / start / end / code / value を添字ごとに持ち、配列は使い回す。
+ * reset()してからTokenizer.tokenize(String, TokenStream)で埋める。
+ * 1つのインスタンスを複数スレッドで同時に使ってはいけない。
+ */
+public final class TokenStream {
+
+    // kindの値（Token.Kindと同じ並び）
+    public static final int NUM = 0;
+    public static final int SYM = 1;
+    public static final int FUNC = 2;
+    public static final int OP = 3;
+    public static final int LPAREN = 4;
+    public static final int RPAREN = 5;
+    public static final int COMMA = 6;
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    // 1文字の変数名（a-z, A-Z）はこの表の文字列を返す
+    private static final String[] ASCII_NAMES = new String[128];
+    static {
+        for (char c = 'a'; c <= 'z'; c++) ASCII_NAMES[c] = String.valueOf(c);
+        for (char c = 'A'; c <= 'Z'; c++) ASCII_NAMES[c] = String.valueOf(c);
+    }
+
+    private String src;
+    private int size;
+    private int[] kind = new int[INITIAL_CAPACITY];
+    private int[] start = new int[INITIAL_CAPACITY];
+    private int[] end = new int[INITIAL_CAPACITY];
+    private int[] code = new int[INITIAL_CAPACITY];     // OP: 演算子の文字, FUNC: Tokenizer.FUNC_NAMESの添字
+    private double[] value = new double[INITIAL_CAPACITY]; // NUM: 数値
+
+    /**
+     * 中身を空にして、新しい入力文字列を設定する（配列は再利用する）
+     */
+    public void reset(String src) {
+        this.src = src;
+        this.size = 0;
+    }
+
+    public String source() { return src; }
+    public int size() { return size; }
+    public int kind(int i) { return kind[i]; }
+    public int start(int i) { return start[i]; }
+    public int end(int i) { return end[i]; }
+
+    /** NUMトークンの数値 */
+    public double number(int i) { return value[i]; }
+
+    /** OPトークンの演算子文字（'+', '-', '*', '/', '^', '→', '='） */
+    public char opChar(int i) { return (char) code[i]; }
+
+    /** FUNCトークンの関数番号（Tokenizer.FUNC_NAMESの添字） */
+    public int funcIndex(int i) { return code[i]; }
+
+    /**
+     * トークンの文字列（SYMは変数名、FUNCは正規化した関数名、その他は記号）
+     * 1文字の変数名と関数名は共有の文字列を返すので、ほとんどの場合は新しい文字列を作らない
+     */
+    public String text(int i) {
+        switch (kind[i]) {
+            case SYM: {
+                int s = start[i];
+                if (end[i] - s == 1) {
+                    char c = src.charAt(s);
+                    if (c < 128 && ASCII_NAMES[c] != null) return ASCII_NAMES[c];
+                }
+                return src.substring(s, end[i]);
+            }
+            case FUNC:
+                return Tokenizer.FUNC_NAMES[code[i]];
+            case OP:
+                return Tokenizer.opText((char) code[i]);
+            case LPAREN:
+                return "(";
+            case RPAREN:
+                return ")";
+            case COMMA:
+                return ",";
+            default:
+                return src.substring(start[i], end[i]);
+        }
+    }
+
+    /**
+     * i番目のトークンをTokenにする（デバッグ・互換用）
+     */
+    public Token toToken(int i) {
+        switch (kind[i]) {
+            case NUM: return Token.num(value[i]);
+            case SYM: return Token.sym(text(i));
+            case FUNC: return Token.func(text(i));
+            case OP: return Token.op(text(i));
+            case LPAREN: return Token.lp();
+            case RPAREN: return Token.rp();
+            default: return Token.comma();
+        }
+    }
+
+    void add(int k, int s, int e, int c, double v) {
+        if (size == kind.length) grow();
+        kind[size] = k;
+        start[size] = s;
+        end[size] = e;
+        code[size] = c;
+        value[size] = v;
+        size++;
+    }
+
+    private void grow() {
+        int n = kind.length * 2;
+        kind = java.util.Arrays.copyOf(kind, n);
+        start = java.util.Arrays.copyOf(start, n);
+        end = java.util.Arrays.copyOf(end, n);
+        code = java.util.Arrays.copyOf(code, n);
+        value = java.util.Arrays.copyOf(value, n);
+    }
+}
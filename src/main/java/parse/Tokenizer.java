@@ -5,19 +5,40 @@ import java.util.*;
 public class Tokenizer {
 
     // 関数名リスト（拡張版）
-    private static final Set<String> FUNCS = Set.of(
+    // TokenStreamのFUNCトークンはこの配列の添字を持つ
+    static final String[] FUNC_NAMES = {
         "sin", "cos", "tan", "sec", "csc", "cot",  // 三角関数
         "ln", "log", "exp",                        // 対数・指数
         "sqrt", "abs",                             // その他関数
         "neg", "sub",                              // 単項・二項演算
         "diff", "limit"                            // 微分・極限
-    );
-    
-    // 定数
-    private static final Set<String> CONSTANTS = Set.of("π", "e", "∞");
+    };
+    private static final int FUNC_SQRT = 9;
+
+    // 10^0 .. 10^22（doubleで正確に表せる範囲）
+    private static final double[] POW10 = new double[23];
+    static {
+        POW10[0] = 1.0;
+        for (int k = 1; k < POW10.length; k++) POW10[k] = POW10[k - 1] * 10.0;
+    }
+
+    // 仮数がこれ未満ならdoubleで正確に表せる（2^53）
+    private static final long EXACT_MANTISSA_LIMIT = 1L << 53;
 
     public static List<Token> tokenize(String s) {
-        List<Token> out = new ArrayList<>();
+        TokenStream ts = new TokenStream();
+        tokenize(s, ts);
+        List<Token> out = new ArrayList<>(ts.size());
+        for (int i = 0; i < ts.size(); i++) out.add(ts.toToken(i));
+        return out;
+    }
+
+    /**
+     * sをトークンに分けてoutに書き込む（outはresetされる）
+     * トークンごとのオブジェクトや部分文字列は作らない
+     */
+    public static void tokenize(String s, TokenStream out) {
+        out.reset(s);
         int n = s.length();
         int i = 0;
 
@@ -28,81 +49,124 @@ public class Tokenizer {
 
             // number (support: 12, 12.34)
             if (Character.isDigit(c) || c == '.') {
-                int j = i;
-                boolean dot = false;
-                while (j < n) {
-                    char d = s.charAt(j);
-                    if (Character.isDigit(d)) { j++; continue; }
-                    if (d == '.' && !dot) { dot = true; j++; continue; }
-                    break;
-                }
-                double v = Double.parseDouble(s.substring(i, j));
-                out.add(Token.num(v));
-                i = j;
+                i = scanNumber(s, i, out);
                 continue;
             }
 
-            // identifier: x, sin, cos, ...
+            // identifier: x, sin, cos, ...（π, θ もCharacter.isLetterなのでここで変数になる）
             if (Character.isLetter(c)) {
                 int j = i;
                 while (j < n && (Character.isLetterOrDigit(s.charAt(j)) || s.charAt(j) == '_')) j++;
-                String id = s.substring(i, j);
 
-                if (FUNCS.contains(id)) {
-                    out.add(Token.func(id));
-                } else if (id.equals("e") && CONSTANTS.contains("e")) {
-                    // eを定数として扱う（記号として保持）
-                    out.add(Token.sym("e"));
+                int f = funcIndex(s, i, j);
+                if (f >= 0) {
+                    out.add(TokenStream.FUNC, i, j, f, 0);
                 } else {
-                    out.add(Token.sym(id)); // 変数（a-z、ただしeは除く）
+                    // 変数（a-z）と定数 e, π, θ
+                    out.add(TokenStream.SYM, i, j, -1, 0);
                 }
 
                 i = j;
                 continue;
             }
-            
-            // 特殊文字（π, θ, ∞, →, √）
-            if (c == 'π' || c == 'θ' || c == '∞') {
-                String constName = String.valueOf(c);
-                // 定数として記号として保持（数値に変換しない）
-                out.add(Token.sym(constName));
-                i++;
-                continue;
-            }
-            
-            if (c == '→') {
-                // 矢印は演算子として扱う（簡易実装）
-                out.add(Token.op("→"));
-                i++;
-                continue;
-            }
-            
-            if (c == '√') {
-                // ルート記号は関数として扱う
-                out.add(Token.func("sqrt"));
-                i++;
-                continue;
+
+            switch (c) {
+                case '∞':
+                    // 定数として記号として保持（数値に変換しない）
+                    out.add(TokenStream.SYM, i, i + 1, -1, 0);
+                    break;
+                case '→':
+                    // 矢印は演算子として扱う（簡易実装）
+                case '+': case '-': case '*': case '/': case '^': case '=':
+                    out.add(TokenStream.OP, i, i + 1, c, 0);
+                    break;
+                case '√':
+                    // ルート記号は関数として扱う
+                    out.add(TokenStream.FUNC, i, i + 1, FUNC_SQRT, 0);
+                    break;
+                case '(':
+                    out.add(TokenStream.LPAREN, i, i + 1, 0, 0);
+                    break;
+                case ')':
+                case '|':
+                    // 絶対値記号（簡易実装：括弧として扱う）
+                    // 実際の処理はSpatialToExprでabs(...)に変換済み
+                    out.add(TokenStream.RPAREN, i, i + 1, 0, 0);
+                    break;
+                case ',':
+                    out.add(TokenStream.COMMA, i, i + 1, 0, 0);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unexpected char: '" + c + "' at " + i);
             }
+            i++;
+        }
+    }
 
-            // parentheses / comma / absolute value
-            if (c == '(') { out.add(Token.lp()); i++; continue; }
-            if (c == ')') { out.add(Token.rp()); i++; continue; }
-            if (c == '|') { 
-                // 絶対値記号（簡易実装：括弧として扱う）
-                // 実際の処理はSpatialToExprでabs(...)に変換済み
-                out.add(Token.rp()); // 簡易的に閉じ括弧として扱う
-                i++; 
-                continue; 
+    /**
+     * s[i..] の数値を読み取ってoutに追加し、次の位置を返す
+     * 仮数が2^53未満・小数桁が22以下なら「整数 / 10^k」の1回の割り算で
+     * Double.parseDoubleと同じ（正しく丸めた）値になる。それ以外はparseDoubleに任せる。
+     */
+    private static int scanNumber(String s, int i, TokenStream out) {
+        int n = s.length();
+        int j = i;
+        boolean dot = false;
+        boolean exact = true;
+        int digits = 0;
+        int fracDigits = 0;
+        long mantissa = 0;
+        while (j < n) {
+            char d = s.charAt(j);
+            if (Character.isDigit(d)) {
+                if (d >= '0' && d <= '9') {
+                    mantissa = mantissa * 10 + (d - '0');
+                    if (mantissa >= EXACT_MANTISSA_LIMIT) exact = false;
+                } else {
+                    exact = false; // ASCII以外の数字
+                }
+                digits++;
+                if (dot) fracDigits++;
+                j++;
+                continue;
             }
-            if (c == ',') { out.add(Token.comma()); i++; continue; }
+            if (d == '.' && !dot) { dot = true; j++; continue; }
+            break;
+        }
 
-            // operators
-            if ("+-*/^".indexOf(c) >= 0) { out.add(Token.op(String.valueOf(c))); i++; continue; }
+        double v;
+        if (exact && digits > 0 && fracDigits < POW10.length) {
+            v = fracDigits == 0 ? (double) mantissa : mantissa / POW10[fracDigits];
+        } else {
+            // "." だけの場合の例外もparseDoubleと同じにする
+            v = Double.parseDouble(s.substring(i, j));
+        }
+        out.add(TokenStream.NUM, i, j, 0, v);
+        return j;
+    }
 
-            throw new IllegalArgumentException("Unexpected char: '" + c + "' at " + i);
+    /**
+     * s[from, to) が関数名ならFUNC_NAMESの添字、そうでなければ-1
+     */
+    private static int funcIndex(String s, int from, int to) {
+        int len = to - from;
+        for (int k = 0; k < FUNC_NAMES.length; k++) {
+            String name = FUNC_NAMES[k];
+            if (name.length() == len && s.regionMatches(from, name, 0, len)) return k;
         }
+        return -1;
+    }
 
-        return out;
+    static String opText(char op) {
+        switch (op) {
+            case '+': return "+";
+            case '-': return "-";
+            case '*': return "*";
+            case '/': return "/";
+            case '^': return "^";
+            case '→': return "→";
+            case '=': return "=";
+            default: throw new IllegalArgumentException("Unknown op: " + op);
+        }
     }
 }
-